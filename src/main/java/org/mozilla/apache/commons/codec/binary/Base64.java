@@ -679,6 +679,59 @@ public class Base64 extends BaseNCodec {
         return new Base64().decode(base64Data);
     }
 
+    /**
+     * Decodes a region of Base64 data straight into a caller-supplied array.
+     *
+     * @param base64Data
+     *            Byte array containing Base64 data
+     * @param offset
+     *            position of the first byte to decode
+     * @param length
+     *            number of bytes to decode
+     * @param output
+     *            array to write the decoded data into; should have at least
+     *            {@link BaseNCodec#getMaxDecodedLength(int)} bytes free after <code>outputOffset</code>
+     * @param outputOffset
+     *            position in <code>output</code> to write the first decoded byte
+     * @return the number of decoded bytes written
+     * @throws IllegalArgumentException
+     *             if the decoded data does not fit in <code>output</code>
+     */
+    public static int decodeBase64(byte[] base64Data, int offset, int length, byte[] output, int outputOffset) {
+        return new Base64().decode(base64Data, offset, length, output, outputOffset);
+    }
+
+    /**
+     * Returns the size of output array needed by {@link #decodeBase64(byte[], int, int, byte[], int)} to decode
+     * <code>length</code> bytes of unchunked Base64 data without allocating.
+     *
+     * @param length
+     *            number of encoded bytes
+     * @return an upper bound on the decoded length, plus working space for the decoder
+     */
+    public static int getMaxDecodedBase64Length(int length) {
+        return new Base64().getMaxDecodedLength(length);
+    }
+
+    /**
+     * Encodes a region of binary data using the base64 algorithm, without chunking, handing the encoded output to
+     * <code>consumer</code> a piece at a time.
+     *
+     * @param binaryData
+     *            binary data to encode
+     * @param offset
+     *            position of the first byte to encode
+     * @param length
+     *            number of bytes to encode
+     * @param scratch
+     *            working space for encoded output; at least 12 bytes
+     * @param consumer
+     *            receives the encoded output, in order
+     */
+    public static void encodeBase64(byte[] binaryData, int offset, int length, byte[] scratch, EncodedChunkConsumer consumer) {
+        new Base64().encode(binaryData, offset, length, scratch, consumer);
+    }
+
     // Implementation of the Encoder Interface
 
     // Implementation of integer encoding used for crypto
@@ -18,6 +18,8 @@
 
 package org.mozilla.apache.commons.codec.binary;
 
+import java.nio.ByteBuffer;
+
 import org.mozilla.apache.commons.codec.BinaryDecoder;
 import org.mozilla.apache.commons.codec.BinaryEncoder;
 import org.mozilla.apache.commons.codec.DecoderException;
@@ -33,6 +35,19 @@ import org.mozilla.apache.commons.codec.EncoderException;
  */
 public abstract class BaseNCodec implements BinaryEncoder, BinaryDecoder {
 
+    /**
+     * Receives encoded output a piece at a time from
+     * {@link BaseNCodec#encode(byte[], int, int, byte[], EncodedChunkConsumer)}.
+     */
+    public interface EncodedChunkConsumer {
+        /**
+         * @param chunk buffer holding encoded output. Only valid until this method returns.
+         * @param offset position of the first encoded byte in <code>chunk</code>.
+         * @param length number of encoded bytes.
+         */
+        void consume(byte[] chunk, int offset, int length);
+    }
+
     /**
      *  MIME chunk size per RFC 2045 section 6.8.
      *
@@ -356,6 +371,141 @@ public abstract class BaseNCodec implements BinaryEncoder, BinaryDecoder {
         return StringUtils.newStringUtf8(encode(pArray));
     }
 
+    /**
+     * Returns the size of output buffer that
+     * {@link #decode(byte[], int, int, byte[], int)} needs to decode
+     * <code>length</code> bytes without allocating.
+     *
+     * @param length number of encoded bytes
+     * @return an upper bound on the decoded length, plus working space for the decoder
+     */
+    public int getMaxDecodedLength(int length) {
+        return (length / encodedBlockSize + 1) * unencodedBlockSize + encodedBlockSize + chunkSeparatorLength;
+    }
+
+    /**
+     * Decodes Base-N data from a region of <code>pArray</code> straight into a caller-supplied array.
+     * <p>
+     * No intermediate buffers are allocated if <code>output</code> has at least
+     * {@link #getMaxDecodedLength(int)} bytes free after <code>outputOffset</code>.
+     * </p>
+     *
+     * @param pArray
+     *            A byte array containing Base-N character data
+     * @param offset
+     *            position of the first byte to decode
+     * @param length
+     *            number of bytes to decode
+     * @param output
+     *            array to write the decoded data into
+     * @param outputOffset
+     *            position in <code>output</code> to write the first decoded byte
+     * @return the number of decoded bytes written
+     * @throws IllegalArgumentException
+     *             if the decoded data does not fit in <code>output</code>
+     */
+    public int decode(byte[] pArray, int offset, int length, byte[] output, int outputOffset) {
+        reset();
+        if (length == 0) {
+            return 0;
+        }
+        // Decode directly into the caller's array.
+        buffer = output;
+        pos = outputOffset;
+        readPos = outputOffset;
+        decode(pArray, offset, length);
+        decode(pArray, offset, -1); // Notify decoder of EOF.
+        final int written = pos - outputOffset;
+        if (buffer != output) {
+            // The decoder had to grow its buffer; copy back if we can.
+            if (written > output.length - outputOffset) {
+                reset();
+                throw new IllegalArgumentException("Output buffer too small for decoded data.");
+            }
+            System.arraycopy(buffer, outputOffset, output, outputOffset, written);
+        }
+        reset();
+        return written;
+    }
+
+    /**
+     * Decodes Base-N data from a region of <code>pArray</code> into a <code>ByteBuffer</code>, advancing its
+     * position by the number of decoded bytes.
+     *
+     * @param pArray
+     *            A byte array containing Base-N character data
+     * @param offset
+     *            position of the first byte to decode
+     * @param length
+     *            number of bytes to decode
+     * @param output
+     *            buffer to write the decoded data into
+     * @return the number of decoded bytes written
+     * @throws IllegalArgumentException
+     *             if the decoded data does not fit in <code>output</code>
+     */
+    public int decode(byte[] pArray, int offset, int length, ByteBuffer output) {
+        final int maxLength = getMaxDecodedLength(length);
+        if (output.hasArray() && maxLength <= output.remaining()) {
+            // Even the longest decoding stays within the buffer's limit.
+            final int written = decode(pArray, offset, length, output.array(), output.arrayOffset() + output.position());
+            output.position(output.position() + written);
+            return written;
+        }
+        // Decode aside, so that nothing past the buffer's limit is touched.
+        final byte[] decoded = new byte[maxLength];
+        final int written = decode(pArray, offset, length, decoded, 0);
+        if (written > output.remaining()) {
+            throw new IllegalArgumentException("Output buffer too small for decoded data.");
+        }
+        output.put(decoded, 0, written);
+        return written;
+    }
+
+    /**
+     * Encodes a region of <code>pArray</code> a piece at a time, using <code>scratch</code> to hold each piece
+     * of encoded output and handing it to <code>consumer</code>.
+     * <p>
+     * This lets callers feed encoded data to a digest or stream without materializing it. No other buffers are
+     * allocated if <code>scratch</code> can hold at least three encoded blocks, plus any chunk separators.
+     * </p>
+     *
+     * @param pArray
+     *            a byte array containing binary data
+     * @param offset
+     *            position of the first byte to encode
+     * @param length
+     *            number of bytes to encode
+     * @param scratch
+     *            working space for encoded output
+     * @param consumer
+     *            receives the encoded output, in order
+     */
+    public void encode(byte[] pArray, int offset, int length, byte[] scratch, EncodedChunkConsumer consumer) {
+        reset();
+        // Leave room for the encoder's working space and any final padding.
+        final int blocks = Math.max(1, (scratch.length - chunkSeparatorLength) / encodedBlockSize - 2);
+        final int step = blocks * unencodedBlockSize;
+        final int stop = offset + length;
+        for (int i = offset; i < stop; i += step) {
+            buffer = scratch;
+            pos = 0;
+            readPos = 0;
+            encode(pArray, i, Math.min(step, stop - i));
+            if (pos > 0) {
+                consumer.consume(buffer, 0, pos);
+            }
+        }
+        buffer = scratch;
+        pos = 0;
+        readPos = 0;
+        encode(pArray, stop, -1); // Notify encoder of EOF.
+        if (pos > 0) {
+            consumer.consume(buffer, 0, pos);
+        }
+        reset();
+    }
+
     abstract void encode(byte[] pArray, int i, int length);  // package protected for access from I/O streams
 
     abstract void decode(byte[] pArray, int i, int length); // package protected for access from I/O streams
@@ -125,11 +125,36 @@ public class BagheeraClient {
       throw new IllegalArgumentException("Must provide payload.");
     }
 
-    final BaseResource resource = makeResource(namespace, id);
-    final HttpEntity deflatedBody = DeflateHelper.deflateBody(payload);
+    uploadDeflatedDocument(namespace, id, DeflateHelper.deflateBody(payload), oldIDs, delegate);
+  }
 
+  /**
+   * Upload an already deflated JSON document to a Bagheera server, as
+   * {@link #uploadJSONDocument(String, String, String, Collection, BagheeraRequestDelegate)}
+   * does. Use {@link DeflateHelper.DeflatedBodyStream} to produce the body
+   * without holding the whole document.
+   *
+   * @param deflatedPayload
+   *          a repeatable entity holding the zlib-deflated document.
+   */
+  public void uploadDeflatedDocument(final String namespace,
+                                     final String id,
+                                     final HttpEntity deflatedPayload,
+                                     Collection<String> oldIDs,
+                                     final BagheeraRequestDelegate delegate) throws URISyntaxException {
+    if (namespace == null) {
+      throw new IllegalArgumentException("Must provide namespace.");
+    }
+    if (id == null) {
+      throw new IllegalArgumentException("Must provide id.");
+    }
+    if (deflatedPayload == null) {
+      throw new IllegalArgumentException("Must provide payload.");
+    }
+
+    final BaseResource resource = makeResource(namespace, id);
     resource.delegate = new BagheeraUploadResourceDelegate(resource, namespace, id, oldIDs, delegate);
-    resource.post(deflatedBody);
+    resource.post(deflatedPayload);
   }
 
   public static boolean isValidURIComponent(final String in) {
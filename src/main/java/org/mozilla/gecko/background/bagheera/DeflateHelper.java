@@ -4,8 +4,11 @@
 
 package org.mozilla.gecko.background.bagheera;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
 
@@ -74,4 +77,55 @@ public class DeflateHelper {
     }
     return deflateBytes(bytes);
   }
-}
\ No newline at end of file
+
+  /**
+   * A stream that deflates whatever is written to it into memory, for a
+   * caller that produces a body piece by piece. Only the deflated output is
+   * held, so memory use follows the compressed size of the body rather than
+   * its full size.
+   * <p>
+   * The output is exactly what {@link #deflateBytes(byte[])} would produce
+   * for the same input.
+   */
+  public static class DeflatedBodyStream extends DeflaterOutputStream {
+    public static final int BUFFER_SIZE = 8192;
+
+    // Lets us build an entity on the output without copying it.
+    protected static class Output extends ByteArrayOutputStream {
+      public Output() {
+        super(BUFFER_SIZE);
+      }
+
+      public HttpEntity toEntity() {
+        return new BoundedByteArrayEntity(buf, 0, count);
+      }
+    }
+
+    protected boolean ended = false;
+
+    public DeflatedBodyStream() {
+      super(new Output(), new Deflater(), BUFFER_SIZE);
+    }
+
+    /**
+     * Finish deflating and return the output as a repeatable entity.
+     */
+    public HttpEntity toEntity() throws IOException {
+      finish();
+      return ((Output) out).toEntity();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!ended) {
+          // We supplied the Deflater, so the superclass won't release it.
+          def.end();
+          ended = true;
+        }
+      }
+    }
+  }
+}
@@ -5,13 +5,17 @@
 package org.mozilla.gecko.background.common.log;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
 import java.util.LinkedHashSet;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.mozilla.gecko.background.common.GlobalConstants;
 import org.mozilla.gecko.background.common.log.writers.AndroidLevelCachingLogWriter;
 import org.mozilla.gecko.background.common.log.writers.AndroidLogWriter;
+import org.mozilla.gecko.background.common.log.writers.AsyncLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LogWriter;
 import org.mozilla.gecko.background.common.log.writers.PrintLogWriter;
 import org.mozilla.gecko.background.common.log.writers.SimpleTagLogWriter;
@@ -20,7 +24,16 @@ import org.mozilla.gecko.background.common.log.writers.ThreadLocalTagLogWriter;
 import android.util.Log;
 
 /**
- * Logging helper class. Serializes all log operations (by synchronizing).
+ * Logging helper class.
+ * <p>
+ * Changes to the set of writers are serialized (by synchronizing); log calls
+ * are not, and never block on one another. Each log call is handed to every
+ * writer on the calling thread. The default writers resolve the thread's log
+ * tag and then queue messages for a background thread to write.
+ * <p>
+ * To avoid building messages that won't be logged, use the variants that
+ * take a format string and arguments, such as {@link #debugf}: they format
+ * only if some writer will log at that level.
  */
 public class Logger {
   public static final String LOGGER_TAG = "Logger";
@@ -63,7 +76,7 @@ public class Logger {
   protected final static Set<LogWriter> logWriters;
   static {
     final Set<LogWriter> defaultWriters = Logger.defaultLogWriters();
-    logWriters = new LinkedHashSet<LogWriter>(defaultWriters);
+    logWriters = new CopyOnWriteArraySet<LogWriter>(defaultWriters);
   }
 
   /**
@@ -77,7 +90,10 @@ public class Logger {
     final LogWriter log = new AndroidLogWriter();
     final LogWriter cache = new AndroidLevelCachingLogWriter(log);
 
-    final LogWriter single = new SimpleTagLogWriter(processedPackage, new ThreadLocalTagLogWriter(Logger.logTag, cache));
+    // The thread's log tag must be read on the logging thread, so the
+    // background writer goes inside the thread-local tag writer.
+    final LogWriter async = new AsyncLogWriter(cache);
+    final LogWriter single = new SimpleTagLogWriter(processedPackage, new ThreadLocalTagLogWriter(Logger.logTag, async));
 
     defaultLogWriters.add(single);
     return defaultLogWriters;
@@ -129,8 +145,7 @@ public class Logger {
     startLoggingTo(new PrintLogWriter(new PrintWriter(System.out, true)));
   }
 
-  // Synchronized version for other classes to use.
-  public static synchronized boolean shouldLogVerbose(String logTag) {
+  public static boolean shouldLogVerbose(String logTag) {
     for (LogWriter logWriter : logWriters) {
       if (logWriter.shouldLogVerbose(logTag)) {
         return true;
@@ -139,6 +154,62 @@ public class Logger {
     return false;
   }
 
+  /**
+   * @param logTag the tag a message would be logged with.
+   * @param level an <code>android.util.Log</code> level.
+   * @return true if any writer would log a message at <code>level</code>.
+   */
+  public static boolean shouldLog(String logTag, int level) {
+    for (LogWriter logWriter : logWriters) {
+      if (logWriter.shouldLog(logTag, level)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Format a message for the lazy logging methods. Never throws: a bad
+   * format string is logged as is, followed by its arguments.
+   */
+  protected static String format(String format, Object[] args) {
+    try {
+      return String.format(Locale.US, format, args);
+    } catch (IllegalFormatException e) {
+      return format + " " + Arrays.toString(args);
+    }
+  }
+
+  public static void errorf(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.ERROR)) {
+      Logger.error(tag, format(format, args), null);
+    }
+  }
+
+  public static void warnf(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.WARN)) {
+      Logger.warn(tag, format(format, args), null);
+    }
+  }
+
+  public static void infof(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.INFO)) {
+      Logger.info(tag, format(format, args), null);
+    }
+  }
+
+  public static void debugf(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      Logger.debug(tag, format(format, args), null);
+    }
+  }
+
+  public static void tracef(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      Logger.trace(tag, format(format, args), null);
+    }
+  }
+
   public static void error(String tag, String message) {
     Logger.error(tag, message, null);
   }
@@ -165,67 +236,57 @@ public class Logger {
     }
   }
 
-  public static synchronized void error(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void error(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.error(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        logWriters.remove(writer);
       }
     }
   }
 
-  public static synchronized void warn(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void warn(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.warn(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        logWriters.remove(writer);
       }
     }
   }
 
-  public static synchronized void info(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void info(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.info(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        logWriters.remove(writer);
       }
     }
   }
 
-  public static synchronized void debug(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void debug(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.debug(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        logWriters.remove(writer);
       }
     }
   }
 
-  public static synchronized void trace(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void trace(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.trace(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        logWriters.remove(writer);
       }
     }
   }
@@ -4,8 +4,8 @@
 
 package org.mozilla.gecko.background.common.log.writers;
 
-import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 
@@ -20,74 +20,75 @@ public class AndroidLevelCachingLogWriter extends LogWriter {
   }
 
   // I can't believe we have to implement this ourselves.
-  // These aren't synchronized (and neither are the setters) because
-  // the logging calls themselves are synchronized.
-  private Map<String, Boolean> isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+  // Logging calls aren't serialized, so these maps must be safe for
+  // concurrent use; a race at worst asks Android twice for the same tag.
+  private volatile Map<String, Boolean> isErrorLoggable   = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isWarnLoggable    = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isInfoLoggable    = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isDebugLoggable   = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isVerboseLoggable = new ConcurrentHashMap<String, Boolean>();
 
   /**
    * Empty the caches of log levels.
    */
   public void refreshLogLevels() {
-    isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-    isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-    isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-    isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-    isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+    isErrorLoggable   = new ConcurrentHashMap<String, Boolean>();
+    isWarnLoggable    = new ConcurrentHashMap<String, Boolean>();
+    isInfoLoggable    = new ConcurrentHashMap<String, Boolean>();
+    isDebugLoggable   = new ConcurrentHashMap<String, Boolean>();
+    isVerboseLoggable = new ConcurrentHashMap<String, Boolean>();
   }
 
-  private boolean shouldLogError(String logTag) {
-    Boolean out = isErrorLoggable.get(logTag);
+  private static boolean isLoggable(Map<String, Boolean> cache, String logTag, int level) {
+    if (logTag == null) {
+      return Log.isLoggable(logTag, level);
+    }
+    Boolean out = cache.get(logTag);
     if (out != null) {
       return out.booleanValue();
     }
-    out = Log.isLoggable(logTag, Log.ERROR);
-    isErrorLoggable.put(logTag, out);
+    out = Log.isLoggable(logTag, level);
+    cache.put(logTag, out);
     return out;
   }
 
+  private boolean shouldLogError(String logTag) {
+    return isLoggable(isErrorLoggable, logTag, Log.ERROR);
+  }
+
   private boolean shouldLogWarn(String logTag) {
-    Boolean out = isWarnLoggable.get(logTag);
-    if (out != null) {
-      return out.booleanValue();
-    }
-    out = Log.isLoggable(logTag, Log.WARN);
-    isWarnLoggable.put(logTag, out);
-    return out;
+    return isLoggable(isWarnLoggable, logTag, Log.WARN);
   }
 
   private boolean shouldLogInfo(String logTag) {
-    Boolean out = isInfoLoggable.get(logTag);
-    if (out != null) {
-      return out.booleanValue();
-    }
-    out = Log.isLoggable(logTag, Log.INFO);
-    isInfoLoggable.put(logTag, out);
-    return out;
+    return isLoggable(isInfoLoggable, logTag, Log.INFO);
   }
 
   private boolean shouldLogDebug(String logTag) {
-    Boolean out = isDebugLoggable.get(logTag);
-    if (out != null) {
-      return out.booleanValue();
-    }
-    out = Log.isLoggable(logTag, Log.DEBUG);
-    isDebugLoggable.put(logTag, out);
-    return out;
+    return isLoggable(isDebugLoggable, logTag, Log.DEBUG);
   }
 
   @Override
   public boolean shouldLogVerbose(String logTag) {
-    Boolean out = isVerboseLoggable.get(logTag);
-    if (out != null) {
-      return out.booleanValue();
+    return isLoggable(isVerboseLoggable, logTag, Log.VERBOSE);
+  }
+
+  @Override
+  public boolean shouldLog(String logTag, int level) {
+    switch (level) {
+    case Log.ERROR:
+      return shouldLogError(logTag);
+    case Log.WARN:
+      return shouldLogWarn(logTag);
+    case Log.INFO:
+      return shouldLogInfo(logTag);
+    case Log.DEBUG:
+      return shouldLogDebug(logTag);
+    case Log.VERBOSE:
+      return shouldLogVerbose(logTag);
+    default:
+      return true;
     }
-    out = Log.isLoggable(logTag, Log.VERBOSE);
-    isVerboseLoggable.put(logTag, out);
-    return out;
   }
 
   public void error(String tag, String message, Throwable error) {
@@ -0,0 +1,247 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.background.common.log.writers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * A <code>LogWriter</code> that hands messages to an inner writer on a
+ * background thread, so that logging threads never wait on the inner writer.
+ * <p>
+ * Messages pass through a bounded ring buffer. Any number of threads can
+ * add messages without locking; a single daemon thread drains them in order.
+ * If the buffer is full, the message is dropped and counted, and the count
+ * is logged once the drainer catches up.
+ * <p>
+ * Anything the inner writer computes from the logging thread, such as a
+ * thread-local tag, must be resolved before messages reach this writer.
+ */
+public class AsyncLogWriter extends LogWriter {
+  public static final String LOG_TAG = "AsyncLogWriter";
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  // How long the drainer sleeps when there's nothing to do, in case it
+  // misses a wakeup.
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  protected static class Entry {
+    public final int level;
+    public final String tag;
+    public final String message;
+    public final Throwable error;
+
+    public Entry(int level, String tag, String message, Throwable error) {
+      this.level = level;
+      this.tag = tag;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  protected final LogWriter inner;
+
+  private final AtomicReferenceArray<Entry> slots;
+  private final int mask;
+
+  // The next sequence number producers will claim.
+  private final AtomicLong tail = new AtomicLong();
+
+  // The next sequence number the drainer will consume. Only the drainer
+  // writes it.
+  private volatile long head = 0;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private final Thread drainer;
+  private volatile boolean drainerIdle = false;
+  private volatile boolean closed = false;
+
+  public AsyncLogWriter(LogWriter inner) {
+    this(inner, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param inner the writer to hand messages to.
+   * @param capacity the number of messages to buffer; rounded up to a power
+   *        of two.
+   */
+  public AsyncLogWriter(LogWriter inner, int capacity) {
+    this.inner = inner;
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<Entry>(size);
+    this.mask = size - 1;
+
+    this.drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, LOG_TAG);
+    this.drainer.setDaemon(true);
+    this.drainer.start();
+  }
+
+  /**
+   * @return the number of messages dropped because the buffer was full.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  protected void enqueue(int level, String tag, String message, Throwable error) {
+    if (closed) {
+      return;
+    }
+    final Entry entry = new Entry(level, tag, message, error);
+    while (true) {
+      final long sequence = tail.get();
+      if (sequence - head >= slots.length()) {
+        dropped.incrementAndGet();
+        return;
+      }
+      if (tail.compareAndSet(sequence, sequence + 1)) {
+        slots.set((int) (sequence & mask), entry);
+        break;
+      }
+    }
+    if (drainerIdle) {
+      LockSupport.unpark(drainer);
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      final int index = (int) (head & mask);
+      final Entry entry = slots.get(index);
+      if (entry == null) {
+        if (head == tail.get()) {
+          reportDropped();
+          if (closed) {
+            return;
+          }
+          drainerIdle = true;
+          // Check again: a producer may have added an entry before seeing
+          // that we're idle.
+          if (head == tail.get() && !closed) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+          }
+          drainerIdle = false;
+        } else {
+          // A producer has claimed this slot but not yet filled it.
+          Thread.yield();
+        }
+        continue;
+      }
+      slots.set(index, null);
+      head = head + 1;
+      write(entry);
+    }
+  }
+
+  private void reportDropped() {
+    final long count = dropped.getAndSet(0);
+    if (count > 0) {
+      write(new Entry(Log.WARN, LOG_TAG, "Dropped " + count + " log messages.", null));
+    }
+  }
+
+  protected void write(Entry entry) {
+    try {
+      switch (entry.level) {
+      case Log.ERROR:
+        inner.error(entry.tag, entry.message, entry.error);
+        break;
+      case Log.WARN:
+        inner.warn(entry.tag, entry.message, entry.error);
+        break;
+      case Log.INFO:
+        inner.info(entry.tag, entry.message, entry.error);
+        break;
+      case Log.DEBUG:
+        inner.debug(entry.tag, entry.message, entry.error);
+        break;
+      default:
+        inner.trace(entry.tag, entry.message, entry.error);
+        break;
+      }
+    } catch (Exception e) {
+      Log.e(LOG_TAG, "Got exception writing log message.", e);
+    }
+  }
+
+  /**
+   * Wait until every message logged before this call has been handed to the
+   * inner writer.
+   */
+  public void flush() {
+    final long target = tail.get();
+    while (head < target && drainer.isAlive()) {
+      LockSupport.unpark(drainer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  @Override
+  public void error(String tag, String message, Throwable error) {
+    enqueue(Log.ERROR, tag, message, error);
+  }
+
+  @Override
+  public void warn(String tag, String message, Throwable error) {
+    enqueue(Log.WARN, tag, message, error);
+  }
+
+  @Override
+  public void info(String tag, String message, Throwable error) {
+    enqueue(Log.INFO, tag, message, error);
+  }
+
+  @Override
+  public void debug(String tag, String message, Throwable error) {
+    enqueue(Log.DEBUG, tag, message, error);
+  }
+
+  @Override
+  public void trace(String tag, String message, Throwable error) {
+    enqueue(Log.VERBOSE, tag, message, error);
+  }
+
+  @Override
+  public boolean shouldLogVerbose(String tag) {
+    return inner.shouldLogVerbose(tag);
+  }
+
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    return inner.shouldLog(tag, level);
+  }
+
+  /**
+   * Write any buffered messages, stop the background thread, and close the
+   * inner writer.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(drainer);
+    if (Thread.currentThread() != drainer) {
+      try {
+        drainer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    inner.close();
+  }
+}
@@ -22,8 +22,24 @@ public abstract class LogWriter {
   /**
    * We expect <code>close</code> to be called only by static
    * synchronized methods in class <code>Logger</code>.
+   * <p>
+   * The logging methods themselves are not synchronized by
+   * <code>Logger</code>; writers must tolerate concurrent calls.
    */
   public abstract void close();
 
   public abstract boolean shouldLogVerbose(String tag);
+
+  /**
+   * Whether a message at <code>level</code> would be logged, so that callers
+   * can avoid building messages nobody will see. Must be thread-safe and
+   * cheap.
+   *
+   * @param tag the tag the message would be logged with.
+   * @param level an <code>android.util.Log</code> level.
+   * @return false only if the message would certainly be discarded.
+   */
+  public boolean shouldLog(String tag, int level) {
+    return true;
+  }
 }
@@ -23,7 +23,9 @@ public class PrintLogWriter extends LogWriter {
     this.pw = pw;
   }
 
-  protected void log(String tag, String message, Throwable error) {
+  // Synchronized so that a message and its stack trace aren't interleaved
+  // with another thread's.
+  protected synchronized void log(String tag, String message, Throwable error) {
     if (closed) {
       return;
     }
@@ -64,7 +66,7 @@ public class PrintLogWriter extends LogWriter {
     return true;
   }
 
-  public void close() {
+  public synchronized void close() {
     if (closed) {
       return;
     }
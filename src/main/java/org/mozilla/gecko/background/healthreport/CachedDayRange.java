@@ -0,0 +1,79 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.background.healthreport;
+
+/**
+ * The days, <code>[first, end)</code> in days since epoch, whose rendered
+ * sections are held by a {@link HealthReportSectionCache}.
+ * <p>
+ * Every day in the range with events has its sections cached; a day in the
+ * range without cached sections had no events. A range is a snapshot: the
+ * <code>epoch</code> identifies the state of the cache it was read from, so
+ * that storage can refuse to cache sections rendered from events that have
+ * since changed.
+ */
+public class CachedDayRange {
+  public final int first;
+  public final int end;
+  public final long epoch;
+
+  public CachedDayRange(int first, int end, long epoch) {
+    this.first = first;
+    this.end = end;
+    this.epoch = epoch;
+  }
+
+  public static CachedDayRange empty(long epoch) {
+    return new CachedDayRange(0, 0, epoch);
+  }
+
+  public boolean isEmpty() {
+    return first >= end;
+  }
+
+  public boolean contains(int day) {
+    return day >= first && day < end;
+  }
+
+  /**
+   * Every day from <code>sinceDay</code> outside this range has been walked,
+   * and the days before <code>today</code> cached.
+   *
+   * @return the range now cached, which is this range if nothing was added.
+   */
+  public CachedDayRange extendedTo(int sinceDay, int today) {
+    if (sinceDay >= today) {
+      return this;
+    }
+    if (isEmpty() || sinceDay > end) {
+      // Days between this range and sinceDay weren't walked, so only what
+      // was walked can be trusted.
+      return new CachedDayRange(sinceDay, today, epoch);
+    }
+    return new CachedDayRange(Math.min(first, sinceDay), Math.max(end, today), epoch);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof CachedDayRange)) {
+      return false;
+    }
+    final CachedDayRange other = (CachedDayRange) o;
+    if (isEmpty() && other.isEmpty()) {
+      return true;
+    }
+    return first == other.first && end == other.end;
+  }
+
+  @Override
+  public int hashCode() {
+    return isEmpty() ? 0 : first * 31 + end;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + first + ", " + end + ")";
+  }
+}
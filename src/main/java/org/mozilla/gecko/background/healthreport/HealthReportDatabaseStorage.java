@@ -8,18 +8,24 @@ import java.io.File;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONObject;
 import org.mozilla.gecko.background.common.DateUtils;
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.healthreport.HealthReportEventBuffer.Batch;
+import org.mozilla.gecko.background.healthreport.HealthReportEventBuffer.EventWriter;
 import org.mozilla.gecko.background.healthreport.HealthReportStorage.MeasurementFields.FieldSpec;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
@@ -110,13 +116,29 @@ import android.util.SparseArray;
  *
  * To retrieve values, use {@link #getRawEventsSince(long)}.
  *
+ * Recorded values are held in memory and written in a single transaction
+ * a short delay after the first of them (see {@link #setFlushDelay(long)}),
+ * once enough are waiting (see {@link #setMaxPendingEvents(int)}), or when
+ * {@link #flushEvents()} is called. Repeated counter increments and daily-last values for the same
+ * environment, day, and field are coalesced into one write. Every method that
+ * reads or deletes events flushes first, so readers always see every recorded
+ * value; but values recorded less than the flush delay before the process
+ * dies can be lost. Call {@link #flushEvents()} or {@link #close()} when that
+ * matters. Set the maximum pending events to 1 to write every value as it is
+ * recorded. Values that fail to flush are kept for the next flush.
+ *
+ * Rendered sections of past days and environment differences are cached for
+ * {@link HealthReportGenerator}; see {@link HealthReportSectionCache}. Writing
+ * events for a past day drops that day's and later days' sections, and
+ * deleting events drops the sections for the deleted days.
+ *
  * For safety, perform operations on the storage executor thread:
  *
  * <pre>
  *   storage.enqueueOperation(runnable);
  * </pre>
  */
-public class HealthReportDatabaseStorage implements HealthReportStorage {
+public class HealthReportDatabaseStorage implements HealthReportStorage, HealthReportSectionCache {
 
   private static final String WHERE_DATE_AND_ENV_AND_FIELD = "date = ? AND env = ? AND field = ?";
 
@@ -155,11 +177,69 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
   private static final String EVENTS_TEXTUAL = "events_textual";
   private static final String EVENTS_INTEGER = "events_integer";
 
+  private static final String RENDERED_DAYS = "rendered_days";
+  private static final String RENDERED_DAY_RANGE = "rendered_day_range";
+  private static final String RENDERED_ENVIRONMENTS = "rendered_environments";
+
+  private static final String[] COLUMNS_FIRST_END_DAY = new String[] {"first_day", "end_day"};
+  private static final String[] COLUMNS_ENV_BODY = new String[] {"env", "body"};
+
   protected static final String DB_NAME = "health.db";
 
   private static final String LOG_TAG = "HealthReportStorage";
 
-  private final Executor executor = Executors.newSingleThreadExecutor();
+  public static final long DEFAULT_FLUSH_DELAY_MSEC = 5 * 1000;
+  public static final int DEFAULT_MAX_PENDING_EVENTS = 100;
+
+  private volatile long flushDelayMsec = DEFAULT_FLUSH_DELAY_MSEC;
+  private volatile int maxPendingEvents = DEFAULT_MAX_PENDING_EVENTS;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  protected final HealthReportEventBuffer pendingEvents = new HealthReportEventBuffer();
+
+  // Held for the whole of a flush, so that a reader waits for a flush in
+  // progress on another thread to land before reading.
+  private final Object flushLock = new Object();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+  private final AtomicLong flushCount = new AtomicLong();
+  private final AtomicLong flushedWrites = new AtomicLong();
+  private final AtomicLong flushedRecords = new AtomicLong();
+  private final AtomicLong flushMillis = new AtomicLong();
+
+  // Changed, while holding flushLock, whenever cached sections are dropped.
+  // Sections rendered from a range read before the change are refused.
+  private final AtomicLong sectionCacheEpoch = new AtomicLong();
+
+  private final Runnable scheduledFlush = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled.set(false);
+      try {
+        flushEvents();
+      } catch (Exception e) {
+        Logger.error(LOG_TAG, "Scheduled flush of recorded events failed.", e);
+      }
+    }
+  };
+
+  private final EventWriter eventWriter = new EventWriter() {
+    @Override
+    public void writeDailyCount(int env, int day, int field, int by) {
+      HealthReportDatabaseStorage.this.writeDailyCount(env, day, field, by);
+    }
+
+    @Override
+    public void writeDailyLast(int env, int day, int field, Object value, String table) {
+      HealthReportDatabaseStorage.this.writeDailyLast(env, day, field, value, table);
+    }
+
+    @Override
+    public void writeDailyDiscrete(int env, int day, int field, Object value, String table) {
+      HealthReportDatabaseStorage.this.writeDailyDiscrete(env, day, field, value, table);
+    }
+  };
 
   @Override
   public void enqueueOperation(Runnable runnable) {
@@ -179,18 +259,40 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     });
   }
 
+  /**
+   * Write any pending values, then close the database.
+   */
   @Override
   public void close() {
+    try {
+      flushEvents();
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Couldn't write pending events on close; they are lost.", e);
+    }
     this.helper.close();
     this.fields.clear();
     this.envs.clear();
     this.measurementVersions.clear();
   }
 
+  /**
+   * Set how long recorded values wait in memory before being written.
+   */
+  public void setFlushDelay(long msec) {
+    this.flushDelayMsec = msec;
+  }
+
+  /**
+   * Set the number of pending writes that triggers an immediate flush.
+   */
+  public void setMaxPendingEvents(int maxPendingEvents) {
+    this.maxPendingEvents = maxPendingEvents;
+  }
+
   protected final HealthReportSQLiteOpenHelper helper;
 
   public static class HealthReportSQLiteOpenHelper extends SQLiteOpenHelper {
-    public static final int CURRENT_VERSION = 6;
+    public static final int CURRENT_VERSION = 7;
     public static final String LOG_TAG = "HealthReportSQL";
 
     /**
@@ -356,6 +458,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
                  "SELECT name, MAX(version) AS version FROM measurements GROUP BY name");
 
       createAddonsEnvironmentsView(db);
+      createRenderedSectionTables(db);
     }
 
     @Override
@@ -400,6 +503,31 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
           "WHERE e.addonsID = addons.id");
     }
 
+    private void createRenderedSectionTables(SQLiteDatabase db) {
+      // Deleting an environment or its events deletes its rendered sections.
+      db.execSQL("CREATE TABLE " + RENDERED_DAYS + " (" +
+                 "                 date INTEGER, " +
+                 "                 env  INTEGER, " +
+                 "                 body TEXT, " +
+                 "                 FOREIGN KEY (env) REFERENCES environments(id) ON DELETE CASCADE, " +
+                 "                 UNIQUE (date, env)" +
+                 ")");
+
+      // At most one row: the days [first_day, end_day) are rendered.
+      db.execSQL("CREATE TABLE " + RENDERED_DAY_RANGE + " (" +
+                 "                 first_day INTEGER, " +
+                 "                 end_day   INTEGER" +
+                 ")");
+
+      db.execSQL("CREATE TABLE " + RENDERED_ENVIRONMENTS + " (" +
+                 "                 env     INTEGER, " +
+                 "                 current TEXT, " +
+                 "                 body    TEXT, " +
+                 "                 FOREIGN KEY (env) REFERENCES environments(id) ON DELETE CASCADE, " +
+                 "                 UNIQUE (env, current)" +
+                 ")");
+    }
+
     private void upgradeDatabaseFrom2To3(SQLiteDatabase db) {
       db.execSQL("CREATE TABLE addons (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                  "                     body TEXT, " +
@@ -449,6 +577,10 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       createAddonsEnvironmentsView(db);
     }
 
+    private void upgradeDatabaseFrom6to7(SQLiteDatabase db) {
+      createRenderedSectionTables(db);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
       if (oldVersion >= newVersion) {
@@ -466,6 +598,8 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
           upgradeDatabaseFrom4to5(db);
         case 5:
           upgradeDatabaseFrom5to6(db);
+        case 6:
+          upgradeDatabaseFrom6to7(db);
         }
       } catch (Exception e) {
         Logger.error(LOG_TAG, "Failure in onUpgrade.", e);
@@ -483,6 +617,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
         db.delete("measurements", null, null);
         db.delete("environments", null, null);
         db.delete("addons", null, null);
+        db.delete(RENDERED_DAY_RANGE, null, null);
         db.setTransactionSuccessful();
         Logger.info(LOG_TAG, "Deletion successful.");
       } finally {
@@ -1091,12 +1226,269 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     return this.getDay(System.currentTimeMillis());
   }
 
-  private void recordDailyLast(int env, int day, int field, Object value, String table) {
-    if (env == -1) {
-      Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
+  /**
+   * Write pending values, if any, in one transaction. Reads and deletions of
+   * events call this first; call it directly to make recorded values durable.
+   * <p>
+   * If the transaction fails, the values are kept for the next flush and the
+   * exception is rethrown.
+   */
+  public void flushEvents() {
+    synchronized (flushLock) {
+      if (pendingEvents.isEmpty()) {
+        return;
+      }
+      final long start = System.currentTimeMillis();
+      final Batch batch = pendingEvents.drain();
+      int written;
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          written = batch.writeTo(eventWriter);
+          dropRenderedDaysFrom(db, batch.getEarliestDay());
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      } catch (SQLException e) {
+        Logger.warn(LOG_TAG, "Couldn't flush " + batch.size() + " pending writes; keeping them for the next flush.", e);
+        pendingEvents.restore(batch);
+        throw e;
+      }
+      final long duration = System.currentTimeMillis() - start;
+      flushCount.incrementAndGet();
+      flushedWrites.addAndGet(written);
+      flushedRecords.addAndGet(batch.getRecordedCount());
+      flushMillis.addAndGet(duration);
+      Logger.debug(LOG_TAG, "Flushed " + batch.getRecordedCount() + " recorded events as " +
+                            written + " writes in " + duration + "ms.");
+    }
+  }
+
+  /**
+   * Drop cached sections for <code>day</code> and later, which events have
+   * just been written to. Call while holding <code>flushLock</code>.
+   */
+  private void dropRenderedDaysFrom(final SQLiteDatabase db, final int day) {
+    final String[] args = new String[] {Integer.toString(day, 10)};
+    int dropped = db.delete(RENDERED_DAYS, "date >= ?", args);
+    final ContentValues v = new ContentValues();
+    v.put("end_day", day);
+    dropped += db.update(RENDERED_DAY_RANGE, v, "end_day > ?", args);
+    db.delete(RENDERED_DAY_RANGE, "first_day >= end_day", null);
+
+    // Today's sections are never cached, but one may be being rendered for
+    // an earlier day right now.
+    if (dropped > 0 || day < getDay()) {
+      Logger.debug(LOG_TAG, "Events written for day " + day + "; dropping rendered days from then.");
+      sectionCacheEpoch.incrementAndGet();
+    }
+  }
+
+  /**
+   * Refuse sections rendered before now. Hold <code>flushLock</code> across
+   * deleting events or environments and call this once the deletion has
+   * committed, so that no section can be rendered from rows that are about
+   * to go and cached under the new epoch.
+   */
+  private void invalidateRenderedSections() {
+    sectionCacheEpoch.incrementAndGet();
+  }
+
+  @Override
+  public CachedDayRange getCachedDayRange() {
+    flushEvents();
+    synchronized (flushLock) {
+      final long epoch = sectionCacheEpoch.get();
+      final SQLiteDatabase db = this.helper.getReadableDatabase();
+      final Cursor c = db.query(RENDERED_DAY_RANGE, COLUMNS_FIRST_END_DAY, null, null, null, null, null, "1");
+      try {
+        if (!c.moveToFirst()) {
+          return CachedDayRange.empty(epoch);
+        }
+        return new CachedDayRange(c.getInt(0), c.getInt(1), epoch);
+      } finally {
+        c.close();
+      }
+    }
+  }
+
+  @Override
+  public Cursor getCachedDaySections(CachedDayRange range, int sinceDay) {
+    final SQLiteDatabase db = this.helper.getReadableDatabase();
+    final String[] args = new String[] {Integer.toString(Math.max(sinceDay, range.first), 10),
+                                        Integer.toString(range.end, 10)};
+    return db.rawQuery("SELECT " + RENDERED_DAYS + ".date AS date, " +
+                       "       environments.hash AS hash, " +
+                       "       " + RENDERED_DAYS + ".body AS body " +
+                       "FROM " + RENDERED_DAYS + " JOIN environments ON " + RENDERED_DAYS + ".env = environments.id " +
+                       "WHERE " + RENDERED_DAYS + ".date >= ? AND " + RENDERED_DAYS + ".date < ? " +
+                       "ORDER BY " + RENDERED_DAYS + ".date, " + RENDERED_DAYS + ".env",
+                       args);
+  }
+
+  @Override
+  public Cursor getUncachedRawEvents(CachedDayRange range, int sinceDay) {
+    flushEvents();
+    final SQLiteDatabase db = this.helper.getReadableDatabase();
+    if (range.isEmpty() || sinceDay >= range.end) {
+      return getRawEvents(db, "date >= ?", sinceDay);
+    }
+
+    // Two range queries, rather than one with a disjunction, so that each
+    // uses the date index and cached days are never visited.
+    final Cursor after = getRawEvents(db, "date >= ?", range.end);
+    if (sinceDay >= range.first) {
+      return after;
+    }
+    final Cursor before = db.query("events", COLUMNS_DATE_ENV_FIELD_VALUE,
+                                   "date >= ? AND date < ?",
+                                   new String[] {Integer.toString(sinceDay, 10), Integer.toString(range.first, 10)},
+                                   null, null, "date, env, field");
+    return new MergeCursor(new Cursor[] {before, after});
+  }
+
+  private static Cursor getRawEvents(final SQLiteDatabase db, final String where, final int day) {
+    return db.query("events", COLUMNS_DATE_ENV_FIELD_VALUE,
+                    where, new String[] {Integer.toString(day, 10)}, null, null, "date, env, field");
+  }
+
+  @Override
+  public boolean cacheDaySections(CachedDayRange range, int day, SparseArray<String> sections) {
+    synchronized (flushLock) {
+      if (range.epoch != sectionCacheEpoch.get()) {
+        return false;
+      }
+      final SQLiteDatabase db = this.helper.getWritableDatabase();
+      db.beginTransaction();
+      try {
+        db.delete(RENDERED_DAYS, "date = ?", new String[] {Integer.toString(day, 10)});
+        final ContentValues v = new ContentValues();
+        for (int i = 0; i < sections.size(); i++) {
+          v.put("date", day);
+          v.put("env", sections.keyAt(i));
+          v.put("body", sections.valueAt(i));
+          db.insertOrThrow(RENDERED_DAYS, null, v);
+        }
+        db.setTransactionSuccessful();
+        return true;
+      } catch (SQLException e) {
+        // Most likely an environment that has just been deleted.
+        Logger.warn(LOG_TAG, "Couldn't cache sections for day " + day + ".", e);
+        return false;
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  @Override
+  public boolean setCachedDayRange(CachedDayRange previous, CachedDayRange next) {
+    synchronized (flushLock) {
+      if (previous.epoch != sectionCacheEpoch.get()) {
+        return false;
+      }
+      final SQLiteDatabase db = this.helper.getWritableDatabase();
+      db.beginTransaction();
+      try {
+        db.delete(RENDERED_DAY_RANGE, null, null);
+        if (!next.isEmpty()) {
+          final ContentValues v = new ContentValues();
+          v.put("first_day", next.first);
+          v.put("end_day", next.end);
+          db.insert(RENDERED_DAY_RANGE, null, v);
+        }
+        db.setTransactionSuccessful();
+        return true;
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  @Override
+  public SparseArray<String> getCachedEnvironmentDiffs(String currentHash) {
+    final SparseArray<String> diffs = new SparseArray<String>();
+    final SQLiteDatabase db = this.helper.getReadableDatabase();
+    final Cursor c = db.query(RENDERED_ENVIRONMENTS, COLUMNS_ENV_BODY, "current = ?",
+                              new String[] {currentHash}, null, null, null);
+    try {
+      while (c.moveToNext()) {
+        diffs.put(c.getInt(0), c.getString(1));
+      }
+    } finally {
+      c.close();
+    }
+    return diffs;
+  }
+
+  @Override
+  public void cacheEnvironmentDiffs(String currentHash, SparseArray<String> diffs) {
+    final SQLiteDatabase db = this.helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      // Differences from an earlier current environment won't be asked for again.
+      db.delete(RENDERED_ENVIRONMENTS, "current != ?", new String[] {currentHash});
+      final ContentValues v = new ContentValues();
+      for (int i = 0; i < diffs.size(); i++) {
+        v.put("env", diffs.keyAt(i));
+        v.put("current", currentHash);
+        v.put("body", diffs.valueAt(i));
+        db.insertWithOnConflict(RENDERED_ENVIRONMENTS, null, v, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      db.setTransactionSuccessful();
+    } catch (SQLException e) {
+      Logger.warn(LOG_TAG, "Couldn't cache environment differences.", e);
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return the number of flushes that wrote events.
+   */
+  public long getFlushCount() {
+    return flushCount.get();
+  }
+
+  /**
+   * @return the number of rows written or updated by flushes.
+   */
+  public long getFlushedWriteCount() {
+    return flushedWrites.get();
+  }
+
+  /**
+   * @return the number of recording calls flushed; compare with
+   *         {@link #getFlushedWriteCount()} to see how much was coalesced.
+   */
+  public long getFlushedRecordCount() {
+    return flushedRecords.get();
+  }
+
+  /**
+   * @return the total time spent flushing, in milliseconds.
+   */
+  public long getFlushMillis() {
+    return flushMillis.get();
+  }
+
+  /**
+   * Flush now if enough writes are pending; otherwise make sure a flush is
+   * scheduled.
+   */
+  protected void onEventRecorded(final int pending) {
+    if (pending >= maxPendingEvents) {
+      flushEvents();
       return;
     }
+    if (flushScheduled.compareAndSet(false, true)) {
+      executor.schedule(scheduledFlush, flushDelayMsec, TimeUnit.MILLISECONDS);
+    }
+  }
 
+  protected void writeDailyLast(int env, int day, int field, Object value, String table) {
     final SQLiteDatabase db = this.helper.getWritableDatabase();
 
     final String envString = Integer.toString(env);
@@ -1124,6 +1516,14 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     }
   }
 
+  private void recordDailyLast(int env, int day, int field, Object value, String table) {
+    if (env == -1) {
+      Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
+      return;
+    }
+    onEventRecorded(pendingEvents.recordDailyLast(env, day, field, value, table));
+  }
+
   @Override
   public void recordDailyLast(int env, int day, int field, JSONObject value) {
     this.recordDailyLast(env, day, field, value == null ? "null" : value.toString(), EVENTS_TEXTUAL);
@@ -1144,7 +1544,10 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
       return;
     }
+    onEventRecorded(pendingEvents.recordDailyDiscrete(env, day, field, value, table));
+  }
 
+  protected void writeDailyDiscrete(int env, int day, int field, Object value, String table) {
     final ContentValues v = new ContentValues();
     v.put("env", env);
     v.put("field", field);
@@ -1178,9 +1581,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * Increment the specified field value by the specified amount. Counts start
    * at zero.
    *
-   * Note that this method can misbehave or throw if not executed within a
-   * transaction, because correct behavior involves querying then
-   * insert-or-update, and a race condition can otherwise occur.
+   * Increments are summed in memory and written when events are flushed.
    *
    * @param env the environment ID
    * @param day the current day, in days since epoch
@@ -1193,7 +1594,18 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
       return;
     }
+    onEventRecorded(pendingEvents.incrementDailyCount(env, day, field, by));
+  }
 
+  /**
+   * Add to a counter in the database.
+   *
+   * Note that this method can misbehave or throw if not executed within a
+   * transaction, because correct behavior involves querying then
+   * insert-or-update, and a race condition can otherwise occur. Flushes run
+   * it inside one.
+   */
+  protected void writeDailyCount(int env, int day, int field, int by) {
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     final String envString = Integer.toString(env);
     final String fieldIDString = Integer.toString(field, 10);
@@ -1247,6 +1659,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public boolean hasEventSince(long time) {
+    flushEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1276,11 +1689,10 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public Cursor getRawEventsSince(long time) {
+    flushEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
-    final String dayString = Integer.toString(start, 10);
-    return db.query("events", COLUMNS_DATE_ENV_FIELD_VALUE,
-                    "date >= ?", new String[] {dayString}, null, null, "date, env, field");
+    return getRawEvents(db, "date >= ?", start);
   }
 
   /**
@@ -1296,6 +1708,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public Cursor getEventsSince(long time) {
+    flushEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1305,6 +1718,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
   }
 
   public int getEventCount() {
+    flushEvents();
     return getRowCount("events");
   }
 
@@ -1328,17 +1742,24 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * @return The number of environments and addon entries deleted.
    */
   public int deleteDataBefore(final long time, final int curEnv) {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
-    db.beginTransaction();
-    int numRowsDeleted = 0;
-    try {
-      numRowsDeleted += deleteEnvAndEventsBefore(db, time, curEnv);
-      numRowsDeleted += deleteOrphanedAddons(db);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+    flushEvents();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        db.beginTransaction();
+        int numRowsDeleted = 0;
+        try {
+          numRowsDeleted += deleteEnvAndEventsBefore(db, time, curEnv);
+          numRowsDeleted += deleteOrphanedAddons(db);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        return numRowsDeleted;
+      } finally {
+        invalidateRenderedSections();
+      }
     }
-    return numRowsDeleted;
   }
 
   /**
@@ -1350,8 +1771,15 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * @return The number of environments (not events) deleted.
    */
   protected int deleteEnvAndEventsBefore(final long time, final int curEnv) {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
-    return deleteEnvAndEventsBefore(db, time, curEnv);
+    flushEvents();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        return deleteEnvAndEventsBefore(db, time, curEnv);
+      } finally {
+        invalidateRenderedSections();
+      }
+    }
   }
 
   // Called internally only to ensure the same db instance is used.
@@ -1385,6 +1813,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * Deletes environments not referenced by any events except for the given current environment.
    */
   protected int deleteOrphanedEnv(final int curEnv) {
+    flushEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     return deleteOrphanedEnv(db, curEnv);
   }
@@ -1400,8 +1829,15 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
   }
 
   protected int deleteEventsBefore(final String dayString) {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
-    return deleteEventsBefore(db, dayString);
+    flushEvents();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        return deleteEventsBefore(db, dayString);
+      } finally {
+        invalidateRenderedSections();
+      }
+    }
   }
 
   // Called internally only to ensure the same db instance is used.
@@ -1414,6 +1850,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     try {
       numEventsDeleted += db.delete("events_integer", whereClause, whereArgs);
       numEventsDeleted += db.delete("events_textual", whereClause, whereArgs);
+      db.delete(RENDERED_DAYS, whereClause, whereArgs);
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -1493,32 +1930,57 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public void deleteEverything() {
-    this.helper.deleteEverything();
+    // Pending events refer to rows that are about to go.
+    pendingEvents.clear();
+    synchronized (flushLock) {
+      try {
+        this.helper.deleteEverything();
+      } finally {
+        invalidateRenderedSections();
+      }
+    }
   }
 
   @Override
   public void deleteEnvironments() {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
-    db.beginTransaction();
-    try {
-      // Cascade will clear the rest.
-      db.delete("environments", null, null);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+    pendingEvents.clear();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          // Cascade will clear the rest.
+          db.delete("environments", null, null);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      } finally {
+        invalidateRenderedSections();
+      }
     }
   }
 
   @Override
   public void deleteMeasurements() {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
-    db.beginTransaction();
-    try {
-      // Cascade will clear the rest.
-      db.delete("measurements", null, null);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+    pendingEvents.clear();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          // Cascade will clear the rest, except rendered days, which don't
+          // refer to fields.
+          db.delete("measurements", null, null);
+          db.delete(RENDERED_DAYS, null, null);
+          db.delete(RENDERED_DAY_RANGE, null, null);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      } finally {
+        invalidateRenderedSections();
+      }
     }
   }
 
@@ -1527,19 +1989,26 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * are not removed.
    */
   public void pruneEnvironments(final int numToPrune) {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
-    db.beginTransaction();
-    try {
-      db.delete("environments",
-          "id in (SELECT env " +
-          "       FROM events " +
-          "       GROUP BY env " +
-          "       ORDER BY MAX(date), env " +
-          "       LIMIT " + numToPrune + ")",
-          null);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+    flushEvents();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          db.delete("environments",
+              "id in (SELECT env " +
+              "       FROM events " +
+              "       GROUP BY env " +
+              "       ORDER BY MAX(date), env " +
+              "       LIMIT " + numToPrune + ")",
+              null);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      } finally {
+        invalidateRenderedSections();
+      }
     }
   }
 
@@ -1551,35 +2020,43 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * used to delete all events.
    */
   public void pruneEvents(final int maxNumToPrune) {
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
+    flushEvents();
+    synchronized (flushLock) {
+      try {
+        final SQLiteDatabase db = this.helper.getWritableDatabase();
+
+        final Cursor c = db.rawQuery(
+            "SELECT MAX(date) " +
+            "FROM (SELECT date " +
+            "      FROM events " +
+            "      ORDER BY date " +
+            "      LIMIT " + maxNumToPrune + ")",
+            null);
+        long pruneDate = -1;
+        try {
+          if (!c.moveToFirst()) {
+            Logger.debug(LOG_TAG, "No max date found in events: table is likely empty. Not pruning " +
+                "events.");
+            return;
+          }
+          pruneDate = c.getLong(0);
+        } finally {
+          c.close();
+        }
 
-    final Cursor c = db.rawQuery(
-        "SELECT MAX(date) " +
-        "FROM (SELECT date " +
-        "      FROM events " +
-        "      ORDER BY date " +
-        "      LIMIT " + maxNumToPrune + ")",
-        null);
-    long pruneDate = -1;
-    try {
-      if (!c.moveToFirst()) {
-        Logger.debug(LOG_TAG, "No max date found in events: table is likely empty. Not pruning " +
-            "events.");
-        return;
+        final String selection = "date < " + pruneDate;
+        db.beginTransaction();
+        try {
+          db.delete(EVENTS_INTEGER, selection, null);
+          db.delete(EVENTS_TEXTUAL, selection, null);
+          db.delete(RENDERED_DAYS, selection, null);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      } finally {
+        invalidateRenderedSections();
       }
-      pruneDate = c.getLong(0);
-    } finally {
-      c.close();
-    }
-
-    final String selection = "date < " + pruneDate;
-    db.beginTransaction();
-    try {
-      db.delete(EVENTS_INTEGER, selection, null);
-      db.delete(EVENTS_TEXTUAL, selection, null);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
   }
 
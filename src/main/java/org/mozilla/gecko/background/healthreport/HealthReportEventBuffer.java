@@ -0,0 +1,273 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.background.healthreport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Hold Health Report events in memory until they are written to storage in
+ * bulk.
+ * <p>
+ * Events are keyed by environment, day, and field (and the table they belong
+ * in). Increments to the same counter are summed and only the most recent
+ * daily-last value is kept, so each key costs one write however often it was
+ * recorded. Discrete values are kept in order, one write each.
+ * <p>
+ * Recording methods may be called from any thread. {@link #drain()} hands
+ * the pending events to the caller as a {@link Batch}, to be written with
+ * {@link Batch#writeTo(EventWriter)}; a batch that couldn't be written can be
+ * put back with {@link #restore(Batch)}.
+ */
+public class HealthReportEventBuffer {
+  private static final String LOG_TAG = "HealthReportEventBuffer";
+
+  /**
+   * Writes events to storage; implemented by storage.
+   */
+  public interface EventWriter {
+    public void writeDailyCount(int env, int day, int field, int by);
+    public void writeDailyLast(int env, int day, int field, Object value, String table);
+    public void writeDailyDiscrete(int env, int day, int field, Object value, String table);
+  }
+
+  protected static final class Key {
+    public final int env;
+    public final int day;
+    public final int field;
+    public final String table;
+
+    public Key(int env, int day, int field, String table) {
+      this.env = env;
+      this.day = day;
+      this.field = field;
+      this.table = table;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) o;
+      return env == other.env &&
+             day == other.day &&
+             field == other.field &&
+             table.equals(other.table);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((env * 31 + day) * 31 + field) * 31 + table.hashCode();
+    }
+  }
+
+  protected static final class Discrete {
+    public final Key key;
+    public final Object value;
+
+    public Discrete(Key key, Object value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Events drained from the buffer.
+   */
+  public static class Batch {
+    protected final LinkedHashMap<Key, int[]> counts;
+    protected final LinkedHashMap<Key, Object> lasts;
+    protected final ArrayList<Discrete> discretes;
+    protected final int recorded;
+
+    protected Batch(LinkedHashMap<Key, int[]> counts, LinkedHashMap<Key, Object> lasts,
+                    ArrayList<Discrete> discretes, int recorded) {
+      this.counts = counts;
+      this.lasts = lasts;
+      this.discretes = discretes;
+      this.recorded = recorded;
+    }
+
+    /**
+     * @return the number of writes this batch will make.
+     */
+    public int size() {
+      return counts.size() + lasts.size() + discretes.size();
+    }
+
+    /**
+     * @return the number of recording calls coalesced into this batch.
+     */
+    public int getRecordedCount() {
+      return recorded;
+    }
+
+    /**
+     * @return the earliest day of any event in this batch, or
+     *         <code>Integer.MAX_VALUE</code> if it is empty.
+     */
+    public int getEarliestDay() {
+      int earliest = Integer.MAX_VALUE;
+      for (Key key : counts.keySet()) {
+        earliest = Math.min(earliest, key.day);
+      }
+      for (Key key : lasts.keySet()) {
+        earliest = Math.min(earliest, key.day);
+      }
+      for (Discrete discrete : discretes) {
+        earliest = Math.min(earliest, discrete.key.day);
+      }
+      return earliest;
+    }
+
+    /**
+     * Write every event. An event the writer rejects with an
+     * <code>IllegalStateException</code>, such as one referring to a deleted
+     * environment or field, is logged and skipped.
+     *
+     * @return the number of events written.
+     */
+    public int writeTo(EventWriter writer) {
+      int written = 0;
+      for (Entry<Key, int[]> entry : counts.entrySet()) {
+        final Key key = entry.getKey();
+        try {
+          writer.writeDailyCount(key.env, key.day, key.field, entry.getValue()[0]);
+          written++;
+        } catch (IllegalStateException e) {
+          Logger.warn(LOG_TAG, "Dropping count for field " + key.field + ".", e);
+        }
+      }
+      for (Entry<Key, Object> entry : lasts.entrySet()) {
+        final Key key = entry.getKey();
+        try {
+          writer.writeDailyLast(key.env, key.day, key.field, entry.getValue(), key.table);
+          written++;
+        } catch (IllegalStateException e) {
+          Logger.warn(LOG_TAG, "Dropping last value for field " + key.field + ".", e);
+        }
+      }
+      for (Discrete discrete : discretes) {
+        final Key key = discrete.key;
+        try {
+          writer.writeDailyDiscrete(key.env, key.day, key.field, discrete.value, key.table);
+          written++;
+        } catch (IllegalStateException e) {
+          Logger.warn(LOG_TAG, "Dropping discrete value for field " + key.field + ".", e);
+        }
+      }
+      return written;
+    }
+  }
+
+  private LinkedHashMap<Key, int[]> counts = new LinkedHashMap<Key, int[]>();
+  private LinkedHashMap<Key, Object> lasts = new LinkedHashMap<Key, Object>();
+  private ArrayList<Discrete> discretes = new ArrayList<Discrete>();
+  private int recorded = 0;
+
+  /**
+   * @return the number of writes the pending events will make.
+   */
+  public synchronized int size() {
+    return counts.size() + lasts.size() + discretes.size();
+  }
+
+  public synchronized boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * @return the number of pending writes, after adding this one.
+   */
+  public synchronized int incrementDailyCount(int env, int day, int field, int by) {
+    recorded++;
+    final Key key = new Key(env, day, field, "");
+    final int[] count = counts.get(key);
+    if (count == null) {
+      counts.put(key, new int[] { by });
+    } else {
+      count[0] += by;
+    }
+    return size();
+  }
+
+  /**
+   * @return the number of pending writes, after adding this one.
+   */
+  public synchronized int recordDailyLast(int env, int day, int field, Object value, String table) {
+    recorded++;
+    final Key key = new Key(env, day, field, table);
+    // Re-insert, so that a key is written in the order of its last update.
+    lasts.remove(key);
+    lasts.put(key, value);
+    return size();
+  }
+
+  /**
+   * @return the number of pending writes, after adding this one.
+   */
+  public synchronized int recordDailyDiscrete(int env, int day, int field, Object value, String table) {
+    recorded++;
+    discretes.add(new Discrete(new Key(env, day, field, table), value));
+    return size();
+  }
+
+  /**
+   * Remove and return every pending event.
+   */
+  public synchronized Batch drain() {
+    final Batch batch = new Batch(counts, lasts, discretes, recorded);
+    counts = new LinkedHashMap<Key, int[]>();
+    lasts = new LinkedHashMap<Key, Object>();
+    discretes = new ArrayList<Discrete>();
+    recorded = 0;
+    return batch;
+  }
+
+  /**
+   * Put back a drained batch that couldn't be written, ahead of any events
+   * recorded since it was drained. Counts are summed; a daily-last value
+   * recorded since replaces the batch's.
+   */
+  public synchronized void restore(Batch batch) {
+    final LinkedHashMap<Key, int[]> restoredCounts = new LinkedHashMap<Key, int[]>();
+    for (Entry<Key, int[]> entry : batch.counts.entrySet()) {
+      restoredCounts.put(entry.getKey(), new int[] { entry.getValue()[0] });
+    }
+    for (Entry<Key, int[]> entry : counts.entrySet()) {
+      final int[] count = restoredCounts.get(entry.getKey());
+      if (count == null) {
+        restoredCounts.put(entry.getKey(), entry.getValue());
+      } else {
+        count[0] += entry.getValue()[0];
+      }
+    }
+
+    final LinkedHashMap<Key, Object> restoredLasts = new LinkedHashMap<Key, Object>(batch.lasts);
+    for (Entry<Key, Object> entry : lasts.entrySet()) {
+      restoredLasts.remove(entry.getKey());
+      restoredLasts.put(entry.getKey(), entry.getValue());
+    }
+
+    final ArrayList<Discrete> restoredDiscretes = new ArrayList<Discrete>(batch.discretes);
+    restoredDiscretes.addAll(discretes);
+
+    counts = restoredCounts;
+    lasts = restoredLasts;
+    discretes = restoredDiscretes;
+    recorded += batch.recorded;
+  }
+
+  /**
+   * Discard every pending event.
+   */
+  public synchronized void clear() {
+    drain();
+  }
+}
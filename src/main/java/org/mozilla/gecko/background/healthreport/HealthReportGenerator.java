@@ -4,6 +4,9 @@
 
 package org.mozilla.gecko.background.healthreport;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -13,6 +16,7 @@ import org.json.JSONObject;
 import org.mozilla.gecko.background.common.DateUtils.DateFormatter;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.healthreport.HealthReportStorage.Field;
+import org.mozilla.gecko.sync.JSONWriter;
 
 import android.database.Cursor;
 import android.util.SparseArray;
@@ -91,6 +95,144 @@ public class HealthReportGenerator {
     return document;
   }
 
+  /**
+   * Write the document that {@link #generateDocument(long, long, String)}
+   * would return to <code>out</code>, as UTF-8.
+   *
+   * @return false if no environment could be computed, in which case nothing
+   *         was written.
+   * @throws JSONException if there was an error adding environment data to the resulting document.
+   * @throws IOException if <code>out</code> couldn't be written.
+   */
+  public boolean writeDocument(long since, long lastPingTime, String profilePath, OutputStream out) throws JSONException, IOException {
+    Logger.info(LOG_TAG, "Writing FHR document from " + since + "; last ping " + lastPingTime);
+    Logger.pii(LOG_TAG, "Writing for profile " + profilePath);
+    ProfileInformationCache cache = new ProfileInformationCache(profilePath);
+    if (!cache.restoreUnlessInitialized()) {
+      Logger.warn(LOG_TAG, "Not enough profile information to compute current environment.");
+      return false;
+    }
+    Environment current = EnvironmentBuilder.getCurrentEnvironment(cache);
+    return writeDocument(since, lastPingTime, current, out);
+  }
+
+  /**
+   * Write the document that
+   * {@link #generateDocument(long, long, Environment)} would return to
+   * <code>out</code>, as UTF-8.
+   * <p>
+   * The document is written as it is generated, a day or an environment at a
+   * time, so it is never held whole in memory. Keys appear in a fixed order,
+   * and days in date order.
+   * <p>
+   * If storage is a {@link HealthReportSectionCache}, past days and
+   * environment differences are taken from it where possible, and added to it
+   * otherwise.
+   *
+   * @return false if no environment could be computed, in which case nothing
+   *         was written.
+   * @throws JSONException if there was an error adding environment data to the resulting document.
+   * @throws IOException if <code>out</code> couldn't be written.
+   */
+  public boolean writeDocument(long since, long lastPingTime, Environment currentEnvironment, OutputStream out) throws JSONException, IOException {
+    final String currentHash = currentEnvironment.getHash();
+
+    Logger.debug(LOG_TAG, "Current environment hash: " + currentHash);
+    if (currentHash == null) {
+      Logger.warn(LOG_TAG, "Current hash is null; aborting.");
+      return false;
+    }
+
+    SparseArray<Environment> envs = storage.getEnvironmentRecordsByID();
+
+    final JSONWriter writer = new JSONWriter();
+    writer.beginObject();
+    if (lastPingTime >= HealthReportConstants.EARLIEST_LAST_PING) {
+      writer.name("lastPingDate").value(dateFormatter.getDateString(lastPingTime));
+    }
+    writer.name("thisPingDate").value(dateFormatter.getDateString(now()));
+    writer.name("version").value(PAYLOAD_VERSION);
+
+    writer.name("environments").beginObject();
+    // Always do this, even if it hasn't recorded anything in the DB.
+    writer.name("current").value(jsonify(currentEnvironment, null));
+    final SparseArray<String> diffs = getEnvironmentDiffs(currentEnvironment, envs);
+    for (int i = 0; i < envs.size(); i++) {
+      Environment e = envs.valueAt(i);
+      if (currentHash.equals(e.getHash())) {
+        continue;
+      }
+      writer.name(e.getHash()).jsonValue(diffs.get(envs.keyAt(i)));
+      writer.drainTo(out);
+    }
+    writer.endObject();
+
+    writer.name("data").beginObject();
+    writer.name("days").beginObject();
+    writeDays(envs, storage.getFieldsByID(), since, writer, out);
+    writer.endObject();
+    writer.name("last").beginObject().endObject();
+    writer.endObject();
+
+    writer.endObject();
+    writer.drainTo(out);
+    return true;
+  }
+
+  /**
+   * @return the JSON text of each environment's difference from the current
+   *         environment, by environment ID.
+   */
+  protected SparseArray<String> getEnvironmentDiffs(Environment currentEnvironment,
+                                                    SparseArray<Environment> envs) throws JSONException {
+    final String currentHash = currentEnvironment.getHash();
+    final HealthReportSectionCache cache = getSectionCache();
+    final SparseArray<String> diffs = (cache == null) ? new SparseArray<String>()
+                                                      : cache.getCachedEnvironmentDiffs(currentHash);
+    final SparseArray<String> rendered = new SparseArray<String>();
+    for (int i = 0; i < envs.size(); i++) {
+      final int id = envs.keyAt(i);
+      final Environment e = envs.valueAt(i);
+      if (currentHash.equals(e.getHash()) || diffs.indexOfKey(id) >= 0) {
+        continue;
+      }
+      final String diff = jsonify(e, currentEnvironment).toString();
+      diffs.put(id, diff);
+      rendered.put(id, diff);
+    }
+    if (cache != null && rendered.size() > 0) {
+      cache.cacheEnvironmentDiffs(currentHash, rendered);
+    }
+    return diffs;
+  }
+
+  /**
+   * @return storage as a section cache, or null if it doesn't cache sections.
+   */
+  protected HealthReportSectionCache getSectionCache() {
+    if (storage instanceof HealthReportSectionCache) {
+      return (HealthReportSectionCache) storage;
+    }
+    return null;
+  }
+
+  /**
+   * Write the members of the <code>days</code> object, draining
+   * <code>writer</code> to <code>out</code> after each day.
+   */
+  protected void writeDays(SparseArray<Environment> envs, SparseArray<Field> fields, long since,
+                           JSONWriter writer, OutputStream out) throws JSONException, IOException {
+    DayIterator days = new DayIterator(envs, fields, since);
+    try {
+      while (days.next()) {
+        days.writeTo(writer);
+        writer.drainTo(out);
+      }
+    } finally {
+      days.close();
+    }
+  }
+
   protected JSONObject getDataJSON(Environment currentEnvironment,
                                    SparseArray<Environment> envs, long since) throws JSONException {
     SparseArray<Field> fields = storage.getFieldsByID();
@@ -106,19 +248,236 @@ public class HealthReportGenerator {
   }
 
   protected JSONObject getDaysJSON(Environment currentEnvironment, SparseArray<Environment> envs, SparseArray<Field> fields, long since) throws JSONException {
-    if (Logger.shouldLogVerbose(LOG_TAG)) {
-      for (int i = 0; i < envs.size(); ++i) {
-        Logger.trace(LOG_TAG, "Days environment " + envs.keyAt(i) + ": " + envs.get(envs.keyAt(i)).getHash());
+    JSONObject days = new JSONObject();
+    DayIterator iterator = new DayIterator(envs, fields, since);
+    try {
+      while (iterator.next()) {
+        days.put(iterator.getDateString(), iterator.getDayJSON());
       }
+    } finally {
+      iterator.close();
     }
+    return days;
+  }
 
-    JSONObject days = new JSONObject();
-    Cursor cursor = storage.getRawEventsSince(since);
-    try {
-      if (!cursor.moveToFirst()) {
-        return days;
+  /**
+   * Produces the <code>days</code> entries from <code>since</code> onwards,
+   * one date at a time, in date order.
+   * <p>
+   * If storage is a {@link HealthReportSectionCache}, days that are cached
+   * are read from it, and only the remaining days are walked from raw
+   * events. Walked days that are over are added to the cache, so that a
+   * daily upload walks little more than the current day.
+   */
+  protected class DayIterator {
+    protected final HealthReportSectionCache cache;
+    protected final CachedDayRange range;
+    protected final int sinceDay;
+    protected final int today;
+
+    // Columns are "date", "hash", "body". Null if there's no cache.
+    protected final Cursor cached;
+    protected final DayWalker walker;
+
+    protected boolean started = false;
+    protected boolean walkerHasDay = false;
+    protected boolean finished = false;
+    protected boolean cachingFailed = false;
+
+    protected int day = -1;
+    protected boolean fromCache;
+    protected JSONObject walkedJSON;
+    protected final ArrayList<String> cachedHashes = new ArrayList<String>();
+    protected final ArrayList<String> cachedBodies = new ArrayList<String>();
+
+    protected int walkedDays = 0;
+    protected int cachedDays = 0;
+
+    public DayIterator(SparseArray<Environment> envs, SparseArray<Field> fields, long since) {
+      this.sinceDay = storage.getDay(since);
+      this.today = storage.getDay(now());
+      this.cache = getSectionCache();
+      if (cache == null) {
+        this.range = null;
+        this.cached = null;
+        this.walker = new DayWalker(envs, fields, since);
+        return;
+      }
+
+      this.range = cache.getCachedDayRange();
+      Logger.debug(LOG_TAG, "Days cached: " + range + ".");
+      this.cached = cache.getCachedDaySections(range, sinceDay);
+      this.cached.moveToFirst();
+      this.walker = new DayWalker(envs, fields, cache.getUncachedRawEvents(range, sinceDay));
+    }
+
+    /**
+     * Advance to the next date with data.
+     *
+     * @return false if there are no more.
+     * @throws JSONException
+     */
+    public boolean next() throws JSONException {
+      if (!started) {
+        walkerHasDay = walker.next();
+        started = true;
+      }
+
+      final boolean cachedHasDay = cached != null && !cached.isAfterLast();
+      if (!cachedHasDay && !walkerHasDay) {
+        finished = true;
+        return false;
+      }
+
+      if (cachedHasDay && (!walkerHasDay || cached.getInt(0) < walker.getDay())) {
+        day = cached.getInt(0);
+        fromCache = true;
+        cachedHashes.clear();
+        cachedBodies.clear();
+        while (!cached.isAfterLast() && cached.getInt(0) == day) {
+          cachedHashes.add(cached.getString(1));
+          cachedBodies.add(cached.getString(2));
+          cached.moveToNext();
+        }
+        cachedDays++;
+        return true;
+      }
+
+      day = walker.getDay();
+      fromCache = false;
+      walkedJSON = walker.getDayJSON();
+      // Walked days should never be cached too, but if they are, events win.
+      while (cachedHasDay && !cached.isAfterLast() && cached.getInt(0) == day) {
+        cached.moveToNext();
+      }
+      if (cache != null && day < today) {
+        cacheWalkedDay(walker.getDayEnvironments());
+      }
+      walkedDays++;
+      walkerHasDay = walker.next();
+      return true;
+    }
+
+    protected void cacheWalkedDay(SparseArray<JSONObject> environments) {
+      if (cachingFailed) {
+        return;
+      }
+      final SparseArray<String> sections = new SparseArray<String>(environments.size());
+      for (int i = 0; i < environments.size(); i++) {
+        sections.put(environments.keyAt(i), environments.valueAt(i).toString());
+      }
+      if (!cache.cacheDaySections(range, day, sections)) {
+        Logger.info(LOG_TAG, "Day cache changed while generating; not caching further days.");
+        cachingFailed = true;
+      }
+    }
+
+    /**
+     * @return the current date, in days since epoch.
+     */
+    public int getDay() {
+      return day;
+    }
+
+    public String getDateString() {
+      return dateFormatter.getDateStringForDay(day);
+    }
+
+    /**
+     * @return the current date's data: a map from environment hash to
+     *         measurements.
+     */
+    public JSONObject getDayJSON() throws JSONException {
+      if (!fromCache) {
+        return walkedJSON;
+      }
+      final JSONObject dayJSON = new JSONObject();
+      for (int i = 0; i < cachedHashes.size(); i++) {
+        dayJSON.put(cachedHashes.get(i), new JSONObject(cachedBodies.get(i)));
+      }
+      return dayJSON;
+    }
+
+    /**
+     * Write the current date's entry, name and value, to <code>writer</code>.
+     */
+    public void writeTo(JSONWriter writer) {
+      writer.name(getDateString());
+      if (!fromCache) {
+        writer.value(walkedJSON);
+        return;
+      }
+      writer.beginObject();
+      for (int i = 0; i < cachedHashes.size(); i++) {
+        writer.name(cachedHashes.get(i)).jsonValue(cachedBodies.get(i));
+      }
+      writer.endObject();
+    }
+
+    /**
+     * Close cursors and, if every day was produced, record the days now
+     * cached.
+     */
+    public void close() {
+      walker.close();
+      if (cached == null) {
+        return;
+      }
+      cached.close();
+
+      Logger.debug(LOG_TAG, "Produced " + walkedDays + " days from events and " +
+                            cachedDays + " from cache.");
+      if (!finished || cachingFailed) {
+        return;
+      }
+      final CachedDayRange next = range.extendedTo(sinceDay, today);
+      if (!next.equals(range) && !cache.setCachedDayRange(range, next)) {
+        Logger.info(LOG_TAG, "Day cache changed while generating; not extending cached days.");
+      }
+    }
+  }
+
+  /**
+   * Walks the raw events cursor, producing the <code>days</code> entry for
+   * one date at a time, in date order. Only the current date's data is held.
+   */
+  protected class DayWalker {
+    protected final SparseArray<Environment> envs;
+    protected final SparseArray<Field> fields;
+    protected final Cursor cursor;
+
+    protected int day = -1;
+    protected JSONObject dayJSON;
+    protected SparseArray<JSONObject> dayEnvironments;
+
+    public DayWalker(SparseArray<Environment> envs, SparseArray<Field> fields, long since) {
+      this(envs, fields, storage.getRawEventsSince(since));
+    }
+
+    /**
+     * @param cursor over raw events, as returned by
+     *        {@link HealthReportStorage#getRawEventsSince(long)}. Closed by
+     *        {@link #close()}.
+     */
+    public DayWalker(SparseArray<Environment> envs, SparseArray<Field> fields, Cursor cursor) {
+      if (Logger.shouldLogVerbose(LOG_TAG)) {
+        for (int i = 0; i < envs.size(); ++i) {
+          Logger.trace(LOG_TAG, "Days environment " + envs.keyAt(i) + ": " + envs.get(envs.keyAt(i)).getHash());
+        }
       }
+      this.envs = envs;
+      this.fields = fields;
+      this.cursor = cursor;
+      this.cursor.moveToFirst();
+    }
 
+    /**
+     * Advance to the next date with events.
+     *
+     * @return false if there are no more.
+     * @throws JSONException
+     */
+    public boolean next() throws JSONException {
       // A classic walking partition.
       // Columns are "date", "env", "field", "value".
       // Note that we care about the type (integer, string) and kind
@@ -126,10 +485,11 @@ public class HealthReportGenerator {
       // Each field will be accessed once for each date/env pair, so
       // Field memoizes these facts.
       // We also care about which measurement contains each field.
-      int lastDate  = -1;
-      int lastEnv   = -1;
+      int date = -1;
+      int lastEnv = -1;
       JSONObject dateObject = null;
       JSONObject envObject = null;
+      SparseArray<JSONObject> envObjects = null;
 
       while (!cursor.isAfterLast()) {
         int cEnv = cursor.getInt(1);
@@ -142,24 +502,24 @@ public class HealthReportGenerator {
         }
 
         int cDate  = cursor.getInt(0);
+        if (dateObject != null && cDate != date) {
+          // This row starts the next date.
+          break;
+        }
         int cField = cursor.getInt(2);
 
         Logger.trace(LOG_TAG, "Event row: " + cDate + ", " + cEnv + ", " + cField);
-        boolean dateChanged = cDate != lastDate;
-        boolean envChanged = cEnv != lastEnv;
-
-        if (dateChanged) {
-          if (dateObject != null) {
-            days.put(dateFormatter.getDateStringForDay(lastDate), dateObject);
-          }
+        if (dateObject == null) {
           dateObject = new JSONObject();
-          lastDate = cDate;
+          envObjects = new SparseArray<JSONObject>();
+          date = cDate;
         }
 
-        if (dateChanged || envChanged) {
+        if (cEnv != lastEnv) {
           envObject = new JSONObject();
           // This is safe because we checked above that cEnv is valid.
           dateObject.put(envs.get(cEnv).getHash(), envObject);
+          envObjects.put(cEnv, envObject);
           lastEnv = cEnv;
         }
 
@@ -180,13 +540,44 @@ public class HealthReportGenerator {
         recordMeasurementFromCursor(field, measurement, cursor);
 
         cursor.moveToNext();
-        continue;
       }
-      days.put(dateFormatter.getDateStringForDay(lastDate), dateObject);
-    } finally {
+
+      this.day = date;
+      this.dayJSON = dateObject;
+      this.dayEnvironments = envObjects;
+      return dateObject != null;
+    }
+
+    /**
+     * @return the current date, in days since epoch.
+     */
+    public int getDay() {
+      return day;
+    }
+
+    public String getDateString() {
+      return dateFormatter.getDateStringForDay(day);
+    }
+
+    /**
+     * @return the current date's data: a map from environment hash to
+     *         measurements.
+     */
+    public JSONObject getDayJSON() {
+      return dayJSON;
+    }
+
+    /**
+     * @return the current date's data for each environment, by environment
+     *         ID. These are the objects in {@link #getDayJSON()}.
+     */
+    public SparseArray<JSONObject> getDayEnvironments() {
+      return dayEnvironments;
+    }
+
+    public void close() {
       cursor.close();
     }
-    return days;
   }
 
   /**
@@ -0,0 +1,80 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.background.healthreport;
+
+import android.database.Cursor;
+import android.util.SparseArray;
+
+/**
+ * Storage that keeps the parts of a Health Report document that can no
+ * longer change, so that {@link HealthReportGenerator} needn't render them
+ * again.
+ * <p>
+ * A day's data stops changing once the day is over, so each past day's
+ * measurements are cached as JSON text, one section per day and environment.
+ * Each environment's difference from the current environment is cached too,
+ * until the current environment changes.
+ * <p>
+ * Implementations must drop cached sections when the events they were
+ * rendered from are deleted or added to, and must refuse sections rendered
+ * from a {@link CachedDayRange} that is no longer current.
+ */
+public interface HealthReportSectionCache {
+  /**
+   * @return the days whose sections are cached. Pending events are written
+   *         first.
+   */
+  public CachedDayRange getCachedDayRange();
+
+  /**
+   * Returns a cursor over cached day sections on or after
+   * <code>sinceDay</code> and within <code>range</code>, ordered by date.
+   * Columns are "date", "hash" (of the environment), and "body".
+   *
+   * @return a cursor. The caller is responsible for closing this.
+   */
+  public Cursor getCachedDaySections(CachedDayRange range, int sinceDay);
+
+  /**
+   * Like {@link HealthReportStorage#getRawEventsSince(long)}, but returns
+   * events on or after <code>sinceDay</code> that fall outside
+   * <code>range</code>.
+   *
+   * @return a cursor. The caller is responsible for closing this.
+   */
+  public Cursor getUncachedRawEvents(CachedDayRange range, int sinceDay);
+
+  /**
+   * Cache the sections of one day, replacing any already cached.
+   *
+   * @param sections the rendered measurements JSON for each environment ID.
+   * @return false if the cache has changed since <code>range</code> was read,
+   *         in which case nothing was cached.
+   */
+  public boolean cacheDaySections(CachedDayRange range, int day, SparseArray<String> sections);
+
+  /**
+   * Record that the days in <code>next</code> are cached.
+   *
+   * @return false if the cache has changed since <code>previous</code> was
+   *         read, in which case nothing was recorded.
+   */
+  public boolean setCachedDayRange(CachedDayRange previous, CachedDayRange next);
+
+  /**
+   * @return the cached environment differences from the environment with
+   *         hash <code>currentHash</code>, by environment ID.
+   */
+  public SparseArray<String> getCachedEnvironmentDiffs(String currentHash);
+
+  /**
+   * Cache environment differences from the environment with hash
+   * <code>currentHash</code>. Differences from any other environment are
+   * discarded.
+   *
+   * @param diffs the rendered difference JSON for each environment ID.
+   */
+  public void cacheEnvironmentDiffs(String currentHash, SparseArray<String> diffs);
+}
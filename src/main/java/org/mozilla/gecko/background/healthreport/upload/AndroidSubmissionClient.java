@@ -5,6 +5,7 @@
 package org.mozilla.gecko.background.healthreport.upload;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -14,6 +15,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.gecko.background.bagheera.BagheeraClient;
 import org.mozilla.gecko.background.bagheera.BagheeraRequestDelegate;
+import org.mozilla.gecko.background.bagheera.DeflateHelper.DeflatedBodyStream;
 import org.mozilla.gecko.background.common.GlobalConstants;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.healthreport.Environment;
@@ -30,6 +32,7 @@ import org.mozilla.gecko.sync.net.BaseResource;
 import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SharedPreferences;
+import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpResponse;
 
 public class AndroidSubmissionClient implements SubmissionClient {
@@ -90,6 +93,46 @@ public class AndroidSubmissionClient implements SubmissionClient {
     return generator.generateDocument(since, last, profilePath);
   }
 
+  /**
+   * Generate the document straight into a deflated upload body, without
+   * holding the document itself.
+   *
+   * @return the deflated document, or null if no document could be generated.
+   */
+  protected HttpEntity generateDeflatedDocument(final long localTime, final long last,
+      final SubmissionsTracker tracker) throws JSONException, IOException {
+    final long since = localTime - GlobalConstants.MILLISECONDS_PER_SIX_MONTHS;
+    final HealthReportGenerator generator = tracker.getGenerator();
+    final DeflatedBodyStream body = new DeflatedBodyStream();
+    try {
+      if (!generator.writeDocument(since, last, profilePath, body)) {
+        return null;
+      }
+      final HttpEntity entity = body.toEntity();
+      Logger.debug(LOG_TAG, "Generated deflated document of " + entity.getContentLength() + " bytes.");
+      return entity;
+    } finally {
+      body.close();
+    }
+  }
+
+  protected void uploadPayload(String id, HttpEntity deflatedPayload, Collection<String> oldIds, BagheeraRequestDelegate uploadDelegate) {
+    final BagheeraClient client = new BagheeraClient(getDocumentServerURI());
+
+    Logger.pii(LOG_TAG, "New health report has id " + id +
+        "and obsoletes " + (oldIds != null ? Integer.toString(oldIds.size()) : "no") + " old ids.");
+
+    try {
+      client.uploadDeflatedDocument(getDocumentServerNamespace(),
+          id,
+          deflatedPayload,
+          oldIds,
+          uploadDelegate);
+    } catch (Exception e) {
+      uploadDelegate.handleError(e);
+    }
+  }
+
   protected void uploadPayload(String id, String payload, Collection<String> oldIds, BagheeraRequestDelegate uploadDelegate) {
     final BagheeraClient client = new BagheeraClient(getDocumentServerURI());
 
@@ -145,7 +188,7 @@ public class AndroidSubmissionClient implements SubmissionClient {
           getSubmissionsTracker(storage, localTime, hasUploadBeenRequested());
       try {
         // TODO: Bug 910898 - Add errors from sharedPrefs to tracker.
-        final JSONObject document = generateDocument(localTime, last, tracker);
+        final HttpEntity document = generateDeflatedDocument(localTime, last, tracker);
         if (document == null) {
           delegate.onHardFailure(localTime, null, "Generator returned null document.", null);
           return;
@@ -153,7 +196,7 @@ public class AndroidSubmissionClient implements SubmissionClient {
 
         final BagheeraRequestDelegate uploadDelegate = tracker.getDelegate(delegate, localTime,
             true, id);
-        this.uploadPayload(id, document.toString(), oldIds, uploadDelegate);
+        this.uploadPayload(id, document, oldIds, uploadDelegate);
       } catch (Exception e) {
         // Incrementing the failure count here could potentially cause the failure count to be
         // incremented twice, but this helper class checks and prevents this.
@@ -409,6 +452,24 @@ public class AndroidSubmissionClient implements SubmissionClient {
         return document;
       }
 
+      @Override
+      public boolean writeDocument(long since, long lastPingTime,
+          String generationProfilePath, OutputStream out) throws JSONException, IOException {
+        final boolean written;
+        // If the given profilePath matches the one we cached for the tracker, use the cached env.
+        if (generationProfilePath == profilePath) {
+          final Environment environment = getCurrentEnvironment();
+          written = super.writeDocument(since, lastPingTime, environment, out);
+        } else {
+          written = super.writeDocument(since, lastPingTime, generationProfilePath, out);
+        }
+
+        if (!written) {
+          incrementUploadClientFailureCount();
+        }
+        return written;
+      }
+
       protected Environment getCurrentEnvironment() {
         return EnvironmentBuilder.getCurrentEnvironment(profileCache);
       }
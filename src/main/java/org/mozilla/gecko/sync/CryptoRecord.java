@@ -6,6 +6,8 @@ package org.mozilla.gecko.sync;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
@@ -15,6 +17,8 @@ import org.mozilla.gecko.sync.crypto.CryptoInfo;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.crypto.MissingCryptoInputException;
 import org.mozilla.gecko.sync.crypto.NoKeyBundleException;
+import org.mozilla.gecko.sync.net.WBOStreamDecoder;
+import org.mozilla.gecko.sync.net.WBOStreamDecoder.EncryptedPayload;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
 
@@ -53,24 +57,68 @@ public class CryptoRecord extends Record {
    * Helper method for doing actual decryption.
    *
    * Input: JSONObject containing a valid payload (cipherText, IV, HMAC),
-   * KeyBundle with keys for decryption. Output: byte[] clearText
+   * KeyBundle with keys for decryption. Output: clearText, as the remaining
+   * bytes of a buffer.
    * @throws CryptoException
    * @throws UnsupportedEncodingException
    */
-  private static byte[] decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle) throws CryptoException, UnsupportedEncodingException {
-    byte[] ciphertext = Base64.decodeBase64(((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8"));
+  private static ByteBuffer decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle) throws CryptoException, UnsupportedEncodingException {
+    byte[] ciphertext = ((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8");
     byte[] iv         = Base64.decodeBase64(((String) payload.get(KEY_IV)).getBytes("UTF-8"));
     byte[] hmac       = Utils.hex2Byte((String) payload.get(KEY_HMAC));
 
-    return CryptoInfo.decrypt(ciphertext, iv, hmac, keybundle).getMessage();
+    return CryptoInfo.decryptBase64(ciphertext, 0, ciphertext.length, iv, hmac, keybundle);
   }
 
+  /**
+   * As {@link #decryptPayload(ExtendedJSONObject, KeyBundle)}, but reading
+   * the crypto fields directly from a raw, still-encoded payload. The
+   * ciphertext is verified and decoded where it lies in the raw payload.
+   */
+  private static ByteBuffer decryptRawPayload(byte[] rawPayload, KeyBundle keybundle) throws CryptoException, RecordParseException {
+    EncryptedPayload encrypted = WBOStreamDecoder.decodeEncryptedPayload(rawPayload);
+    if (encrypted.ciphertext == null ||
+        encrypted.iv == null ||
+        encrypted.hmac == null) {
+      throw new MissingCryptoInputException();
+    }
+
+    byte[] iv         = Base64.decodeBase64(encrypted.iv);
+    byte[] hmac       = Utils.hex2Byte(encrypted.hmac);
+
+    return CryptoInfo.decryptBase64(encrypted.ciphertext, encrypted.ciphertextOffset, encrypted.ciphertextLength,
+                                    iv, hmac, keybundle);
+  }
+
+  private static ExtendedJSONObject parseCleartext(ByteBuffer cleartext) throws IOException, ParseException, NonObjectJSONException {
+    return ExtendedJSONObject.parseUTF8AsJSONObject(cleartext.array(),
+                                                    cleartext.arrayOffset() + cleartext.position(),
+                                                    cleartext.remaining());
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Holds the encoded payload while it is embedded by toJSONBytes.
+  private static final ThreadLocal<JSONWriter> payloadWriters = new ThreadLocal<JSONWriter>() {
+    @Override
+    protected JSONWriter initialValue() {
+      return new JSONWriter();
+    }
+  };
+
   // The encrypted JSON body object.
   // The decrypted JSON body object. Fields are copied from `body`.
 
   public ExtendedJSONObject payload;
   public KeyBundle   keyBundle;
 
+  /**
+   * The encoded payload, as UTF-8 bytes, for records decoded directly from a
+   * response stream by {@link WBOStreamDecoder}. It is not parsed until
+   * {@link #decrypt()} is called; until then, <code>payload</code> is null.
+   */
+  protected byte[] rawPayload;
+
   /**
    * Don't forget to set cleartext or body!
    */
@@ -91,6 +139,21 @@ public class CryptoRecord extends Record {
     this(ExtendedJSONObject.parseJSONObject(jsonString));
   }
 
+  /**
+   * Create a new CryptoRecord whose payload has not yet been parsed.
+   *
+   * @param rawPayload UTF-8 encoded JSON payload.
+   */
+  public static CryptoRecord fromRawPayload(byte[] rawPayload) {
+    if (rawPayload == null) {
+      throw new IllegalArgumentException(
+          "No payload provided to CryptoRecord.");
+    }
+    CryptoRecord record = new CryptoRecord();
+    record.rawPayload = rawPayload;
+    return record;
+  }
+
   /**
    * Create a new CryptoRecord with the same metadata as an existing record.
    *
@@ -109,6 +172,7 @@ public class CryptoRecord extends Record {
     out.sortIndex    = this.sortIndex;
     out.ttl          = this.ttl;
     out.payload      = (this.payload == null) ? null : new ExtendedJSONObject(this.payload.object);
+    out.rawPayload   = this.rawPayload;   // Never mutated.
     out.keyBundle    = this.keyBundle;    // TODO: copy me?
     return out;
   }
@@ -183,10 +247,31 @@ public class CryptoRecord extends Record {
 
   public CryptoRecord decrypt() throws CryptoException, IOException, ParseException,
                        NonObjectJSONException {
+    setCleartext(decryptCleartext());
+    return this;
+  }
+
+  /**
+   * Decrypt this record's payload, but don't parse it.
+   * <p>
+   * The record itself is not changed; see {@link #setCleartext(ByteBuffer)}.
+   *
+   * @return the UTF-8 cleartext, as the remaining bytes of a buffer.
+   */
+  public ByteBuffer decryptCleartext() throws CryptoException, UnsupportedEncodingException {
     if (keyBundle == null) {
       throw new NoKeyBundleException();
     }
 
+    if (payload == null && rawPayload != null) {
+      try {
+        return decryptRawPayload(rawPayload, keyBundle);
+      } catch (RecordParseException e) {
+        // The payload isn't a JSON object, so it can't hold crypto inputs.
+        throw new MissingCryptoInputException();
+      }
+    }
+
     // Check that payload contains all pieces for crypto.
     if (!payload.containsKey(KEY_CIPHERTEXT) ||
         !payload.containsKey(KEY_IV) ||
@@ -196,17 +281,37 @@ public class CryptoRecord extends Record {
 
     // There's no difference between handling the crypto/keys object and
     // anything else; we just get this.keyBundle from a different source.
-    byte[] cleartext = decryptPayload(payload, keyBundle);
-    payload = ExtendedJSONObject.parseUTF8AsJSONObject(cleartext);
-    return this;
+    return decryptPayload(payload, keyBundle);
+  }
+
+  /**
+   * Parse decrypted cleartext into this record's payload.
+   */
+  public void setCleartext(ByteBuffer cleartext) throws IOException, ParseException, NonObjectJSONException {
+    payload = parseCleartext(cleartext);
+    rawPayload = null;
   }
 
   public CryptoRecord encrypt() throws CryptoException, UnsupportedEncodingException {
     if (this.keyBundle == null) {
       throw new NoKeyBundleException();
     }
+    if (this.payload == null && this.rawPayload != null) {
+      throw new IllegalStateException("Can't encrypt a record that has not been decrypted.");
+    }
     String cleartext = payload.toJSONString();
-    byte[] cleartextBytes = cleartext.getBytes("UTF-8");
+    return encrypt(cleartext.getBytes("UTF-8"));
+  }
+
+  /**
+   * Encrypt the given cleartext, as written by
+   * {@link Record#writePayload(JSONWriter)}, into this record's payload.
+   * Any existing payload is replaced.
+   */
+  public CryptoRecord encrypt(byte[] cleartextBytes) throws CryptoException {
+    if (this.keyBundle == null) {
+      throw new NoKeyBundleException();
+    }
     CryptoInfo info = CryptoInfo.encrypt(cleartextBytes, keyBundle);
     String message = new String(Base64.encodeBase64(info.getMessage()));
     String iv      = new String(Base64.encodeBase64(info.getIV()));
@@ -216,6 +321,7 @@ public class CryptoRecord extends Record {
     ciphertext.put(KEY_HMAC, hmac);
     ciphertext.put(KEY_IV, iv);
     this.payload = ciphertext;
+    this.rawPayload = null;
     return this;
   }
 
@@ -234,6 +340,11 @@ public class CryptoRecord extends Record {
     throw new IllegalStateException("Can't do this with a CryptoRecord.");
   }
 
+  @Override
+  public void writePayload(JSONWriter writer) {
+    throw new IllegalStateException("Can't do this with a CryptoRecord.");
+  }
+
   @Override
   protected void initFromPayload(ExtendedJSONObject payload) {
     throw new IllegalStateException("Can't do this with a CryptoRecord.");
@@ -242,7 +353,16 @@ public class CryptoRecord extends Record {
   // TODO: this only works with encrypted object, and has other limitations.
   public JSONObject toJSONObject() {
     ExtendedJSONObject o = new ExtendedJSONObject();
-    o.put(KEY_PAYLOAD, payload.toJSONString());
+    if (payload == null && rawPayload != null) {
+      try {
+        o.put(KEY_PAYLOAD, new String(rawPayload, "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        // Never happens.
+        throw new IllegalStateException(e);
+      }
+    } else {
+      o.put(KEY_PAYLOAD, payload.toJSONString());
+    }
     o.put(KEY_ID,      this.guid);
     if (this.ttl > 0) {
       o.put(KEY_TTL, this.ttl);
@@ -254,4 +374,31 @@ public class CryptoRecord extends Record {
   public String toJSONString() {
     return toJSONObject().toJSONString();
   }
+
+  /**
+   * As {@link #toJSONString()}, but written straight to UTF-8. The payload
+   * is encoded and then embedded as a string in the same pass, using
+   * per-thread buffers.
+   */
+  @Override
+  public byte[] toJSONBytes() {
+    final JSONWriter writer = JSONWriter.forThread();
+    final JSONWriter payloadWriter = payloadWriters.get();
+    payloadWriter.reset();
+
+    writer.beginObject();
+    writer.name(KEY_PAYLOAD);
+    if (payload == null && rawPayload != null) {
+      writer.value(new String(rawPayload, UTF_8));
+    } else {
+      payloadWriter.value((Object) payload);
+      writer.value(payloadWriter);
+    }
+    writer.name(KEY_ID).value(this.guid);
+    if (this.ttl > 0) {
+      writer.name(KEY_TTL).value(this.ttl);
+    }
+    writer.endObject();
+    return writer.toByteArray();
+  }
 }
@@ -12,10 +12,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.parser.ParseException;
@@ -32,6 +35,8 @@ import org.mozilla.gecko.sync.delegates.NodeAssignmentCallback;
 import org.mozilla.gecko.sync.delegates.WipeServerDelegate;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HttpCompression;
+import org.mozilla.gecko.sync.net.TLSSocketFactory;
 import org.mozilla.gecko.sync.net.HttpResponseObserver;
 import org.mozilla.gecko.sync.net.SyncResponse;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
@@ -46,6 +51,7 @@ import org.mozilla.gecko.sync.stage.EnsureClusterURLStage;
 import org.mozilla.gecko.sync.stage.EnsureCrypto5KeysStage;
 import org.mozilla.gecko.sync.stage.FennecTabsServerSyncStage;
 import org.mozilla.gecko.sync.stage.FetchInfoCollectionsStage;
+import org.mozilla.gecko.sync.stage.FetchInfoConfigurationStage;
 import org.mozilla.gecko.sync.stage.FetchMetaGlobalStage;
 import org.mozilla.gecko.sync.stage.FormHistoryServerSyncStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage;
@@ -79,8 +85,27 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
   /**
    * Map from engine name to new settings for an updated meta/global record.
    * Engines to remove will have <code>null</code> EngineSettings.
+   * <p>
+   * Synchronized, because engine stages can run concurrently; lock the map
+   * to iterate over it.
+   */
+  public final Map<String, EngineSettings> enginesToUpdate = Collections.synchronizedMap(new HashMap<String, EngineSettings>());
+
+  /**
+   * How many engine stages -- those between syncing clients and uploading
+   * meta/global -- may run at once. 1 runs them one after another.
+   * <p>
+   * Stages share their session's configuration and persisted state, so until
+   * every stage is known to be safe to run alongside the others, sessions
+   * must opt in by overriding <code>getEngineStageParallelism</code>.
    */
-  public final Map<String, EngineSettings> enginesToUpdate = new HashMap<String, EngineSettings>();
+  public static final int ENGINE_STAGE_PARALLELISM = 1;
+
+  /**
+   * The engine stages currently running concurrently, or <code>null</code>
+   * if stages are running one at a time.
+   */
+  protected volatile ConcurrentStages concurrentStages = null;
 
    /*
    * Key accessors.
@@ -196,6 +221,7 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
     stages.put(Stage.checkPreconditions,      new CheckPreconditionsStage());
     stages.put(Stage.ensureClusterURL,        new EnsureClusterURLStage(nodeAssignmentCallback));
     stages.put(Stage.fetchInfoCollections,    new FetchInfoCollectionsStage());
+    stages.put(Stage.fetchInfoConfiguration,  new FetchInfoConfigurationStage());
     stages.put(Stage.fetchMetaGlobal,         new FetchMetaGlobalStage());
     stages.put(Stage.ensureKeysStage,         new EnsureCrypto5KeysStage());
     stages.put(Stage.syncClientsEngine,       new SyncClientsEngineStage());
@@ -262,6 +288,180 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
     return Stage.values()[index % max];
   }
 
+  /**
+   * Override this to change how many engine stages may run at once.
+   *
+   * @return the most engine stages to run concurrently; 1 or less to run
+   *         them one after another.
+   */
+  protected int getEngineStageParallelism() {
+    return ENGINE_STAGE_PARALLELISM;
+  }
+
+  /**
+   * Engine stages run concurrently, at most <code>parallelism</code> at a
+   * time.
+   * <p>
+   * A stage holds its slot from when it is executed until it calls
+   * <code>advance</code> or <code>abort</code>, which is how every stage
+   * reports that it has finished. The session moves on once every stage has
+   * advanced.
+   * <p>
+   * After an abort, no further stages are started, but the session doesn't
+   * abort -- clean up and tell its callback -- until every stage still
+   * running has finished, since those stages are still using the session.
+   * The first abort's exception and reason are reported.
+   */
+  protected class ConcurrentStages {
+    protected final LinkedList<GlobalSyncStage> pending;
+    protected final List<Stage> stageNames;
+    protected final Stage lastStage;
+    protected final int parallelism;
+    protected final ExecutorService executor;
+
+    // Guarded by this.
+    protected int running = 0;
+    protected boolean aborted = false;
+    protected boolean finished = false;
+    protected Exception abortException = null;
+    protected String abortReason = null;
+
+    public ConcurrentStages(List<Stage> stageNames, List<GlobalSyncStage> stages, int parallelism) {
+      this.pending = new LinkedList<GlobalSyncStage>(stages);
+      this.stageNames = stageNames;
+      this.lastStage = stageNames.get(stageNames.size() - 1);
+      this.parallelism = Math.min(parallelism, stages.size());
+      this.executor = Executors.newFixedThreadPool(this.parallelism);
+    }
+
+    public void start() {
+      final ArrayList<GlobalSyncStage> launching = new ArrayList<GlobalSyncStage>();
+      synchronized (this) {
+        while (running < parallelism && !pending.isEmpty()) {
+          running += 1;
+          launching.add(pending.removeFirst());
+        }
+      }
+      for (GlobalSyncStage stage : launching) {
+        launch(stage);
+      }
+    }
+
+    protected void launch(final GlobalSyncStage stage) {
+      Logger.info(LOG_TAG, "Running stage " + stage + " concurrently...");
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            stage.execute(GlobalSession.this);
+          } catch (Exception ex) {
+            Logger.warn(LOG_TAG, "Caught exception " + ex + " running stage " + stage);
+            GlobalSession.this.abort(ex, "Uncaught exception in stage.");
+          }
+        }
+      });
+    }
+
+    /**
+     * Record that a stage finished, and start the next, if any.
+     *
+     * @return true if this was the last stage to finish, in which case check
+     *         <code>isAborted</code>.
+     */
+    public boolean stageCompleted() {
+      GlobalSyncStage next = null;
+      synchronized (this) {
+        if (finished) {
+          return false;
+        }
+        running -= 1;
+        if (!aborted && !pending.isEmpty()) {
+          running += 1;
+          next = pending.removeFirst();
+        } else if (running > 0) {
+          return false;
+        } else {
+          finished = true;
+        }
+      }
+      if (next != null) {
+        launch(next);
+        return false;
+      }
+      executor.shutdown();
+      return true;
+    }
+
+    /**
+     * Record that a stage aborted the sync. No further stages are started.
+     *
+     * @return true if this was the last stage to finish, so the session
+     *         should now abort with <code>getAbortException</code> and
+     *         <code>getAbortReason</code>.
+     */
+    public boolean stageAborted(Exception e, String reason) {
+      synchronized (this) {
+        if (finished) {
+          return false;
+        }
+        running -= 1;
+        if (!aborted) {
+          aborted = true;
+          abortException = e;
+          abortReason = reason;
+          pending.clear();
+        }
+        if (running > 0) {
+          return false;
+        }
+        finished = true;
+      }
+      executor.shutdown();
+      return true;
+    }
+
+    public synchronized boolean isAborted() {
+      return aborted;
+    }
+
+    public synchronized Exception getAbortException() {
+      return abortException;
+    }
+
+    public synchronized String getAbortReason() {
+      return abortReason;
+    }
+  }
+
+  /**
+   * Start the engine stages concurrently, if <code>first</code> is the first
+   * engine stage and concurrency is enabled.
+   *
+   * @return true if the stages were started; false to run <code>first</code>
+   *         as usual.
+   * @throws NoSuchStageException
+   */
+  protected boolean startConcurrentStages(Stage first) throws NoSuchStageException {
+    final int parallelism = getEngineStageParallelism();
+    if (parallelism <= 1 || first != nextStage(Stage.syncClientsEngine)) {
+      return false;
+    }
+
+    final ArrayList<Stage> engineStageNames = new ArrayList<Stage>();
+    final ArrayList<GlobalSyncStage> engineStages = new ArrayList<GlobalSyncStage>();
+    for (Stage stage = first; stage != Stage.uploadMetaGlobal; stage = nextStage(stage)) {
+      engineStages.add(this.getSyncStageByName(stage));
+      engineStageNames.add(stage);
+    }
+
+    Logger.info(LOG_TAG, "Running " + engineStages.size() + " engine stages, " + parallelism + " at a time.");
+    final ConcurrentStages stages = new ConcurrentStages(engineStageNames, engineStages, parallelism);
+    this.currentState = first;
+    this.concurrentStages = stages;
+    stages.start();
+    return true;
+  }
+
   /**
    * Move to the next stage in the syncing process.
    */
@@ -273,8 +473,37 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
       return;
     }
 
+    final ConcurrentStages running = this.concurrentStages;
+    if (running != null) {
+      if (!running.stageCompleted()) {
+        return;
+      }
+      this.concurrentStages = null;
+      if (running.isAborted()) {
+        // The last stage still running after an abort has finished.
+        this.abort(running.getAbortException(), running.getAbortReason());
+        return;
+      }
+      // Every engine stage has finished; carry on one stage at a time. We
+      // report the last engine stage as completed below.
+      for (Stage stage : running.stageNames) {
+        if (stage != running.lastStage) {
+          this.callback.handleStageCompleted(stage, this);
+        }
+      }
+      this.currentState = running.lastStage;
+    }
+
     this.callback.handleStageCompleted(this.currentState, this);
     Stage next = nextStage(this.currentState);
+    try {
+      if (startConcurrentStages(next)) {
+        return;
+      }
+    } catch (NoSuchStageException e) {
+      this.abort(e, "No such stage " + next);
+      return;
+    }
     GlobalSyncStage nextStage;
     try {
       nextStage = this.getSyncStageByName(next);
@@ -322,6 +551,7 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
       throw new AlreadySyncingException(this.currentState);
     }
     installAsHttpResponseObserver(); // Uninstalled by completeSync or abort.
+    this.concurrentStages = null;
     this.advance();
   }
 
@@ -347,6 +577,8 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
   }
 
   public void completeSync() {
+    Logger.debug(LOG_TAG, "HTTP compression: " + HttpCompression.countersToString());
+    Logger.debug(LOG_TAG, "TLS: " + TLSSocketFactory.handshakeCountersToString());
     cleanUp();
     this.currentState = GlobalSyncStage.Stage.idle;
     this.callback.handleSuccess(this);
@@ -382,7 +614,9 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
 
     if (Logger.shouldLogVerbose(LOG_TAG)) {
       Logger.trace(LOG_TAG, "Uploading updated meta/global record since there are engine changes to meta/global.");
-      Logger.trace(LOG_TAG, "Engines requesting update [" + Utils.toCommaSeparatedString(enginesToUpdate.keySet()) + "]");
+      synchronized (enginesToUpdate) {
+        Logger.trace(LOG_TAG, "Engines requesting update [" + Utils.toCommaSeparatedString(enginesToUpdate.keySet()) + "]");
+      }
     }
 
     return true;
@@ -390,15 +624,17 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
 
   public void updateMetaGlobalInPlace() {
     ExtendedJSONObject engines = config.metaGlobal.getEngines();
-    for (Entry<String, EngineSettings> pair : enginesToUpdate.entrySet()) {
-      if (pair.getValue() == null) {
-        engines.remove(pair.getKey());
-      } else {
-        engines.put(pair.getKey(), pair.getValue().toJSONObject());
+    synchronized (enginesToUpdate) {
+      for (Entry<String, EngineSettings> pair : enginesToUpdate.entrySet()) {
+        if (pair.getValue() == null) {
+          engines.remove(pair.getKey());
+        } else {
+          engines.put(pair.getKey(), pair.getValue().toJSONObject());
+        }
       }
-    }
 
-    enginesToUpdate.clear();
+      enginesToUpdate.clear();
+    }
   }
 
   /**
@@ -470,6 +706,16 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
 
 
   public void abort(Exception e, String reason) {
+    final ConcurrentStages running = this.concurrentStages;
+    if (running != null) {
+      if (!running.stageAborted(e, reason)) {
+        Logger.warn(LOG_TAG, "Waiting for running stages before aborting sync: " + reason, e);
+        return;
+      }
+      this.concurrentStages = null;
+      e = running.getAbortException();
+      reason = running.getAbortReason();
+    }
     Logger.warn(LOG_TAG, "Aborting sync: " + reason, e);
     cleanUp();
     long existingBackoff = largestBackoffObserved.get();
@@ -544,6 +790,11 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
     fetcher.fetch(callback);
   }
 
+  public void fetchInfoConfiguration(JSONRecordFetchDelegate callback) throws URISyntaxException {
+    final JSONRecordFetcher fetcher = new JSONRecordFetcher(config.infoConfigurationURL(), getAuthHeaderProvider());
+    fetcher.fetch(callback);
+  }
+
   /**
    * Upload new crypto/keys.
    *
@@ -0,0 +1,88 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Upload limits advertised by the Sync server in
+ * <code>info/configuration</code>.
+ * <p>
+ * Servers that advertise their limits also accept batched uploads: a series
+ * of POSTs that the server applies atomically when the last one asks it to
+ * commit. Missing values take the defaults below; the per-POST defaults are
+ * the fixed thresholds we used before servers told us their limits.
+ */
+public class InfoConfiguration {
+  private static final String LOG_TAG = "InfoConfiguration";
+
+  public static final String MAX_REQUEST_BYTES        = "max_request_bytes";
+  public static final String MAX_POST_RECORDS         = "max_post_records";
+  public static final String MAX_POST_BYTES           = "max_post_bytes";
+  public static final String MAX_TOTAL_RECORDS        = "max_total_records";
+  public static final String MAX_TOTAL_BYTES          = "max_total_bytes";
+  public static final String MAX_RECORD_PAYLOAD_BYTES = "max_record_payload_bytes";
+
+  public static final long DEFAULT_MAX_REQUEST_BYTES        = 1024 * 1024;         // 1MB.
+  public static final long DEFAULT_MAX_POST_RECORDS         = 50;
+  public static final long DEFAULT_MAX_POST_BYTES           = 1024 * 1024;         // 1MB.
+  public static final long DEFAULT_MAX_TOTAL_RECORDS        = 10000;
+  public static final long DEFAULT_MAX_TOTAL_BYTES          = 100 * 1024 * 1024;   // 100MB.
+  public static final long DEFAULT_MAX_RECORD_PAYLOAD_BYTES = 256 * 1024;          // 256KB.
+
+  public final long maxRequestBytes;
+  public final long maxPostRecords;
+  public final long maxPostBytes;
+  public final long maxTotalRecords;
+  public final long maxTotalBytes;
+  public final long maxRecordPayloadBytes;
+
+  /**
+   * Limits for a server that did not advertise any.
+   */
+  public InfoConfiguration() {
+    this.maxRequestBytes       = DEFAULT_MAX_REQUEST_BYTES;
+    this.maxPostRecords        = DEFAULT_MAX_POST_RECORDS;
+    this.maxPostBytes          = DEFAULT_MAX_POST_BYTES;
+    this.maxTotalRecords       = DEFAULT_MAX_TOTAL_RECORDS;
+    this.maxTotalBytes         = DEFAULT_MAX_TOTAL_BYTES;
+    this.maxRecordPayloadBytes = DEFAULT_MAX_RECORD_PAYLOAD_BYTES;
+  }
+
+  public InfoConfiguration(final ExtendedJSONObject record) {
+    Logger.debug(LOG_TAG, "info/configuration is " + record.toJSONString());
+    this.maxRequestBytes       = getLimit(record, MAX_REQUEST_BYTES, DEFAULT_MAX_REQUEST_BYTES);
+    this.maxPostRecords        = getLimit(record, MAX_POST_RECORDS, DEFAULT_MAX_POST_RECORDS);
+    this.maxPostBytes          = getLimit(record, MAX_POST_BYTES, DEFAULT_MAX_POST_BYTES);
+    this.maxTotalRecords       = getLimit(record, MAX_TOTAL_RECORDS, DEFAULT_MAX_TOTAL_RECORDS);
+    this.maxTotalBytes         = getLimit(record, MAX_TOTAL_BYTES, DEFAULT_MAX_TOTAL_BYTES);
+    this.maxRecordPayloadBytes = getLimit(record, MAX_RECORD_PAYLOAD_BYTES, DEFAULT_MAX_RECORD_PAYLOAD_BYTES);
+  }
+
+  /**
+   * Return the positive integral value for <code>key</code>, or
+   * <code>defaultValue</code> if it is missing or nonsensical.
+   */
+  protected static long getLimit(ExtendedJSONObject record, String key, long defaultValue) {
+    Object value = record.get(key);
+    if (value instanceof Number) {
+      long limit = ((Number) value).longValue();
+      if (limit > 0) {
+        return limit;
+      }
+    }
+    if (value != null) {
+      Logger.warn(LOG_TAG, "Ignoring info/configuration entry for " + key + ": " + value);
+    }
+    return defaultValue;
+  }
+
+  /**
+   * @return the most bytes we may send in one POST.
+   */
+  public long getMaxPostBytes() {
+    return Math.min(maxPostBytes, maxRequestBytes);
+  }
+}
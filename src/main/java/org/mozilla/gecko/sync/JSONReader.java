@@ -0,0 +1,503 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+/**
+ * Pull JSON values, one at a time, straight out of a UTF-8 byte buffer.
+ * <p>
+ * This is the reading counterpart of {@link JSONWriter}, for decoding
+ * decrypted record payloads into typed fields without first building a
+ * <code>JSONObject</code>. Members are read in a loop:
+ *
+ * <pre>
+ *   reader.beginObject();
+ *   while (reader.hasNext()) {
+ *     String name = reader.nextName();
+ *     ...
+ *   }
+ *   reader.endObject();
+ * </pre>
+ *
+ * Values that aren't wanted can be skipped with {@link #skipValue()}, or read
+ * as json-simple objects with {@link #nextValue()}.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class JSONReader {
+  public enum Token {
+    OBJECT,
+    ARRAY,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+  }
+
+  private final byte[] input;
+  private int position;
+  private final int end;
+
+  // True if the last thing read was a complete value, so that another value
+  // in the same container must be preceded by a comma.
+  private boolean afterValue;
+
+  // Unescaped string values are written here.
+  private byte[] scratch;
+  private int scratchLength;
+
+  public JSONReader(byte[] input) {
+    this(input, 0, input.length);
+  }
+
+  public JSONReader(byte[] input, int offset, int length) {
+    this.input = input;
+    this.position = offset;
+    this.end = offset + length;
+    this.scratch = new byte[64];
+  }
+
+  public void beginObject() throws RecordParseException {
+    expect('{');
+    afterValue = false;
+  }
+
+  public void endObject() throws RecordParseException {
+    expect('}');
+    afterValue = true;
+  }
+
+  public void beginArray() throws RecordParseException {
+    expect('[');
+    afterValue = false;
+  }
+
+  public void endArray() throws RecordParseException {
+    expect(']');
+    afterValue = true;
+  }
+
+  /**
+   * @return true if the current object or array has another member, consuming
+   *         the comma before it if need be.
+   */
+  public boolean hasNext() throws RecordParseException {
+    skipWhitespace();
+    if (position == end) {
+      throw new RecordParseException("Unexpected end of input.");
+    }
+    final byte b = input[position];
+    if (b == '}' || b == ']') {
+      return false;
+    }
+    if (afterValue) {
+      expect(',');
+      afterValue = false;
+    }
+    return true;
+  }
+
+  /**
+   * Check that nothing but whitespace follows the value just read.
+   */
+  public void endDocument() throws RecordParseException {
+    skipWhitespace();
+    if (position != end) {
+      throw new RecordParseException("Trailing data at offset " + position + ".");
+    }
+  }
+
+  public Token peek() throws RecordParseException {
+    skipWhitespace();
+    if (position == end) {
+      throw new RecordParseException("Expected value.");
+    }
+    switch (input[position]) {
+    case '{':
+      return Token.OBJECT;
+    case '[':
+      return Token.ARRAY;
+    case '"':
+      return Token.STRING;
+    case 't':
+    case 'f':
+      return Token.BOOLEAN;
+    case 'n':
+      return Token.NULL;
+    default:
+      return Token.NUMBER;
+    }
+  }
+
+  public String nextName() throws RecordParseException {
+    readString();
+    expect(':');
+    afterValue = false;
+    return scratchString();
+  }
+
+  /**
+   * @return the next value, which must be a string or null.
+   */
+  public String nextString() throws RecordParseException {
+    afterValue = true;
+    if (consumeLiteral("null")) {
+      return null;
+    }
+    readString();
+    return scratchString();
+  }
+
+  /**
+   * @return the next value, which must be a number. Fractions are truncated.
+   */
+  public long nextLong() throws RecordParseException {
+    afterValue = true;
+    final int offset = position;
+    skipWhitespace();
+    final int start = position;
+    if (!readNumber("number", offset)) {
+      final long value = parseLong(start, position);
+      if (value != Long.MIN_VALUE) {
+        return value;
+      }
+    }
+    try {
+      return Double.valueOf(asciiString(start, position)).longValue();
+    } catch (NumberFormatException e) {
+      throw expected("number", offset);
+    }
+  }
+
+  public boolean nextBoolean() throws RecordParseException {
+    afterValue = true;
+    if (consumeLiteral("true")) {
+      return true;
+    }
+    if (consumeLiteral("false")) {
+      return false;
+    }
+    throw new RecordParseException("Expected boolean at offset " + position + ".");
+  }
+
+  /**
+   * Skip over any JSON value, including nested objects and arrays.
+   */
+  public void skipValue() throws RecordParseException {
+    switch (peek()) {
+    case OBJECT:
+      beginObject();
+      while (hasNext()) {
+        readString();
+        expect(':');
+        afterValue = false;
+        skipValue();
+      }
+      endObject();
+      return;
+    case ARRAY:
+      beginArray();
+      while (hasNext()) {
+        skipValue();
+      }
+      endArray();
+      return;
+    case STRING:
+      readString();
+      break;
+    case BOOLEAN:
+      nextBoolean();
+      break;
+    case NULL:
+      if (!consumeLiteral("null")) {
+        throw new RecordParseException("Expected value at offset " + position + ".");
+      }
+      break;
+    default:
+      readNumber("value", position);
+    }
+    afterValue = true;
+  }
+
+  /**
+   * Read the next value as json-simple would have parsed it: a
+   * <code>JSONObject</code>, <code>JSONArray</code>, <code>String</code>,
+   * <code>Long</code>, <code>Double</code>, <code>Boolean</code>, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public Object nextValue() throws RecordParseException {
+    switch (peek()) {
+    case OBJECT:
+      final JSONObject object = new JSONObject();
+      beginObject();
+      while (hasNext()) {
+        final String name = nextName();
+        object.put(name, nextValue());
+      }
+      endObject();
+      return object;
+    case ARRAY:
+      final JSONArray array = new JSONArray();
+      beginArray();
+      while (hasNext()) {
+        array.add(nextValue());
+      }
+      endArray();
+      return array;
+    case STRING:
+      return nextString();
+    case BOOLEAN:
+      return nextBoolean();
+    case NULL:
+      return nextString();
+    default:
+      afterValue = true;
+      final int start = position;
+      if (!readNumber("value", start)) {
+        final long value = parseLong(start, position);
+        if (value != Long.MIN_VALUE) {
+          return Long.valueOf(value);
+        }
+      }
+      try {
+        return Double.valueOf(asciiString(start, position));
+      } catch (NumberFormatException e) {
+        throw expected("value", start);
+      }
+    }
+  }
+
+  private void skipWhitespace() {
+    while (position < end) {
+      byte b = input[position];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return;
+      }
+      position++;
+    }
+  }
+
+  private boolean consumeIf(char c) {
+    skipWhitespace();
+    if (position < end && input[position] == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) throws RecordParseException {
+    if (!consumeIf(c)) {
+      throw new RecordParseException("Expected '" + c + "' at offset " + position + ".");
+    }
+  }
+
+  private boolean consumeLiteral(String literal) {
+    skipWhitespace();
+    final int length = literal.length();
+    if (end - position < length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (input[position + i] != literal.charAt(i)) {
+        return false;
+      }
+    }
+    position += length;
+    return true;
+  }
+
+  private String scratchString() {
+    try {
+      return new String(scratch, 0, scratchLength, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // Never happens.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String asciiString(int start, int stop) {
+    try {
+      return new String(input, start, stop - start, "US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      // Never happens.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Read a JSON string at the current position, unescaping it as UTF-8 into
+   * <code>scratch</code>.
+   */
+  private void readString() throws RecordParseException {
+    expect('"');
+    scratchLength = 0;
+    while (position < end) {
+      byte b = input[position++];
+      if (b == '"') {
+        return;
+      }
+      if (b != '\\') {
+        writeScratch(b);
+        continue;
+      }
+      if (position == end) {
+        break;
+      }
+      byte escaped = input[position++];
+      switch (escaped) {
+      case '"':
+      case '\\':
+      case '/':
+        writeScratch(escaped);
+        break;
+      case 'b':
+        writeScratch((byte) '\b');
+        break;
+      case 'f':
+        writeScratch((byte) '\f');
+        break;
+      case 'n':
+        writeScratch((byte) '\n');
+        break;
+      case 'r':
+        writeScratch((byte) '\r');
+        break;
+      case 't':
+        writeScratch((byte) '\t');
+        break;
+      case 'u':
+        int codePoint = readHexChar();
+        if (codePoint >= 0xD800 && codePoint <= 0xDBFF &&
+            end - position >= 6 &&
+            input[position] == '\\' && input[position + 1] == 'u') {
+          position += 2;
+          int low = readHexChar();
+          if (low >= 0xDC00 && low <= 0xDFFF) {
+            codePoint = 0x10000 + ((codePoint - 0xD800) << 10) + (low - 0xDC00);
+          } else {
+            writeCodePoint(codePoint);
+            codePoint = low;
+          }
+        }
+        writeCodePoint(codePoint);
+        break;
+      default:
+        throw new RecordParseException("Invalid escape at offset " + (position - 1) + ".");
+      }
+    }
+    throw new RecordParseException("Unterminated string.");
+  }
+
+  private int readHexChar() throws RecordParseException {
+    if (end - position < 4) {
+      throw new RecordParseException("Truncated unicode escape.");
+    }
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(input[position++], 16);
+      if (digit < 0) {
+        throw new RecordParseException("Invalid unicode escape.");
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  private void writeCodePoint(int codePoint) {
+    if (codePoint < 0x80) {
+      writeScratch((byte) codePoint);
+    } else if (codePoint < 0x800) {
+      writeScratch((byte) (0xC0 | (codePoint >> 6)));
+      writeScratch((byte) (0x80 | (codePoint & 0x3F)));
+    } else if (codePoint < 0x10000) {
+      writeScratch((byte) (0xE0 | (codePoint >> 12)));
+      writeScratch((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+      writeScratch((byte) (0x80 | (codePoint & 0x3F)));
+    } else {
+      writeScratch((byte) (0xF0 | (codePoint >> 18)));
+      writeScratch((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+      writeScratch((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+      writeScratch((byte) (0x80 | (codePoint & 0x3F)));
+    }
+  }
+
+  private void writeScratch(byte b) {
+    if (scratchLength == scratch.length) {
+      byte[] grown = new byte[scratch.length * 2];
+      System.arraycopy(scratch, 0, grown, 0, scratchLength);
+      scratch = grown;
+    }
+    scratch[scratchLength++] = b;
+  }
+
+  /**
+   * @return the exception for a missing token. Only call this to throw it.
+   */
+  private static RecordParseException expected(String what, int offset) {
+    return new RecordParseException("Expected " + what + " at offset " + offset + ".");
+  }
+
+  /**
+   * Read a number token, leaving <code>position</code> after it.
+   *
+   * @param what
+   *          names the expected token in the exception if there is none.
+   * @param offset
+   *          where the token was expected, for the exception.
+   * @return true if the number has a fraction or exponent.
+   */
+  private boolean readNumber(String what, int offset) throws RecordParseException {
+    skipWhitespace();
+    final int start = position;
+    boolean decimal = false;
+    while (position < end) {
+      byte b = input[position];
+      if (b == '.' || b == 'e' || b == 'E') {
+        decimal = true;
+      } else if (!(b >= '0' && b <= '9') && b != '-' && b != '+') {
+        break;
+      }
+      position++;
+    }
+    if (position == start) {
+      throw expected(what, offset);
+    }
+    return decimal;
+  }
+
+  /**
+   * @return the integer between <code>start</code> and <code>stop</code>, or
+   *         <code>Long.MIN_VALUE</code> if it is too long to parse here.
+   */
+  private long parseLong(int start, int stop) throws RecordParseException {
+    boolean negative = false;
+    int i = start;
+    if (input[i] == '-') {
+      negative = true;
+      i++;
+    }
+    if (i == stop) {
+      throw new RecordParseException("Invalid number at offset " + start + ".");
+    }
+    if (stop - i > 18) {
+      return Long.MIN_VALUE;
+    }
+    long value = 0;
+    for (; i < stop; i++) {
+      byte b = input[i];
+      if (b < '0' || b > '9') {
+        throw new RecordParseException("Invalid number at offset " + start + ".");
+      }
+      value = value * 10 + (b - '0');
+    }
+    return negative ? -value : value;
+  }
+}
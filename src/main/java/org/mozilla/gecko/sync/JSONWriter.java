@@ -0,0 +1,408 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.simple.JSONAware;
+
+/**
+ * Write JSON as UTF-8 straight into a growable byte buffer.
+ * <p>
+ * This is the serializing counterpart of
+ * {@link org.mozilla.gecko.sync.net.WBOStreamDecoder}: records write their
+ * fields one at a time, with no intermediate <code>JSONObject</code> or
+ * <code>String</code>. The buffer is kept across {@link #reset()}, so a writer
+ * that is reused settles at the size of the largest document it has written.
+ * <p>
+ * The writer tracks only enough state to place commas; it does not check that
+ * calls are balanced. Instances are not thread-safe; use
+ * {@link #forThread()} to borrow a per-thread instance.
+ */
+public class JSONWriter {
+  public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+  private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7',
+                                      '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+  private static final byte[] TRUE  = { 't', 'r', 'u', 'e' };
+  private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+  private static final byte[] NULL  = { 'n', 'u', 'l', 'l' };
+
+  private static final ThreadLocal<JSONWriter> threadWriters = new ThreadLocal<JSONWriter>() {
+    @Override
+    protected JSONWriter initialValue() {
+      return new JSONWriter();
+    }
+  };
+
+  private byte[] buffer;
+  private int length;
+
+  // True if the next value or name must be preceded by a comma.
+  private boolean needComma;
+
+  public JSONWriter() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  public JSONWriter(int initialSize) {
+    this.buffer = new byte[Math.max(16, initialSize)];
+  }
+
+  /**
+   * @return this thread's writer, emptied. Callers must be done with it
+   *         before anything else on the same thread asks for it again.
+   */
+  public static JSONWriter forThread() {
+    final JSONWriter writer = threadWriters.get();
+    writer.reset();
+    return writer;
+  }
+
+  public void reset() {
+    length = 0;
+    needComma = false;
+  }
+
+  public int size() {
+    return length;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, length);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, length);
+  }
+
+  /**
+   * Write out what has been written so far and empty the buffer, keeping our
+   * place in the document. This lets a large document be streamed in pieces
+   * without ever being held whole.
+   */
+  public void drainTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, length);
+    length = 0;
+  }
+
+  public JSONWriter beginObject() {
+    separate();
+    append('{');
+    needComma = false;
+    return this;
+  }
+
+  public JSONWriter endObject() {
+    append('}');
+    needComma = true;
+    return this;
+  }
+
+  public JSONWriter beginArray() {
+    separate();
+    append('[');
+    needComma = false;
+    return this;
+  }
+
+  public JSONWriter endArray() {
+    append(']');
+    needComma = true;
+    return this;
+  }
+
+  /**
+   * Write an object member name. The next call must write its value.
+   */
+  public JSONWriter name(String name) {
+    separate();
+    writeString(name);
+    append(':');
+    needComma = false;
+    return this;
+  }
+
+  public JSONWriter nullValue() {
+    separate();
+    append(NULL, 0, NULL.length);
+    needComma = true;
+    return this;
+  }
+
+  public JSONWriter value(String value) {
+    if (value == null) {
+      return nullValue();
+    }
+    separate();
+    writeString(value);
+    needComma = true;
+    return this;
+  }
+
+  public JSONWriter value(long value) {
+    separate();
+    writeLong(value);
+    needComma = true;
+    return this;
+  }
+
+  public JSONWriter value(boolean value) {
+    separate();
+    if (value) {
+      append(TRUE, 0, TRUE.length);
+    } else {
+      append(FALSE, 0, FALSE.length);
+    }
+    needComma = true;
+    return this;
+  }
+
+  /**
+   * Write the document held by another writer as a JSON string value, as
+   * Sync does for the encoded payload of a WBO.
+   */
+  public JSONWriter value(JSONWriter document) {
+    separate();
+    append('"');
+    ensureCapacity(document.length + 2);
+    final byte[] source = document.buffer;
+    for (int i = 0; i < document.length; i++) {
+      final byte b = source[i];
+      // A well-formed document has no raw control characters to escape.
+      if (b == '"' || b == '\\') {
+        append('\\');
+      }
+      append(b);
+    }
+    append('"');
+    needComma = true;
+    return this;
+  }
+
+  /**
+   * Write any value that json-simple could: strings, numbers, booleans, null,
+   * maps, lists, and <code>JSONAware</code> or
+   * <code>ExtendedJSONObject</code> instances. <code>org.json</code> objects
+   * and arrays are written as they serialize themselves.
+   */
+  @SuppressWarnings("unchecked")
+  public JSONWriter value(Object value) {
+    if (value == null) {
+      return nullValue();
+    }
+    if (value instanceof String) {
+      return value((String) value);
+    }
+    if (value instanceof Long || value instanceof Integer ||
+        value instanceof Short || value instanceof Byte) {
+      return value(((Number) value).longValue());
+    }
+    if (value instanceof Boolean) {
+      return value(((Boolean) value).booleanValue());
+    }
+    if (value instanceof Number) {
+      return raw(value.toString());
+    }
+    if (value instanceof ExtendedJSONObject) {
+      return value((Object) ((ExtendedJSONObject) value).object);
+    }
+    if (value instanceof Map) {
+      beginObject();
+      for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+        name(String.valueOf(entry.getKey()));
+        value(entry.getValue());
+      }
+      return endObject();
+    }
+    if (value instanceof List) {
+      beginArray();
+      for (Object item : (List<Object>) value) {
+        value(item);
+      }
+      return endArray();
+    }
+    if (value instanceof JSONAware) {
+      return raw(((JSONAware) value).toJSONString());
+    }
+    if (value == JSONObject.NULL) {
+      return nullValue();
+    }
+    if (value instanceof JSONObject || value instanceof JSONArray) {
+      return raw(value.toString());
+    }
+    return value(value.toString());
+  }
+
+  /**
+   * Write text that is already valid JSON, such as a previously rendered
+   * object, as a value. It is not checked.
+   */
+  public JSONWriter jsonValue(String json) {
+    return raw(json);
+  }
+
+  /**
+   * Write already-encoded JSON, such as a number, as a value.
+   */
+  protected JSONWriter raw(String json) {
+    separate();
+    appendChars(json);
+    needComma = true;
+    return this;
+  }
+
+  private void separate() {
+    if (needComma) {
+      append(',');
+    }
+  }
+
+  private void writeString(String s) {
+    final int count = s.length();
+    // Most strings are ASCII and need no escaping.
+    ensureCapacity(count + 2);
+    append('"');
+    for (int i = 0; i < count; i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '"':
+      case '\\':
+        append('\\');
+        append((byte) c);
+        break;
+      case '\b':
+        append('\\');
+        append('b');
+        break;
+      case '\f':
+        append('\\');
+        append('f');
+        break;
+      case '\n':
+        append('\\');
+        append('n');
+        break;
+      case '\r':
+        append('\\');
+        append('r');
+        break;
+      case '\t':
+        append('\\');
+        append('t');
+        break;
+      default:
+        if (c < 0x20) {
+          append('\\');
+          append('u');
+          append('0');
+          append('0');
+          append(HEX[c >> 4]);
+          append(HEX[c & 0xf]);
+        } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+          appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+        } else {
+          appendChar(c);
+        }
+      }
+    }
+    append('"');
+  }
+
+  private void appendChars(String s) {
+    final int count = s.length();
+    for (int i = 0; i < count; i++) {
+      final char c = s.charAt(i);
+      if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+        appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+      } else {
+        appendChar(c);
+      }
+    }
+  }
+
+  private void appendChar(char c) {
+    if (c < 0x80) {
+      append((byte) c);
+    } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+      // Unpaired surrogate: as String.getBytes does, substitute '?'.
+      append('?');
+    } else {
+      appendCodePoint(c);
+    }
+  }
+
+  private void appendCodePoint(int cp) {
+    ensureCapacity(4);
+    if (cp < 0x80) {
+      buffer[length++] = (byte) cp;
+    } else if (cp < 0x800) {
+      buffer[length++] = (byte) (0xc0 | (cp >> 6));
+      buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (cp < 0x10000) {
+      buffer[length++] = (byte) (0xe0 | (cp >> 12));
+      buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+    } else {
+      buffer[length++] = (byte) (0xf0 | (cp >> 18));
+      buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+    }
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      appendChars(Long.toString(value));
+      return;
+    }
+    ensureCapacity(20);
+    if (value < 0) {
+      buffer[length++] = '-';
+      value = -value;
+    }
+    final int start = length;
+    do {
+      buffer[length++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    // Digits were written least significant first.
+    for (int i = start, j = length - 1; i < j; i++, j--) {
+      final byte t = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = t;
+    }
+  }
+
+  private void append(char c) {
+    append((byte) c);
+  }
+
+  private void append(byte b) {
+    if (length == buffer.length) {
+      ensureCapacity(1);
+    }
+    buffer[length++] = b;
+  }
+
+  private void append(byte[] bytes, int offset, int count) {
+    ensureCapacity(count);
+    System.arraycopy(bytes, offset, buffer, length, count);
+    length += count;
+  }
+
+  private void ensureCapacity(int extra) {
+    final int needed = length + extra;
+    if (needed > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+    }
+  }
+}
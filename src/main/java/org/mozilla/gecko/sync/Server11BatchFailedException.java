@@ -0,0 +1,14 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+/**
+ * A POST in a batched upload failed before the batch was committed, so the
+ * server discarded every record in the batch, including records it had
+ * already accepted.
+ */
+public class Server11BatchFailedException extends SyncException {
+  private static final long serialVersionUID = -2420592633407722624L;
+}
@@ -0,0 +1,12 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+/**
+ * A record is larger than the server will accept, so we didn't send it.
+ */
+public class Server11RecordTooLargeException extends SyncException {
+  private static final long serialVersionUID = 2953734183745611093L;
+}
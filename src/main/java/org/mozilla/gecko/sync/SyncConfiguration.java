@@ -178,13 +178,14 @@ public class SyncConfiguration {
   private static final String LOG_TAG = "SyncConfiguration";
 
   // These must be set in GlobalSession's constructor.
-  public URI             clusterURL;
-  public KeyBundle       syncKeyBundle;
+  public URI               clusterURL;
+  public KeyBundle         syncKeyBundle;
 
-  public CollectionKeys  collectionKeys;
-  public InfoCollections infoCollections;
-  public MetaGlobal      metaGlobal;
-  public String          syncID;
+  public CollectionKeys    collectionKeys;
+  public InfoCollections   infoCollections;
+  public InfoConfiguration infoConfiguration;
+  public MetaGlobal        metaGlobal;
+  public String            syncID;
 
   protected final String username;
 
@@ -458,6 +459,10 @@ public class SyncConfiguration {
     return infoBaseURL() + "collections";
   }
 
+  public String infoConfigurationURL() {
+    return infoBaseURL() + "configuration";
+  }
+
   public String infoCollectionCountsURL() {
     return infoBaseURL() + "collection_counts";
   }
@@ -0,0 +1,89 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cached JCE objects for one pair of keys.
+ * <p>
+ * Looking up a <code>Cipher</code> or <code>Mac</code> through the provider
+ * framework is expensive, and we do it for every record we encrypt or
+ * decrypt. A <code>CryptoContext</code> builds the key specs once, and keeps
+ * one <code>Cipher</code> and one initialized <code>Mac</code> per thread,
+ * since neither is thread-safe.
+ * <p>
+ * Get one from {@link KeyBundle#getCryptoContext()}.
+ */
+public class CryptoContext {
+  public static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
+  public static final String KEY_ALGORITHM_SPEC = "AES";
+
+  private final SecretKeySpec encryptionKeySpec;
+  private final Key hmacKey;
+
+  private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+  private final ThreadLocal<Mac> hmacHashers = new ThreadLocal<Mac>();
+
+  public CryptoContext(byte[] encryptionKey, byte[] hmacKey) {
+    // Contexts are built as soon as keys are set, so don't throw for an
+    // unusable key here; the cipher will refuse it when it's used.
+    this.encryptionKeySpec = (encryptionKey == null || encryptionKey.length == 0) ? null : new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+    this.hmacKey = (hmacKey == null) ? null : HKDF.makeHMACKey(hmacKey);
+  }
+
+  public SecretKeySpec getEncryptionKeySpec() {
+    return encryptionKeySpec;
+  }
+
+  /**
+   * Get an AES/CBC cipher for use on the calling thread.
+   * <p>
+   * The caller must <code>init</code> the cipher before each use.
+   */
+  public Cipher getCipher() throws CryptoException {
+    Cipher cipher = ciphers.get();
+    if (cipher != null) {
+      return cipher;
+    }
+    try {
+      cipher = Cipher.getInstance(TRANSFORMATION);
+    } catch (NoSuchAlgorithmException e) {
+      throw new CryptoException(e);
+    } catch (NoSuchPaddingException e) {
+      throw new CryptoException(e);
+    }
+    ciphers.set(cipher);
+    return cipher;
+  }
+
+  /**
+   * Get an HMAC hasher, initialized with our HMAC key, for use on the calling
+   * thread.
+   * <p>
+   * <code>Mac.doFinal</code> resets the hasher, so it is ready for reuse
+   * after each digest.
+   */
+  public Mac getHMACHasher() throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac hasher = hmacHashers.get();
+    if (hasher != null) {
+      return hasher;
+    }
+    if (hmacKey == null) {
+      throw new InvalidKeyException("No HMAC key.");
+    }
+    hasher = Mac.getInstance(HKDF.HMAC_ALGORITHM);
+    hasher.init(hmacKey);
+    hmacHashers.set(hasher);
+    return hasher;
+  }
+}
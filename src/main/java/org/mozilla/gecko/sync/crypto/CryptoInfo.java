@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -13,19 +14,17 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.apache.commons.codec.binary.BaseNCodec.EncodedChunkConsumer;
 
 /*
  * All info in these objects should be decoded (i.e. not BaseXX encoded).
  */
 public class CryptoInfo {
-  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
-
+  // Working space for Base64-encoding ciphertext into the HMAC.
+  private static final int HMAC_SCRATCH_SIZE = 1024;
   private byte[] message;
   private byte[] iv;
   private byte[] hmac;
@@ -112,8 +111,63 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    final Mac hmacHasher = keys.getCryptoContext().getHMACHasher();
+    // Feed the Base64 encoding to the hasher without materializing it.
+    Base64.encodeBase64(message, 0, message.length, new byte[HMAC_SCRATCH_SIZE], new EncodedChunkConsumer() {
+      @Override
+      public void consume(byte[] chunk, int offset, int length) {
+        hmacHasher.update(chunk, offset, length);
+      }
+    });
+    return hmacHasher.doFinal();
+  }
+
+  /**
+   * Verify and decrypt Base64-encoded ciphertext as it appears in a record
+   * payload.
+   * <p>
+   * The HMAC is computed over the encoded bytes as given, the ciphertext is
+   * decoded into a single new buffer, and decrypted in place, so this makes
+   * only one ciphertext-sized allocation.
+   *
+   * @param base64Ciphertext array holding the Base64-encoded ciphertext.
+   * @param offset position of the ciphertext in <code>base64Ciphertext</code>.
+   * @param length length of the encoded ciphertext.
+   * @param iv decoded initialization vector.
+   * @param hmac decoded HMAC of the encoded ciphertext.
+   * @param keys keys to verify and decrypt with.
+   * @return a buffer whose remaining bytes are the plaintext.
+   * @throws CryptoException
+   */
+  public static ByteBuffer decryptBase64(byte[] base64Ciphertext, int offset, int length, byte[] iv, byte[] hmac, KeyBundle keys) throws CryptoException {
+    CryptoContext context = keys.getCryptoContext();
+
+    // Check HMAC.
+    try {
+      Mac hmacHasher = context.getHMACHasher();
+      hmacHasher.update(base64Ciphertext, offset, length);
+      if (!Arrays.equals(hmacHasher.doFinal(), hmac)) {
+        throw new HMACVerificationException();
+      }
+    } catch (NoSuchAlgorithmException e) {
+      throw new CryptoException(e);
+    } catch (InvalidKeyException e) {
+      throw new CryptoException(e);
+    }
+
+    byte[] buffer = new byte[Base64.getMaxDecodedBase64Length(length)];
+    int ciphertextLength = Base64.decodeBase64(base64Ciphertext, offset, length, buffer, 0);
+
+    Cipher cipher = context.getCipher();
+    int plaintextLength;
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, context.getEncryptionKeySpec(), new IvParameterSpec(iv));
+      // Cipher operations are copy-safe, so decrypt in place.
+      plaintextLength = cipher.doFinal(buffer, 0, ciphertextLength, buffer, 0);
+    } catch (GeneralSecurityException ex) {
+      throw new CryptoException(ex);
+    }
+    return ByteBuffer.wrap(buffer, 0, plaintextLength);
   }
 
   /*
@@ -153,16 +207,14 @@ public class CryptoInfo {
    */
   public void encrypt() throws CryptoException {
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    CryptoContext context = getKeys().getCryptoContext();
+    Cipher cipher = context.getCipher();
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-
       // If no IV is provided, we allow the cipher to provide one.
       if (getIV() == null || getIV().length == 0) {
-        cipher.init(Cipher.ENCRYPT_MODE, spec);
+        cipher.init(Cipher.ENCRYPT_MODE, context.getEncryptionKeySpec());
       } else {
-        cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(getIV()));
+        cipher.init(Cipher.ENCRYPT_MODE, context.getEncryptionKeySpec(), new IvParameterSpec(getIV()));
       }
     } catch (GeneralSecurityException ex) {
       throw new CryptoException(ex);
@@ -206,11 +258,10 @@ public class CryptoInfo {
       throw new CryptoException(e);
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    CryptoContext context = getKeys().getCryptoContext();
+    Cipher cipher = context.getCipher();
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-      cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
+      cipher.init(Cipher.DECRYPT_MODE, context.getEncryptionKeySpec(), new IvParameterSpec(getIV()));
     } catch (GeneralSecurityException ex) {
       throw new CryptoException(ex);
     }
@@ -222,19 +273,4 @@ public class CryptoInfo {
     this.setIV(iv);
     this.setMessage(decryptedBytes);
   }
-
-  /**
-   * Helper to get a Cipher object.
-   *
-   * @param transformation The type of Cipher to get.
-   */
-  private static Cipher getCipher(String transformation) throws CryptoException {
-    try {
-      return Cipher.getInstance(transformation);
-    } catch (NoSuchAlgorithmException e) {
-      throw new CryptoException(e);
-    } catch (NoSuchPaddingException e) {
-      throw new CryptoException(e);
-    }
-  }
 }
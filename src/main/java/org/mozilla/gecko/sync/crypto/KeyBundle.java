@@ -22,6 +22,10 @@ public class KeyBundle {
     private byte[] encryptionKey;
     private byte[] hmacKey;
 
+    // Rebuilt whenever either key changes, so that readers on the per-record
+    // path needn't lock.
+    private volatile CryptoContext cryptoContext;
+
     // These are the same for every sync key bundle.
     private static final byte[] EMPTY_BYTES      = {};
     private static final byte[] ENCR_INPUT_BYTES = {1};
@@ -69,6 +73,7 @@ public class KeyBundle {
 
       this.hmacKey       = HKDF.digestBytes(hmacBytes, hmacHasher);
       this.encryptionKey = encrKey;
+      this.cryptoContext = new CryptoContext(this.encryptionKey, this.hmacKey);
     }
 
     public KeyBundle(byte[] encryptionKey, byte[] hmacKey) {
@@ -110,16 +115,31 @@ public class KeyBundle {
         return encryptionKey;
     }
 
-    public void setEncryptionKey(byte[] encryptionKey) {
+    public synchronized void setEncryptionKey(byte[] encryptionKey) {
         this.encryptionKey = encryptionKey;
+        this.cryptoContext = new CryptoContext(this.encryptionKey, this.hmacKey);
     }
 
     public byte[] getHMACKey() {
         return hmacKey;
     }
 
-    public void setHMACKey(byte[] hmacKey) {
+    public synchronized void setHMACKey(byte[] hmacKey) {
         this.hmacKey = hmacKey;
+        this.cryptoContext = new CryptoContext(this.encryptionKey, this.hmacKey);
+    }
+
+    /**
+     * Get cached crypto objects for these keys.
+     * <p>
+     * The same context is returned until either key is changed, so callers
+     * encrypting or decrypting many records with one bundle only pay for
+     * JCE lookups and key setup once per thread.
+     *
+     * @return a <code>CryptoContext</code> for the current keys.
+     */
+    public CryptoContext getCryptoContext() {
+        return cryptoContext;
     }
 
     @Override
@@ -25,6 +25,12 @@ public class Crypto5MiddlewareRepository extends MiddlewareRepository {
 
   public RecordFactory recordFactory = new IdentityRecordFactory();
 
+  /**
+   * If positive, sessions encrypt and decrypt records on this many worker
+   * threads. Records are still delivered in order.
+   */
+  public int cryptoWorkers = 0;
+
   public class Crypto5MiddlewareRepositorySessionCreationDelegate extends MiddlewareRepository.SessionCreationDelegate {
     private Crypto5MiddlewareRepository repository;
     private RepositorySessionCreationDelegate outerDelegate;
@@ -6,16 +6,25 @@ package org.mozilla.gecko.sync.middleware;
 
 import java.io.UnsupportedEncodingException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
+import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.RecordTransformer;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCheckpointingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionTransformingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 /**
@@ -54,56 +63,236 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
                  +------------------------------------+
 
 
+ * If the repository has <code>cryptoWorkers</code> set, records are decrypted
+ * and encrypted on a pool of that many worker threads. Results are still
+ * delivered to the next delegate, or stored in the inner session, in the
+ * order the records arrived, and on the thread that would have handled them
+ * without the pool.
+ *
  * @author rnewman
  *
  */
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
+  private static final String LOG_TAG = "Crypto5MiddlewareSession";
+
+  // How many records per worker may be awaiting delivery at once.
+  protected static final int PENDING_RECORDS_PER_WORKER = 4;
+
   private KeyBundle keyBundle;
   private RecordFactory recordFactory;
 
+  private final int cryptoWorkers;
+  private final int maxPendingRecords;
+
+  // Null unless parallel crypto is enabled and the session has begun.
+  private volatile ExecutorService cryptoExecutor;
+  private volatile OrderedWorkQueue<Record, CryptoRecord> encryptQueue;
+
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.cryptoWorkers = repository.cryptoWorkers;
+    this.maxPendingRecords = Math.max(0, cryptoWorkers) * PENDING_RECORDS_PER_WORKER;
+  }
+
+  /**
+   * Create the worker pool, if parallel crypto is enabled. Called as the
+   * session begins, so that sessions that never begin own no threads.
+   */
+  protected synchronized void startCryptoWorkers() {
+    if (cryptoWorkers <= 0 || cryptoExecutor != null) {
+      return;
+    }
+    Logger.debug(LOG_TAG, "Using " + cryptoWorkers + " crypto workers.");
+    cryptoExecutor = Executors.newFixedThreadPool(cryptoWorkers);
+    encryptQueue = new EncryptQueue();
+  }
+
+  /**
+   * Shut down the worker pool, if there is one.
+   *
+   * @param now if true, interrupt work in progress; otherwise let it
+   *        complete.
+   */
+  protected synchronized void stopCryptoWorkers(boolean now) {
+    if (cryptoExecutor == null) {
+      return;
+    }
+    if (now) {
+      cryptoExecutor.shutdownNow();
+    } else {
+      cryptoExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Shuts the worker pool down if the session fails to begin.
+   */
+  private class CryptoWorkersBeginDelegate implements RepositorySessionBeginDelegate {
+    private final RepositorySessionBeginDelegate next;
+
+    public CryptoWorkersBeginDelegate(RepositorySessionBeginDelegate next) {
+      this.next = next;
+    }
+
+    @Override
+    public void onBeginFailed(Exception ex) {
+      stopCryptoWorkers(true);
+      next.onBeginFailed(ex);
+    }
+
+    @Override
+    public void onBeginSucceeded(RepositorySession session) {
+      next.onBeginSucceeded(session);
+    }
+
+    @Override
+    public RepositorySessionBeginDelegate deferredBeginDelegate(ExecutorService executor) {
+      return new CryptoWorkersBeginDelegate(next.deferredBeginDelegate(executor));
+    }
   }
 
-  public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+  @Override
+  public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
+    startCryptoWorkers();
+    try {
+      super.begin(new CryptoWorkersBeginDelegate(delegate));
+    } catch (InvalidSessionTransitionException e) {
+      stopCryptoWorkers(true);
+      throw e;
+    }
+  }
+
+  /**
+   * A fetched record, and the delegate to pass it to once decrypted.
+   */
+  private static class FetchedRecord {
+    public final Record record;
+    public final DecryptingTransformingFetchDelegate fetchDelegate;
+
+    public FetchedRecord(Record record, DecryptingTransformingFetchDelegate fetchDelegate) {
+      this.record = record;
+      this.fetchDelegate = fetchDelegate;
+    }
+  }
+
+  /**
+   * Decrypt records in parallel, passing them to the next delegate in order.
+   * <p>
+   * Shared by a fetch delegate and all of its deferred delegates, so that
+   * records are delivered in fetch order however the inner session chooses
+   * to defer its callbacks.
+   */
+  private class DecryptQueue extends OrderedWorkQueue<FetchedRecord, Record> {
+    public DecryptQueue() {
+      super(cryptoExecutor, maxPendingRecords);
+    }
+
+    @Override
+    protected Record work(FetchedRecord fetched) throws Exception {
+      return fetched.fetchDelegate.transform(fetched.record);
+    }
+
+    @Override
+    protected void onWorkSucceeded(FetchedRecord fetched, Record transformed) {
+      fetched.fetchDelegate.next.onFetchedRecord(transformed);
+    }
+
+    @Override
+    protected void onWorkFailed(FetchedRecord fetched, Exception e) {
+      fetched.fetchDelegate.next.onFetchFailed(e, fetched.record);
+    }
+  }
+
+  /**
+   * Encrypt records in parallel, storing them in the inner session in order.
+   */
+  private class EncryptQueue extends OrderedWorkQueue<Record, CryptoRecord> {
+    public EncryptQueue() {
+      super(cryptoExecutor, maxPendingRecords);
+    }
+
+    @Override
+    protected CryptoRecord work(Record record) throws Exception {
+      return encrypt(record);
+    }
+
+    @Override
+    protected void onWorkSucceeded(Record record, CryptoRecord encrypted) {
+      try {
+        inner.store(encrypted);
+      } catch (NoStoreDelegateException e) {
+        delegate.onRecordStoreFailed(e, record.guid);
+      }
+    }
+
+    @Override
+    protected void onWorkFailed(Record record, Exception e) {
+      delegate.onRecordStoreFailed(e, record.guid);
+    }
+  }
+
+  public class DecryptingTransformingFetchDelegate implements RepositorySessionCheckpointingFetchDelegate, RecordTransformer {
     private RepositorySessionFetchRecordsDelegate next;
     private KeyBundle keyBundle;
     private RecordFactory recordFactory;
+    private final DecryptQueue decryptQueue;
 
     DecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory) {
+      this(next, bundle, recordFactory, (cryptoExecutor == null) ? null : new DecryptQueue());
+    }
+
+    private DecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory, DecryptQueue decryptQueue) {
       this.next = next;
       this.keyBundle = bundle;
       this.recordFactory = recordFactory;
+      this.decryptQueue = decryptQueue;
     }
 
     @Override
     public void onFetchFailed(Exception ex, Record record) {
+      if (decryptQueue != null) {
+        // Deliver the records fetched before the failure first.
+        decryptQueue.drain();
+      }
       next.onFetchFailed(ex, record);
     }
 
+    /**
+     * Decrypt and transform a fetched record.
+     * <p>
+     * Does not touch any delegate state, so this can safely be called on any
+     * thread.
+     */
+    @Override
+    public Record transform(Record record) throws Exception {
+      CryptoRecord r = (CryptoRecord) record;
+      r.keyBundle = keyBundle;
+      return this.recordFactory.createRecord(r, r.decryptCleartext());
+    }
+
     @Override
     public void onFetchedRecord(Record record) {
-      CryptoRecord r;
-      try {
-        r = (CryptoRecord) record;
-      } catch (ClassCastException e) {
-        next.onFetchFailed(e, record);
+      if (decryptQueue != null) {
+        decryptQueue.submit(new FetchedRecord(record, this));
         return;
       }
-      r.keyBundle = keyBundle;
-      try {
-        r.decrypt();
-      } catch (Exception e) {
-        next.onFetchFailed(e, r);
-        return;
+
+      if (next instanceof RepositorySessionTransformingFetchDelegate) {
+        RepositorySessionTransformingFetchDelegate transformingNext = (RepositorySessionTransformingFetchDelegate) next;
+        if (transformingNext.acceptsUntransformedRecords()) {
+          // Let the next delegate decrypt off this thread.
+          transformingNext.onFetchedRecord(record, this);
+          return;
+        }
       }
+
       Record transformed;
       try {
-        transformed = this.recordFactory.createRecord(r);
+        transformed = transform(record);
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        next.onFetchFailed(e, record);
         return;
       }
       next.onFetchedRecord(transformed);
@@ -111,14 +300,29 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
 
     @Override
     public void onFetchCompleted(final long fetchEnd) {
+      if (decryptQueue != null) {
+        decryptQueue.drain();
+      }
       next.onFetchCompleted(fetchEnd);
     }
 
+    @Override
+    public void onFetchCheckpoint(Runnable checkpoint) {
+      if (!(next instanceof RepositorySessionCheckpointingFetchDelegate)) {
+        return;
+      }
+      if (decryptQueue != null) {
+        // Deliver the records fetched before the checkpoint first.
+        decryptQueue.drain();
+      }
+      ((RepositorySessionCheckpointingFetchDelegate) next).onFetchCheckpoint(checkpoint);
+    }
+
     @Override
     public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
       // Synchronously perform *our* work, passing through appropriately.
       RepositorySessionFetchRecordsDelegate deferredNext = next.deferredFetchDelegate(executor);
-      return new DecryptingTransformingFetchDelegate(deferredNext, keyBundle, recordFactory);
+      return new DecryptingTransformingFetchDelegate(deferredNext, keyBundle, recordFactory, decryptQueue);
     }
   }
 
@@ -153,15 +357,32 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     this.delegate = delegate;             // So we can handle errors without involving inner.
   }
 
+  /**
+   * Encrypt a record. Its cleartext is written straight to bytes, rather
+   * than by way of {@link Record#getEnvelope()} and a JSON string.
+   */
+  protected CryptoRecord encrypt(Record record) throws UnsupportedEncodingException, CryptoException {
+    JSONWriter cleartext = JSONWriter.forThread();
+    record.writePayload(cleartext);
+    CryptoRecord rec = new CryptoRecord(record);
+    rec.keyBundle = this.keyBundle;
+    rec.encrypt(cleartext.toByteArray());
+    return rec;
+  }
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
       throw new NoStoreDelegateException();
     }
-    CryptoRecord rec = record.getEnvelope();
-    rec.keyBundle = this.keyBundle;
+    final OrderedWorkQueue<Record, CryptoRecord> encryptQueue = this.encryptQueue;
+    if (encryptQueue != null) {
+      encryptQueue.submit(record);
+      return;
+    }
+    CryptoRecord rec;
     try {
-      rec.encrypt();
+      rec = encrypt(record);
     } catch (UnsupportedEncodingException e) {
       delegate.onRecordStoreFailed(e, record.guid);
       return;
@@ -172,4 +393,57 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     // Allow the inner session to do delegate handling.
     inner.store(rec);
   }
+
+  /**
+   * Hand any records still being encrypted to the inner session.
+   */
+  protected void flushEncryptQueue() {
+    final OrderedWorkQueue<Record, CryptoRecord> encryptQueue = this.encryptQueue;
+    if (encryptQueue != null) {
+      encryptQueue.drain();
+    }
+  }
+
+  @Override
+  public void storeDone() {
+    flushEncryptQueue();
+    super.storeDone();
+  }
+
+  @Override
+  public void storeDone(long storeEnd) {
+    flushEncryptQueue();
+    super.storeDone(storeEnd);
+  }
+
+  @Override
+  public void runAfterQueuedStores(Runnable command) {
+    flushEncryptQueue();
+    super.runAfterQueuedStores(command);
+  }
+
+  @Override
+  public void runAfterCommittedStores(Runnable command) {
+    flushEncryptQueue();
+    super.runAfterCommittedStores(command);
+  }
+
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    // Outstanding work, if any, is allowed to complete.
+    stopCryptoWorkers(false);
+    super.finish(delegate);
+  }
+
+  @Override
+  public void abort() {
+    stopCryptoWorkers(true);
+    super.abort();
+  }
+
+  @Override
+  public void abort(RepositorySessionFinishDelegate delegate) {
+    stopCryptoWorkers(true);
+    super.abort(delegate);
+  }
 }
@@ -30,6 +30,17 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.wipe(delegate);
   }
 
+  @Override
+  public void unbundle(RepositorySessionBundle bundle) {
+    super.unbundle(bundle);
+    inner.unbundle(bundle);
+  }
+
+  @Override
+  public boolean dataAvailable() {
+    return inner.dataAvailable();
+  }
+
   public class MiddlewareRepositorySessionBeginDelegate implements RepositorySessionBeginDelegate {
 
     private MiddlewareRepositorySession outerSession;
@@ -157,6 +168,16 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.storeDone();
   }
 
+  @Override
+  public void runAfterQueuedStores(Runnable command) {
+    inner.runAfterQueuedStores(command);
+  }
+
+  @Override
+  public void runAfterCommittedStores(Runnable command) {
+    inner.runAfterCommittedStores(command);
+  }
+
   @Override
   public void storeDone(long storeEnd) {
     inner.storeDone(storeEnd);
@@ -0,0 +1,126 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.middleware;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Run independent pieces of work on an executor, delivering their results
+ * in submission order.
+ * <p>
+ * Results are delivered on the thread that calls {@link #submit(Object)} or
+ * {@link #drain()}, never on a worker thread, so callers see the same
+ * threading behavior as if the work had been done inline.
+ * <p>
+ * At most <code>maxPending</code> inputs are outstanding at once;
+ * <code>submit</code> waits for the oldest to complete when that limit is
+ * reached.
+ *
+ * @param <I> input type.
+ * @param <O> output type.
+ */
+public abstract class OrderedWorkQueue<I, O> {
+  private final ExecutorService executor;
+  private final int maxPending;
+
+  private final LinkedList<Pending> pending = new LinkedList<Pending>();
+
+  private class Pending {
+    public final I input;
+    public final Future<O> future;
+
+    public Pending(I input, Future<O> future) {
+      this.input = input;
+      this.future = future;
+    }
+  }
+
+  public OrderedWorkQueue(ExecutorService executor, int maxPending) {
+    if (maxPending <= 0) {
+      throw new IllegalArgumentException("maxPending must be positive.");
+    }
+    this.executor = executor;
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Do the work. Called on a worker thread.
+   */
+  protected abstract O work(I input) throws Exception;
+
+  /**
+   * Called in submission order when work succeeds.
+   */
+  protected abstract void onWorkSucceeded(I input, O output);
+
+  /**
+   * Called in submission order when work throws.
+   */
+  protected abstract void onWorkFailed(I input, Exception e);
+
+  /**
+   * Queue <code>input</code>, then deliver any results that are ready.
+   */
+  public synchronized void submit(final I input) {
+    while (pending.size() >= maxPending) {
+      deliverHead();
+    }
+
+    Future<O> future;
+    try {
+      future = executor.submit(new Callable<O>() {
+        @Override
+        public O call() throws Exception {
+          return work(input);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Our executor has been shut down. Keep ordering by failing in turn.
+      drain();
+      onWorkFailed(input, e);
+      return;
+    }
+    pending.add(new Pending(input, future));
+
+    while (!pending.isEmpty() && pending.getFirst().future.isDone()) {
+      deliverHead();
+    }
+  }
+
+  /**
+   * Wait for all outstanding work, delivering results in order.
+   */
+  public synchronized void drain() {
+    while (!pending.isEmpty()) {
+      deliverHead();
+    }
+  }
+
+  private void deliverHead() {
+    final Pending head = pending.removeFirst();
+    O output;
+    try {
+      output = head.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      head.future.cancel(true);
+      onWorkFailed(head.input, e);
+      return;
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      onWorkFailed(head.input, (cause instanceof Exception) ? (Exception) cause : e);
+      return;
+    }
+    onWorkSucceeded(head.input, output);
+  }
+}
@@ -13,7 +13,11 @@ import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 
@@ -24,6 +28,7 @@ import org.mozilla.gecko.sync.ExtendedJSONObject;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpVersion;
 import ch.boye.httpclientandroidlib.client.AuthCache;
@@ -35,15 +40,20 @@ import ch.boye.httpclientandroidlib.client.methods.HttpPut;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
 import ch.boye.httpclientandroidlib.client.protocol.ClientContext;
+import ch.boye.httpclientandroidlib.client.utils.URIUtils;
 import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
+import ch.boye.httpclientandroidlib.conn.ManagedClientConnection;
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
 import ch.boye.httpclientandroidlib.conn.scheme.PlainSocketFactory;
 import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
 import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
 import ch.boye.httpclientandroidlib.impl.client.BasicAuthCache;
+import ch.boye.httpclientandroidlib.impl.client.BasicCookieStore;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.impl.conn.tsccm.ThreadSafeClientConnManager;
+import ch.boye.httpclientandroidlib.params.BasicHttpParams;
 import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
 import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
@@ -63,6 +73,9 @@ public class BaseResource implements Resource {
   private static final int MAX_TOTAL_CONNECTIONS     = 20;
   private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
 
+  // How long a prewarmed connection may sit idle in the pool.
+  private static final long PREWARMED_CONNECTION_KEEPALIVE_MSEC = 60 * 1000;
+
   private boolean retryOnFailedRequest = true;
 
   public static boolean rewriteLocalhost = true;
@@ -94,16 +107,23 @@ public class BaseResource implements Resource {
     if (uri == null) {
       throw new IllegalArgumentException("uri must not be null");
     }
-    if (rewrite && "localhost".equals(uri.getHost())) {
-      // Rewrite localhost URIs to refer to the special Android emulator loopback passthrough interface.
-      Logger.debug(LOG_TAG, "Rewriting " + uri + " to point to " + ANDROID_LOOPBACK_IP + ".");
-      try {
-        this.uri = new URI(uri.getScheme(), uri.getUserInfo(), ANDROID_LOOPBACK_IP, uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
-      } catch (URISyntaxException e) {
-        Logger.error(LOG_TAG, "Got error rewriting URI for Android emulator.", e);
-      }
-    } else {
-      this.uri = uri;
+    this.uri = rewrite ? rewriteLocalhost(uri) : uri;
+  }
+
+  /**
+   * Rewrite localhost URIs to refer to the special Android emulator loopback
+   * passthrough interface.
+   */
+  protected static URI rewriteLocalhost(URI uri) {
+    if (!"localhost".equals(uri.getHost())) {
+      return uri;
+    }
+    Logger.debug(LOG_TAG, "Rewriting " + uri + " to point to " + ANDROID_LOOPBACK_IP + ".");
+    try {
+      return new URI(uri.getScheme(), uri.getUserInfo(), ANDROID_LOOPBACK_IP, uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
+    } catch (URISyntaxException e) {
+      Logger.error(LOG_TAG, "Got error rewriting URI for Android emulator.", e);
+      return null;
     }
   }
 
@@ -142,9 +162,11 @@ public class BaseResource implements Resource {
   protected void prepareClient() throws KeyManagementException, NoSuchAlgorithmException, GeneralSecurityException {
     context = new BasicHttpContext();
 
-    // We could reuse these client instances, except that we mess around
-    // with their parameters… so we'd need a pool of some kind.
-    client = new DefaultHttpClient(getConnectionManager());
+    // Clients are shared between requests with the same timeouts, so
+    // anything specific to this request goes in the request's parameters,
+    // which take precedence over the client's.
+    client = getClient(delegate.connectionTimeout(), delegate.socketTimeout());
+    HttpProtocolParams.setContentCharset(request.getParams(), charset);
 
     // TODO: Eventually we should use Apache HttpAsyncClient. It's not out of alpha yet.
     // Until then, we synchronously make the request, then invoke our delegate's callback.
@@ -159,22 +181,22 @@ public class BaseResource implements Resource {
 
     addAuthCacheToContext(request, context);
 
-    HttpParams params = client.getParams();
-    HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
-    HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
-    HttpConnectionParams.setStaleCheckingEnabled(params, false);
-    HttpProtocolParams.setContentCharset(params, charset);
-    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    // The client's own cookie store is shared by every request with these
+    // timeouts, whatever the service; keep each request's cookies to itself.
+    context.setAttribute(ClientContext.COOKIE_STORE, new BasicCookieStore());
     delegate.addHeaders(request, client);
   }
 
   private static Object connManagerMonitor = new Object();
   private static ClientConnectionManager connManager;
 
+  // Clients on connManager, keyed by connection and socket timeout.
+  private static final Map<Long, DefaultHttpClient> clients = new HashMap<Long, DefaultHttpClient>();
+
   // Call within a synchronized block on connManagerMonitor.
   private static ClientConnectionManager enableTLSConnectionManager() throws KeyManagementException, NoSuchAlgorithmException  {
-    SSLContext sslContext = SSLContext.getInstance("TLS");
-    sslContext.init(null, null, new SecureRandom());
+    // Share one context, and so its TLS session cache, across connection managers.
+    SSLContext sslContext = TLSSocketFactory.getSharedContext();
     SSLSocketFactory sf = new TLSSocketFactory(sslContext);
     SchemeRegistry schemeRegistry = new SchemeRegistry();
     schemeRegistry.register(new Scheme("https", 443, sf));
@@ -198,6 +220,86 @@ public class BaseResource implements Resource {
     }
   }
 
+  /**
+   * Return the shared client for requests with the given timeouts, creating
+   * it if necessary.
+   * <p>
+   * The returned client is used concurrently by many requests: callers must
+   * not modify it, and should set per-request parameters on the request and
+   * per-request state, such as cookies, on the request's context.
+   */
+  protected static DefaultHttpClient getClient(int connectionTimeout, int socketTimeout) throws KeyManagementException, NoSuchAlgorithmException {
+    final Long key = Long.valueOf(((long) connectionTimeout << 32) | (socketTimeout & 0xFFFFFFFFL));
+    synchronized (connManagerMonitor) {
+      DefaultHttpClient client = clients.get(key);
+      if (client != null) {
+        return client;
+      }
+
+      client = new DefaultHttpClient(getConnectionManager());
+      HttpParams params = client.getParams();
+      HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+      HttpConnectionParams.setSoTimeout(params, socketTimeout);
+      HttpConnectionParams.setStaleCheckingEnabled(params, false);
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+      clients.put(key, client);
+      return client;
+    }
+  }
+
+  /**
+   * Open up to <code>connections</code> connections to the host of
+   * <code>uri</code> and return them to the pool, so that the first requests
+   * to that host don't wait for TCP and TLS handshakes.
+   * <p>
+   * Best effort: failures are logged and otherwise ignored. This blocks while
+   * connecting, so call it from a background thread.
+   */
+  public static void prewarm(URI uri, int connections, int connectionTimeout, int socketTimeout) {
+    if (rewriteLocalhost) {
+      uri = rewriteLocalhost(uri);
+    }
+    if (uri == null || uri.getHost() == null) {
+      return;
+    }
+
+    final List<ManagedClientConnection> opened = new ArrayList<ManagedClientConnection>(connections);
+    ClientConnectionManager cm = null;
+    try {
+      cm = getConnectionManager();
+      final HttpHost target = URIUtils.extractHost(uri);
+      final boolean secure = cm.getSchemeRegistry().getScheme(target).isLayered();
+      final HttpRoute route = new HttpRoute(target, null, secure);
+
+      final HttpParams params = new BasicHttpParams();
+      HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+      HttpConnectionParams.setSoTimeout(params, socketTimeout);
+      HttpConnectionParams.setStaleCheckingEnabled(params, false);
+
+      // Hold each connection until all are open, so that the pool doesn't
+      // just hand us back the one we opened last.
+      for (int i = 0; i < connections; i++) {
+        ManagedClientConnection conn = cm.requestConnection(route, null).getConnection(connectionTimeout, TimeUnit.MILLISECONDS);
+        opened.add(conn);
+        if (!conn.isOpen()) {
+          conn.open(route, new BasicHttpContext(), params);
+        }
+        conn.markReusable();
+      }
+      Logger.debug(LOG_TAG, "Prewarmed " + opened.size() + " connections to " + target.toHostString() + ".");
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Got exception prewarming connections; ignoring.", e);
+    } finally {
+      for (ManagedClientConnection conn : opened) {
+        try {
+          cm.releaseConnection(conn, PREWARMED_CONNECTION_KEEPALIVE_MSEC, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+          // Doesn't matter.
+        }
+      }
+    }
+  }
+
   /**
    * Do some cleanup, so we don't need the stale connection check.
    */
@@ -218,6 +320,7 @@ public class BaseResource implements Resource {
     synchronized (connManagerMonitor) {
       connectionManager = connManager;
       connManager = null;
+      clients.clear();
     }
     if (connectionManager == null) {
       return;
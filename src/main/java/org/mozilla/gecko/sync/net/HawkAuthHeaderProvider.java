@@ -49,6 +49,12 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
   protected final byte[] key;
   protected final boolean includePayloadHash;
 
+  // Initialized with our key on first use on each thread.
+  protected final ThreadLocal<Mac> hashers = new ThreadLocal<Mac>();
+
+  // Reset before each use.
+  protected static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+
   /**
    * Create a Hawk Authorization header provider.
    * <p>
@@ -76,6 +82,15 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
     this.includePayloadHash = includePayloadHash;
   }
 
+  /**
+   * @return true if this provider signs request payloads; if so, senders can
+   *         save it hashing their bodies by supplying a
+   *         {@link PayloadHashedEntity}.
+   */
+  public boolean includesPayloadHash() {
+    return includePayloadHash;
+  }
+
   @Override
   public Header getAuthHeader(HttpRequestBase request, BasicHttpContext context, DefaultHttpClient client) throws GeneralSecurityException {
     long timestamp = System.currentTimeMillis() / 1000;
@@ -127,7 +142,7 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
     String app = null;
     String dlg = null;
     String requestString = getRequestString(request, "header", timestamp, nonce, payloadHash, extra, app, dlg);
-    String macString = getSignature(requestString.getBytes("UTF-8"), this.key);
+    String macString = Base64.encodeBase64String(getHasher().doFinal(requestString.getBytes("UTF-8")));
 
     StringBuilder sb = new StringBuilder();
     sb.append("Hawk id=\"");
@@ -208,11 +223,46 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
     return contentType.substring(0, index).trim();
   }
 
+  /**
+   * Compute a Hawk payload hash incrementally, as a body is assembled, rather
+   * than by reading the finished body back.
+   * <p>
+   * Not thread safe. A hasher can be reused: {@link #finish()} starts the
+   * next payload.
+   */
+  public static class PayloadHasher {
+    protected final MessageDigest digest;
+    protected final byte[] prefix;
+
+    public PayloadHasher(String baseContentType) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+      this.digest = MessageDigest.getInstance("SHA-256");
+      this.prefix = ("hawk." + HAWK_HEADER_VERSION + ".payload\n" + baseContentType + "\n").getBytes("UTF-8");
+      this.digest.update(prefix);
+    }
+
+    public void update(byte[] bytes) {
+      digest.update(bytes);
+    }
+
+    /**
+     * @return the hash of the bytes passed to <code>update</code> since the
+     *         hasher was created or last finished.
+     */
+    public byte[] finish() {
+      digest.update((byte) '\n'); // Trailing newline is specified by Hawk.
+      final byte[] hash = digest.digest();
+      digest.update(prefix);
+      return hash;
+    }
+  }
+
   /**
    * Generate the SHA-256 hash of a normalized Hawk payload generated from an
    * HTTP entity.
    * <p>
-   * <b>Warning:</b> the entity <b>must</b> be repeatable.  If it is not, this
+   * A {@link PayloadHashedEntity} that knows its hash is not read.
+   * <p>
+   * <b>Warning:</b> otherwise, the entity <b>must</b> be repeatable.  If it is not, this
    * code throws an <code>IllegalArgumentException</code>.
    * <p>
    * This is under-specified; the code here was reverse engineered from the code
@@ -223,10 +273,21 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
    * @throws IllegalArgumentException if entity is not repeatable.
    */
   protected static byte[] getPayloadHash(HttpEntity entity) throws UnsupportedEncodingException, IOException, NoSuchAlgorithmException {
+    if (entity instanceof PayloadHashedEntity) {
+      final byte[] hash = ((PayloadHashedEntity) entity).getPayloadHash();
+      if (hash != null) {
+        return hash;
+      }
+    }
     if (!entity.isRepeatable()) {
       throw new IllegalArgumentException("entity must be repeatable");
     }
-    final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    MessageDigest digest = digests.get();
+    if (digest == null) {
+      digest = MessageDigest.getInstance("SHA-256");
+      digests.set(digest);
+    }
+    digest.reset();
     digest.update(("hawk." + HAWK_HEADER_VERSION + ".payload\n").getBytes("UTF-8"));
     digest.update(getBaseContentType(entity.getContentType()).getBytes("UTF-8"));
     digest.update("\n".getBytes("UTF-8"));
@@ -318,6 +379,19 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
     return sb.toString();
   }
 
+  /**
+   * @return this thread's HMAC-SHA256 instance, initialized with our key.
+   */
+  protected Mac getHasher() throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac hasher = hashers.get();
+    if (hasher == null) {
+      hasher = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+      hasher.init(new SecretKeySpec(this.key, HMAC_SHA256_ALGORITHM));
+      hashers.set(hasher);
+    }
+    return hasher;
+  }
+
   protected static byte[] hmacSha256(byte[] message, byte[] key)
       throws NoSuchAlgorithmException, InvalidKeyException {
 
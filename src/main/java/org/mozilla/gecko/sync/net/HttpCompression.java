@@ -0,0 +1,199 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.entity.DeflateDecompressingEntity;
+import ch.boye.httpclientandroidlib.client.entity.GzipDecompressingEntity;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+
+/**
+ * Content-Encoding support for Sync storage requests.
+ * <p>
+ * Responses are decompressed as they are read, so streaming consumers such as
+ * {@link SyncStorageCollectionRequest} never see the whole body at once.
+ * Request bodies are compressed up front, so that they can still be sent with
+ * a Content-Length.
+ * <p>
+ * Counts of bytes before and after compression are kept for the life of the
+ * process. Only compressed bodies are counted.
+ */
+public class HttpCompression {
+  private static final String LOG_TAG = "HttpCompression";
+
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+  public static final String ENCODING_GZIP = "gzip";
+
+  protected static final AtomicLong responseBytesReceived = new AtomicLong();
+  protected static final AtomicLong responseBytesDecoded = new AtomicLong();
+  protected static final AtomicLong requestBytesEncoded = new AtomicLong();
+  protected static final AtomicLong requestBytesSent = new AtomicLong();
+
+  /**
+   * Replace the entity of <code>response</code> with one that decodes its
+   * Content-Encoding, if it has one we understand.
+   * <p>
+   * Calling this more than once on the same response is harmless.
+   */
+  public static void decompressResponse(HttpResponse response) {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return;
+    }
+    final Header encoding = entity.getContentEncoding();
+    if (encoding == null) {
+      return;
+    }
+
+    final String value = encoding.getValue().trim();
+    final HttpEntity received = new CountingEntity(entity, responseBytesReceived);
+    final HttpEntity decoded;
+    if ("gzip".equalsIgnoreCase(value) || "x-gzip".equalsIgnoreCase(value)) {
+      decoded = new GzipDecompressingEntity(received);
+    } else if ("deflate".equalsIgnoreCase(value)) {
+      decoded = new DeflateDecompressingEntity(received);
+    } else {
+      Logger.warn(LOG_TAG, "Unknown Content-Encoding " + value + "; leaving response alone.");
+      return;
+    }
+    response.setEntity(new CountingEntity(decoded, responseBytesDecoded));
+    response.removeHeaders("Content-Encoding");
+    response.removeHeaders("Content-Length");
+  }
+
+  /**
+   * Gzip <code>entity</code> into memory.
+   *
+   * @return an entity with the same content type and a gzip Content-Encoding.
+   * @throws IOException
+   */
+  public static HttpEntity gzipEntity(HttpEntity entity) throws IOException {
+    final long length = entity.getContentLength();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? (int) (length / 2) : 4096);
+    final GZIPOutputStream gzip = new GZIPOutputStream(out);
+    entity.writeTo(gzip);
+    gzip.close();
+
+    final byte[] bytes = out.toByteArray();
+    if (length > 0) {
+      requestBytesEncoded.addAndGet(length);
+      requestBytesSent.addAndGet(bytes.length);
+    }
+
+    final ByteArrayEntity compressed = new ByteArrayEntity(bytes);
+    compressed.setContentType(entity.getContentType());
+    compressed.setContentEncoding(ENCODING_GZIP);
+    return compressed;
+  }
+
+  public static long getResponseBytesReceived() {
+    return responseBytesReceived.get();
+  }
+
+  public static long getResponseBytesDecoded() {
+    return responseBytesDecoded.get();
+  }
+
+  public static long getRequestBytesEncoded() {
+    return requestBytesEncoded.get();
+  }
+
+  public static long getRequestBytesSent() {
+    return requestBytesSent.get();
+  }
+
+  /**
+   * @return the number of bytes compression has kept off the network.
+   */
+  public static long getBytesSaved() {
+    return (responseBytesDecoded.get() - responseBytesReceived.get()) +
+           (requestBytesEncoded.get() - requestBytesSent.get());
+  }
+
+  public static void resetCounters() {
+    responseBytesReceived.set(0);
+    responseBytesDecoded.set(0);
+    requestBytesEncoded.set(0);
+    requestBytesSent.set(0);
+  }
+
+  public static String countersToString() {
+    return "received " + responseBytesReceived.get() + " compressed bytes for " +
+           responseBytesDecoded.get() + "; sent " + requestBytesSent.get() +
+           " compressed bytes for " + requestBytesEncoded.get() +
+           "; saved " + getBytesSaved() + " bytes.";
+  }
+
+  /**
+   * Count the bytes read from the wrapped entity.
+   */
+  protected static class CountingEntity extends HttpEntityWrapper {
+    protected final AtomicLong counter;
+    protected InputStream content;
+
+    public CountingEntity(HttpEntity wrapped, AtomicLong counter) {
+      super(wrapped);
+      this.counter = counter;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      // Like the decompressing entities, hand out the same stream each time,
+      // so that consuming the entity closes the stream we read from.
+      if (content == null || !wrappedEntity.isStreaming()) {
+        content = new CountingInputStream(wrappedEntity.getContent(), counter);
+      }
+      return content;
+    }
+  }
+
+  protected static class CountingInputStream extends FilterInputStream {
+    protected final AtomicLong counter;
+
+    public CountingInputStream(InputStream in, AtomicLong counter) {
+      super(in);
+      this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) {
+        counter.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int count = super.read(buffer, offset, length);
+      if (count > 0) {
+        counter.addAndGet(count);
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      if (skipped > 0) {
+        counter.addAndGet(skipped);
+      }
+      return skipped;
+    }
+  }
+}
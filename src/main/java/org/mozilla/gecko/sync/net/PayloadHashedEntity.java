@@ -0,0 +1,21 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+
+/**
+ * An entity that knows its own Hawk payload hash, so that signing the request
+ * doesn't need another pass over the body.
+ *
+ * @see HawkAuthHeaderProvider.PayloadHasher
+ */
+public interface PayloadHashedEntity extends HttpEntity {
+  /**
+   * @return the Hawk payload hash of this entity's content type and content,
+   *         or <code>null</code> if it wasn't computed.
+   */
+  public byte[] getPayloadHash();
+}
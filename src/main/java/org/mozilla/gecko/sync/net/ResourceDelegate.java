@@ -24,6 +24,13 @@ import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 public interface ResourceDelegate {
   // Request augmentation.
   AuthHeaderProvider getAuthHeaderProvider();
+
+  /**
+   * Override this to add headers or parameters to a request.
+   *
+   * <code>client</code> is shared with other requests, and must not be
+   * modified; set per-request parameters with <code>request.getParams()</code>.
+   */
   void addHeaders(HttpRequestBase request, DefaultHttpClient client);
 
   // Response handling.
@@ -11,6 +11,8 @@ import java.io.InputStreamReader;
 import java.net.URI;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
@@ -19,9 +21,12 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 
 /**
- * A request class that handles line-by-line responses. Eventually this will
- * handle real stream processing; for now, just parse the returned body
- * line-by-line.
+ * A request class that handles line-by-line responses.
+ * <p>
+ * If the delegate is a <code>WBOCollectionRequestDelegate</code>, records are
+ * decoded straight from the response stream by a {@link WBOStreamDecoder};
+ * otherwise, each line of the returned body is passed to the delegate as a
+ * string.
  *
  * @author rnewman
  *
@@ -59,7 +64,7 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       SyncStorageResourceDelegate {
 
     private static final String CONTENT_TYPE_INCREMENTAL = "application/newlines";
-    private static final int FETCH_BUFFER_SIZE = 16 * 1024;   // 16K chars.
+    private static final int FETCH_BUFFER_SIZE = 16 * 1024;   // 16K chars or bytes.
 
     SyncCollectionResourceDelegate(SyncStorageCollectionRequest request) {
       super(request);
@@ -78,6 +83,9 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
         return;
       }
 
+      // Decompress as we parse, rather than buffering the body.
+      HttpCompression.decompressResponse(response);
+
       if (response.getStatusLine().getStatusCode() != 200) {
         super.handleHttpResponse(response);
         return;
@@ -97,8 +105,30 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       // will allow it to seamlessly correct timestamps on the records
       // it processes. Bug 721887.
 
-      // Line-by-line processing, then invoke success.
       SyncStorageCollectionRequestDelegate delegate = (SyncStorageCollectionRequestDelegate) this.request.delegate;
+      if (delegate instanceof WBOCollectionRequestDelegate) {
+        // Decode records straight from the response bytes.
+        if (!processRecords(entity, (WBOCollectionRequestDelegate) delegate)) {
+          return;
+        }
+      } else {
+        // Line-by-line processing.
+        if (!processLines(entity, delegate)) {
+          return;
+        }
+      }
+
+      // We're done processing the entity. Don't let fetching the body succeed!
+      BaseResource.consumeEntity(entity);
+      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
+
+    /**
+     * Pass each line of the response body to the delegate.
+     *
+     * @return true if the entire body was processed without error or abort.
+     */
+    protected boolean processLines(HttpEntity entity, SyncStorageCollectionRequestDelegate delegate) {
       InputStream content = null;
       BufferedReader br = null;
       try {
@@ -114,19 +144,17 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
           } catch (Exception ex) {
             delegate.handleRequestError(new HandleProgressException(ex));
             BaseResource.consumeEntity(entity);
-            return;
+            return false;
           }
         }
-        if (aborting) {
-          // So we don't hit the success case below.
-          return;
-        }
+        // So we don't hit the success case if we aborted.
+        return !aborting;
       } catch (IOException ex) {
         if (!aborting) {
           delegate.handleRequestError(ex);
         }
         BaseResource.consumeEntity(entity);
-        return;
+        return false;
       } finally {
         // Attempt to close the stream and reader.
         if (br != null) {
@@ -137,9 +165,60 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
           }
         }
       }
-      // We're done processing the entity. Don't let fetching the body succeed!
-      BaseResource.consumeEntity(entity);
-      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
+
+    /**
+     * Decode each WBO in the response body and pass it to the delegate,
+     * without first materializing each line as a <code>String</code>.
+     * <p>
+     * As with line-by-line processing, a malformed record is reported via
+     * <code>handleRequestError</code> and processing continues.
+     *
+     * @return true if the entire body was processed without error or abort.
+     */
+    protected boolean processRecords(HttpEntity entity, WBOCollectionRequestDelegate delegate) {
+      InputStream content = null;
+      try {
+        content = entity.getContent();
+        WBOStreamDecoder decoder = new WBOStreamDecoder(content, FETCH_BUFFER_SIZE);
+
+        // This relies on connection timeouts at the HTTP layer.
+        while (!aborting) {
+          CryptoRecord record;
+          try {
+            record = decoder.nextRecord();
+          } catch (RecordParseException e) {
+            delegate.handleRequestError(e);
+            continue;
+          }
+          if (record == null) {
+            break;
+          }
+          try {
+            delegate.handleRequestProgress(record);
+          } catch (Exception ex) {
+            delegate.handleRequestError(new HandleProgressException(ex));
+            BaseResource.consumeEntity(entity);
+            return false;
+          }
+        }
+        // So we don't hit the success case if we aborted.
+        return !aborting;
+      } catch (IOException ex) {
+        if (!aborting) {
+          delegate.handleRequestError(ex);
+        }
+        BaseResource.consumeEntity(entity);
+        return false;
+      } finally {
+        if (content != null) {
+          try {
+            content.close();
+          } catch (IOException e) {
+            // We don't care if this fails.
+          }
+        }
+      }
     }
   }
 }
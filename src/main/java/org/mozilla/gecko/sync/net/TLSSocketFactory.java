@@ -5,16 +5,36 @@
 package org.mozilla.gecko.sync.net;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 
 import org.mozilla.gecko.background.common.log.Logger;
 
+import ch.boye.httpclientandroidlib.conn.ConnectTimeoutException;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
 import ch.boye.httpclientandroidlib.params.HttpParams;
 
+/**
+ * Creates TLS sockets for <code>BaseResource</code>.
+ * <p>
+ * All sockets come from one shared <code>SSLContext</code>, which outlives
+ * connection managers. Its client session cache lets connections made after
+ * idle connections are closed -- including in later syncs -- resume a TLS
+ * session instead of doing a full handshake.
+ * <p>
+ * Handshakes are counted and timed, split by whether they resumed a session.
+ * Times include the TCP connect.
+ */
 public class TLSSocketFactory extends SSLSocketFactory {
   private static final String LOG_TAG = "TLSSocketFactory";
   private static final String[] DEFAULT_CIPHER_SUITES = new String[] {
@@ -28,10 +48,66 @@ public class TLSSocketFactory extends SSLSocketFactory {
   // Guarded by `this`.
   private static String[] cipherSuites = DEFAULT_CIPHER_SUITES;
 
+  public static final int DEFAULT_SESSION_CACHE_SIZE = 16;
+  public static final int DEFAULT_SESSION_LIFETIME_SECONDS = 24 * 60 * 60;
+
+  // Guarded by `TLSSocketFactory.class`.
+  private static SSLContext sharedContext;
+  private static int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+  private static int sessionLifetimeSeconds = DEFAULT_SESSION_LIFETIME_SECONDS;
+
+  protected static final AtomicLong fullHandshakes = new AtomicLong();
+  protected static final AtomicLong fullHandshakeMillis = new AtomicLong();
+  protected static final AtomicLong resumedHandshakes = new AtomicLong();
+  protected static final AtomicLong resumedHandshakeMillis = new AtomicLong();
+
   public TLSSocketFactory(SSLContext sslContext) {
     super(sslContext);
   }
 
+  /**
+   * Return the <code>SSLContext</code> shared by all connection managers,
+   * creating it if necessary.
+   */
+  public static synchronized SSLContext getSharedContext() throws NoSuchAlgorithmException, KeyManagementException {
+    if (sharedContext == null) {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, null, new SecureRandom());
+      applySessionCacheLimits(context);
+      sharedContext = context;
+    }
+    return sharedContext;
+  }
+
+  /**
+   * Set how many TLS sessions to remember, and for how long. Applies to the
+   * shared context immediately.
+   *
+   * @param size maximum number of sessions; 0 for no limit.
+   * @param lifetimeSeconds how long a session may be resumed; 0 for no limit.
+   */
+  public static synchronized void setSessionCacheLimits(int size, int lifetimeSeconds) {
+    if (size < 0 || lifetimeSeconds < 0) {
+      throw new IllegalArgumentException("Session cache limits must not be negative.");
+    }
+    sessionCacheSize = size;
+    sessionLifetimeSeconds = lifetimeSeconds;
+    if (sharedContext != null) {
+      applySessionCacheLimits(sharedContext);
+    }
+  }
+
+  // Call while synchronized on TLSSocketFactory.class.
+  private static void applySessionCacheLimits(SSLContext context) {
+    SSLSessionContext sessions = context.getClientSessionContext();
+    if (sessions == null) {
+      Logger.warn(LOG_TAG, "No client session context; TLS sessions won't be cached.");
+      return;
+    }
+    sessions.setSessionCacheSize(sessionCacheSize);
+    sessions.setSessionTimeout(sessionLifetimeSeconds);
+  }
+
   /**
    * Attempt to specify the cipher suites to use for a connection. If
    * setting fails (as it will on Android 2.2, because the wrong names
@@ -58,6 +134,63 @@ public class TLSSocketFactory extends SSLSocketFactory {
     }
   }
 
+  @Override
+  public Socket connectSocket(Socket socket, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpParams params)
+      throws IOException, UnknownHostException, ConnectTimeoutException {
+    final long start = System.currentTimeMillis();
+    final Socket connected = super.connectSocket(socket, remoteAddress, localAddress, params);
+    if (connected instanceof SSLSocket) {
+      // Handshakes if the hostname verifier hasn't already.
+      final SSLSession session = ((SSLSocket) connected).getSession();
+      recordHandshake(session, start, System.currentTimeMillis());
+    }
+    return connected;
+  }
+
+  /**
+   * A resumed session was created before we started connecting.
+   */
+  protected static void recordHandshake(SSLSession session, long start, long end) {
+    final long elapsed = end - start;
+    if (session.getCreationTime() < start) {
+      resumedHandshakes.incrementAndGet();
+      resumedHandshakeMillis.addAndGet(elapsed);
+      Logger.trace(LOG_TAG, "Resumed TLS session in " + elapsed + "ms.");
+    } else {
+      fullHandshakes.incrementAndGet();
+      fullHandshakeMillis.addAndGet(elapsed);
+      Logger.trace(LOG_TAG, "Full TLS handshake in " + elapsed + "ms.");
+    }
+  }
+
+  public static long getFullHandshakes() {
+    return fullHandshakes.get();
+  }
+
+  public static long getFullHandshakeMillis() {
+    return fullHandshakeMillis.get();
+  }
+
+  public static long getResumedHandshakes() {
+    return resumedHandshakes.get();
+  }
+
+  public static long getResumedHandshakeMillis() {
+    return resumedHandshakeMillis.get();
+  }
+
+  public static void resetHandshakeCounters() {
+    fullHandshakes.set(0);
+    fullHandshakeMillis.set(0);
+    resumedHandshakes.set(0);
+    resumedHandshakeMillis.set(0);
+  }
+
+  public static String handshakeCountersToString() {
+    return fullHandshakes.get() + " full handshakes in " + fullHandshakeMillis.get() + "ms; " +
+           resumedHandshakes.get() + " resumed in " + resumedHandshakeMillis.get() + "ms.";
+  }
+
   @Override
   public Socket createSocket(HttpParams params) throws IOException {
     SSLSocket socket = (SSLSocket) super.createSocket(params);
@@ -32,4 +32,18 @@ implements KeyBundleProvider {
       // TODO: abort?! Allow exception to propagate to fail?
     }
   }
+
+  /**
+   * Handle a record decoded directly from the response body by a
+   * {@link WBOStreamDecoder}. The record's payload is still raw; it will be
+   * parsed when the record is decrypted.
+   */
+  public void handleRequestProgress(CryptoRecord record) {
+    try {
+      record.keyBundle = this.keyBundle();
+      this.handleWBO(record);
+    } catch (Exception e) {
+      this.handleRequestError(e);
+    }
+  }
 }
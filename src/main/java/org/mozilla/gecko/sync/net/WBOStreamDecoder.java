@@ -0,0 +1,666 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+/**
+ * Decode a stream of newline-separated WBOs, as returned by the Sync 1.1
+ * storage API for "application/newlines" requests, directly from bytes.
+ * <p>
+ * The envelope is scanned in place: no <code>String</code> is made for each
+ * line, and no <code>JSONObject</code> is built for the envelope. The encoded
+ * payload is unescaped and kept as raw UTF-8 bytes on the returned
+ * <code>CryptoRecord</code>, to be parsed once at decryption time.
+ * <p>
+ * Read and scratch buffers are reused from record to record. Instances are
+ * not thread-safe.
+ */
+public class WBOStreamDecoder {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private static final byte[] KEY_ID         = asciiBytes("id");
+  private static final byte[] KEY_COLLECTION = asciiBytes("collection");
+  private static final byte[] KEY_PAYLOAD    = asciiBytes("payload");
+  private static final byte[] KEY_MODIFIED   = asciiBytes("modified");
+  private static final byte[] KEY_SORTINDEX  = asciiBytes("sortindex");
+  private static final byte[] KEY_TTL        = asciiBytes("ttl");
+
+  private static final byte[] KEY_CIPHERTEXT = asciiBytes("ciphertext");
+  private static final byte[] KEY_IV         = asciiBytes("IV");
+  private static final byte[] KEY_HMAC       = asciiBytes("hmac");
+
+  private final InputStream in;
+
+  // Bytes read from the stream but not yet consumed.
+  private final byte[] readBuffer;
+  private int readPosition;
+  private int readLimit;
+  private boolean endOfStream;
+
+  // Lines that span a read boundary are accumulated here.
+  private byte[] lineBuffer;
+  private int lineLength;
+
+  // The current line, pointing into either readBuffer or lineBuffer.
+  private byte[] line;
+  private int lineStart;
+  private int lineEnd;
+
+  // Unescaped string values are written here.
+  private byte[] scratch;
+  private int scratchLength;
+
+  // Parser position within the current input.
+  private byte[] input;
+  private int position;
+  private int end;
+
+  public WBOStreamDecoder(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public WBOStreamDecoder(InputStream in, int bufferSize) {
+    this.in = in;
+    this.readBuffer = new byte[bufferSize];
+    this.lineBuffer = new byte[bufferSize];
+    this.scratch = new byte[1024];
+  }
+
+  /**
+   * Decode from a single in-memory buffer. An unescaped string is never longer
+   * than its encoding, so the scratch buffer is sized to never grow.
+   */
+  private WBOStreamDecoder(byte[] bytes) {
+    this(bytes, bytes.length);
+  }
+
+  private WBOStreamDecoder(byte[] bytes, int scratchSize) {
+    this.in = null;
+    this.readBuffer = null;
+    this.scratch = new byte[scratchSize];
+    reset(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Fetch the next record from the stream.
+   * <p>
+   * If a line cannot be decoded, a <code>RecordParseException</code> is thrown
+   * after the line has been consumed; callers can choose to continue with the
+   * following record.
+   *
+   * @return a <code>CryptoRecord</code> with raw payload, or null if the stream
+   *         is exhausted.
+   * @throws IOException if reading from the stream failed.
+   * @throws RecordParseException if the current line is not a valid WBO.
+   */
+  public CryptoRecord nextRecord() throws IOException, RecordParseException {
+    while (readLine()) {
+      reset(line, lineStart, lineEnd);
+      skipWhitespace();
+      if (position == end) {
+        // Blank line.
+        continue;
+      }
+      return decodeRecord();
+    }
+    return null;
+  }
+
+  /**
+   * Decode a single WBO from its JSON encoding.
+   *
+   * @param bytes UTF-8 encoded JSON object.
+   * @return a <code>CryptoRecord</code> with raw payload.
+   * @throws RecordParseException if the input is not a valid WBO.
+   */
+  public static CryptoRecord decodeRecord(byte[] bytes) throws RecordParseException {
+    WBOStreamDecoder decoder = new WBOStreamDecoder(bytes);
+    decoder.skipWhitespace();
+    return decoder.decodeRecord();
+  }
+
+  /**
+   * The encrypted portion of a WBO payload, still encoded.
+   */
+  public static class EncryptedPayload {
+    /**
+     * Base64. The ciphertext occupies <code>ciphertextLength</code> bytes
+     * from <code>ciphertextOffset</code>; this is usually a region of the
+     * payload itself rather than a copy.
+     */
+    public byte[] ciphertext;
+    public int ciphertextOffset;
+    public int ciphertextLength;
+    public byte[] iv;          // Base64.
+    public String hmac;        // Hex.
+  }
+
+  // Enough for any key we care about; grows if needed.
+  private static final int KEY_SCRATCH_SIZE = 64;
+
+  /**
+   * Extract the crypto fields from a raw encrypted payload, as produced by
+   * {@link #nextRecord()}, without building a <code>JSONObject</code>.
+   * <p>
+   * The ciphertext is not copied unless it contains JSON escapes.
+   *
+   * @param bytes UTF-8 encoded JSON object.
+   * @return the encoded fields, any of which may be null if not present.
+   * @throws RecordParseException if the input is not a JSON object.
+   */
+  public static EncryptedPayload decodeEncryptedPayload(byte[] bytes) throws RecordParseException {
+    WBOStreamDecoder decoder = new WBOStreamDecoder(bytes, KEY_SCRATCH_SIZE);
+    decoder.skipWhitespace();
+    decoder.expect('{');
+
+    EncryptedPayload out = new EncryptedPayload();
+    if (decoder.consumeIf('}')) {
+      return out;
+    }
+    do {
+      decoder.readString();
+      decoder.expect(':');
+      if (decoder.scratchEquals(KEY_CIPHERTEXT)) {
+        decoder.readStringRegion(out);
+      } else if (decoder.scratchEquals(KEY_IV)) {
+        out.iv = decoder.readStringBytes();
+      } else if (decoder.scratchEquals(KEY_HMAC)) {
+        out.hmac = decoder.readStringValue();
+      } else {
+        decoder.skipValue();
+      }
+    } while (decoder.consumeIf(','));
+    decoder.expect('}');
+    return out;
+  }
+
+  protected void reset(byte[] input, int start, int end) {
+    this.input = input;
+    this.position = start;
+    this.end = end;
+  }
+
+  /**
+   * Advance to the next line of input, without copying it if it lies wholly
+   * within the read buffer.
+   *
+   * @return false if the stream is exhausted.
+   */
+  protected boolean readLine() throws IOException {
+    lineLength = 0;
+    while (true) {
+      if (readPosition == readLimit) {
+        if (endOfStream || !fill()) {
+          if (lineLength == 0) {
+            return false;
+          }
+          setLine(lineBuffer, 0, lineLength);
+          return true;
+        }
+      }
+
+      int newline = indexOf('\n', readBuffer, readPosition, readLimit);
+      if (newline < 0) {
+        append(readBuffer, readPosition, readLimit - readPosition);
+        readPosition = readLimit;
+        continue;
+      }
+
+      if (lineLength == 0) {
+        setLine(readBuffer, readPosition, newline);
+      } else {
+        append(readBuffer, readPosition, newline - readPosition);
+        setLine(lineBuffer, 0, lineLength);
+      }
+      readPosition = newline + 1;
+      return true;
+    }
+  }
+
+  private boolean fill() throws IOException {
+    int read;
+    do {
+      read = in.read(readBuffer, 0, readBuffer.length);
+    } while (read == 0);
+    if (read < 0) {
+      endOfStream = true;
+      readPosition = readLimit = 0;
+      return false;
+    }
+    readPosition = 0;
+    readLimit = read;
+    return true;
+  }
+
+  private void setLine(byte[] bytes, int start, int end) {
+    // Tolerate CRLF line endings.
+    if (end > start && bytes[end - 1] == '\r') {
+      end--;
+    }
+    line = bytes;
+    lineStart = start;
+    lineEnd = end;
+  }
+
+  private void append(byte[] bytes, int offset, int length) {
+    if (lineLength + length > lineBuffer.length) {
+      byte[] grown = new byte[Math.max(lineBuffer.length * 2, lineLength + length)];
+      System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+      lineBuffer = grown;
+    }
+    System.arraycopy(bytes, offset, lineBuffer, lineLength, length);
+    lineLength += length;
+  }
+
+  private static int indexOf(char c, byte[] bytes, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  protected CryptoRecord decodeRecord() throws RecordParseException {
+    expect('{');
+
+    String guid = null;
+    String collection = null;
+    byte[] payload = null;
+    boolean sawPayload = false;
+    long lastModified = -1;
+    boolean sawModified = false;
+    long sortIndex = 0;
+    boolean sawSortIndex = false;
+    long ttl = 0;
+    boolean sawTTL = false;
+
+    if (!consumeIf('}')) {
+      do {
+        readString();
+        expect(':');
+        if (scratchEquals(KEY_ID)) {
+          guid = readStringValue();
+        } else if (scratchEquals(KEY_COLLECTION)) {
+          collection = readStringValue();
+        } else if (scratchEquals(KEY_PAYLOAD)) {
+          payload = readStringBytes();
+          sawPayload = true;
+        } else if (scratchEquals(KEY_MODIFIED)) {
+          lastModified = readTimestamp();
+          sawModified = true;
+        } else if (scratchEquals(KEY_SORTINDEX)) {
+          sortIndex = readLong("sortindex could not be parsed");
+          sawSortIndex = true;
+        } else if (scratchEquals(KEY_TTL)) {
+          ttl = readLong("TTL could not be parsed");
+          sawTTL = true;
+        } else {
+          skipValue();
+        }
+      } while (consumeIf(','));
+      expect('}');
+    }
+
+    skipWhitespace();
+    if (position != end) {
+      throw new RecordParseException("Trailing data after WBO.");
+    }
+    if (!sawPayload || payload == null) {
+      throw new RecordParseException("WBO has no payload.");
+    }
+
+    CryptoRecord record = CryptoRecord.fromRawPayload(payload);
+    record.guid = guid;
+    record.collection = collection;
+    if (sawModified) {
+      record.lastModified = lastModified;
+    }
+    if (sawSortIndex) {
+      record.sortIndex = sortIndex;
+    }
+    if (sawTTL) {
+      record.ttl = ttl;
+    }
+    return record;
+  }
+
+  private void skipWhitespace() {
+    while (position < end) {
+      byte b = input[position];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return;
+      }
+      position++;
+    }
+  }
+
+  private boolean consumeIf(char c) {
+    skipWhitespace();
+    if (position < end && input[position] == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) throws RecordParseException {
+    if (!consumeIf(c)) {
+      throw new RecordParseException("Expected '" + c + "' at offset " + position + ".");
+    }
+  }
+
+  private boolean consumeLiteral(String literal) {
+    skipWhitespace();
+    final int length = literal.length();
+    if (end - position < length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (input[position + i] != literal.charAt(i)) {
+        return false;
+      }
+    }
+    position += length;
+    return true;
+  }
+
+  private boolean scratchEquals(byte[] key) {
+    if (scratchLength != key.length) {
+      return false;
+    }
+    for (int i = 0; i < scratchLength; i++) {
+      if (scratch[i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String readStringValue() throws RecordParseException {
+    if (consumeLiteral("null")) {
+      return null;
+    }
+    readString();
+    try {
+      return new String(scratch, 0, scratchLength, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // Never happens.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private byte[] readStringBytes() throws RecordParseException {
+    if (consumeLiteral("null")) {
+      return null;
+    }
+    readString();
+    byte[] out = new byte[scratchLength];
+    System.arraycopy(scratch, 0, out, 0, scratchLength);
+    return out;
+  }
+
+  /**
+   * Read the JSON string at the current position as the ciphertext of
+   * <code>out</code>, pointing into the input if the string has no escapes.
+   */
+  private void readStringRegion(EncryptedPayload out) throws RecordParseException {
+    if (consumeLiteral("null")) {
+      out.ciphertext = null;
+      return;
+    }
+    skipWhitespace();
+    if (position < end && input[position] == '"') {
+      for (int i = position + 1; i < end; i++) {
+        byte b = input[i];
+        if (b == '\\') {
+          break;
+        }
+        if (b == '"') {
+          out.ciphertext = input;
+          out.ciphertextOffset = position + 1;
+          out.ciphertextLength = i - position - 1;
+          position = i + 1;
+          return;
+        }
+      }
+    }
+    out.ciphertext = readStringBytes();
+    out.ciphertextOffset = 0;
+    out.ciphertextLength = out.ciphertext.length;
+  }
+
+  /**
+   * Read a JSON string at the current position, unescaping it as UTF-8 into
+   * <code>scratch</code>.
+   */
+  private void readString() throws RecordParseException {
+    expect('"');
+    scratchLength = 0;
+    while (position < end) {
+      byte b = input[position++];
+      if (b == '"') {
+        return;
+      }
+      if (b != '\\') {
+        writeScratch(b);
+        continue;
+      }
+      if (position == end) {
+        break;
+      }
+      byte escaped = input[position++];
+      switch (escaped) {
+      case '"':
+      case '\\':
+      case '/':
+        writeScratch(escaped);
+        break;
+      case 'b':
+        writeScratch((byte) '\b');
+        break;
+      case 'f':
+        writeScratch((byte) '\f');
+        break;
+      case 'n':
+        writeScratch((byte) '\n');
+        break;
+      case 'r':
+        writeScratch((byte) '\r');
+        break;
+      case 't':
+        writeScratch((byte) '\t');
+        break;
+      case 'u':
+        int codePoint = readHexChar();
+        if (codePoint >= 0xD800 && codePoint <= 0xDBFF &&
+            end - position >= 6 &&
+            input[position] == '\\' && input[position + 1] == 'u') {
+          position += 2;
+          int low = readHexChar();
+          if (low >= 0xDC00 && low <= 0xDFFF) {
+            codePoint = 0x10000 + ((codePoint - 0xD800) << 10) + (low - 0xDC00);
+          } else {
+            writeCodePoint(codePoint);
+            codePoint = low;
+          }
+        }
+        writeCodePoint(codePoint);
+        break;
+      default:
+        throw new RecordParseException("Invalid escape at offset " + (position - 1) + ".");
+      }
+    }
+    throw new RecordParseException("Unterminated string.");
+  }
+
+  private int readHexChar() throws RecordParseException {
+    if (end - position < 4) {
+      throw new RecordParseException("Truncated unicode escape.");
+    }
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(input[position++], 16);
+      if (digit < 0) {
+        throw new RecordParseException("Invalid unicode escape.");
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  private void writeCodePoint(int codePoint) {
+    if (codePoint < 0x80) {
+      writeScratch((byte) codePoint);
+    } else if (codePoint < 0x800) {
+      writeScratch((byte) (0xC0 | (codePoint >> 6)));
+      writeScratch((byte) (0x80 | (codePoint & 0x3F)));
+    } else if (codePoint < 0x10000) {
+      writeScratch((byte) (0xE0 | (codePoint >> 12)));
+      writeScratch((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+      writeScratch((byte) (0x80 | (codePoint & 0x3F)));
+    } else {
+      writeScratch((byte) (0xF0 | (codePoint >> 18)));
+      writeScratch((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+      writeScratch((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+      writeScratch((byte) (0x80 | (codePoint & 0x3F)));
+    }
+  }
+
+  private void writeScratch(byte b) {
+    if (scratchLength == scratch.length) {
+      byte[] grown = new byte[scratch.length * 2];
+      System.arraycopy(scratch, 0, grown, 0, scratchLength);
+      scratch = grown;
+    }
+    scratch[scratchLength++] = b;
+  }
+
+  /**
+   * Read a number token, leaving <code>position</code> after it.
+   *
+   * @return true if the number has a fraction or exponent.
+   */
+  private boolean readNumber(String message) throws RecordParseException {
+    skipWhitespace();
+    final int start = position;
+    boolean decimal = false;
+    while (position < end) {
+      byte b = input[position];
+      if (b == '.' || b == 'e' || b == 'E') {
+        decimal = true;
+      } else if (!(b >= '0' && b <= '9') && b != '-' && b != '+') {
+        break;
+      }
+      position++;
+    }
+    if (position == start) {
+      throw new RecordParseException(message);
+    }
+    return decimal;
+  }
+
+  private long readLong(String message) throws RecordParseException {
+    final int start = skipToValue();
+    if (readNumber(message)) {
+      throw new RecordParseException(message);
+    }
+    return parseLong(start, position, message);
+  }
+
+  private long parseLong(int start, int stop, String message) throws RecordParseException {
+    boolean negative = false;
+    int i = start;
+    if (input[i] == '-') {
+      negative = true;
+      i++;
+    }
+    if (i == stop || stop - i > 18) {
+      throw new RecordParseException(message);
+    }
+    long value = 0;
+    for (; i < stop; i++) {
+      byte b = input[i];
+      if (b < '0' || b > '9') {
+        throw new RecordParseException(message);
+      }
+      value = value * 10 + (b - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Read decimal seconds, returning milliseconds. This matches the rounding
+   * behaviour of {@link org.mozilla.gecko.sync.ExtendedJSONObject#getTimestamp(String)}.
+   */
+  private long readTimestamp() throws RecordParseException {
+    final String message = "timestamp could not be parsed";
+    final int start = skipToValue();
+    if (!readNumber(message)) {
+      return parseLong(start, position, message) * 1000;
+    }
+    try {
+      double seconds = Double.parseDouble(new String(input, start, position - start, "US-ASCII"));
+      return Double.valueOf(seconds * 1000).longValue();
+    } catch (Exception e) {
+      throw new RecordParseException(message);
+    }
+  }
+
+  private int skipToValue() {
+    skipWhitespace();
+    return position;
+  }
+
+  /**
+   * Skip over any JSON value, including nested objects and arrays.
+   */
+  private void skipValue() throws RecordParseException {
+    skipWhitespace();
+    if (position == end) {
+      throw new RecordParseException("Expected value.");
+    }
+    byte b = input[position];
+    if (b == '"') {
+      readString();
+      return;
+    }
+    if (b == '{' || b == '[') {
+      final byte close = (byte) (b == '{' ? '}' : ']');
+      position++;
+      if (consumeIf((char) close)) {
+        return;
+      }
+      do {
+        if (b == '{') {
+          readString();
+          expect(':');
+        }
+        skipValue();
+      } while (consumeIf(','));
+      expect((char) close);
+      return;
+    }
+    if (consumeLiteral("true") || consumeLiteral("false") || consumeLiteral("null")) {
+      return;
+    }
+    readNumber("Expected value.");
+  }
+
+  private static byte[] asciiBytes(String s) {
+    try {
+      return s.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      // Never happens.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.repositories;
 
 import java.net.URISyntaxException;
 
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 
 /**
@@ -19,8 +20,21 @@ public class ConstrainedServer11Repository extends Server11Repository {
   private String sort = null;
   private long limit  = -1;
 
-  public ConstrainedServer11Repository(String collection, String storageURL, AuthHeaderProvider authHeaderProvider, long limit, String sort) throws URISyntaxException {
-    super(collection, storageURL, authHeaderProvider);
+  /**
+   * If true, fetch every matching record, <code>limit</code> records at a
+   * time, oldest first, rather than just the first <code>limit</code> in
+   * <code>sort</code> order.
+   */
+  public boolean paged = false;
+
+  /**
+   * If non-null, paged fetches record their progress here after each page is
+   * stored, and resume from it if interrupted.
+   */
+  public PagedFetchHighWaterMark highWaterMark = null;
+
+  public ConstrainedServer11Repository(String collection, String storageURL, AuthHeaderProvider authHeaderProvider, InfoConfiguration infoConfiguration, long limit, String sort) throws URISyntaxException {
+    super(collection, storageURL, authHeaderProvider, infoConfiguration);
     this.limit = limit;
     this.sort  = sort;
   }
@@ -34,4 +48,14 @@ public class ConstrainedServer11Repository extends Server11Repository {
   protected long getDefaultFetchLimit() {
     return limit;
   }
+
+  @Override
+  protected long getPageSize() {
+    return paged ? limit : -1;
+  }
+
+  @Override
+  protected PagedFetchHighWaterMark getHighWaterMark() {
+    return highWaterMark;
+  }
 }
@@ -0,0 +1,85 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Persist how far a paged fetch got, so that a fetch that is interrupted can
+ * resume from its last committed page rather than from the beginning.
+ * <p>
+ * A position only applies to a fetch of records modified since the same
+ * timestamp as the fetch that saved it; once that fetch completes, the
+ * repository's timestamp advances and the position is discarded.
+ */
+public class PagedFetchHighWaterMark {
+  private static final String LOG_TAG = "PagedFetchHWM";
+
+  public static final String PREF_SINCE  = "pagedFetch.since";
+  public static final String PREF_NEWER  = "pagedFetch.newer";
+
+  // Written by earlier versions, which resumed part way through the records
+  // sharing a timestamp. Servers don't order those stably, so it's ignored.
+  protected static final String PREF_OFFSET = "pagedFetch.offset";
+
+  /**
+   * The next page starts with the records modified after
+   * <code>newer</code>. Records at the following timestamp might already
+   * have been fetched.
+   */
+  public static class Position {
+    public final long newer;
+
+    public Position(long newer) {
+      this.newer = newer;
+    }
+
+    @Override
+    public String toString() {
+      return "newer " + newer;
+    }
+  }
+
+  protected final SharedPreferences prefs;
+
+  public PagedFetchHighWaterMark(SharedPreferences prefs) {
+    if (prefs == null) {
+      throw new IllegalArgumentException("prefs cannot be null.");
+    }
+    this.prefs = prefs;
+  }
+
+  /**
+   * @return the saved position of a fetch of records modified since
+   *         <code>since</code>, or <code>null</code> if there is none.
+   */
+  public synchronized Position get(long since) {
+    if (!prefs.contains(PREF_SINCE) ||
+        prefs.getLong(PREF_SINCE, -1) != since) {
+      return null;
+    }
+    return new Position(prefs.getLong(PREF_NEWER, since));
+  }
+
+  public synchronized void set(long since, Position position) {
+    Logger.debug(LOG_TAG, "Saving position " + position + " for fetch since " + since + ".");
+    Editor editor = prefs.edit();
+    editor.putLong(PREF_SINCE, since);
+    editor.putLong(PREF_NEWER, position.newer);
+    editor.remove(PREF_OFFSET);
+    editor.commit();
+  }
+
+  public synchronized void clear() {
+    Editor editor = prefs.edit();
+    editor.remove(PREF_SINCE);
+    editor.remove(PREF_NEWER);
+    editor.remove(PREF_OFFSET);
+    editor.commit();
+  }
+}
@@ -4,10 +4,30 @@
 
 package org.mozilla.gecko.sync.repositories;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
 
 // Take a record retrieved from some middleware, producing
 // some concrete record type for application to some local repository.
 public abstract class RecordFactory {
   public abstract Record createRecord(Record record);
+
+  /**
+   * Create a record from a fetched envelope and its decrypted cleartext.
+   * <p>
+   * By default the cleartext is parsed into the envelope's payload and handed
+   * to {@link #createRecord(Record)}. Factories whose records can decode
+   * their fields straight from the cleartext should override this.
+   */
+  public Record createRecord(CryptoRecord envelope, ByteBuffer cleartext)
+      throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+    envelope.setCleartext(cleartext);
+    return createRecord(envelope);
+  }
 }
@@ -0,0 +1,23 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Turn a fetched record into the record that a fetch delegate should see;
+ * for example, by decrypting it and applying a <code>RecordFactory</code>.
+ * <p>
+ * Implementations must be safe to call from any thread.
+ */
+public interface RecordTransformer {
+  /**
+   * @param record the record as fetched.
+   * @return the transformed record.
+   * @throws Exception if the record cannot be transformed; this should be
+   *         treated as a fetch failure for <code>record</code>.
+   */
+  public Record transform(Record record) throws Exception;
+}
@@ -9,6 +9,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
@@ -140,6 +141,32 @@ public abstract class RepositorySession {
     storeWorkQueue.execute(command);
   }
 
+  /**
+   * Run <code>command</code> once all store work queued before this call has
+   * been processed. This allows callers to bound the amount of store work
+   * outstanding at any time.
+   * <p>
+   * If the session is aborted, <code>command</code> might never run.
+   *
+   * @param command to run.
+   * @throws RejectedExecutionException if the session is no longer storing.
+   */
+  public void runAfterQueuedStores(Runnable command) {
+    storeWorkQueue.execute(command);
+  }
+
+  /**
+   * Like {@link #runAfterQueuedStores(Runnable)}, but also wait until the
+   * results of that store work have been committed to storage. Override this
+   * if stores are buffered beyond the store work queue.
+   *
+   * @param command to run.
+   * @throws RejectedExecutionException if the session is no longer storing.
+   */
+  public void runAfterCommittedStores(Runnable command) {
+    runAfterQueuedStores(command);
+  }
+
   public abstract void wipe(RepositorySessionWipeDelegate delegate);
 
   public void unbundle(RepositorySessionBundle bundle) {
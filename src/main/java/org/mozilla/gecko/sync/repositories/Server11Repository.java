@@ -4,10 +4,15 @@
 
 package org.mozilla.gecko.sync.repositories;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.JSONRecordFetcher;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
@@ -24,6 +29,38 @@ public class Server11Repository extends Repository {
   protected String collection;
   protected URI collectionURI;
   protected final AuthHeaderProvider authHeaderProvider;
+  protected final InfoConfiguration infoConfiguration;
+
+  /**
+   * How many POSTs a session may have in flight at once. Responses are
+   * still handled in order.
+   */
+  public int uploadWindow = 1;
+
+  /**
+   * Whether sessions should gzip their POSTs. Cleared if the server rejects
+   * a compressed POST.
+   */
+  public volatile boolean compressUploads = false;
+
+  /**
+   * Collection timestamps fetched at the start of this sync, or
+   * <code>null</code> if unknown. Sessions use these to decide whether the
+   * server has anything new for them.
+   */
+  public InfoCollections infoCollections = null;
+
+  /**
+   * How many slices to split large unconstrained first fetches into, each
+   * fetched over its own connection. Needs <code>countsFetcher</code>.
+   */
+  public int fetchSlices = 1;
+
+  /**
+   * Fetches <code>info/collection_counts</code>, so that sessions can size
+   * fetch slices; or <code>null</code>.
+   */
+  public JSONRecordFetcher countsFetcher = null;
   public static final String VERSION_PATH_FRAGMENT = "1.1/";
 
   /**
@@ -32,12 +69,14 @@ public class Server11Repository extends Repository {
    * @param collection name.
    * @param storageURL full URL to storage endpoint.
    * @param authHeaderProvider to use in requests.
+   * @param infoConfiguration server upload limits, or <code>null</code> if the server does not batch uploads.
    * @throws URISyntaxException
    */
-  public Server11Repository(String collection, String storageURL, AuthHeaderProvider authHeaderProvider) throws URISyntaxException {
+  public Server11Repository(String collection, String storageURL, AuthHeaderProvider authHeaderProvider, InfoConfiguration infoConfiguration) throws URISyntaxException {
     this.collection = collection;
     this.collectionURI = new URI(storageURL + (storageURL.endsWith("/") ? collection : "/" + collection));
     this.authHeaderProvider = authHeaderProvider;
+    this.infoConfiguration = infoConfiguration;
   }
 
   @Override
@@ -51,6 +90,17 @@ public class Server11Repository extends Repository {
   }
 
   public URI collectionURI(boolean full, long newer, long limit, String sort, String ids) throws URISyntaxException {
+    return collectionURI(full, newer, -1, limit, sort, ids, -1);
+  }
+
+  /**
+   * @param older
+   *          if non-negative, only match records modified before this time.
+   * @param offset
+   *          if positive, skip this many matching records; only meaningful
+   *          with a <code>limit</code> and a stable <code>sort</code>.
+   */
+  public URI collectionURI(boolean full, long newer, long older, long limit, String sort, String ids, long offset) throws URISyntaxException {
     ArrayList<String> params = new ArrayList<String>();
     if (full) {
       params.add("full=1");
@@ -60,9 +110,15 @@ public class Server11Repository extends Repository {
       String newerString = Utils.millisecondsToDecimalSecondsString(newer);
       params.add("newer=" + newerString);
     }
+    if (older >= 0) {
+      params.add("older=" + Utils.millisecondsToDecimalSecondsString(older));
+    }
     if (limit > 0) {
       params.add("limit=" + limit);
     }
+    if (offset > 0) {
+      params.add("offset=" + offset);
+    }
     if (sort != null) {
       params.add("sort=" + sort);       // We trust these values.
     }
@@ -89,6 +145,39 @@ public class Server11Repository extends Repository {
     return new URI(this.collectionURI + "/" + id);
   }
 
+  /**
+   * Return the URI to POST to when uploading as part of a batch.
+   *
+   * @param batchID the batch to add to, or <code>null</code> to start a new batch.
+   * @param commit <code>true</code> if the server should apply the batch after this POST.
+   */
+  public URI batchURI(String batchID, boolean commit) throws URISyntaxException {
+    StringBuilder out = new StringBuilder(this.collectionURI.toString());
+    out.append("?batch=");
+    if (batchID == null) {
+      out.append("true");
+    } else {
+      try {
+        out.append(URLEncoder.encode(batchID, "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        // Can't happen.
+        throw new URISyntaxException(batchID, e.getMessage());
+      }
+    }
+    if (commit) {
+      out.append("&commit=true");
+    }
+    return new URI(out.toString());
+  }
+
+  /**
+   * @return the server's upload limits, or <code>null</code> if the server
+   *         did not advertise any and does not batch uploads.
+   */
+  public InfoConfiguration getInfoConfiguration() {
+    return infoConfiguration;
+  }
+
   // Override these.
   @SuppressWarnings("static-method")
   protected long getDefaultFetchLimit() {
@@ -100,6 +189,26 @@ public class Server11Repository extends Repository {
     return null;
   }
 
+  /**
+   * Override this to fetch the whole collection in pages rather than in a
+   * single request.
+   *
+   * @return the number of records per page, or -1 to not page.
+   */
+  @SuppressWarnings("static-method")
+  protected long getPageSize() {
+    return -1;
+  }
+
+  /**
+   * @return where to persist the progress of paged fetches, or
+   *         <code>null</code> to always start them from the beginning.
+   */
+  @SuppressWarnings("static-method")
+  protected PagedFetchHighWaterMark getHighWaterMark() {
+    return null;
+  }
+
   public AuthHeaderProvider getAuthHeaderProvider() {
     return authHeaderProvider;
   }
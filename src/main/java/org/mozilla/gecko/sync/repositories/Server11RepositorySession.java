@@ -13,6 +13,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
@@ -21,36 +24,54 @@ import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.DelayedWorkTracker;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.InfoCounts;
+import org.mozilla.gecko.sync.Server11BatchFailedException;
 import org.mozilla.gecko.sync.Server11PreviousPostFailedException;
 import org.mozilla.gecko.sync.Server11RecordPostFailedException;
+import org.mozilla.gecko.sync.Server11RecordTooLargeException;
+import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.middleware.OrderedWorkQueue;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HawkAuthHeaderProvider;
+import org.mozilla.gecko.sync.net.HttpCompression;
+import org.mozilla.gecko.sync.net.PayloadHashedEntity;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCheckpointingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.entity.ContentProducer;
 import ch.boye.httpclientandroidlib.entity.EntityTemplate;
 
 public class Server11RepositorySession extends RepositorySession {
+  private static final String UPLOAD_CONTENT_TYPE = "application/json";
+
   private static byte[] recordsStart;
   private static byte[] recordSeparator;
   private static byte[] recordsEnd;
+  private static byte[] recordsEmpty;
 
   static {
     try {
       recordsStart    = "[\n".getBytes("UTF-8");
       recordSeparator = ",\n".getBytes("UTF-8");
       recordsEnd      = "\n]\n".getBytes("UTF-8");
+      recordsEmpty    = "[]\n".getBytes("UTF-8");
     } catch (UnsupportedEncodingException e) {
       // These won't fail.
     }
@@ -58,8 +79,12 @@ public class Server11RepositorySession extends RepositorySession {
 
   public static final String LOG_TAG = "Server11Session";
 
-  private static final int UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
-  private static final int UPLOAD_ITEM_THRESHOLD = 50;
+  /**
+   * Paged fetches sort oldest first, so that records modified while we page
+   * are appended to the end rather than shifting pages we haven't fetched.
+   */
+  public static final String PAGED_FETCH_SORT = "oldest";
+
   private static final int PER_RECORD_OVERHEAD   = 2;              // Comma, newline.
   // {}, newlines, but we get to skip one record overhead.
   private static final int PER_BATCH_OVERHEAD    = 5 - PER_RECORD_OVERHEAD;
@@ -99,6 +124,9 @@ public class Server11RepositorySession extends RepositorySession {
 
   @Override
   public void abort() {
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdownNow();
+    }
     super.abort();
     for (SyncStorageCollectionRequest request : pending) {
       request.abort();
@@ -106,6 +134,15 @@ public class Server11RepositorySession extends RepositorySession {
     pending.clear();
   }
 
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    if (uploadExecutor != null) {
+      // Outstanding uploads, if any, are allowed to complete.
+      uploadExecutor.shutdown();
+    }
+    super.finish(delegate);
+  }
+
   /**
    * Convert HTTP request delegate callbacks into fetch callbacks within the
    * context of this RepositorySession.
@@ -221,9 +258,84 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * <code>true</code> if the server advertised its upload limits, and so
+   * should accept batched uploads.
+   */
+  protected final boolean uploadInBatches;
+
+  protected final long maxPostRecords;
+  protected final long maxPostBytes;
+  protected final long maxBatchRecords;
+  protected final long maxBatchBytes;
+  protected final long maxRecordBytes;
+
+  /**
+   * Runs POSTs when the repository allows more than one in flight;
+   * <code>null</code> otherwise, in which case POSTs run on the store queue.
+   */
+  private final ExecutorService uploadExecutor;
+  private final UploadQueue uploadQueue;
+
   public Server11RepositorySession(Repository repository) {
     super(repository);
     serverRepository = (Server11Repository) repository;
+
+    InfoConfiguration limits = (serverRepository == null) ? null : serverRepository.getInfoConfiguration();
+    uploadInBatches = limits != null;
+    batchingSupported = uploadInBatches;
+    if (limits == null) {
+      limits = new InfoConfiguration();
+    }
+    maxPostRecords  = limits.maxPostRecords;
+    maxPostBytes    = limits.getMaxPostBytes();
+    maxBatchRecords = limits.maxTotalRecords;
+    maxBatchBytes   = limits.maxTotalBytes;
+    maxRecordBytes  = limits.maxRecordPayloadBytes;
+
+    final int uploadWindow = (serverRepository == null) ? 1 : serverRepository.uploadWindow;
+    if (uploadWindow > 1) {
+      Logger.debug(LOG_TAG, "Allowing " + uploadWindow + " uploads in flight.");
+      uploadExecutor = Executors.newFixedThreadPool(uploadWindow);
+      uploadQueue = new UploadQueue(uploadExecutor, uploadWindow);
+    } else {
+      uploadExecutor = null;
+      uploadQueue = null;
+    }
+
+    payloadHasher = makePayloadHasher();
+  }
+
+  protected HawkAuthHeaderProvider.PayloadHasher makePayloadHasher() {
+    final AuthHeaderProvider authHeaderProvider = (serverRepository == null) ? null : serverRepository.getAuthHeaderProvider();
+    if (!(authHeaderProvider instanceof HawkAuthHeaderProvider) ||
+        !((HawkAuthHeaderProvider) authHeaderProvider).includesPayloadHash()) {
+      return null;
+    }
+    try {
+      return new HawkAuthHeaderProvider.PayloadHasher(UPLOAD_CONTENT_TYPE);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Couldn't create payload hasher; hashing each POST when sent.", e);
+      return null;
+    }
+  }
+
+  /**
+   * The server has new data for us if <code>info/collections</code> reports
+   * a modification since we last synced. Without timestamps we assume it
+   * does.
+   */
+  @Override
+  public boolean dataAvailable() {
+    final InfoCollections infoCollections = (serverRepository == null) ? null : serverRepository.infoCollections;
+    if (infoCollections == null) {
+      return true;
+    }
+    final String collection = serverRepository.collection;
+    final boolean updateNeeded = infoCollections.updateNeeded(collection, lastSyncTimestamp);
+    Logger.debug(LOG_TAG, "Server " + (updateNeeded ? "has" : "has no") + " changes for " + collection +
+                 " since " + lastSyncTimestamp + ".");
+    return updateNeeded;
   }
 
   private String flattenIDs(String[] guids) {
@@ -257,8 +369,20 @@ public class Server11RepositorySession extends RepositorySession {
                                      String ids,
                                      RequestFetchDelegateAdapter delegate)
                                          throws URISyntaxException {
+    fetchWithParameters(newer, -1, limit, full, sort, ids, -1, delegate);
+  }
 
-    URI collectionURI = serverRepository.collectionURI(full, newer, limit, sort, ids);
+  protected void fetchWithParameters(long newer,
+                                     long older,
+                                     long limit,
+                                     boolean full,
+                                     String sort,
+                                     String ids,
+                                     long offset,
+                                     RequestFetchDelegateAdapter delegate)
+                                         throws URISyntaxException {
+
+    URI collectionURI = serverRepository.collectionURI(full, newer, older, limit, sort, ids, offset);
     SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(collectionURI);
     request.delegate = delegate;
 
@@ -279,9 +403,20 @@ public class Server11RepositorySession extends RepositorySession {
   @Override
   public void fetchSince(long timestamp,
                          RepositorySessionFetchRecordsDelegate delegate) {
+    final long pageSize = serverRepository.getPageSize();
+    if (pageSize > 0) {
+      new PagedFetch(timestamp, pageSize, serverRepository.getHighWaterMark(), delegate).fetchPage();
+      return;
+    }
     try {
       long limit = serverRepository.getDefaultFetchLimit();
       String sort = serverRepository.getDefaultSort();
+      // Only first syncs are big enough to be worth the extra requests.
+      if (timestamp <= 0 && limit <= 0 &&
+          serverRepository.fetchSlices > 1 && serverRepository.countsFetcher != null) {
+        new SlicedFetch(timestamp, sort, delegate).fetch();
+        return;
+      }
       this.fetchWithParameters(timestamp, limit, true, sort, null, new RequestFetchDelegateAdapter(delegate));
     } catch (URISyntaxException e) {
       delegate.onFetchFailed(e, null);
@@ -293,6 +428,471 @@ public class Server11RepositorySession extends RepositorySession {
     this.fetchSince(-1, delegate);
   }
 
+  /**
+   * Fetch every record modified since a timestamp, a page at a time.
+   * <p>
+   * Each page asks for records modified after <code>newer</code>, oldest
+   * first. Server timestamps collide, and the server doesn't promise any
+   * order among records with the same timestamp, so we can't skip records by
+   * offset. Instead, after a full page we move <code>newer</code> to just
+   * before the newest timestamp in the page, fetching that timestamp again,
+   * and drop the records at it that we've already passed on. Each page asks
+   * for that many more records, so that it still makes progress.
+   * <p>
+   * If the delegate supports checkpoints, we ask it to save
+   * <code>newer</code> once each page has been stored; an interrupted fetch
+   * since the same timestamp resumes from there, fetching the records at the
+   * boundary again. The fetch completes with the timestamp of the first page,
+   * so anything modified while paging is fetched again next time.
+   */
+  protected class PagedFetch implements RepositorySessionFetchRecordsDelegate {
+    protected final long since;
+    protected final long pageSize;
+    protected final PagedFetchHighWaterMark highWaterMark;
+    protected final RepositorySessionFetchRecordsDelegate delegate;
+
+    protected long newer;
+    protected long fetchEnd = -1;
+
+    // GUIDs of records modified at newer + 1 that we've already passed on.
+    protected final Set<String> seenAtBoundary = new HashSet<String>();
+
+    // The current page. Only touched by the thread fetching it.
+    protected long pageLimit;
+    protected long pageRecords;
+    protected long pageNewest;
+    protected final Set<String> pageNewestGUIDs = new HashSet<String>();
+
+    public PagedFetch(long since, long pageSize, PagedFetchHighWaterMark highWaterMark, RepositorySessionFetchRecordsDelegate delegate) {
+      this.since = since;
+      this.pageSize = pageSize;
+      this.highWaterMark = highWaterMark;
+      this.delegate = delegate;
+
+      final PagedFetchHighWaterMark.Position resume = (highWaterMark == null) ? null : highWaterMark.get(since);
+      if (resume == null) {
+        this.newer = since;
+      } else {
+        Logger.info(LOG_TAG, "Resuming paged fetch of " + serverRepository.collection + " at " + resume + ".");
+        this.newer = resume.newer;
+      }
+    }
+
+    public void fetchPage() {
+      pageLimit = pageSize + seenAtBoundary.size();
+      pageRecords = 0;
+      pageNewest = -1;
+      pageNewestGUIDs.clear();
+      Logger.debug(LOG_TAG, "Fetching page of " + pageLimit + " records newer than " + newer +
+                            ", " + seenAtBoundary.size() + " of them already fetched.");
+      try {
+        fetchWithParameters(newer, -1, pageLimit, true, PAGED_FETCH_SORT, null, 0, new RequestFetchDelegateAdapter(this));
+      } catch (URISyntaxException e) {
+        delegate.onFetchFailed(e, null);
+      }
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      pageRecords++;
+      if (record.lastModified > pageNewest) {
+        pageNewest = record.lastModified;
+        pageNewestGUIDs.clear();
+      }
+      if (record.lastModified == pageNewest) {
+        pageNewestGUIDs.add(record.guid);
+      }
+      if (record.lastModified == newer + 1 && seenAtBoundary.contains(record.guid)) {
+        return;
+      }
+      delegate.onFetchedRecord(record);
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      delegate.onFetchFailed(ex, record);
+    }
+
+    @Override
+    public void onFetchCompleted(long end) {
+      if (fetchEnd == -1) {
+        fetchEnd = end;
+      }
+
+      if (pageRecords < pageLimit) {
+        Logger.debug(LOG_TAG, "Short page of " + pageRecords + " records; paged fetch is done.");
+        if (highWaterMark != null) {
+          final Runnable clear = new Runnable() {
+            @Override
+            public void run() {
+              highWaterMark.clear();
+            }
+          };
+          if (!checkpoint(clear)) {
+            clear.run();
+          }
+        }
+        delegate.onFetchCompleted(fetchEnd);
+        return;
+      }
+
+      if (pageNewest <= newer) {
+        // Without modified times we can't tell where the next page starts.
+        delegate.onFetchFailed(new IllegalStateException("Page of records has no usable modified times."), null);
+        return;
+      }
+
+      // If the whole page shared the boundary timestamp, we fetch it again
+      // with a larger limit; otherwise the newest timestamp becomes the
+      // boundary.
+      final long nextNewer = pageNewest - 1;
+      if (nextNewer != newer) {
+        seenAtBoundary.clear();
+        newer = nextNewer;
+      }
+      seenAtBoundary.addAll(pageNewestGUIDs);
+
+      if (highWaterMark != null) {
+        final PagedFetchHighWaterMark.Position position = new PagedFetchHighWaterMark.Position(newer);
+        checkpoint(new Runnable() {
+          @Override
+          public void run() {
+            highWaterMark.set(since, position);
+          }
+        });
+      }
+
+      // Fetch the next page from a fresh stack.
+      ThreadPool.run(new Runnable() {
+        @Override
+        public void run() {
+          if (!isActive()) {
+            delegate.onFetchFailed(new InactiveSessionException(null), null);
+            return;
+          }
+          fetchPage();
+        }
+      });
+    }
+
+    /**
+     * @return false if the delegate doesn't support checkpoints.
+     */
+    protected boolean checkpoint(Runnable checkpoint) {
+      if (!(delegate instanceof RepositorySessionCheckpointingFetchDelegate)) {
+        return false;
+      }
+      ((RepositorySessionCheckpointingFetchDelegate) delegate).onFetchCheckpoint(checkpoint);
+      return true;
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  /**
+   * Don't split fetches into slices smaller than this.
+   */
+  public static final int MIN_RECORDS_PER_SLICE = 100;
+
+  /**
+   * Fetch every record modified since a timestamp as several disjoint
+   * slices, each over its own connection, so that one connection's latency
+   * doesn't bound the fetch.
+   * <p>
+   * Slice boundaries are the modified times of records at evenly spaced
+   * offsets into the matching records, oldest first, sized from
+   * <code>info/collection_counts</code>. Each slice asks for records modified
+   * after its lower boundary and no later than its upper one.
+   * <p>
+   * The delegate sees records in the order a single request would return
+   * them. Only the slice at the head of that order streams straight to the
+   * delegate; records from later slices are buffered until every slice
+   * before them has completed. We don't hold a lock while calling the
+   * delegate: a delegate that blocks while storage catches up would
+   * otherwise stall every slice's completion and failure handling. The fetch
+   * completes with the earliest of the slices' timestamps, once every slice
+   * is done, and fails on the first slice to fail. If the collection is too
+   * small to split, sizing it fails, or the sort order can't be rebuilt
+   * from slices by modified time, we fall back to a single request.
+   */
+  protected class SlicedFetch {
+    protected final long since;
+    protected final String sort;
+    protected final RepositorySessionFetchRecordsDelegate delegate;
+
+    // Guarded by this.
+    protected Slice[] deliveryOrder;
+    protected int head = 0;
+    protected boolean draining = false;
+    protected long fetchEnd = -1;
+    protected volatile boolean failed = false;
+    protected final ArrayList<SyncStorageCollectionRequest> requests = new ArrayList<SyncStorageCollectionRequest>();
+
+    public SlicedFetch(long since, String sort, RepositorySessionFetchRecordsDelegate delegate) {
+      this.since = since;
+      this.sort = sort;
+      this.delegate = delegate;
+    }
+
+    /**
+     * Receives one slice's records. Each slice calls back on its own thread.
+     */
+    protected class Slice implements RepositorySessionFetchRecordsDelegate {
+      protected final int position;
+
+      // Guarded by SlicedFetch.this.
+      protected ArrayList<Record> buffered = new ArrayList<Record>();
+      protected boolean completed = false;
+
+      public Slice(int position) {
+        this.position = position;
+      }
+
+      @Override
+      public void onFetchedRecord(Record record) {
+        onSliceRecord(this, record);
+      }
+
+      @Override
+      public void onFetchFailed(Exception ex, Record record) {
+        onSliceFailed(ex, record);
+      }
+
+      @Override
+      public void onFetchCompleted(long end) {
+        onSliceCompleted(this, end);
+      }
+
+      @Override
+      public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+        return this;
+      }
+    }
+
+    public void fetch() throws URISyntaxException {
+      final boolean newestFirst = "newest".equals(sort);
+      if (!newestFirst && sort != null && !PAGED_FETCH_SORT.equals(sort)) {
+        fetchWithParameters(since, -1, true, sort, null, new RequestFetchDelegateAdapter(delegate));
+        return;
+      }
+      final ArrayList<Long> boundaries = sliceBoundaries();
+      if (boundaries == null || boundaries.isEmpty()) {
+        fetchWithParameters(since, -1, true, sort, null, new RequestFetchDelegateAdapter(delegate));
+        return;
+      }
+
+      final int count = boundaries.size() + 1;
+      Logger.info(LOG_TAG, "Fetching " + serverRepository.collection + " in " + count + " slices.");
+      final Slice[] ordered = new Slice[count];
+      for (int i = 0; i < count; i++) {
+        ordered[i] = new Slice(i);
+      }
+      synchronized (this) {
+        deliveryOrder = ordered;
+      }
+      final ExecutorService executor = Executors.newFixedThreadPool(count);
+      long lower = since;
+      for (int i = 0; i < count; i++) {
+        final long newer = lower;
+        // Older is exclusive; slices include their upper boundary.
+        final long older = (i < boundaries.size()) ? boundaries.get(i) + 1 : -1;
+        lower = older - 1;
+        // Slices run oldest first; deliver them in the order we were asked for.
+        final Slice slice = ordered[newestFirst ? count - 1 - i : i];
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            fetchSlice(slice, newer, older);
+          }
+        });
+      }
+      executor.shutdown();
+    }
+
+    protected void fetchSlice(Slice slice, long newer, long older) {
+      final RequestFetchDelegateAdapter adapter = new RequestFetchDelegateAdapter(slice);
+      try {
+        final URI uri = serverRepository.collectionURI(true, newer, older, -1, sort, null, -1);
+        final SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(uri);
+        request.delegate = adapter;
+        adapter.setRequest(request);
+        synchronized (this) {
+          if (failed) {
+            return;
+          }
+          requests.add(request);
+        }
+        pending.add(request);
+        request.get();
+      } catch (URISyntaxException e) {
+        onSliceFailed(e, null);
+      }
+    }
+
+    /**
+     * @return the upper boundaries of every slice but the last, ascending;
+     *         empty or <code>null</code> if we shouldn't slice.
+     */
+    protected ArrayList<Long> sliceBoundaries() {
+      final Integer count;
+      try {
+        count = new InfoCounts(serverRepository.countsFetcher.fetchBlocking()).getCount(serverRepository.collection);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Unable to fetch counts; not slicing fetch.", e);
+        return null;
+      }
+      if (count == null) {
+        return null;
+      }
+
+      final int slices = Math.min(serverRepository.fetchSlices, count / MIN_RECORDS_PER_SLICE);
+      final ArrayList<Long> boundaries = new ArrayList<Long>();
+      for (int i = 1; i < slices; i++) {
+        final long boundary = probeModified(since, ((long) count * i) / slices);
+        if (boundary < 0) {
+          break;
+        }
+        if (boundaries.isEmpty() || boundary > boundaries.get(boundaries.size() - 1)) {
+          boundaries.add(boundary);
+        }
+      }
+      return boundaries;
+    }
+
+    /**
+     * @return the modified time of the record <code>offset</code> records
+     *         into those modified after <code>newer</code>, oldest first; or
+     *         -1 if there is no such record or the probe fails.
+     */
+    protected long probeModified(long newer, long offset) {
+      final CountDownLatch latch = new CountDownLatch(1);
+      final AtomicLong modified = new AtomicLong(-1);
+      final RequestFetchDelegateAdapter adapter = new RequestFetchDelegateAdapter(new RepositorySessionFetchRecordsDelegate() {
+        @Override
+        public void onFetchedRecord(Record record) {
+          modified.set(record.lastModified);
+        }
+
+        @Override
+        public void onFetchFailed(Exception ex, Record record) {
+          Logger.warn(LOG_TAG, "Slice boundary probe failed.", ex);
+          modified.set(-1);
+          latch.countDown();
+        }
+
+        @Override
+        public void onFetchCompleted(long fetchEnd) {
+          latch.countDown();
+        }
+
+        @Override
+        public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+          return this;
+        }
+      });
+      try {
+        fetchWithParameters(newer, -1, 1, true, PAGED_FETCH_SORT, null, offset, adapter);
+        latch.await();
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Slice boundary probe failed.", e);
+        return -1;
+      }
+      return modified.get();
+    }
+
+    protected void onSliceRecord(Slice slice, Record record) {
+      synchronized (this) {
+        if (failed) {
+          return;
+        }
+        if (slice.position != head || draining) {
+          slice.buffered.add(record);
+          return;
+        }
+      }
+      // Only the head slice's own thread gets here, so its records stay in order.
+      delegate.onFetchedRecord(record);
+    }
+
+    protected void onSliceFailed(Exception ex, Record record) {
+      final ArrayList<SyncStorageCollectionRequest> toAbort;
+      synchronized (this) {
+        if (failed) {
+          return;
+        }
+        failed = true;
+        toAbort = new ArrayList<SyncStorageCollectionRequest>(requests);
+      }
+      // Don't keep downloading records nobody wants.
+      for (SyncStorageCollectionRequest request : toAbort) {
+        request.abort();
+      }
+      delegate.onFetchFailed(ex, record);
+    }
+
+    protected void onSliceCompleted(Slice slice, long end) {
+      synchronized (this) {
+        if (failed) {
+          return;
+        }
+        slice.completed = true;
+        if (fetchEnd == -1 || end < fetchEnd) {
+          fetchEnd = end;
+        }
+        if (slice.position != head || draining) {
+          // Whoever reaches this slice will deliver it.
+          return;
+        }
+        draining = true;
+      }
+      drain();
+    }
+
+    /**
+     * Move past the completed head slice, delivering the records buffered by
+     * the slices after it, until we reach a slice that is still fetching or
+     * run out of slices. Only one thread drains at a time.
+     */
+    protected void drain() {
+      while (true) {
+        final ArrayList<Record> toDeliver;
+        final long completedEnd;
+        synchronized (this) {
+          if (failed) {
+            draining = false;
+            return;
+          }
+          final Slice current = deliveryOrder[head];
+          if (!current.buffered.isEmpty()) {
+            toDeliver = current.buffered;
+            current.buffered = new ArrayList<Record>();
+            completedEnd = -1;
+          } else if (!current.completed) {
+            // The head slice's own thread takes over from here.
+            draining = false;
+            return;
+          } else if (++head < deliveryOrder.length) {
+            continue;
+          } else {
+            draining = false;
+            toDeliver = null;
+            completedEnd = fetchEnd;
+          }
+        }
+        if (toDeliver == null) {
+          delegate.onFetchCompleted(completedEnd);
+          return;
+        }
+        for (Record record : toDeliver) {
+          delegate.onFetchedRecord(record);
+        }
+      }
+    }
+  }
+
   @Override
   public void fetch(String[] guids,
                     RepositorySessionFetchRecordsDelegate delegate) {
@@ -336,6 +936,23 @@ public class Server11RepositorySession extends RepositorySession {
   protected ArrayList<String> recordGuidsBuffer = new ArrayList<String>();
   protected int byteCount = PER_BATCH_OVERHEAD;
 
+  /**
+   * Hashes the POST body being assembled in <code>recordsBuffer</code>, if
+   * the server wants payload hashes; otherwise <code>null</code>.
+   * <p>
+   * Access should be synchronized on <code>recordsBufferMonitor</code>.
+   */
+  protected final HawkAuthHeaderProvider.PayloadHasher payloadHasher;
+
+  /**
+   * Records and bytes enqueued since the current server batch began,
+   * including those already POSTed.
+   * <p>
+   * Access should be synchronized on <code>recordsBufferMonitor</code>.
+   */
+  protected long batchRecordCount = 0;
+  protected long batchByteCount = 0;
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -345,52 +962,93 @@ public class Server11RepositorySession extends RepositorySession {
   }
 
   /**
-   * Batch incoming records until some reasonable threshold (e.g., 50),
-   * some size limit is hit (probably way less than 3MB!), or storeDone
-   * is received.
+   * Batch incoming records until the server's per-POST record or byte limit
+   * would be exceeded, or storeDone is received.
+   * <p>
+   * When uploading in batches, also commit the current batch before the
+   * server's per-batch limits would be exceeded.
+   *
    * @param record
    */
-  protected void enqueue(Record record) {
+  protected void enqueue(final Record record) {
     // JSONify and store the bytes, rather than the record.
     byte[] json = record.toJSONBytes();
     int delta   = json.length;
+
+    // The WBO envelope is small, so we compare the whole record against the
+    // payload limit. Report on the store queue to keep callbacks in order.
+    if (uploadInBatches && (delta > maxRecordBytes)) {
+      Logger.warn(LOG_TAG, "Record " + record.guid + " is " + delta + " bytes; not uploading.");
+      final RepositorySessionStoreDelegate failDelegate = this.delegate;
+      storeWorkQueue.execute(new Runnable() {
+        @Override
+        public void run() {
+          failDelegate.onRecordStoreFailed(new Server11RecordTooLargeException(), record.guid);
+        }
+      });
+      return;
+    }
+
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if (uploadInBatches &&
+          ((batchRecordCount + 1      > maxBatchRecords) ||
+           (batchByteCount + delta    > maxBatchBytes))) {
+
+        // POST and commit the existing contents, then enqueue into a new batch.
+        flush(true);
+      } else if ((byteCount + PER_RECORD_OVERHEAD + delta > maxPostBytes) ||
+                 (recordsBuffer.size() >= maxPostRecords)) {
 
         // POST the existing contents, then enqueue.
-        flush();
+        flush(false);
+      }
+      if (payloadHasher != null) {
+        payloadHasher.update(recordsBuffer.isEmpty() ? recordsStart : recordSeparator);
+        payloadHasher.update(json);
       }
       recordsBuffer.add(json);
       recordGuidsBuffer.add(record.guid);
       byteCount += PER_RECORD_OVERHEAD + delta;
+      batchRecordCount += 1;
+      batchByteCount += delta;
     }
   }
 
   // Asynchronously upload records.
   // Must be locked!
-  protected void flush() {
-    if (recordsBuffer.size() > 0) {
+  protected void flush(boolean commit) {
+    if (recordsBuffer.size() > 0 || commit) {
       final ArrayList<byte[]> outgoing = recordsBuffer;
       final ArrayList<String> outgoingGuids = recordGuidsBuffer;
       RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount));
+      byte[] payloadHash = null;
+      if (payloadHasher != null) {
+        // Must match ByteArraysContentProducer.
+        payloadHasher.update(outgoing.isEmpty() ? recordsEmpty : recordsEnd);
+        payloadHash = payloadHasher.finish();
+      }
+      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount, commit, payloadHash));
 
       recordsBuffer = new ArrayList<byte[]>();
       recordGuidsBuffer = new ArrayList<String>();
       byteCount = PER_BATCH_OVERHEAD;
     }
+    if (commit) {
+      batchRecordCount = 0;
+      batchByteCount = 0;
+    }
   }
 
   @Override
   public void storeDone() {
     Logger.debug(LOG_TAG, "storeDone().");
     synchronized (recordsBufferMonitor) {
-      flush();
+      flush(true);
       // Do this in a Runnable so that the timestamp is grabbed after any upload.
       final Runnable r = new Runnable() {
         @Override
         public void run() {
+          drainUploads();
           synchronized (recordsBufferMonitor) {
             final long end = uploadTimestamp.get();
             Logger.debug(LOG_TAG, "Calling storeDone with " + end);
@@ -402,6 +1060,62 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  @Override
+  public void runAfterQueuedStores(final Runnable command) {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        drainUploads();
+        command.run();
+      }
+    });
+  }
+
+  /**
+   * Wait for uploads in flight, and handle their responses.
+   * <p>
+   * Must be called on the store queue.
+   */
+  protected void drainUploads() {
+    if (uploadQueue != null) {
+      uploadQueue.drain();
+    }
+  }
+
+  /**
+   * Run POSTs on the upload executor, handling their responses on the store
+   * queue in the order the POSTs were queued.
+   * <p>
+   * Responses are handled only as the store queue submits more uploads or
+   * drains, so everything that reads upload state -- the batch ID, the
+   * upload timestamp, <code>recordUploadFailed</code> -- sees uploads
+   * complete in order, just as if they had run one at a time.
+   */
+  private class UploadQueue extends OrderedWorkQueue<RecordUploadRunnable, SyncStorageResponse> {
+    public UploadQueue(ExecutorService executor, int maxPending) {
+      super(executor, maxPending);
+    }
+
+    @Override
+    protected SyncStorageResponse work(RecordUploadRunnable upload) throws Exception {
+      return upload.post();
+    }
+
+    @Override
+    protected void onWorkSucceeded(RecordUploadRunnable upload, SyncStorageResponse response) {
+      if (response.wasSuccessful()) {
+        upload.handleRequestSuccess(response);
+      } else {
+        upload.handleRequestFailure(response);
+      }
+    }
+
+    @Override
+    protected void onWorkFailed(RecordUploadRunnable upload, Exception e) {
+      upload.handleRequestError(e);
+    }
+  }
+
   /**
    * <code>true</code> if a record upload has failed this session.
    * <p>
@@ -411,14 +1125,45 @@ public class Server11RepositorySession extends RepositorySession {
    */
   protected volatile boolean recordUploadFailed;
 
+  /**
+   * <code>true</code> if we should try to upload in server batches.
+   * <p>
+   * Starts out <code>true</code> if the server advertised its limits, and is
+   * cleared by <code>RecordUploadRunnable</code> if the server turns out to
+   * apply each POST as it arrives.
+   */
+  protected volatile boolean batchingSupported;
+
+  /**
+   * The ID of the open server batch, or <code>null</code> if none is open.
+   * <p>
+   * Only accessed by <code>RecordUploadRunnable</code>, which runs serially.
+   */
+  protected String batchID;
+
+  /**
+   * GUIDs the server has accepted into the open batch. We don't report these
+   * as stored until the batch is committed.
+   * <p>
+   * Only accessed by <code>RecordUploadRunnable</code>, which runs serially.
+   */
+  protected ArrayList<String> batchAcceptedGuids = new ArrayList<String>();
+
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     recordUploadFailed = false;
+    batchingSupported = uploadInBatches;
+    batchID = null;
+    batchAcceptedGuids = new ArrayList<String>();
     super.begin(delegate);
   }
 
   /**
    * Make an HTTP request, and convert HTTP request delegate callbacks into
    * store callbacks within the context of this RepositorySession.
+   * <p>
+   * When uploading in batches, records the server accepts are only reported
+   * as stored once the POST that commits their batch succeeds; if any POST in
+   * the batch fails, they are all reported as failed.
    *
    * @author rnewman
    *
@@ -429,17 +1174,38 @@ public class Server11RepositorySession extends RepositorySession {
     private ArrayList<byte[]> outgoing;
     private ArrayList<String> outgoingGuids;
     private long byteCount;
+    private final boolean commit;
+    private final byte[] payloadHash;
+
+    // Whether this POST was sent as part of a batch, and where. Set in run.
+    private boolean batched;
+    private URI uri;
+
+    // Whether the body of the last POST was gzipped.
+    private volatile boolean sentCompressed;
 
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
                                 ArrayList<byte[]> outgoing,
                                 ArrayList<String> outgoingGuids,
                                 long byteCount) {
+      this(storeDelegate, outgoing, outgoingGuids, byteCount, false, null);
+    }
+
+    public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
+                                ArrayList<byte[]> outgoing,
+                                ArrayList<String> outgoingGuids,
+                                long byteCount,
+                                boolean commit,
+                                byte[] payloadHash) {
       Logger.debug(LOG_TAG, "Preparing record upload for " +
                   outgoing.size() + " records (" +
-                  byteCount + " bytes).");
+                  byteCount + " bytes)" +
+                  (commit ? ", committing." : "."));
       this.outgoing = outgoing;
       this.outgoingGuids = outgoingGuids;
       this.byteCount = byteCount;
+      this.commit = commit;
+      this.payloadHash = payloadHash;
     }
 
     @Override
@@ -477,7 +1243,23 @@ public class Server11RepositorySession extends RepositorySession {
         Logger.warn(LOG_TAG, "POST success body does not contain key 'modified': " + body.toJSONString());
       }
 
+      if (batched && !commit && batchID == null) {
+        // We asked to start a batch, but the server applied our records
+        // straight away. It doesn't do batches; stop asking.
+        Logger.info(LOG_TAG, "Server does not support batch uploads.");
+        batchingSupported = false;
+      }
+
+      // Anything the server accepted into the batch is now committed.
+      final ArrayList<String> committedGuids = batchAcceptedGuids;
+      batchAcceptedGuids = new ArrayList<String>();
+      batchID = null;
+
       try {
+        for (String guid : committedGuids) {
+          delegate.onRecordStoreSucceeded(guid);
+        }
+
         JSONArray          success = body.getArray("success");
         if ((success != null) &&
             (success.size() > 0)) {
@@ -490,23 +1272,17 @@ public class Server11RepositorySession extends RepositorySession {
               // Not much to be done.
             }
           }
+        }
 
+        if ((committedGuids.size() > 0) ||
+            ((success != null) && (success.size() > 0))) {
           long normalizedTimestamp = getNormalizedTimestamp(response);
           Logger.trace(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
           bumpUploadTimestamp(normalizedTimestamp);
         }
         success = null; // Want to GC this ASAP.
 
-        ExtendedJSONObject failed  = body.getObject("failed");
-        if ((failed != null) &&
-            (failed.object.size() > 0)) {
-          Logger.debug(LOG_TAG, "Failed records: " + failed.object.toString());
-          Exception ex = new Server11RecordPostFailedException();
-          for (String guid : failed.keySet()) {
-            delegate.onRecordStoreFailed(ex, guid);
-          }
-        }
-        failed = null; // Want to GC this ASAP.
+        handleFailedRecords(body);
       } catch (UnexpectedJSONException e) {
         Logger.error(LOG_TAG, "Got exception processing success/failed in POST success body.", e);
         // TODO
@@ -515,8 +1291,96 @@ public class Server11RepositorySession extends RepositorySession {
       Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records handled.");
     }
 
+    /**
+     * The server accepted this POST into a batch, but hasn't applied it yet.
+     */
+    protected void handleBatchAccepted(SyncStorageResponse response) {
+      ExtendedJSONObject body;
+      try {
+        body = response.jsonObjectBody(); // jsonObjectBody() throws or returns non-null.
+      } catch (Exception e) {
+        Logger.error(LOG_TAG, "Got exception parsing POST accepted body.", e);
+        this.handleRequestError(e);
+        return;
+      }
+
+      if (recordUploadFailed) {
+        // An earlier POST in this batch failed while this one was in flight.
+        // The server will never commit what it just accepted.
+        try {
+          JSONArray success = body.getArray("success");
+          if (success != null) {
+            Exception ex = new Server11BatchFailedException();
+            for (Object o : success) {
+              if (o instanceof String) {
+                delegate.onRecordStoreFailed(ex, (String) o);
+              }
+            }
+          }
+        } catch (UnexpectedJSONException e) {
+          Logger.error(LOG_TAG, "Got exception processing success in POST accepted body.", e);
+        }
+        return;
+      }
+
+      Object id = body.get("batch");
+      if (id == null) {
+        Logger.warn(LOG_TAG, "POST accepted body does not contain key 'batch': " + body.toJSONString());
+        this.handleRequestError(new HTTPFailureException(response));
+        return;
+      }
+      if (batchID == null) {
+        batchID = id.toString();
+        Logger.debug(LOG_TAG, "Started batch " + batchID + ".");
+      }
+
+      try {
+        JSONArray success = body.getArray("success");
+        if (success != null) {
+          for (Object o : success) {
+            if (o instanceof String) {
+              batchAcceptedGuids.add((String) o);
+            }
+          }
+        }
+        handleFailedRecords(body);
+      } catch (UnexpectedJSONException e) {
+        Logger.error(LOG_TAG, "Got exception processing success/failed in POST accepted body.", e);
+        this.handleRequestError(e);
+        return;
+      }
+      Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records accepted into batch " + batchID + ".");
+    }
+
+    protected void handleFailedRecords(ExtendedJSONObject body) throws UnexpectedJSONException {
+      ExtendedJSONObject failed  = body.getObject("failed");
+      if ((failed != null) &&
+          (failed.object.size() > 0)) {
+        Logger.debug(LOG_TAG, "Failed records: " + failed.object.toString());
+        Exception ex = new Server11RecordPostFailedException();
+        for (String guid : failed.keySet()) {
+          delegate.onRecordStoreFailed(ex, guid);
+        }
+      }
+    }
+
     @Override
     public void handleRequestFailure(SyncStorageResponse response) {
+      if (sentCompressed && isCompressionRejected(response)) {
+        Logger.info(LOG_TAG, "Server rejected compressed POST; retrying uncompressed.");
+        serverRepository.compressUploads = false;
+        BaseResource.consumeEntity(response);
+
+        SyncStorageRequest request = new SyncStorageRequest(uri);
+        request.delegate = this;
+        sentCompressed = false;
+        request.post(getBodyEntity());
+        return;
+      }
+      if (batched && response.getStatusCode() == 202) {
+        this.handleBatchAccepted(response);
+        return;
+      }
       // TODO: call session.interpretHTTPFailure.
       this.handleRequestError(new HTTPFailureException(response));
     }
@@ -531,6 +1395,17 @@ public class Server11RepositorySession extends RepositorySession {
       for (String guid : failedOutgoingGuids) {
         delegate.onRecordStoreFailed(ex, guid);
       }
+
+      // The server won't apply what it accepted into this batch.
+      final ArrayList<String> discardedGuids = batchAcceptedGuids;
+      batchAcceptedGuids = new ArrayList<String>();
+      batchID = null;
+      if (discardedGuids.size() > 0) {
+        Exception batchEx = new Server11BatchFailedException();
+        for (String guid : discardedGuids) {
+          delegate.onRecordStoreFailed(batchEx, guid);
+        }
+      }
       return;
     }
 
@@ -544,6 +1419,11 @@ public class Server11RepositorySession extends RepositorySession {
       @Override
       public void writeTo(OutputStream outstream) throws IOException {
         int count = outgoing.size();
+        if (count == 0) {
+          // Committing a batch without adding to it.
+          outstream.write(recordsEmpty);
+          return;
+        }
         outstream.write(recordsStart);
         outstream.write(outgoing.get(0));
         for (int i = 1; i < count; ++i) {
@@ -554,15 +1434,27 @@ public class Server11RepositorySession extends RepositorySession {
       }
     }
 
-    public class ByteArraysEntity extends EntityTemplate {
+    public class ByteArraysEntity extends EntityTemplate implements PayloadHashedEntity {
       private long count;
+      private final byte[] hash;
+
       public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes) {
+        this(arrays, totalBytes, null);
+      }
+
+      public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes, byte[] hash) {
         super(new ByteArraysContentProducer(arrays));
         this.count = totalBytes;
-        this.setContentType("application/json");
+        this.hash = hash;
+        this.setContentType(UPLOAD_CONTENT_TYPE);
         // charset is set in BaseResource.
       }
 
+      @Override
+      public byte[] getPayloadHash() {
+        return hash;
+      }
+
       @Override
       public long getContentLength() {
         return count;
@@ -575,12 +1467,102 @@ public class Server11RepositorySession extends RepositorySession {
     }
 
     public ByteArraysEntity getBodyEntity() {
-      ByteArraysEntity body = new ByteArraysEntity(outgoing, byteCount);
+      ByteArraysEntity body = new ByteArraysEntity(outgoing, byteCount, payloadHash);
       return body;
     }
 
+    /**
+     * @return the body to POST, gzipped if the repository asks for it.
+     * @throws IOException
+     */
+    protected HttpEntity getRequestEntity() throws IOException {
+      sentCompressed = serverRepository != null && serverRepository.compressUploads;
+      if (!sentCompressed) {
+        return getBodyEntity();
+      }
+      return HttpCompression.gzipEntity(getBodyEntity());
+    }
+
+    /**
+     * A server that can't decode our Content-Encoding either says so, or
+     * fails to parse the body as JSON.
+     */
+    protected boolean isCompressionRejected(SyncStorageResponse response) {
+      final int status = response.getStatusCode();
+      if (status == 415) {
+        return true;
+      }
+      if (status != 400) {
+        return false;
+      }
+      try {
+        return "6".equals(response.body().trim());
+      } catch (Exception e) {
+        return false;
+      }
+    }
+
+    /**
+     * Make the request, returning the response with its body read.
+     * <p>
+     * Called on an upload thread; the caller handles the response.
+     */
+    protected SyncStorageResponse post() throws Exception {
+      final SyncStorageResponse[] result = new SyncStorageResponse[1];
+      final Exception[] error = new Exception[1];
+
+      SyncStorageRequest request = new SyncStorageRequest(uri);
+      request.delegate = new SyncStorageRequestDelegate() {
+        @Override
+        public AuthHeaderProvider getAuthHeaderProvider() {
+          return serverRepository.getAuthHeaderProvider();
+        }
+
+        @Override
+        public String ifUnmodifiedSince() {
+          return null;
+        }
+
+        @Override
+        public void handleRequestSuccess(SyncStorageResponse response) {
+          capture(response);
+        }
+
+        @Override
+        public void handleRequestFailure(SyncStorageResponse response) {
+          capture(response);
+        }
+
+        protected void capture(SyncStorageResponse response) {
+          try {
+            response.body(); // Read and cache the body before the connection goes back to the pool.
+            result[0] = response;
+          } catch (Exception e) {
+            error[0] = e;
+          }
+        }
+
+        @Override
+        public void handleRequestError(Exception ex) {
+          error[0] = ex;
+        }
+      };
+      request.post(getRequestEntity());
+
+      if (error[0] != null) {
+        throw error[0];
+      }
+      return result[0];
+    }
+
     @Override
     public void run() {
+      // Make sure the server has everything we've sent before we commit a
+      // batch, and that we know the batch ID before we add to it.
+      if (batchingSupported && (batchID == null || commit)) {
+        drainUploads();
+      }
+
       if (recordUploadFailed) {
         Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
         Exception ex = new Server11PreviousPostFailedException();
@@ -590,21 +1572,46 @@ public class Server11RepositorySession extends RepositorySession {
         return;
       }
 
-      if (outgoing == null ||
-          outgoing.size() == 0) {
+      batched = batchingSupported;
+      final boolean committingOpenBatch = batched && commit && (batchID != null);
+      if ((outgoing == null ||
+           outgoing.size() == 0) &&
+          !committingOpenBatch) {
         Logger.debug(LOG_TAG, "No items: RecordUploadRunnable returning immediately.");
         return;
       }
 
-      URI u = serverRepository.collectionURI();
-      SyncStorageRequest request = new SyncStorageRequest(u);
+      if (batched) {
+        try {
+          uri = serverRepository.batchURI(batchID, commit);
+        } catch (URISyntaxException e) {
+          this.handleRequestError(e);
+          return;
+        }
+      } else {
+        uri = serverRepository.collectionURI();
+      }
+
+      if (uploadQueue != null) {
+        // Returns once there is room in the upload window.
+        uploadQueue.submit(this);
+        return;
+      }
+
+      SyncStorageRequest request = new SyncStorageRequest(uri);
 
       request.delegate = this;
 
       // We don't want the task queue to proceed until this request completes.
       // Fortunately, BaseResource is currently synchronous.
       // If that ever changes, you'll need to block here.
-      ByteArraysEntity body = getBodyEntity();
+      HttpEntity body;
+      try {
+        body = getRequestEntity();
+      } catch (IOException e) {
+        this.handleRequestError(e);
+        return;
+      }
       request.post(body);
     }
   }
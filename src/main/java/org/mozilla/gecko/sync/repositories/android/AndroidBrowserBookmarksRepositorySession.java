@@ -250,6 +250,17 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
 
     dbHelper = new AndroidBrowserBookmarksDataAccessor(context);
     dataAccessor = (AndroidBrowserBookmarksDataAccessor) dbHelper;
+    recordIndex = new RecordStringIndex(context, "bookmarks");
+  }
+
+  /**
+   * Record strings include the parent's name and the bookmark's position,
+   * which change when a folder is renamed or its children reordered without
+   * touching the children's modified times.
+   */
+  @Override
+  protected boolean canCatchUpRecordIndex() {
+    return false;
   }
 
   private static int getTypeFromCursor(Cursor cur) {
@@ -886,6 +897,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     final boolean isFolder = existingBookmark.isFolder();
     final String parentGUID = existingBookmark.parentID;
     deletionManager.deleteRecord(bookmarkRecord.guid, isFolder, parentGUID);
+    removeFromRecordIndex(bookmarkRecord.guid);
   }
 
   protected void flushQueues() {
@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.json.simple.JSONArray;
@@ -25,6 +26,13 @@ public class AndroidBrowserHistoryDataAccessor extends
 
   private AndroidBrowserHistoryDataExtender dataExtender;
 
+  /**
+   * Visit changes waiting for the next <code>flushWrites</code>: new visits
+   * for each GUID, or <code>null</code> to delete the GUID's visits. Applied
+   * once the history writes they accompany have been.
+   */
+  private final LinkedHashMap<String, JSONArray> pendingVisits = new LinkedHashMap<String, JSONArray>();
+
   public AndroidBrowserHistoryDataAccessor(Context context) {
     super(context);
     dataExtender = new AndroidBrowserHistoryDataExtender(context);
@@ -72,29 +80,82 @@ public class AndroidBrowserHistoryDataAccessor extends
   @Override
   public Uri insert(Record record) {
     HistoryRecord rec = (HistoryRecord) record;
-    Logger.debug(LOG_TAG, "Storing visits for " + record.guid);
+    Logger.debugf(LOG_TAG, "Storing visits for %s", record.guid);
     dataExtender.store(record.guid, rec.visits);
-    Logger.debug(LOG_TAG, "Storing record " + record.guid);
+    Logger.debugf(LOG_TAG, "Storing record %s", record.guid);
     return super.insert(record);
   }
 
   @Override
-  public void update(String oldGUID, Record newRecord) {
+  public synchronized void update(String oldGUID, Record newRecord) {
     HistoryRecord rec = (HistoryRecord) newRecord;
     String newGUID = newRecord.guid;
     Logger.debug(LOG_TAG, "Storing visits for " + newGUID + ", replacing " + oldGUID);
-    dataExtender.delete(oldGUID);
-    dataExtender.store(newGUID, rec.visits);
+    if (writeBatch != null) {
+      pendingVisits.put(oldGUID, null);
+      pendingVisits.remove(newGUID);
+      pendingVisits.put(newGUID, rec.visits == null ? new JSONArray() : rec.visits);
+    } else {
+      dataExtender.delete(oldGUID);
+      dataExtender.store(newGUID, rec.visits);
+    }
     super.update(oldGUID, newRecord);
   }
 
   @Override
-  public int purgeGuid(String guid) {
+  public synchronized int purgeGuid(String guid) {
     Logger.debug(LOG_TAG, "Purging record with " + guid);
-    dataExtender.delete(guid);
+    if (writeBatch != null) {
+      pendingVisits.remove(guid);
+      pendingVisits.put(guid, null);
+    } else {
+      dataExtender.delete(guid);
+    }
     return super.purgeGuid(guid);
   }
 
+  @Override
+  protected ContentWriteBatch createWriteBatch() {
+    return new ContentWriteBatch(context.getContentResolver(), getUri().getAuthority(), Integer.MAX_VALUE) {
+      @Override
+      protected void onBatchApplied() {
+        applyPendingVisits();
+      }
+    };
+  }
+
+  /**
+   * Apply queued visit changes in one extension database transaction. Only
+   * called once the history writes they accompany have been applied, so
+   * that we never record visits for a history write that failed.
+   */
+  protected synchronized void applyPendingVisits() {
+    if (pendingVisits.isEmpty()) {
+      return;
+    }
+    try {
+      dataExtender.bulkUpdate(pendingVisits);
+    } finally {
+      pendingVisits.clear();
+    }
+  }
+
+  /**
+   * Apply queued history writes in one batch, then their visit changes.
+   */
+  @Override
+  public synchronized void flushWrites() {
+    super.flushWrites();
+    // If the batch failed, its visit changes are dropped along with it.
+    pendingVisits.clear();
+  }
+
+  @Override
+  public synchronized void discardWrites(Exception reason) {
+    pendingVisits.clear();
+    super.discardWrites(reason);
+  }
+
   public void closeExtender() {
     dataExtender.close();
   }
@@ -4,11 +4,18 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.android.HistoryVisitsCodec.Visits;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
 import android.content.ContentValues;
@@ -17,13 +24,22 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
+/**
+ * Stores the Sync visits of each history item, which Fennec doesn't keep.
+ * <p>
+ * Since schema version 2, visits are stored in the compact binary form of
+ * {@link HistoryVisitsCodec}, keeping at most {@link #MAX_STORED_VISITS} per
+ * item. Version 1 stored them as JSON text; those rows are converted when the
+ * database is upgraded.
+ */
 public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
   public static final String LOG_TAG = "SyncHistoryVisits";
 
   // Database Specifications.
   protected static final String DB_NAME = "history_extension_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
+  protected static final int SCHEMA_VERSION_JSON_VISITS = 1;
 
   // History Table.
   public static final String   TBL_HISTORY_EXT = "HistoryExtension";
@@ -32,6 +48,20 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   public static final String   COL_VISITS = "visits";
   public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS };
 
+  // Version 1 rows are moved here while they are converted.
+  protected static final String TBL_HISTORY_EXT_JSON = "HistoryExtensionJSON";
+
+  /**
+   * The number of most recent visits to keep for each history item.
+   */
+  public static final int MAX_STORED_VISITS = 100;
+
+  /**
+   * The number of GUIDs to look up in each query; well under SQLite's limit
+   * on bound parameters.
+   */
+  public static final int FETCH_VISITS_BATCH_SIZE = 100;
+
   private final RepoUtils.QueryHelper queryHelper;
 
   public AndroidBrowserHistoryDataExtender(Context context) {
@@ -43,17 +73,72 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   public void onCreate(SQLiteDatabase db) {
     String createTableSql = "CREATE TABLE " + TBL_HISTORY_EXT + " ("
         + COL_GUID + " TEXT PRIMARY KEY, "
-        + COL_VISITS + " TEXT)";
+        + COL_VISITS + " BLOB)";
     db.execSQL(createTableSql);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // For now we'll just drop and recreate the tables.
+    if (oldVersion == SCHEMA_VERSION_JSON_VISITS && newVersion == SCHEMA_VERSION) {
+      try {
+        convertJSONVisits(db);
+        return;
+      } catch (SQLException e) {
+        Logger.error(LOG_TAG, "Couldn't convert stored visits; discarding them.", e);
+      }
+    }
+    // Otherwise we'll just drop and recreate the tables.
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT_JSON);
     db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
     onCreate(db);
   }
 
+  /**
+   * Convert version 1 rows, which hold visits as JSON text, to the binary
+   * encoding, keeping at most {@link #getMaxStoredVisits()} per item.
+   */
+  protected void convertJSONVisits(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + TBL_HISTORY_EXT + " RENAME TO " + TBL_HISTORY_EXT_JSON);
+    onCreate(db);
+
+    int converted = 0;
+    Cursor cur = db.query(TBL_HISTORY_EXT_JSON, TBL_COLUMNS, null, null, null, null, null);
+    try {
+      final int guidIndex = cur.getColumnIndexOrThrow(COL_GUID);
+      final int visitsIndex = cur.getColumnIndexOrThrow(COL_VISITS);
+      ContentValues cv = new ContentValues();
+      while (cur.moveToNext()) {
+        final String guid = cur.getString(guidIndex);
+        final String json = cur.getString(visitsIndex);
+        if (guid == null) {
+          continue;
+        }
+        final Visits visits = HistoryVisitsCodec.decode(json == null ? null : json.getBytes("UTF-8"));
+        cv.clear();
+        cv.put(COL_GUID, guid);
+        cv.put(COL_VISITS, HistoryVisitsCodec.encode(visits.visits, getMaxStoredVisits()));
+        db.insert(TBL_HISTORY_EXT, null, cv);
+        converted++;
+      }
+    } catch (UnsupportedEncodingException e) {
+      // Never happens.
+      throw new IllegalStateException(e);
+    } finally {
+      cur.close();
+    }
+    db.execSQL("DROP TABLE " + TBL_HISTORY_EXT_JSON);
+    Logger.info(LOG_TAG, "Converted stored visits for " + converted + " history items.");
+  }
+
+  /**
+   * Override this in tests to store fewer visits.
+   *
+   * @return the number of most recent visits to keep for each history item.
+   */
+  protected int getMaxStoredVisits() {
+    return MAX_STORED_VISITS;
+  }
+
   public void wipe() {
     SQLiteDatabase db = this.getCachedWritableDatabase();
     onUpgrade(db, SCHEMA_VERSION, SCHEMA_VERSION);
@@ -72,11 +157,7 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   protected void store(SQLiteDatabase db, String guid, JSONArray visits) {
     ContentValues cv = new ContentValues();
     cv.put(COL_GUID, guid);
-    if (visits == null) {
-      cv.put(COL_VISITS, "[]");
-    } else {
-      cv.put(COL_VISITS, visits.toJSONString());
-    }
+    cv.put(COL_VISITS, HistoryVisitsCodec.encode(visits, getMaxStoredVisits()));
 
     String[] args = new String[] { guid };
     int rowsUpdated = db.update(TBL_HISTORY_EXT, cv, GUID_IS, args);
@@ -122,6 +203,35 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
     }
   }
 
+  /**
+   * Store or delete visit data for many GUIDs in a single database
+   * transaction.
+   *
+   * @param changes
+   *          map from GUID to new visits data, or to <code>null</code> to
+   *          delete the GUID's row.
+   */
+  public void bulkUpdate(Map<String, JSONArray> changes) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+
+      for (Entry<String, JSONArray> change : changes.entrySet()) {
+        if (change.getValue() == null) {
+          db.delete(TBL_HISTORY_EXT, GUID_IS, new String[] { change.getKey() });
+        } else {
+          store(db, change.getKey(), change.getValue());
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } catch (SQLException e) {
+      Logger.error(LOG_TAG, "Caught exception in bulkUpdate of history visits.", e);
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   /**
    * Fetch a row.
    *
@@ -139,25 +249,78 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   }
 
   public JSONArray visitsForGUID(String guid) throws NullCursorException {
+    return fetchVisits(guid).visits;
+  }
+
+  /**
+   * Fetch the stored visits for one history item.
+   *
+   * @param guid the GUID of the item.
+   * @return the item's visits; empty if none are stored.
+   * @throws NullCursorException
+   */
+  public Visits fetchVisits(String guid) throws NullCursorException {
     if (guid == null) {
       Logger.warn(LOG_TAG, "Asked for visits for null GUID.");
-      return new JSONArray();
+      return Visits.empty();
     }
 
-    Logger.debug(LOG_TAG, "Fetching visits for GUID " + guid);
+    Logger.debugf(LOG_TAG, "Fetching visits for GUID %s", guid);
     Cursor visits = fetch(guid);
     try {
       if (!visits.moveToFirst()) {
         // Cursor is empty.
-        return new JSONArray();
+        return Visits.empty();
       } else {
-        return RepoUtils.getJSONArrayFromCursor(visits, COL_VISITS);
+        return HistoryVisitsCodec.decode(visits.getBlob(visits.getColumnIndexOrThrow(COL_VISITS)));
       }
     } finally {
       visits.close();
     }
   }
 
+  /**
+   * Fetch the stored visits for many history items, a batch of GUIDs per
+   * query.
+   *
+   * @param guids the GUIDs of the items.
+   * @return a map from GUID to visits, containing only GUIDs with stored
+   *         visits.
+   * @throws NullCursorException
+   */
+  public Map<String, Visits> fetchVisits(Collection<String> guids) throws NullCursorException {
+    final HashMap<String, Visits> out = new HashMap<String, Visits>(guids.size());
+    final SQLiteDatabase db = this.getCachedReadableDatabase();
+    final Iterator<String> it = guids.iterator();
+    while (it.hasNext()) {
+      final ArrayList<String> batch = new ArrayList<String>(FETCH_VISITS_BATCH_SIZE);
+      while (it.hasNext() && batch.size() < FETCH_VISITS_BATCH_SIZE) {
+        final String guid = it.next();
+        if (guid != null) {
+          batch.add(guid);
+        }
+      }
+      if (batch.isEmpty()) {
+        continue;
+      }
+
+      final String where = RepoUtils.computeSQLInClause(batch.size(), COL_GUID);
+      final String[] args = batch.toArray(new String[batch.size()]);
+      final Cursor cur = queryHelper.safeQuery(db, ".fetchVisits", TBL_HISTORY_EXT, TBL_COLUMNS, where, args);
+      try {
+        final int guidIndex = cur.getColumnIndexOrThrow(COL_GUID);
+        final int visitsIndex = cur.getColumnIndexOrThrow(COL_VISITS);
+        while (cur.moveToNext()) {
+          out.put(cur.getString(guidIndex), HistoryVisitsCodec.decode(cur.getBlob(visitsIndex)));
+        }
+      } finally {
+        cur.close();
+      }
+    }
+    Logger.debug(LOG_TAG, "Fetched visits for " + out.size() + " of " + guids.size() + " GUIDs.");
+    return out;
+  }
+
   /**
    * Delete a row.
    *
@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -16,6 +17,7 @@ import org.mozilla.gecko.sync.repositories.NoGuidForIdException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.ParentNotFoundException;
 import org.mozilla.gecko.sync.repositories.Repository;
+import org.mozilla.gecko.sync.repositories.android.HistoryVisitsCodec.Visits;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
@@ -36,9 +38,16 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
    */
   public static int INSERT_RECORD_THRESHOLD = 50;
 
+  /**
+   * The number of updates and deletions to queue before writing to databases.
+   */
+  public static int WRITE_BATCH_THRESHOLD = 50;
+
   public AndroidBrowserHistoryRepositorySession(Repository repository, Context context) {
     super(repository);
     dbHelper = new AndroidBrowserHistoryDataAccessor(context);
+    dbHelper.batchWrites(WRITE_BATCH_THRESHOLD);
+    recordIndex = new RecordStringIndex(context, "history");
   }
 
   @Override
@@ -81,9 +90,38 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return !RepoUtils.isValidHistoryURI(r.histURI);
   }
 
+  /**
+   * The number of fetched records whose visits we look up together.
+   */
+  public static final int FETCH_VISITS_BATCH_SIZE = 50;
+
   @Override
   protected Record transformRecord(Record record) throws NullCursorException {
-    return addVisitsToRecord(record);
+    Logger.debugf(LOG_TAG, "Adding visits for GUID %s", record.guid);
+    return addVisitsToRecord((HistoryRecord) record, getDataExtender().fetchVisits(record.guid));
+  }
+
+  @Override
+  protected ArrayList<Record> transformRecords(ArrayList<Record> records) throws NullCursorException {
+    if (records.size() == 1) {
+      return super.transformRecords(records);
+    }
+    final ArrayList<String> guids = new ArrayList<String>(records.size());
+    for (Record record : records) {
+      guids.add(record.guid);
+    }
+    final Map<String, Visits> visits = getDataExtender().fetchVisits(guids);
+    final ArrayList<Record> out = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      final Visits recordVisits = visits.get(record.guid);
+      out.add(addVisitsToRecord((HistoryRecord) record, recordVisits == null ? Visits.empty() : recordVisits));
+    }
+    return out;
+  }
+
+  @Override
+  protected int getFetchTransformBatchSize() {
+    return FETCH_VISITS_BATCH_SIZE;
   }
 
   @SuppressWarnings("unchecked")
@@ -102,11 +140,12 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return ((AndroidBrowserHistoryDataAccessor) dbHelper).getHistoryDataExtender();
   }
 
-  private Record addVisitsToRecord(Record record) throws NullCursorException {
-    Logger.debug(LOG_TAG, "Adding visits for GUID " + record.guid);
-    HistoryRecord hist = (HistoryRecord) record;
-    JSONArray visitsArray = getDataExtender().visitsForGUID(hist.guid);
-    long missingRecords = hist.fennecVisitCount - visitsArray.size();
+  private Record addVisitsToRecord(HistoryRecord hist, Visits visits) {
+    JSONArray visitsArray = visits.visits;
+
+    // Compare against every visit we were given, not just those we kept, so
+    // that dropped visits aren't replaced with fakes.
+    long missingRecords = hist.fennecVisitCount - visits.count;
 
     // Note that Fennec visit times are milliseconds, and we are working
     // in microseconds. This is the point at which we translate.
@@ -138,6 +177,9 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
 
   @Override
   public void abort() {
+    // Record index preparation reads through dbHelper.
+    closeRecordIndex();
+    discardQueuedWrites();
     if (dbHelper != null) {
       ((AndroidBrowserHistoryDataAccessor) dbHelper).closeExtender();
       dbHelper = null;
@@ -147,6 +189,8 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
 
   @Override
   public void finish(final RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    closeRecordIndex();
+    discardQueuedWrites();
     if (dbHelper != null) {
       ((AndroidBrowserHistoryDataAccessor) dbHelper).closeExtender();
       dbHelper = null;
@@ -154,6 +198,22 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     super.finish(delegate);
   }
 
+  /**
+   * Also drop records waiting to be inserted.
+   */
+  @Override
+  protected void discardQueuedWrites() {
+    final ArrayList<HistoryRecord> discarded;
+    synchronized (recordsBufferMonitor) {
+      discarded = recordsBuffer;
+      recordsBuffer = new ArrayList<HistoryRecord>();
+    }
+    for (HistoryRecord record : discarded) {
+      delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+    }
+    super.discardQueuedWrites();
+  }
+
   protected Object recordsBufferMonitor = new Object();
   protected ArrayList<HistoryRecord> recordsBuffer = new ArrayList<HistoryRecord>();
 
@@ -185,7 +245,7 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
       if (recordsBuffer.size() >= INSERT_RECORD_THRESHOLD) {
         flushNewRecords();
       }
-      Logger.debug(LOG_TAG, "Enqueuing new record with GUID " + record.guid);
+      Logger.debugf(LOG_TAG, "Enqueuing new record with GUID %s", record.guid);
       recordsBuffer.add(record);
     }
   }
@@ -12,6 +12,18 @@ import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDe
 import android.content.Context;
 
 public abstract class AndroidBrowserRepository extends Repository {
+  /**
+   * If true, sessions catch up their record index on a background thread as
+   * soon as they are given a store delegate, rather than when they first
+   * store a record.
+   */
+  public boolean prepareRecordIndexInBackground = false;
+
+  /**
+   * The most incoming records whose local counterparts sessions look up in
+   * a single query. If 1, sessions query once per record.
+   */
+  public int storeLookupWindow = 1;
 
   @Override
   public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
@@ -10,8 +10,10 @@ import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.db.CursorDumper;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.android.ContentWriteBatch.WriteCallback;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -24,11 +26,90 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
   protected static String LOG_TAG = "BrowserDataAccessor";
   protected final RepoUtils.QueryHelper queryHelper;
 
+  /**
+   * If non-null, <code>update</code> and <code>purgeGuid</code> queue their
+   * writes here rather than applying them immediately.
+   */
+  protected ContentWriteBatch writeBatch;
+  protected int writeBatchThreshold;
+
   public AndroidBrowserRepositoryDataAccessor(Context context) {
     this.context = context;
     this.queryHelper = new RepoUtils.QueryHelper(context, getUri(), LOG_TAG);
   }
 
+  /**
+   * Queue subsequent updates and deletions, and apply them together once
+   * <code>threshold</code> have accumulated or <code>flushWrites</code> is
+   * called.
+   * <p>
+   * Use <code>whenWritesApplied</code> to learn whether queued writes
+   * succeeded. Only call the write methods of a batching accessor from a
+   * single thread.
+   */
+  public void batchWrites(int threshold) {
+    writeBatch = createWriteBatch();
+    writeBatchThreshold = threshold;
+  }
+
+  protected ContentWriteBatch createWriteBatch() {
+    // We decide when to flush, so that subclasses can flush related writes too.
+    return new ContentWriteBatch(context.getContentResolver(), getUri().getAuthority(), Integer.MAX_VALUE);
+  }
+
+  protected void flushWritesIfNeeded() {
+    if (writeBatch != null && writeBatch.size() >= writeBatchThreshold) {
+      flushWrites();
+    }
+  }
+
+  /**
+   * Apply any queued writes.
+   */
+  public void flushWrites() {
+    if (writeBatch != null) {
+      writeBatch.flush();
+    }
+  }
+
+  /**
+   * Invoke <code>callback</code> once every write made so far has been
+   * applied; immediately, if writes are not being batched.
+   */
+  public void whenWritesApplied(WriteCallback callback) {
+    if (writeBatch == null) {
+      callback.onWriteSucceeded(null);
+      return;
+    }
+    writeBatch.whenApplied(callback);
+  }
+
+  /**
+   * Discard any queued writes, telling <code>whenWritesApplied</code>
+   * callbacks that they failed with <code>reason</code>.
+   */
+  public void discardWrites(Exception reason) {
+    if (writeBatch != null) {
+      writeBatch.discard(reason);
+    }
+  }
+
+  protected WriteCallback warnUnlessOneRow(final String action, final String guid) {
+    return new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        if (result != null && result.count != null && result.count.intValue() != 1) {
+          Logger.warn(LOG_TAG, "Unexpectedly " + action + " " + result.count + " rows for guid " + guid);
+        }
+      }
+
+      @Override
+      public void onWriteFailed(Exception e) {
+        // Reported through whenWritesApplied.
+      }
+    };
+  }
+
   protected abstract String[] getAllColumns();
 
   /**
@@ -84,12 +165,18 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
    *
    * @param guid
    *          The GUID of the record to be deleted.
-   * @return The number of records deleted.
+   * @return The number of records deleted, or -1 if the deletion was queued.
    */
   public int purgeGuid(String guid) {
     String where  = BrowserContract.SyncColumns.GUID + " = ?";
     String[] args = new String[] { guid };
 
+    if (writeBatch != null) {
+      writeBatch.delete(getUri(), where, args, warnUnlessOneRow("deleted", guid));
+      flushWritesIfNeeded();
+      return -1;
+    }
+
     int deleted = context.getContentResolver().delete(getUri(), where, args);
     if (deleted != 1) {
       Logger.warn(LOG_TAG, "Unexpectedly deleted " + deleted + " records for guid " + guid);
@@ -101,6 +188,11 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
     String where  = BrowserContract.SyncColumns.GUID + " = ?";
     String[] args = new String[] { guid };
     ContentValues cv = getContentValues(newRecord);
+    if (writeBatch != null) {
+      writeBatch.update(getUri(), cv, where, args, warnUnlessOneRow("updated", guid));
+      flushWritesIfNeeded();
+      return;
+    }
     int updated = context.getContentResolver().update(getUri(), cv, where, args);
     if (updated != 1) {
       Logger.warn(LOG_TAG, "Unexpectedly updated " + updated + " rows for guid " + guid);
@@ -140,6 +232,17 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
                                  null, null);
   }
 
+  /**
+   * Check whether any record has been modified since the provided timestamp,
+   * without fetching the records themselves.
+   *
+   * @param timestamp A timestamp in milliseconds.
+   * @throws NullCursorException
+   */
+  public boolean hasChangesSince(long timestamp) throws NullCursorException {
+    return queryHelper.hasMatchingRow(".hasChangesSince", GUID_COLUMNS, dateModifiedWhere(timestamp));
+  }
+
   /**
    * Fetch records modified since the provided timestamp.
    * <p>
@@ -5,8 +5,16 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidRequestException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
@@ -19,17 +27,19 @@ import org.mozilla.gecko.sync.repositories.ProfileDatabaseException;
 import org.mozilla.gecko.sync.repositories.RecordFilter;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
+import org.mozilla.gecko.sync.repositories.android.ContentWriteBatch.WriteCallback;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.database.Cursor;
 import android.net.Uri;
-import android.util.SparseArray;
 
 /**
  * You'll notice that all delegate calls *either*:
@@ -61,17 +71,60 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   /**
    * In order to reconcile the "same record" with two *different* GUIDs (for
    * example, the same bookmark created by two different clients), we maintain a
-   * mapping for each local record from a "record string" to
+   * persistent index for each local record from a "record string" to
    * "local record GUID".
    * <p>
    * The "record string" above is a "record identifying unique key" produced by
    * <code>buildRecordString</code>.
    * <p>
-   * Since we hash each "record string", this map may produce a false positive.
-   * In this case, we search the database for a matching record explicitly using
-   * <code>findByRecordString</code>.
+   * The index is kept up to date as we store records, and caught up with
+   * records modified outside of Sync the first time we need it in a session.
+   * Subclasses must set this in their constructor.
    */
-  protected SparseArray<String> recordToGuid;
+  protected RecordStringIndex recordIndex;
+
+  /**
+   * True once <code>recordIndex</code> has been caught up this session.
+   */
+  protected boolean recordIndexPrepared = false;
+
+  /**
+   * Non-null while <code>recordIndex</code> is being caught up in the
+   * background.
+   */
+  protected volatile FutureTask<Void> recordIndexPreparation;
+
+  /**
+   * Set to stop any catch-up of <code>recordIndex</code> in progress, because
+   * the index is about to be closed or cleared.
+   */
+  protected volatile boolean recordIndexAbandoned = false;
+
+  /**
+   * If true, start catching up <code>recordIndex</code> in the background as
+   * soon as we're given a store delegate, rather than when we first need it.
+   */
+  protected boolean prepareRecordIndexInBackground = false;
+
+  /**
+   * The most incoming records whose local counterparts we look up by GUID
+   * in a single query. If 1, we query once per record.
+   */
+  protected int storeLookupWindow = 1;
+
+  /**
+   * GUIDs of records passed to <code>store</code> that have not yet been
+   * looked up. Only used if <code>storeLookupWindow</code> is greater than 1.
+   */
+  protected final ConcurrentLinkedQueue<String> pendingStoreGUIDs = new ConcurrentLinkedQueue<String>();
+
+  /**
+   * Local records for GUIDs that have been looked up but not yet stored to,
+   * or <code>null</code> if there is no local record with that GUID. Only
+   * accessed on the store thread.
+   */
+  protected final HashMap<String, Record> prefetchedByGUID = new HashMap<String, Record>();
+  protected final HashSet<String> prefetchedMultiple = new HashSet<String>();
 
   public AndroidBrowserRepositorySession(Repository repository) {
     super(repository);
@@ -141,6 +194,33 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     return record;
   }
 
+  /**
+   * Transform a batch of fetched records, as {@link #transformRecord(Record)}
+   * would each one. Override to look up the expensive fields of the whole
+   * batch at once.
+   *
+   * @param records
+   *        The records to transform, in fetch order.
+   * @return The transformed records, in the same order.
+   * @throws NullCursorException
+   */
+  protected ArrayList<Record> transformRecords(ArrayList<Record> records) throws NullCursorException {
+    final ArrayList<Record> out = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      out.add(transformRecord(record));
+    }
+    return out;
+  }
+
+  /**
+   * @return the number of fetched records to hand to
+   *         {@link #transformRecords(ArrayList)} at once.
+   */
+  @SuppressWarnings("static-method")
+  protected int getFetchTransformBatchSize() {
+    return 1;
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
@@ -163,16 +243,118 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       return;
     }
     storeTracker = createStoreTracker();
+    if (repository instanceof AndroidBrowserRepository) {
+      final AndroidBrowserRepository browserRepository = (AndroidBrowserRepository) repository;
+      storeLookupWindow = browserRepository.storeLookupWindow;
+      prepareRecordIndexInBackground = browserRepository.prepareRecordIndexInBackground;
+    }
     deferredDelegate.onBeginSucceeded(this);
   }
 
+  /**
+   * We have data to upload if any local record has been modified since the
+   * last sync. This is a single query for at most one row, so an idle sync
+   * costs almost nothing. If in doubt, we sync.
+   */
+  @Override
+  public boolean dataAvailable() {
+    if (lastSyncTimestamp <= 0) {
+      return true;
+    }
+    try {
+      final boolean changed = dbHelper.hasChangesSince(lastSyncTimestamp);
+      Logger.debug(LOG_TAG, "Local " + (changed ? "changes" : "no changes") + " since " + lastSyncTimestamp + ".");
+      return changed;
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check for local changes; assuming some.", e);
+      return true;
+    }
+  }
+
+  /**
+   * We're only given a store delegate once we're about to receive records,
+   * which is after a sync has decided not to skip us; idle syncs never get
+   * here, so they do no index work.
+   */
+  @Override
+  public void setStoreDelegate(RepositorySessionStoreDelegate delegate) {
+    super.setStoreDelegate(delegate);
+    if (prepareRecordIndexInBackground &&
+        isActive() &&
+        recordIndex != null &&
+        !recordIndexPrepared &&
+        recordIndexPreparation == null) {
+      startRecordIndexPreparation();
+    }
+  }
+
   @Override
   public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    // Preparation reads through dbHelper, so close the index first.
+    closeRecordIndex();
+    discardQueuedWrites();
     dbHelper = null;
-    recordToGuid = null;
     super.finish(delegate);
   }
 
+  @Override
+  public void abort() {
+    super.abort();
+    closeRecordIndex();
+    discardQueuedWrites();
+  }
+
+  /**
+   * Drop writes that were queued but never applied, telling the store
+   * delegate that their records failed to store.
+   */
+  protected void discardQueuedWrites() {
+    if (dbHelper != null) {
+      dbHelper.discardWrites(new InactiveSessionException(null));
+    }
+  }
+
+  /**
+   * Apply queued writes, and persist index writes made while storing.
+   * Call on the store thread.
+   */
+  protected void flushQueuedWrites() {
+    if (dbHelper != null) {
+      dbHelper.flushWrites();
+    }
+    if (recordIndex == null) {
+      return;
+    }
+    try {
+      recordIndex.flush();
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to flush record index.", e);
+    }
+  }
+
+  @Override
+  public void storeDone(final long end) {
+    // Flush before declaring success.
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushQueuedWrites();
+      }
+    });
+    super.storeDone(end);
+  }
+
+  @Override
+  public void runAfterCommittedStores(final Runnable command) {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushQueuedWrites();
+        command.run();
+      }
+    });
+  }
+
   /**
    * Produce a "record string" (record identifying unique key).
    *
@@ -271,18 +453,24 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
             delegate.onFetchCompleted(end);
             return;
           }
+          final int batchSize = getFetchTransformBatchSize();
+          final ArrayList<Record> batch = new ArrayList<Record>(batchSize);
           while (!cursor.isAfterLast()) {
             Record r = retrieveDuringFetch(cursor);
             if (r != null) {
               if (filter == null || !filter.excludeRecord(r)) {
-                Logger.trace(LOG_TAG, "Processing record " + r.guid);
-                delegate.onFetchedRecord(transformRecord(r));
+                Logger.tracef(LOG_TAG, "Processing record %s", r.guid);
+                batch.add(r);
+                if (batch.size() >= batchSize) {
+                  deliverFetched(batch);
+                }
               } else {
                 Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
               }
             }
             cursor.moveToNext();
           }
+          deliverFetched(batch);
           delegate.onFetchCompleted(end);
         } catch (NoGuidForIdException e) {
           Logger.warn(LOG_TAG, "No GUID for ID.", e);
@@ -297,6 +485,16 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         cursor.close();
       }
     }
+
+    private void deliverFetched(ArrayList<Record> batch) throws NullCursorException {
+      if (batch.isEmpty()) {
+        return;
+      }
+      for (Record r : transformRecords(batch)) {
+        delegate.onFetchedRecord(r);
+      }
+      batch.clear();
+    }
   }
 
   public class FetchRunnable extends FetchingRunnable {
@@ -398,7 +596,13 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
 
     storeCount += 1;
-    Logger.debug(LOG_TAG, "Storing record with GUID " + record.guid + " (stored " + storeCount + " records this session).");
+    Logger.debugf(LOG_TAG, "Storing record with GUID %s (stored %d records this session).", record.guid, storeCount);
+
+    // Let the store thread look up this record along with whichever records
+    // precede it, rather than on its own.
+    if (storeLookupWindow > 1 && record.guid != null) {
+      pendingStoreGUIDs.add(record.guid);
+    }
 
     // Store Runnables *must* complete synchronously. It's OK, they
     // run on a background thread.
@@ -419,6 +623,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         // schema, or by Sync storing non-applied records in its own private database.
         if (shouldIgnore(record)) {
           Logger.debug(LOG_TAG, "Ignoring record " + record.guid);
+          forgetPrefetched(record.guid);
 
           // Don't throw: we don't want to abort the entire sync when we get a livemark!
           // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
@@ -439,7 +644,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         Record existingRecord;
         try {
           // GUID matching only: deleted records don't have a payload with which to search.
-          existingRecord = retrieveByGUIDDuringStore(record.guid);
+          existingRecord = retrieveByGUIDForStore(record.guid);
           if (record.deleted) {
             if (existingRecord == null) {
               // We're done. Don't bother with a callback. That can change later
@@ -527,7 +732,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
           // of reconcileRecords.
           Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
                                 "(" + replaced.androidID + ")");
-          delegate.onRecordStoreSucceeded(replaced.guid);
+          reportStoreSucceeded(replaced.guid);
           return;
 
         } catch (MultipleRecordsForGuidException e) {
@@ -563,7 +768,26 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     // TODO: we ought to mark the record as deleted rather than purging it,
     // in order to support syncing to multiple destinations. Bug 722607.
     dbHelper.purgeGuid(record.guid);
-    delegate.onRecordStoreSucceeded(record.guid);
+    removeFromRecordIndex(record.guid);
+    reportStoreSucceeded(record.guid);
+  }
+
+  /**
+   * Tell the store delegate that the record with the given GUID has been
+   * stored, once its queued writes, if any, have been applied.
+   */
+  protected void reportStoreSucceeded(final String guid) {
+    dbHelper.whenWritesApplied(new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        delegate.onRecordStoreSucceeded(guid);
+      }
+
+      @Override
+      public void onWriteFailed(Exception e) {
+        delegate.onRecordStoreFailed(e, guid);
+      }
+    });
   }
 
   protected void insert(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
@@ -586,6 +810,8 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
     // newRecord should already have suitable androidID and guid.
     dbHelper.update(existingRecord.guid, toStore);
+    forgetPrefetched(existingRecord.guid);
+    forgetPrefetched(toStore.guid);
     updateBookkeeping(toStore);
     Logger.debug(LOG_TAG, "replace() returning record " + toStore.guid);
     return toStore;
@@ -626,6 +852,89 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
+  /**
+   * Retrieve the local record with the same GUID as an incoming record.
+   * <p>
+   * If <code>storeLookupWindow</code> is greater than 1, look up the local
+   * records for the next few incoming records at the same time, and answer
+   * subsequent calls from those results.
+   * <p>
+   * Must be called on the store thread.
+   */
+  protected Record retrieveByGUIDForStore(String guid) throws
+                                         NoGuidForIdException,
+                                         NullCursorException,
+                                         ParentNotFoundException,
+                                         MultipleRecordsForGuidException {
+    if (storeLookupWindow <= 1 || guid == null) {
+      return retrieveByGUIDDuringStore(guid);
+    }
+
+    if (!prefetchedByGUID.containsKey(guid)) {
+      prefetchByGUID(guid);
+    }
+    final Record existing = prefetchedByGUID.remove(guid);
+    if (prefetchedMultiple.remove(guid)) {
+      throw new MultipleRecordsForGuidException(null);
+    }
+    return existing;
+  }
+
+  /**
+   * Look up <code>guid</code> and up to <code>storeLookupWindow - 1</code>
+   * pending GUIDs in a single query.
+   */
+  protected void prefetchByGUID(String guid) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final LinkedHashSet<String> guids = new LinkedHashSet<String>();
+    guids.add(guid);
+    while (guids.size() < storeLookupWindow) {
+      final String next = pendingStoreGUIDs.poll();
+      if (next == null) {
+        break;
+      }
+      if (!prefetchedByGUID.containsKey(next)) {
+        guids.add(next);
+      }
+    }
+
+    // Absent GUIDs have no local record.
+    for (String g : guids) {
+      prefetchedByGUID.put(g, null);
+    }
+
+    Logger.debug(LOG_TAG, "Looking up " + guids.size() + " incoming GUIDs.");
+    final HashSet<String> seen = new HashSet<String>();
+    final Cursor cursor = dbHelper.fetch(guids.toArray(new String[guids.size()]));
+    try {
+      if (!cursor.moveToFirst()) {
+        return;
+      }
+      while (!cursor.isAfterLast()) {
+        final String g = RepoUtils.getStringFromCursor(cursor, BrowserContract.SyncColumns.GUID);
+        if (!seen.add(g)) {
+          prefetchedMultiple.add(g);
+        } else {
+          prefetchedByGUID.put(g, retrieveDuringStore(cursor));
+        }
+        cursor.moveToNext();
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Discard any looked-up local record for <code>guid</code>, which we are
+   * about to change.
+   */
+  protected void forgetPrefetched(String guid) {
+    if (guid == null || storeLookupWindow <= 1) {
+      return;
+    }
+    prefetchedByGUID.remove(guid);
+    prefetchedMultiple.remove(guid);
+  }
+
   /**
    * Attempt to find an equivalent record through some means other than GUID.
    *
@@ -642,7 +951,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected Record findExistingRecord(Record record) throws MultipleRecordsForGuidException,
     NoGuidForIdException, NullCursorException, ParentNotFoundException {
 
-    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID " + record.guid);
+    Logger.debugf(LOG_TAG, "Finding existing record for incoming record with GUID %s", record.guid);
     String recordString = buildRecordString(record);
     if (recordString == null) {
       Logger.debug(LOG_TAG, "No record string for incoming record " + record.guid);
@@ -660,75 +969,40 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       return null;
     }
 
-    // Our map contained a match, but it could be a false positive. Since
-    // computed record string is supposed to be a unique key, we can easily
-    // verify our positive.
+    // The index only tells us which local record last had this record
+    // string; it might have changed or been deleted outside of Sync since.
+    // Since the computed record string is supposed to be a unique key, we can
+    // easily verify our positive.
     Logger.debug(LOG_TAG, "Found one. Checking stored record.");
     Record stored = retrieveByGUIDDuringStore(guid);
-    String storedRecordString = buildRecordString(record);
-    if (recordString.equals(storedRecordString)) {
+    if (stored != null && recordString.equals(buildRecordString(stored))) {
       Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
       return stored;
     }
 
-    // Oh no, we got a false positive! (This should be *very* rare --
-    // essentially, we got a hash collision.) Search the DB for this record
-    // explicitly by hand.
-    Logger.debug(LOG_TAG, "Existing record does not match incoming record.  Trying to find record by record string.");
-    return findByRecordString(recordString);
-  }
-
-  protected String getGuidForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    if (recordToGuid == null) {
-      createRecordToGuidMap();
-    }
-    return recordToGuid.get(Integer.valueOf(recordString.hashCode()));
-  }
-
-  protected void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
-    recordToGuid = new SparseArray<String>();
-
-    // TODO: we should be able to do this entire thing with string concatenations within SQL.
-    // Also consider whether it's better to fetch and process every record in the DB into
-    // memory, or run a query per record to do the same thing.
-    Cursor cur = dbHelper.fetchAll();
-    try {
-      if (!cur.moveToFirst()) {
-        return;
-      }
-      while (!cur.isAfterLast()) {
-        Record record = retrieveDuringStore(cur);
-        if (record != null) {
-          final String recordString = buildRecordString(record);
-          if (recordString != null) {
-            recordToGuid.put(Integer.valueOf(recordString.hashCode()), record.guid);
-          }
-        }
-        cur.moveToNext();
-      }
-    } finally {
-      cur.close();
+    // The entry is stale, but another local record might have this record
+    // string now. This should be rare, so search the DB by hand.
+    Logger.debug(LOG_TAG, "Indexed record " + guid + " no longer matches incoming record. Trying to find record by record string.");
+    getRecordIndex().remove(recordString, guid);
+    final Record found = findByRecordString(recordString);
+    if (found != null) {
+      getRecordIndex().put(recordString, found.guid);
     }
-    Logger.info(LOG_TAG, "END: creating record -> GUID map.");
+    return found;
   }
 
   /**
    * Search the local database for a record with the same "record string".
    * <p>
-   * We expect to do this only in the unlikely event of a hash
-   * collision, so we iterate the database completely.  Since we want
-   * to include information about the parents of bookmarks, it is
-   * difficult to do better purely using the
-   * <code>ContentProvider</code> interface.
+   * We expect to do this only when an index entry has gone stale, so we
+   * iterate the database completely.  Since we want to include information
+   * about the parents of bookmarks, it is difficult to do better purely
+   * using the <code>ContentProvider</code> interface.
    *
    * @param recordString
-   *          the "record string" to search for; must be n
+   *          the "record string" to search for.
    * @return a <code>Record</code> with the same "record string", or
    *         <code>null</code> if none is present.
-   * @throws ParentNotFoundException
-   * @throws NullCursorException
-   * @throws NoGuidForIdException
    */
   protected Record findByRecordString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Cursor cur = dbHelper.fetchAll();
@@ -752,15 +1026,175 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
-  public void putRecordToGuidMap(String recordString, String guid) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+  protected String getGuidForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    return getRecordIndex().lookup(recordString);
+  }
+
+  /**
+   * Return the record index, first catching it up with the local database if
+   * we haven't already done so this session.
+   * <p>
+   * Must be called on the store thread.
+   */
+  protected RecordStringIndex getRecordIndex() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    if (recordIndexPreparation != null) {
+      final FutureTask<Void> preparation = recordIndexPreparation;
+      recordIndexPreparation = null;
+      try {
+        preparation.get();
+        recordIndexPrepared = true;
+      } catch (InterruptedException e) {
+        Logger.warn(LOG_TAG, "Interrupted waiting for record index; preparing it here.", e);
+      } catch (ExecutionException e) {
+        Logger.warn(LOG_TAG, "Background record index preparation failed; preparing it here.", e.getCause());
+      }
+    }
+    if (!recordIndexPrepared) {
+      prepareRecordIndex();
+      recordIndexPrepared = true;
+    }
+    return recordIndex;
+  }
+
+  /**
+   * Start catching up the record index on a background thread, so that it
+   * is ready by the time we store incoming records.
+   * <p>
+   * Only use this if <code>retrieveDuringStore</code> is safe to call
+   * concurrently with fetching and storing.
+   */
+  protected void startRecordIndexPreparation() {
+    recordIndexPreparation = new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        prepareRecordIndex();
+        return null;
+      }
+    });
+    final Thread thread = new Thread(recordIndexPreparation, "RecordIndex");
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Override this to return false if a record's record string can change
+   * without its own modified time changing, for instance because it includes
+   * details of other records. The index is then rebuilt every session rather
+   * than caught up with recently modified records.
+   *
+   * @return true if the index can be caught up incrementally.
+   */
+  @SuppressWarnings("static-method")
+  protected boolean canCatchUpRecordIndex() {
+    return true;
+  }
+
+  /**
+   * Bring the record index up to date: index every record modified locally
+   * since the index was last caught up, or every local record if the index
+   * is missing or can't be caught up.
+   */
+  protected void prepareRecordIndex() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    // Hold the index for the whole batch, so that it can't be closed from
+    // underneath us; closing waits for us to notice recordIndexAbandoned.
+    synchronized (recordIndex) {
+      if (recordIndexAbandoned) {
+        Logger.info(LOG_TAG, "Record index abandoned. Not preparing it.");
+        return;
+      }
+      prepareRecordIndexLocked();
+    }
+  }
+
+  private void prepareRecordIndexLocked() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final long indexedUntil = recordIndex.getIndexedUntil();
+    final boolean rebuild = indexedUntil < 0 || !canCatchUpRecordIndex();
+    final long start = now();
+    Logger.info(LOG_TAG, "BEGIN: " + (rebuild ? "rebuilding" : "catching up") + " record index.");
+
+    int indexed = 0;
+    final Cursor cur = rebuild ? dbHelper.fetchAll() : dbHelper.fetchSince(indexedUntil);
+    try {
+      recordIndex.beginBatch();
+      try {
+        if (rebuild) {
+          recordIndex.clear();
+        }
+        if (cur.moveToFirst()) {
+          while (!cur.isAfterLast()) {
+            if (!isActive() || recordIndexAbandoned) {
+              Logger.info(LOG_TAG, "Session no longer active. Abandoning record index preparation.");
+              return;
+            }
+            Record record = retrieveDuringStore(cur);
+            if (record != null) {
+              recordIndex.put(buildRecordString(record), record.guid);
+              indexed++;
+            }
+            cur.moveToNext();
+          }
+        }
+        recordIndex.setIndexedUntil(start);
+        recordIndex.setBatchSuccessful();
+      } finally {
+        recordIndex.endBatch();
+      }
+    } finally {
+      cur.close();
+    }
+    Logger.info(LOG_TAG, "END: indexed " + indexed + " records.");
+  }
+
+  public void putRecordToGuidIndex(String recordString, String guid) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     if (recordString == null) {
       return;
     }
+    getRecordIndex().put(recordString, guid);
+  }
+
+  /**
+   * Forget any record string indexed for <code>guid</code>, which is about to
+   * be deleted.
+   */
+  protected void removeFromRecordIndex(String guid) {
+    try {
+      getRecordIndex().removeGuid(guid);
+    } catch (Exception e) {
+      // Stale entries are detected on lookup, so this isn't fatal.
+      Logger.warn(LOG_TAG, "Unable to remove " + guid + " from record index.", e);
+    }
+  }
+
+  /**
+   * Stop any background catch-up of the record index, and wait for it to
+   * finish with the index. A catch-up abandoned part way through commits
+   * nothing.
+   */
+  protected void stopRecordIndexPreparation() {
+    recordIndexAbandoned = true;
+    final FutureTask<Void> preparation = recordIndexPreparation;
+    recordIndexPreparation = null;
+    if (preparation == null) {
+      return;
+    }
+    try {
+      preparation.get();
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted waiting for record index preparation to stop.", e);
+    } catch (ExecutionException e) {
+      Logger.warn(LOG_TAG, "Background record index preparation failed.", e.getCause());
+    }
+  }
 
-    if (recordToGuid == null) {
-      createRecordToGuidMap();
+  protected void closeRecordIndex() {
+    stopRecordIndexPreparation();
+    if (recordIndex != null) {
+      try {
+        recordIndex.close();
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Unable to close record index.", e);
+      }
     }
-    recordToGuid.put(Integer.valueOf(recordString.hashCode()), guid);
   }
 
   protected abstract Record prepareRecord(Record record);
@@ -768,7 +1202,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected void updateBookkeeping(Record record) throws NoGuidForIdException,
                                                  NullCursorException,
                                                  ParentNotFoundException {
-    putRecordToGuidMap(buildRecordString(record), record.guid);
+    putRecordToGuidIndex(buildRecordString(record), record.guid);
   }
 
   protected WipeRunnable getWipeRunnable(RepositorySessionWipeDelegate delegate) {
@@ -794,7 +1228,19 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         delegate.onWipeFailed(new InactiveSessionException(null));
         return;
       }
+      dbHelper.flushWrites();
       dbHelper.wipe();
+      // Nothing is left to dedupe against, so the index is trivially
+      // complete: clear it without catching it up first.
+      stopRecordIndexPreparation();
+      recordIndexAbandoned = false;
+      try {
+        recordIndex.clear();
+        recordIndex.setIndexedUntil(now());
+        recordIndexPrepared = true;
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Unable to clear record index after wipe.", e);
+      }
       delegate.onWipeSucceeded();
     }
   }
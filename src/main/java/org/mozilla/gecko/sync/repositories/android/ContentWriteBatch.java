@@ -0,0 +1,186 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+/**
+ * Accumulate inserts, updates and deletes against one content provider and
+ * apply them together with <code>applyBatch</code>, so that a provider that
+ * applies batches in a single transaction commits once per batch rather
+ * than once per write.
+ * <p>
+ * Each write can carry a <code>WriteCallback</code>, which is invoked on the
+ * thread that flushes the batch. If the batch fails, or is discarded, every
+ * callback in it is told so. Callbacks are invoked in the order their writes
+ * were queued.
+ * <p>
+ * Writes should be queued from a single thread, such as a session's store
+ * thread, but a batch can be discarded from any thread.
+ */
+public class ContentWriteBatch {
+  public static final String LOG_TAG = "ContentWriteBatch";
+
+  /**
+   * Notified once a queued write has been applied or has failed.
+   */
+  public interface WriteCallback {
+    /**
+     * @param result
+     *          the provider's result for the write, or <code>null</code> if
+     *          the callback was not attached to a particular write.
+     */
+    public void onWriteSucceeded(ContentProviderResult result);
+    public void onWriteFailed(Exception e);
+  }
+
+  protected static class PendingCallback {
+    public final int index;
+    public final WriteCallback callback;
+
+    public PendingCallback(int index, WriteCallback callback) {
+      this.index = index;
+      this.callback = callback;
+    }
+  }
+
+  protected final ContentResolver resolver;
+  protected final String authority;
+  protected final ContentProviderClient client;
+  protected final int threshold;
+
+  protected ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+  protected ArrayList<PendingCallback> callbacks = new ArrayList<PendingCallback>();
+
+  /**
+   * @param threshold apply the batch once this many writes are queued.
+   */
+  public ContentWriteBatch(ContentResolver resolver, String authority, int threshold) {
+    this.resolver = resolver;
+    this.authority = authority;
+    this.client = null;
+    this.threshold = threshold;
+  }
+
+  public ContentWriteBatch(ContentProviderClient client, int threshold) {
+    this.resolver = null;
+    this.authority = null;
+    this.client = client;
+    this.threshold = threshold;
+  }
+
+  /**
+   * @return the number of writes not yet applied.
+   */
+  public synchronized int size() {
+    return operations.size();
+  }
+
+  public synchronized void insert(Uri uri, ContentValues values, WriteCallback callback) {
+    enqueue(ContentProviderOperation.newInsert(uri).withValues(values).build(), callback);
+  }
+
+  public synchronized void update(Uri uri, ContentValues values, String where, String[] args, WriteCallback callback) {
+    enqueue(ContentProviderOperation.newUpdate(uri).withValues(values).withSelection(where, args).build(), callback);
+  }
+
+  public synchronized void delete(Uri uri, String where, String[] args, WriteCallback callback) {
+    enqueue(ContentProviderOperation.newDelete(uri).withSelection(where, args).build(), callback);
+  }
+
+  /**
+   * Invoke <code>callback</code> once every write queued so far has been
+   * applied; immediately, if there are none.
+   * <p>
+   * Use this to report on a record whose writes are already queued.
+   */
+  public synchronized void whenApplied(WriteCallback callback) {
+    if (operations.isEmpty()) {
+      callback.onWriteSucceeded(null);
+      return;
+    }
+    callbacks.add(new PendingCallback(-1, callback));
+  }
+
+  protected void enqueue(ContentProviderOperation operation, WriteCallback callback) {
+    operations.add(operation);
+    if (callback != null) {
+      callbacks.add(new PendingCallback(operations.size() - 1, callback));
+    }
+    if (operations.size() >= threshold) {
+      flush();
+    }
+  }
+
+  /**
+   * Called once a batch has been applied, before its callbacks are invoked.
+   * Subclasses can apply related writes here. If this throws, the batch's
+   * callbacks are told that it failed.
+   */
+  protected void onBatchApplied() throws Exception {
+  }
+
+  /**
+   * Apply every queued write, then invoke their callbacks.
+   */
+  public synchronized void flush() {
+    if (operations.isEmpty()) {
+      return;
+    }
+
+    final ArrayList<ContentProviderOperation> outgoing = operations;
+    final ArrayList<PendingCallback> outgoingCallbacks = callbacks;
+    operations = new ArrayList<ContentProviderOperation>();
+    callbacks = new ArrayList<PendingCallback>();
+
+    final ContentProviderResult[] results;
+    try {
+      final long start = System.currentTimeMillis();
+      if (client != null) {
+        results = client.applyBatch(outgoing);
+      } else {
+        results = resolver.applyBatch(authority, outgoing);
+      }
+      Logger.debug(LOG_TAG, "Applied " + outgoing.size() + " writes in " + (System.currentTimeMillis() - start) + "ms.");
+      onBatchApplied();
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Failed to apply " + outgoing.size() + " writes.", e);
+      for (PendingCallback pending : outgoingCallbacks) {
+        pending.callback.onWriteFailed(e);
+      }
+      return;
+    }
+
+    for (PendingCallback pending : outgoingCallbacks) {
+      final ContentProviderResult result = (pending.index >= 0 && pending.index < results.length) ? results[pending.index] : null;
+      pending.callback.onWriteSucceeded(result);
+    }
+  }
+
+  /**
+   * Discard queued writes without applying them, telling their callbacks
+   * that they failed with <code>reason</code>.
+   */
+  public synchronized void discard(Exception reason) {
+    final ArrayList<PendingCallback> discardedCallbacks = callbacks;
+    if (!operations.isEmpty()) {
+      Logger.warn(LOG_TAG, "Discarding " + operations.size() + " writes.");
+    }
+    operations = new ArrayList<ContentProviderOperation>();
+    callbacks = new ArrayList<PendingCallback>();
+    for (PendingCallback pending : discardedCallbacks) {
+      pending.callback.onWriteFailed(reason);
+    }
+  }
+}
@@ -18,6 +18,7 @@ import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.RecordFilter;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
+import org.mozilla.gecko.sync.repositories.android.ContentWriteBatch.WriteCallback;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -27,6 +28,7 @@ import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -38,7 +40,7 @@ public class FormHistoryRepositorySession extends
   public static String LOG_TAG = "FormHistoryRepoSess";
 
   /**
-   * Number of records to insert in one batch.
+   * Number of writes to apply in one batch.
    */
   public static final int INSERT_ITEM_THRESHOLD = 200;
 
@@ -63,6 +65,12 @@ public class FormHistoryRepositorySession extends
   protected final RepoUtils.QueryHelper regularHelper;
   protected final RepoUtils.QueryHelper deletedHelper;
 
+  /**
+   * Inserts, updates and deletions waiting to be applied. Only accessed on
+   * the store thread.
+   */
+  protected final ContentWriteBatch writeBatch;
+
   /**
    * Acquire the content provider client.
    * <p>
@@ -100,12 +108,14 @@ public class FormHistoryRepositorySession extends
       throws NoContentProviderException {
     super(repository);
     formsProvider = acquireContentProvider(context);
+    writeBatch = new ContentWriteBatch(formsProvider, INSERT_ITEM_THRESHOLD);
     regularHelper = new RepoUtils.QueryHelper(context, BrowserContractHelpers.FORM_HISTORY_CONTENT_URI, LOG_TAG);
     deletedHelper = new RepoUtils.QueryHelper(context, BrowserContractHelpers.DELETED_FORM_HISTORY_CONTENT_URI, LOG_TAG);
   }
 
   @Override
   public void abort() {
+    writeBatch.discard(new InactiveSessionException(null));
     releaseProviders();
     super.abort();
   }
@@ -113,12 +123,35 @@ public class FormHistoryRepositorySession extends
   @Override
   public void finish(final RepositorySessionFinishDelegate delegate)
       throws InactiveSessionException {
+    // Anything still queued will never be applied.
+    writeBatch.discard(new InactiveSessionException(null));
     releaseProviders();
     super.finish(delegate);
   }
 
   protected static String[] GUID_COLUMNS = new String[] { FormHistory.GUID };
 
+  /**
+   * We have data to upload if any entry was first used, or deleted, since
+   * the last sync. Each check asks for at most one row.
+   */
+  @Override
+  public boolean dataAvailable() {
+    if (lastSyncTimestamp <= 0) {
+      return true;
+    }
+    final long end = now();
+    try {
+      final boolean changed = regularHelper.hasMatchingRow(formsProvider, ".dataAvailable(regular)", GUID_COLUMNS, regularBetween(lastSyncTimestamp, end)) ||
+                              deletedHelper.hasMatchingRow(formsProvider, ".dataAvailable(deleted)", GUID_COLUMNS, deletedBetween(lastSyncTimestamp, end));
+      Logger.debug(LOG_TAG, "Local " + (changed ? "changes" : "no changes") + " since " + lastSyncTimestamp + ".");
+      return changed;
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check for local changes; assuming some.", e);
+      return true;
+    }
+  }
+
   @Override
   public void guidsSince(final long timestamp, final RepositorySessionGuidsSinceDelegate delegate) {
     Runnable command = new Runnable() {
@@ -229,7 +262,7 @@ public class FormHistoryRepositorySession extends
         Record r = retrieveDuringFetch(cursor);
         if (r != null) {
           if (filter == null || !filter.excludeRecord(r)) {
-            Logger.trace(LOG_TAG, "Processing record " + r.guid);
+            Logger.tracef(LOG_TAG, "Processing record %s", r.guid);
             delegate.onFetchedRecord(r);
           } else {
             Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
@@ -420,10 +453,10 @@ public class FormHistoryRepositorySession extends
    */
   protected void deleteExistingRecord(Record existingRecord) throws RemoteException {
     if (existingRecord.deleted) {
-      formsProvider.delete(DELETED_FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
+      writeBatch.delete(DELETED_FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid }, null);
       return;
     }
-    formsProvider.delete(FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
+    writeBatch.delete(FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid }, null);
   }
 
   protected static ContentValues contentValuesForRegularRecord(Record rawRecord) {
@@ -440,43 +473,31 @@ public class FormHistoryRepositorySession extends
     return cv;
   }
 
-  protected Object recordsBufferMonitor = new Object();
-  protected ArrayList<ContentValues> recordsBuffer = new ArrayList<ContentValues>();
-
   protected void enqueueRegularRecord(Record record) {
-    synchronized (recordsBufferMonitor) {
-      if (recordsBuffer.size() >= INSERT_ITEM_THRESHOLD) {
-        // Insert the existing contents, then enqueue.
-        try {
-          flushInsertQueue();
-        } catch (Exception e) {
-          delegate.onRecordStoreFailed(e, record.guid);
-          return;
-        }
-      }
-      // Store the ContentValues, rather than the record.
-      recordsBuffer.add(contentValuesForRegularRecord(record));
-    }
+    writeBatch.insert(FORM_HISTORY_CONTENT_URI, contentValuesForRegularRecord(record), null);
   }
 
   // Should always be called from storeWorkQueue.
   protected void flushInsertQueue() throws RemoteException {
-    synchronized (recordsBufferMonitor) {
-      if (recordsBuffer.size() > 0) {
-        final ContentValues[] outgoing = recordsBuffer.toArray(new ContentValues[0]);
-        recordsBuffer = new ArrayList<ContentValues>();
+    writeBatch.flush();
+  }
 
-        if (outgoing == null || outgoing.length == 0) {
-          Logger.debug(LOG_TAG, "No form history items to insert; returning immediately.");
-          return;
-        }
+  /**
+   * Tell the store delegate that the record with the given GUID has been
+   * stored, once the writes queued for it have been applied.
+   */
+  protected void reportStoreSucceeded(final String guid) {
+    writeBatch.whenApplied(new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        delegate.onRecordStoreSucceeded(guid);
+      }
 
-        long before = System.currentTimeMillis();
-        formsProvider.bulkInsert(FORM_HISTORY_CONTENT_URI, outgoing);
-        long after = System.currentTimeMillis();
-        Logger.debug(LOG_TAG, "Inserted " + outgoing.length + " form history items in (" + (after - before) + " milliseconds).");
+      @Override
+      public void onWriteFailed(Exception e) {
+        delegate.onRecordStoreFailed(e, guid);
       }
-    }
+    });
   }
 
   @Override
@@ -484,11 +505,9 @@ public class FormHistoryRepositorySession extends
     Runnable command = new Runnable() {
       @Override
       public void run() {
-        Logger.debug(LOG_TAG, "Checking for residual form history items to insert.");
+        Logger.debug(LOG_TAG, "Checking for residual form history writes to apply.");
         try {
-          synchronized (recordsBufferMonitor) {
-            flushInsertQueue();
-          }
+          flushInsertQueue();
           storeDone(now());
         } catch (Exception e) {
           // XXX TODO
@@ -499,6 +518,22 @@ public class FormHistoryRepositorySession extends
     storeWorkQueue.execute(command);
   }
 
+  @Override
+  public void runAfterCommittedStores(final Runnable command) {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flushInsertQueue();
+        } catch (Exception e) {
+          Logger.warn(LOG_TAG, "Unable to apply queued form history writes; not running command.", e);
+          return;
+        }
+        command.run();
+      }
+    });
+  }
+
   /**
    * Called when a regular record with locally unknown GUID has been fetched
    * from the server.
@@ -536,10 +571,20 @@ public class FormHistoryRepositorySession extends
     }
 
     final ContentValues cv = contentValuesForRegularRecord(toStore);
-    int updated = formsProvider.update(FORM_HISTORY_CONTENT_URI, cv, GUID_IS, new String[] { existingRecord.guid });
-    if (updated != 1) {
-      Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + existingRecord.guid + " but updated " + updated + " records.");
-    }
+    final String guid = existingRecord.guid;
+    writeBatch.update(FORM_HISTORY_CONTENT_URI, cv, GUID_IS, new String[] { guid }, new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        if (result != null && result.count != null && result.count.intValue() != 1) {
+          Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + guid + " but updated " + result.count + " records.");
+        }
+      }
+
+      @Override
+      public void onWriteFailed(Exception e) {
+        // Reported by reportStoreSucceeded.
+      }
+    });
   }
 
   @Override
@@ -606,7 +651,7 @@ public class FormHistoryRepositorySession extends
               Logger.trace(LOG_TAG, "Remote modified, local not. Deleting.");
               deleteExistingRecord(existingRecord);
               trackRecord(record);
-              delegate.onRecordStoreSucceeded(record.guid);
+              reportStoreSucceeded(record.guid);
               return;
             }
 
@@ -615,7 +660,7 @@ public class FormHistoryRepositorySession extends
               Logger.trace(LOG_TAG, "Remote is newer, and deleted. Purging local.");
               deleteExistingRecord(existingRecord);
               trackRecord(record);
-              delegate.onRecordStoreSucceeded(record.guid);
+              reportStoreSucceeded(record.guid);
               return;
             }
 
@@ -639,7 +684,7 @@ public class FormHistoryRepositorySession extends
             Logger.trace(LOG_TAG, "No match. Inserting.");
             insertNewRegularRecord(record);
             trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
+            reportStoreSucceeded(record.guid);
             return;
           }
 
@@ -651,7 +696,7 @@ public class FormHistoryRepositorySession extends
             Logger.trace(LOG_TAG, "Remote guid different from local guid. Storing to keep remote guid.");
             replaceExistingRecordWithRegularRecord(record, existingRecord);
             trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
+            reportStoreSucceeded(record.guid);
             return;
           }
 
@@ -661,7 +706,7 @@ public class FormHistoryRepositorySession extends
             Logger.trace(LOG_TAG, "Remote modified, local not. Storing.");
             replaceExistingRecordWithRegularRecord(record, existingRecord);
             trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
+            reportStoreSucceeded(record.guid);
             return;
           }
 
@@ -670,7 +715,7 @@ public class FormHistoryRepositorySession extends
             Logger.trace(LOG_TAG, "Remote is newer, and not deleted. Storing.");
             replaceExistingRecordWithRegularRecord(record, existingRecord);
             trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
+            reportStoreSucceeded(record.guid);
             return;
           }
 
@@ -710,6 +755,7 @@ public class FormHistoryRepositorySession extends
 
         try {
           Logger.debug(LOG_TAG, "Wiping form history and deleted form history...");
+          flushInsertQueue();
           purgeDatabases(formsProvider);
           Logger.debug(LOG_TAG, "Wiping form history and deleted form history... DONE");
         } catch (Exception e) {
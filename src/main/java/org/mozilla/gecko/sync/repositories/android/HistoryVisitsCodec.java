@@ -0,0 +1,238 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+
+/**
+ * Encode the visits of a history record compactly, for
+ * {@link AndroidBrowserHistoryDataExtender}.
+ * <p>
+ * Visits are stored as a format byte, the number of visits the record had,
+ * the number stored, and then for each stored visit the zig-zag varint
+ * difference between its date and the previous visit's date, followed by its
+ * type as a varint. Visit order is preserved.
+ * <p>
+ * Only the <code>maxVisits</code> most recent visits are kept. The number of
+ * visits the record had is kept regardless, so that visits Fennec records
+ * later can still be told apart from visits we chose not to store.
+ * <p>
+ * Visits that aren't just a numeric date and type are stored as JSON text,
+ * as they were before this encoding; {@link #decode(byte[])} accepts both.
+ */
+public class HistoryVisitsCodec {
+  private static final String LOG_TAG = "HistoryVisitsCodec";
+
+  public static final byte FORMAT_DELTA_VARINT = 1;
+
+  public static final String KEY_DATE = AndroidBrowserHistoryRepositorySession.KEY_DATE;
+  public static final String KEY_TYPE = AndroidBrowserHistoryRepositorySession.KEY_TYPE;
+
+  /**
+   * Decoded visits.
+   */
+  public static class Visits {
+    public final JSONArray visits;
+
+    /**
+     * The number of visits the record had when stored, which can exceed
+     * <code>visits.size()</code> if older visits were dropped.
+     */
+    public final long count;
+
+    public Visits(JSONArray visits, long count) {
+      this.visits = visits;
+      this.count = count;
+    }
+
+    public static Visits empty() {
+      return new Visits(new JSONArray(), 0);
+    }
+  }
+
+  /**
+   * @param visits to encode; may be null.
+   * @param maxVisits the number of most recent visits to keep; non-positive
+   *        to keep every visit.
+   * @return the encoded visits.
+   */
+  public static byte[] encode(JSONArray visits, int maxVisits) {
+    if (visits == null) {
+      visits = new JSONArray();
+    }
+    if (!isEncodable(visits)) {
+      return jsonBytes(visits);
+    }
+
+    final ArrayList<JSONObject> kept = mostRecent(visits, maxVisits);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(4 + 6 * kept.size());
+    out.write(FORMAT_DELTA_VARINT);
+    writeVarint(out, visits.size());
+    writeVarint(out, kept.size());
+    long previous = 0;
+    for (JSONObject visit : kept) {
+      final long date = (Long) visit.get(KEY_DATE);
+      final long delta = date - previous;
+      writeVarint(out, (delta << 1) ^ (delta >> 63));
+      writeVarint(out, (Long) visit.get(KEY_TYPE));
+      previous = date;
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param blob as returned by {@link #encode(JSONArray, int)}, or the JSON
+   *        text of a visits array.
+   * @return the decoded visits, or empty visits if <code>blob</code> is null
+   *         or can't be decoded.
+   */
+  @SuppressWarnings("unchecked")
+  public static Visits decode(byte[] blob) {
+    if (blob == null || blob.length == 0) {
+      return Visits.empty();
+    }
+    if (blob[0] != FORMAT_DELTA_VARINT) {
+      return decodeJSON(blob);
+    }
+
+    final int[] position = new int[] { 1 };
+    try {
+      final long count = readVarint(blob, position);
+      final long stored = readVarint(blob, position);
+      if (stored > count || stored > blob.length) {
+        throw new IllegalArgumentException("Invalid visit count.");
+      }
+      final JSONArray visits = new JSONArray();
+      long date = 0;
+      for (int i = 0; i < stored; i++) {
+        final long delta = readVarint(blob, position);
+        date += (delta >>> 1) ^ -(delta & 1);
+        final long type = readVarint(blob, position);
+        final JSONObject visit = new JSONObject();
+        visit.put(KEY_DATE, date);
+        visit.put(KEY_TYPE, type);
+        visits.add(visit);
+      }
+      return new Visits(visits, count);
+    } catch (IllegalArgumentException e) {
+      Logger.error(LOG_TAG, "Couldn't decode visits; ignoring them.", e);
+      return Visits.empty();
+    }
+  }
+
+  protected static boolean isEncodable(JSONArray visits) {
+    for (Object o : visits) {
+      if (!(o instanceof JSONObject)) {
+        return false;
+      }
+      final JSONObject visit = (JSONObject) o;
+      if (visit.size() != 2 ||
+          !(visit.get(KEY_DATE) instanceof Long) ||
+          !(visit.get(KEY_TYPE) instanceof Long) ||
+          (Long) visit.get(KEY_TYPE) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the <code>maxVisits</code> most recent visits, in their original
+   *         order.
+   */
+  protected static ArrayList<JSONObject> mostRecent(JSONArray visits, int maxVisits) {
+    final ArrayList<JSONObject> all = new ArrayList<JSONObject>(visits.size());
+    for (Object o : visits) {
+      all.add((JSONObject) o);
+    }
+    if (maxVisits <= 0 || all.size() <= maxVisits) {
+      return all;
+    }
+
+    final ArrayList<JSONObject> byDate = new ArrayList<JSONObject>(all);
+    Collections.sort(byDate, new Comparator<JSONObject>() {
+      @Override
+      public int compare(JSONObject a, JSONObject b) {
+        final long dateA = (Long) a.get(KEY_DATE);
+        final long dateB = (Long) b.get(KEY_DATE);
+        return dateA > dateB ? -1 : (dateA == dateB ? 0 : 1);
+      }
+    });
+    final long oldestKept = (Long) byDate.get(maxVisits - 1).get(KEY_DATE);
+
+    // Visits on the cut-off date are kept in order until we have enough.
+    int tiesAllowed = 0;
+    for (int i = 0; i < maxVisits; i++) {
+      if ((Long) byDate.get(i).get(KEY_DATE) == oldestKept) {
+        tiesAllowed++;
+      }
+    }
+    final ArrayList<JSONObject> kept = new ArrayList<JSONObject>(maxVisits);
+    for (JSONObject visit : all) {
+      final long date = (Long) visit.get(KEY_DATE);
+      if (date > oldestKept) {
+        kept.add(visit);
+      } else if (date == oldestKept && tiesAllowed > 0) {
+        kept.add(visit);
+        tiesAllowed--;
+      }
+    }
+    return kept;
+  }
+
+  private static byte[] jsonBytes(JSONArray visits) {
+    try {
+      return visits.toJSONString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // Never happens.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Visits decodeJSON(byte[] blob) {
+    try {
+      final JSONArray visits = ExtendedJSONObject.parseJSONArray(new String(blob, "UTF-8"));
+      if (visits == null) {
+        return Visits.empty();
+      }
+      return new Visits(visits, visits.size());
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Couldn't parse visits JSON; ignoring them.", e);
+      return Visits.empty();
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarint(byte[] bytes, int[] position) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (position[0] >= bytes.length) {
+        throw new IllegalArgumentException("Truncated varint.");
+      }
+      final byte b = bytes[position[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint.");
+  }
+}
@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.mozilla.gecko.background.common.log.Logger;
@@ -18,6 +19,7 @@ import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.RecordFilter;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
+import org.mozilla.gecko.sync.repositories.android.ContentWriteBatch.WriteCallback;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils.QueryHelper;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
@@ -28,6 +30,7 @@ import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -51,10 +54,30 @@ public class PasswordsRepositorySession extends
   private static final String LOG_TAG = "PasswordsRepoSession";
   private static String COLLECTION = "passwords";
 
+  /**
+   * Number of writes to apply in one batch.
+   */
+  public static final int WRITE_BATCH_THRESHOLD = 50;
+
   private RepoUtils.QueryHelper passwordsHelper;
   private RepoUtils.QueryHelper deletedPasswordsHelper;
   private ContentProviderClient passwordsProvider;
 
+  /**
+   * Inserts, updates and deletions waiting to be applied. Only written on
+   * the store thread.
+   */
+  private final ContentWriteBatch writeBatch;
+
+  /**
+   * GUIDs and record data keys (see <code>recordDataKey</code>) touched by
+   * writes in <code>writeBatch</code>. Lookups for these apply the batch
+   * first, so that they see the queued writes. Only accessed on the store
+   * thread.
+   */
+  private final HashSet<String> pendingGUIDs = new HashSet<String>();
+  private final HashSet<String> pendingRecordDataKeys = new HashSet<String>();
+
   private final Context context;
 
   public PasswordsRepositorySession(Repository repository, Context context) {
@@ -63,11 +86,33 @@ public class PasswordsRepositorySession extends
     this.passwordsHelper        = new QueryHelper(context, BrowserContractHelpers.PASSWORDS_CONTENT_URI, LOG_TAG);
     this.deletedPasswordsHelper = new QueryHelper(context, BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, LOG_TAG);
     this.passwordsProvider      = context.getContentResolver().acquireContentProviderClient(BrowserContract.PASSWORDS_AUTHORITY_URI);
+    // We decide when to flush, so that we know when pending lookups are stale.
+    this.writeBatch             = new ContentWriteBatch(passwordsProvider, Integer.MAX_VALUE);
   }
 
   private static final String[] GUID_COLS = new String[] { Passwords.GUID };
   private static final String[] DELETED_GUID_COLS = new String[] { DeletedColumns.GUID };
 
+  /**
+   * We have data to upload if any password was changed, or deleted, since
+   * the last sync. Each check asks for at most one row.
+   */
+  @Override
+  public boolean dataAvailable() {
+    if (lastSyncTimestamp <= 0) {
+      return true;
+    }
+    try {
+      final boolean changed = passwordsHelper.hasMatchingRow(passwordsProvider, ".dataAvailable", GUID_COLS, dateModifiedWhere(lastSyncTimestamp)) ||
+                              deletedPasswordsHelper.hasMatchingRow(passwordsProvider, ".dataAvailable", DELETED_GUID_COLS, dateModifiedWhereDeleted(lastSyncTimestamp));
+      Logger.debug(LOG_TAG, "Local " + (changed ? "changes" : "no changes") + " since " + lastSyncTimestamp + ".");
+      return changed;
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check for local changes; assuming some.", e);
+      return true;
+    }
+  }
+
   private static final String WHERE_GUID_IS = Passwords.GUID + " = ?";
   private static final String WHERE_DELETED_GUID_IS = DeletedPasswords.GUID + " = ?";
 
@@ -345,16 +390,7 @@ public class PasswordsRepositorySession extends
           // The record is new.
           trace("No match. Inserting.");
           Logger.debug(LOG_TAG, "Didn't find matching record. Inserting.");
-          Record inserted = null;
-          try {
-            inserted = insert(remoteRecord);
-          } catch (RemoteException e) {
-            Logger.debug(LOG_TAG, "Record insert caused a RemoteException.");
-            delegate.onRecordStoreFailed(e, record.guid);
-            return;
-          }
-          trackRecord(inserted);
-          delegate.onRecordStoreSucceeded(inserted.guid);
+          enqueueInsert(remoteRecord);
           return;
         }
 
@@ -370,26 +406,39 @@ public class PasswordsRepositorySession extends
 
         // TODO: pass in timestamps?
         Logger.debug(LOG_TAG, "Replacing " + existingRecord.guid + " with record " + toStore.guid);
-        Record replaced = null;
-        try {
-          replaced = replace(existingRecord, toStore);
-        } catch (RemoteException e) {
-          Logger.debug(LOG_TAG, "Record replace caused a RemoteException.");
-          delegate.onRecordStoreFailed(e, record.guid);
-          return;
-        }
+        enqueueReplace(existingRecord, toStore);
 
         // Note that we don't track records here; deciding that is the job
         // of reconcileRecords.
-        Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
-                              "(" + replaced.androidID + ")");
-        delegate.onRecordStoreSucceeded(record.guid);
+        reportStoreSucceeded(record.guid);
         return;
       }
     };
     storeWorkQueue.execute(storeRunnable);
   }
 
+  @Override
+  public void storeDone(final long end) {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushWrites();
+      }
+    });
+    super.storeDone(end);
+  }
+
+  @Override
+  public void runAfterCommittedStores(final Runnable command) {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushWrites();
+        command.run();
+      }
+    });
+  }
+
   @Override
   public void wipe(final RepositorySessionWipeDelegate delegate) {
     Logger.info(LOG_TAG, "Wiping " + BrowserContractHelpers.PASSWORDS_CONTENT_URI + ", " + BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI);
@@ -404,6 +453,7 @@ public class PasswordsRepositorySession extends
 
         // Wipe both data and deleted.
         try {
+          flushWrites();
           context.getContentResolver().delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, null, null);
           context.getContentResolver().delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, null, null);
         } catch (Exception e) {
@@ -418,16 +468,62 @@ public class PasswordsRepositorySession extends
 
   @Override
   public void abort() {
+    discardWrites();
     passwordsProvider.release();
     super.abort();
   }
 
   @Override
   public void finish(final RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    discardWrites();
     passwordsProvider.release();
     super.finish(delegate);
   }
 
+  /**
+   * Apply queued writes. Call on the store thread.
+   */
+  protected void flushWrites() {
+    writeBatch.flush();
+    pendingGUIDs.clear();
+    pendingRecordDataKeys.clear();
+  }
+
+  protected void flushWritesIfNeeded() {
+    if (writeBatch.size() >= WRITE_BATCH_THRESHOLD) {
+      flushWrites();
+    }
+  }
+
+  /**
+   * Drop writes that were queued but never applied, telling the store
+   * delegate that their records failed to store.
+   */
+  protected void discardWrites() {
+    writeBatch.discard(new InactiveSessionException(null));
+  }
+
+  /**
+   * Note that queued writes touch <code>record</code>, so that lookups for it
+   * apply them first.
+   */
+  private void addPending(PasswordRecord record) {
+    pendingGUIDs.add(record.guid);
+    pendingRecordDataKeys.add(recordDataKey(record));
+  }
+
+  /**
+   * @return a key identifying the fields that <code>findExistingRecord</code>
+   *         queries for.
+   */
+  private static String recordDataKey(PasswordRecord record) {
+    return record.hostname + "\n" +
+           record.httpRealm + "\n" +
+           record.formSubmitURL + "\n" +
+           record.usernameField + "\n" +
+           record.passwordField;
+  }
+
   public void deleteGUID(String guid) throws RemoteException {
     final String[] args = new String[] { guid };
 
@@ -460,6 +556,81 @@ public class PasswordsRepositorySession extends
     return record;
   }
 
+  /**
+   * Queue insertion of a new record, tracking it and telling the store
+   * delegate once it has been inserted.
+   */
+  protected void enqueueInsert(final PasswordRecord record) {
+    record.timePasswordChanged = now();
+    ContentValues cv = getContentValues(record);
+    addPending(record);
+    writeBatch.insert(BrowserContractHelpers.PASSWORDS_CONTENT_URI, cv, new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        if (result == null || result.uri == null) {
+          delegate.onRecordStoreFailed(new RemoteException(), record.guid);
+          return;
+        }
+        record.androidID = ContentUris.parseId(result.uri);
+        trackRecord(record);
+        delegate.onRecordStoreSucceeded(record.guid);
+      }
+
+      @Override
+      public void onWriteFailed(Exception e) {
+        Logger.debug(LOG_TAG, "Record insert failed.");
+        delegate.onRecordStoreFailed(e, record.guid);
+      }
+    });
+    flushWritesIfNeeded();
+  }
+
+  /**
+   * Queue replacement of <code>origRecord</code> with <code>newRecord</code>.
+   */
+  protected void enqueueReplace(Record origRecord, Record newRecord) {
+    PasswordRecord newPasswordRecord = (PasswordRecord) newRecord;
+    PasswordRecord origPasswordRecord = (PasswordRecord) origRecord;
+    propagateTimes(newPasswordRecord, origPasswordRecord);
+    ContentValues cv = getContentValues(newPasswordRecord);
+    addPending(origPasswordRecord);
+    addPending(newPasswordRecord);
+
+    final String guid = origRecord.guid;
+    writeBatch.update(BrowserContractHelpers.PASSWORDS_CONTENT_URI, cv, WHERE_GUID_IS, new String[] { guid }, new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        if (result != null && result.count != null && result.count.intValue() != 1) {
+          Logger.warn(LOG_TAG, "Unexpectedly updated " + result.count + " rows for guid " + guid);
+        }
+      }
+
+      @Override
+      public void onWriteFailed(Exception e) {
+        // Reported by reportStoreSucceeded.
+      }
+    });
+  }
+
+  /**
+   * Tell the store delegate that the record with the given GUID has been
+   * stored, once the writes queued for it have been applied.
+   */
+  protected void reportStoreSucceeded(final String guid) {
+    writeBatch.whenApplied(new WriteCallback() {
+      @Override
+      public void onWriteSucceeded(ContentProviderResult result) {
+        delegate.onRecordStoreSucceeded(guid);
+      }
+
+      @Override
+      public void onWriteFailed(Exception e) {
+        delegate.onRecordStoreFailed(e, guid);
+      }
+    });
+    flushWritesIfNeeded();
+  }
+
   public Record replace(Record origRecord, Record newRecord) throws RemoteException {
     PasswordRecord newPasswordRecord = (PasswordRecord) newRecord;
     PasswordRecord origPasswordRecord = (PasswordRecord) origRecord;
@@ -556,6 +727,9 @@ public class PasswordsRepositorySession extends
   }
 
   private PasswordRecord retrieveByGUID(String guid) throws NullCursorException, RemoteException {
+    if (pendingGUIDs.contains(guid)) {
+      flushWrites();
+    }
     final String[] guidArg = new String[] { guid };
 
     // Check data table.
@@ -589,6 +763,9 @@ public class PasswordsRepositorySession extends
     Passwords.PASSWORD_FIELD  + " = ?";
 
   private PasswordRecord findExistingRecord(PasswordRecord record) throws NullCursorException, RemoteException {
+    if (pendingRecordDataKeys.contains(recordDataKey(record))) {
+      flushWrites();
+    }
     PasswordRecord foundRecord = null;
     Cursor cursor = null;
     // Only check the data table.
@@ -627,14 +804,11 @@ public class PasswordsRepositorySession extends
   }
 
   private void storeRecordDeletion(Record record) {
-    try {
-      deleteGUID(record.guid);
-    } catch (RemoteException e) {
-      Logger.error(LOG_TAG, "RemoteException in password delete.");
-      delegate.onRecordStoreFailed(e, record.guid);
-      return;
-    }
-    delegate.onRecordStoreSucceeded(record.guid);
+    final String[] args = new String[] { record.guid };
+    pendingGUIDs.add(record.guid);
+    writeBatch.delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, WHERE_GUID_IS, args, null);
+    writeBatch.delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, WHERE_DELETED_GUID_IS, args, null);
+    reportStoreSucceeded(record.guid);
   }
 
   /**
@@ -0,0 +1,316 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A persistent map from "record string" to local GUID for one collection,
+ * used to find local duplicates of incoming records without loading every
+ * local record.
+ * <p>
+ * Record strings are stored as SHA-256 digests, so a hit identifies a single
+ * candidate; callers should still check the candidate's record string, since
+ * the index can lag behind changes made outside of Sync.
+ * <p>
+ * Writes are queued and applied in a single transaction before the next
+ * lookup, or when enough accumulate. The index records the local modified
+ * time it is complete up to; <code>getIndexedUntil</code> returns -1 if the
+ * index needs to be built from scratch.
+ * <p>
+ * Each collection has its own database file, so that sessions for different
+ * collections running at the same time never contend for a database lock.
+ * <p>
+ * Not thread-safe across batches: only one thread should call
+ * <code>beginBatch</code> at a time.
+ */
+public class RecordStringIndex extends CachedSQLiteOpenHelper {
+  public static final String LOG_TAG = "RecordStringIndex";
+
+  // Database Specifications. One database per collection: see getDatabaseName.
+  protected static final String DB_NAME_PREFIX = "record_string_index_";
+  protected static final int SCHEMA_VERSION = 1;
+
+  // Index Table.
+  public static final String TBL_INDEX      = "RecordStringIndex";
+  public static final String COL_COLLECTION = "collection";
+  public static final String COL_DIGEST     = "digest";
+  public static final String COL_GUID       = "guid";
+
+  public static final String[] TBL_INDEX_GUID_COLUMNS = new String[] { COL_GUID };
+  public static final String   TBL_INDEX_KEY          = COL_COLLECTION + " = ? AND " +
+                                                        COL_DIGEST + " = ?";
+  public static final String   TBL_INDEX_GUID_QUERY   = COL_COLLECTION + " = ? AND " +
+                                                        COL_GUID + " = ?";
+  public static final String   TBL_INDEX_ENTRY        = COL_COLLECTION + " = ? AND " +
+                                                        COL_DIGEST + " = ? AND " +
+                                                        COL_GUID + " = ?";
+
+  // State Table.
+  public static final String TBL_STATE         = "RecordStringIndexState";
+  public static final String COL_INDEXED_UNTIL = "indexed_until";
+
+  public static final String[] TBL_STATE_COLUMNS = new String[] { COL_INDEXED_UNTIL };
+  public static final String   TBL_STATE_KEY     = COL_COLLECTION + " = ?";
+
+  /**
+   * Apply queued writes once this many have accumulated.
+   */
+  public static final int FLUSH_THRESHOLD = 200;
+
+  protected static class PendingWrite {
+    public final String digest;   // Null to remove every entry for guid.
+    public final String guid;
+    public final boolean remove;
+
+    public PendingWrite(String digest, String guid, boolean remove) {
+      this.digest = digest;
+      this.guid = guid;
+      this.remove = remove;
+    }
+  }
+
+  protected final String collection;
+  protected final RepoUtils.QueryHelper queryHelper;
+  protected final ArrayList<PendingWrite> pending = new ArrayList<PendingWrite>();
+  protected boolean batchSuccessful = false;
+
+  private MessageDigest digester;
+
+  public RecordStringIndex(Context context, String collection) {
+    super(context, getDatabaseName(collection), null, SCHEMA_VERSION);
+    this.collection = collection;
+    this.queryHelper = new RepoUtils.QueryHelper(context, null, LOG_TAG);
+  }
+
+  public static String getDatabaseName(String collection) {
+    return DB_NAME_PREFIX + collection;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TBL_INDEX + " ("
+        + COL_COLLECTION + " TEXT NOT NULL, "
+        + COL_DIGEST + " TEXT NOT NULL, "
+        + COL_GUID + " TEXT NOT NULL, "
+        + "PRIMARY KEY (" + COL_COLLECTION + ", " + COL_DIGEST + "))");
+    db.execSQL("CREATE INDEX " + TBL_INDEX + "_guid ON " + TBL_INDEX + " ("
+        + COL_COLLECTION + ", " + COL_GUID + ")");
+    db.execSQL("CREATE TABLE " + TBL_STATE + " ("
+        + COL_COLLECTION + " TEXT PRIMARY KEY, "
+        + COL_INDEXED_UNTIL + " INTEGER NOT NULL)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // The index can always be rebuilt, so just drop and recreate the tables.
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_INDEX);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_STATE);
+    onCreate(db);
+  }
+
+  /**
+   * @return the hex-encoded SHA-256 digest of <code>recordString</code>.
+   */
+  protected String digest(String recordString) {
+    try {
+      if (digester == null) {
+        digester = MessageDigest.getInstance("SHA-256");
+      }
+      return Utils.byte2Hex(digester.digest(recordString.getBytes("UTF-8")));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Find the GUID last indexed for <code>recordString</code>.
+   *
+   * @param recordString the "record string" to look up; must not be null.
+   * @return a GUID, or <code>null</code> if no record is indexed with this
+   *         record string.
+   * @throws NullCursorException
+   */
+  public synchronized String lookup(String recordString) throws NullCursorException {
+    flush();
+    final String[] args = new String[] { collection, digest(recordString) };
+    final Cursor cur = queryHelper.safeQuery(getCachedReadableDatabase(), ".lookup",
+        TBL_INDEX, TBL_INDEX_GUID_COLUMNS, TBL_INDEX_KEY, args);
+    try {
+      if (!cur.moveToFirst()) {
+        return null;
+      }
+      return cur.getString(0);
+    } finally {
+      cur.close();
+    }
+  }
+
+  /**
+   * Index <code>guid</code> under <code>recordString</code>, replacing any
+   * other record string previously indexed for <code>guid</code>.
+   */
+  public synchronized void put(String recordString, String guid) {
+    if (recordString == null || guid == null) {
+      return;
+    }
+    enqueue(new PendingWrite(digest(recordString), guid, false));
+  }
+
+  /**
+   * Remove every entry for <code>guid</code>.
+   */
+  public synchronized void removeGuid(String guid) {
+    if (guid == null) {
+      return;
+    }
+    enqueue(new PendingWrite(null, guid, true));
+  }
+
+  /**
+   * Remove the entry for <code>recordString</code>, but only if it still
+   * refers to <code>guid</code>.
+   */
+  public synchronized void remove(String recordString, String guid) {
+    if (recordString == null || guid == null) {
+      return;
+    }
+    enqueue(new PendingWrite(digest(recordString), guid, true));
+  }
+
+  protected void enqueue(PendingWrite write) {
+    pending.add(write);
+    if (pending.size() >= FLUSH_THRESHOLD) {
+      flush();
+    }
+  }
+
+  /**
+   * Apply queued writes in a single transaction.
+   */
+  public synchronized void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    final SQLiteDatabase db = getCachedWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (PendingWrite write : pending) {
+        if (write.remove) {
+          if (write.digest == null) {
+            db.delete(TBL_INDEX, TBL_INDEX_GUID_QUERY, new String[] { collection, write.guid });
+          } else {
+            db.delete(TBL_INDEX, TBL_INDEX_ENTRY, new String[] { collection, write.digest, write.guid });
+          }
+          continue;
+        }
+
+        // A record has exactly one record string, so drop any stale entry
+        // for this GUID before indexing it under its new one.
+        db.delete(TBL_INDEX, TBL_INDEX_GUID_QUERY, new String[] { collection, write.guid });
+        ContentValues cv = new ContentValues();
+        cv.put(COL_COLLECTION, collection);
+        cv.put(COL_DIGEST, write.digest);
+        cv.put(COL_GUID, write.guid);
+        db.replace(TBL_INDEX, null, cv);
+      }
+      db.setTransactionSuccessful();
+      Logger.debug(LOG_TAG, "Applied " + pending.size() + " index writes for " + collection + ".");
+    } finally {
+      pending.clear();
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return the local modified time, in milliseconds, up to which every
+   *         record in this collection has been indexed; or -1 if the index
+   *         must be rebuilt.
+   * @throws NullCursorException
+   */
+  public synchronized long getIndexedUntil() throws NullCursorException {
+    final Cursor cur = queryHelper.safeQuery(getCachedReadableDatabase(), ".getIndexedUntil",
+        TBL_STATE, TBL_STATE_COLUMNS, TBL_STATE_KEY, new String[] { collection });
+    try {
+      if (!cur.moveToFirst()) {
+        return -1;
+      }
+      return cur.getLong(0);
+    } finally {
+      cur.close();
+    }
+  }
+
+  public synchronized void setIndexedUntil(long timestamp) {
+    flush();
+    ContentValues cv = new ContentValues();
+    cv.put(COL_COLLECTION, collection);
+    cv.put(COL_INDEXED_UNTIL, timestamp);
+    getCachedWritableDatabase().replace(TBL_STATE, null, cv);
+  }
+
+  /**
+   * Discard every entry and the index state for this collection.
+   */
+  public synchronized void clear() {
+    pending.clear();
+    final SQLiteDatabase db = getCachedWritableDatabase();
+    final String[] args = new String[] { collection };
+    db.delete(TBL_INDEX, COL_COLLECTION + " = ?", args);
+    db.delete(TBL_STATE, TBL_STATE_KEY, args);
+  }
+
+  /**
+   * Start a transaction spanning many writes, such as a rebuild. Finish with
+   * <code>endBatch</code>; call <code>setBatchSuccessful</code> first to
+   * commit.
+   */
+  public synchronized void beginBatch() {
+    flush();
+    batchSuccessful = false;
+    getCachedWritableDatabase().beginTransaction();
+  }
+
+  public synchronized void setBatchSuccessful() {
+    flush();
+    batchSuccessful = true;
+    getCachedWritableDatabase().setTransactionSuccessful();
+  }
+
+  public synchronized void endBatch() {
+    if (!batchSuccessful) {
+      pending.clear();
+    }
+    batchSuccessful = false;
+    getCachedWritableDatabase().endTransaction();
+  }
+
+  /**
+   * Apply queued writes and close the database.
+   */
+  @Override
+  public synchronized void close() {
+    try {
+      flush();
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to apply queued index writes on close.", e);
+    }
+    super.close();
+  }
+}
@@ -79,6 +79,35 @@ public class RepoUtils {
       return safeQuery(db, label, table, columns, selection, selectionArgs, null, null, null, null);
     }
 
+    /**
+     * Return true if any row matches <code>selection</code>. Providers that
+     * honor <code>BrowserContract.PARAM_LIMIT</code> produce at most one row.
+     */
+    public boolean hasMatchingRow(String label, String[] projection, String selection) throws NullCursorException {
+      long queryStart = android.os.SystemClock.uptimeMillis();
+      Cursor c = context.getContentResolver().query(limitOne(uri), projection, selection, null, null);
+      return moveToFirstAndClose(checkAndLogCursor(label, queryStart, c));
+    }
+
+    public boolean hasMatchingRow(ContentProviderClient client, String label, String[] projection,
+                                  String selection) throws NullCursorException, RemoteException {
+      long queryStart = android.os.SystemClock.uptimeMillis();
+      Cursor c = client.query(limitOne(uri), projection, selection, null, null);
+      return moveToFirstAndClose(checkAndLogCursor(label, queryStart, c));
+    }
+
+    private static Uri limitOne(Uri uri) {
+      return uri.buildUpon().appendQueryParameter(BrowserContract.PARAM_LIMIT, "1").build();
+    }
+
+    private static boolean moveToFirstAndClose(Cursor c) {
+      try {
+        return c.moveToFirst();
+      } finally {
+        c.close();
+      }
+    }
+
     private Cursor checkAndLogCursor(String label, long queryStart, Cursor c) throws NullCursorException {
       long queryEnd = android.os.SystemClock.uptimeMillis();
       String logLabel = (label == null) ? tag : (tag + label);
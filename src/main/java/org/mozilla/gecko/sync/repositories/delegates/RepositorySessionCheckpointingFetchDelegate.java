@@ -0,0 +1,23 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.delegates;
+
+/**
+ * A fetch delegate that can tell its source when the records fetched so far
+ * have been stored, so that the source can record its progress.
+ * <p>
+ * Middleware that wraps fetch delegates should pass checkpoints on only
+ * after passing on every record fetched before them.
+ */
+public interface RepositorySessionCheckpointingFetchDelegate extends RepositorySessionFetchRecordsDelegate {
+  /**
+   * Run <code>checkpoint</code> once every record fetched before this call
+   * has been stored and committed.
+   * <p>
+   * If the fetch or store fails first, <code>checkpoint</code> might never
+   * run.
+   */
+  public void onFetchCheckpoint(Runnable checkpoint);
+}
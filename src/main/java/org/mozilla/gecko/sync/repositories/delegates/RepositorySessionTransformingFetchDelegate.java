@@ -0,0 +1,32 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.delegates;
+
+import org.mozilla.gecko.sync.repositories.RecordTransformer;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * A fetch delegate that is able to take over transforming fetched records,
+ * so that expensive work such as decryption can happen off the fetching
+ * thread.
+ * <p>
+ * Middleware that would otherwise transform each record before calling
+ * {@link #onFetchedRecord(Record)} should check
+ * {@link #acceptsUntransformedRecords()} and, if it returns true, call
+ * {@link #onFetchedRecord(Record, RecordTransformer)} instead.
+ */
+public interface RepositorySessionTransformingFetchDelegate extends RepositorySessionFetchRecordsDelegate {
+  /**
+   * @return true if this delegate will currently apply transformers itself.
+   */
+  public boolean acceptsUntransformedRecords();
+
+  /**
+   * Receive a record that has yet to be transformed. The delegate must
+   * eventually apply <code>transformer</code>, in fetch order, treating any
+   * exception as if {@link #onFetchFailed(Exception, Record)} had been called.
+   */
+  public void onFetchedRecord(Record record, RecordTransformer transformer);
+}
@@ -11,6 +11,7 @@ import java.util.Map;
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
@@ -310,6 +311,65 @@ public class BookmarkRecord extends Record {
     }
   }
 
+  /**
+   * Write the same fields as {@link #populatePayload(ExtendedJSONObject)}.
+   * Keys that it writes twice are written once here, with the value that
+   * wins there.
+   */
+  @Override
+  protected void writePayloadFields(JSONWriter writer) {
+    writeField(writer, "type", this.type);
+    writeField(writer, "title", this.title);
+    writeField(writer, "description", this.description);
+    writeField(writer, "parentid", this.parentID);
+    writeField(writer, "parentName", this.parentName);
+    writeField(writer, "keyword", this.keyword);
+
+    if (isFolder()) {
+      writer.name("children").value((Object) this.children);
+      return;
+    }
+
+    // bookmark, microsummary, query.
+    if (isBookmarkIsh()) {
+      if (isQuery()) {
+        Map<String, String> parts = Utils.extractURIComponents(PLACES_URI_PREFIX, this.bookmarkURI);
+        writeField(writer, "queryId", parts.get("queryId"), true);
+        writeField(writer, "folderName", parts.get("folderName"), true);
+        writeField(writer, "bmkUri", parts.get("uri"));
+        return;
+      }
+
+      if (isBookmark()) {
+        writer.name("bmkUri").value(bookmarkURI);
+      }
+      if (this.tags != null) {
+        writer.name("tags").value((Object) this.tags);
+      }
+      return;
+    }
+
+    if (isLivemark()) {
+      Map<String, String> parts = Utils.extractURIComponents(PLACES_URI_PREFIX, this.bookmarkURI);
+      writeField(writer, "siteUri", parts.get("siteUri"));
+      writeField(writer, "feedUri", parts.get("feedUri"));
+      return;
+    }
+    if (isSeparator()) {
+      Map<String, String> parts = Utils.extractURIComponents(PLACES_URI_PREFIX, this.bookmarkURI);
+      String pos = parts.get("pos");
+      if (pos == null) {
+        return;
+      }
+      try {
+        long position = Long.parseLong(pos, 10);
+        writer.name("pos").value(position);
+      } catch (NumberFormatException e) {
+        return;
+      }
+    }
+  }
+
   private void trace(String s) {
     Logger.trace(LOG_TAG, s);
   }
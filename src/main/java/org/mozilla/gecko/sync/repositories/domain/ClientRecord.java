@@ -7,6 +7,8 @@ package org.mozilla.gecko.sync.repositories.domain;
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONReader;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
@@ -57,6 +59,36 @@ public class ClientRecord extends Record {
     }
   }
 
+  @Override
+  protected void resetPayloadFields() {
+    this.name     = null;
+    this.type     = null;
+    this.commands = null;
+  }
+
+  @Override
+  protected boolean readPayloadField(String name, JSONReader reader) throws RecordParseException {
+    if ("name".equals(name)) {
+      this.name = reader.nextString();
+      return true;
+    }
+    if ("type".equals(name)) {
+      this.type = reader.nextString();
+      return true;
+    }
+    if ("commands".equals(name)) {
+      if (reader.peek() == JSONReader.Token.ARRAY) {
+        this.commands = (JSONArray) reader.nextValue();
+      } else {
+        Logger.debug(LOG_TAG, "Got non-array commands in client record " + guid);
+        reader.skipValue();
+        this.commands = null;
+      }
+      return true;
+    }
+    return false;
+  }
+
   @Override
   protected void populatePayload(ExtendedJSONObject payload) {
     putPayload(payload, "id",   this.guid);
@@ -67,6 +99,15 @@ public class ClientRecord extends Record {
     }
   }
 
+  @Override
+  protected void writePayloadFields(JSONWriter writer) {
+    writeField(writer, "name", this.name);
+    writeField(writer, "type", this.type);
+    if (this.commands != null) {
+      writer.name("commands").value((Object) this.commands);
+    }
+  }
+
   @Override
   public boolean equals(Object o) {
     if (!(o instanceof ClientRecord) || !super.equals(o)) {
@@ -4,7 +4,12 @@
 
 package org.mozilla.gecko.sync.repositories.domain;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 
 public class ClientRecordFactory extends RecordFactory {
@@ -14,4 +19,14 @@ public class ClientRecordFactory extends RecordFactory {
     r.initFromEnvelope((CryptoRecord) record);
     return r;
   }
+
+  @Override
+  public Record createRecord(CryptoRecord envelope, ByteBuffer cleartext)
+      throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+    ClientRecord r = new ClientRecord();
+    if (r.initFromCleartext(envelope, cleartext)) {
+      return r;
+    }
+    return super.createRecord(envelope, cleartext);
+  }
 }
@@ -6,6 +6,8 @@ package org.mozilla.gecko.sync.repositories.domain;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONReader;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
 
@@ -74,12 +76,37 @@ public class FormHistoryRecord extends Record {
     putPayload(payload, PAYLOAD_VALUE, this.fieldValue);
   }
 
+  @Override
+  protected void writePayloadFields(JSONWriter writer) {
+    writeField(writer, PAYLOAD_NAME,  this.fieldName);
+    writeField(writer, PAYLOAD_VALUE, this.fieldValue);
+  }
+
   @Override
   public void initFromPayload(ExtendedJSONObject payload) {
     this.fieldName  = payload.getString(PAYLOAD_NAME);
     this.fieldValue = payload.getString(PAYLOAD_VALUE);
   }
 
+  @Override
+  protected void resetPayloadFields() {
+    this.fieldName  = null;
+    this.fieldValue = null;
+  }
+
+  @Override
+  protected boolean readPayloadField(String name, JSONReader reader) throws RecordParseException {
+    if (PAYLOAD_NAME.equals(name)) {
+      this.fieldName = reader.nextString();
+      return true;
+    }
+    if (PAYLOAD_VALUE.equals(name)) {
+      this.fieldValue = reader.nextString();
+      return true;
+    }
+    return false;
+  }
+
   /**
    * We consider two form history records to be congruent if they represent the
    * same form element regardless of times used.
@@ -10,6 +10,8 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONReader;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
@@ -84,6 +86,13 @@ public class HistoryRecord extends Record {
     payload.put("visits",  this.visits);
   }
 
+  @Override
+  protected void writePayloadFields(JSONWriter writer) {
+    writeField(writer, "title",   this.title);
+    writeField(writer, "histUri", this.histURI);
+    writer.name("visits").value((Object) this.visits);
+  }
+
   @Override
   protected void initFromPayload(ExtendedJSONObject payload) {
     this.histURI = (String) payload.get("histUri");
@@ -96,6 +105,42 @@ public class HistoryRecord extends Record {
     }
   }
 
+  @Override
+  protected void resetPayloadFields() {
+    this.histURI = null;
+    this.title   = null;
+    this.visits  = null;
+  }
+
+  @Override
+  protected boolean readPayloadField(String name, JSONReader reader) throws RecordParseException {
+    if ("histUri".equals(name)) {
+      this.histURI = reader.nextString();
+      return true;
+    }
+    if ("title".equals(name)) {
+      this.title = reader.nextString();
+      return true;
+    }
+    if ("visits".equals(name)) {
+      switch (reader.peek()) {
+      case NULL:
+        reader.nextString();
+        this.visits = null;
+        break;
+      case ARRAY:
+        this.visits = (JSONArray) reader.nextValue();
+        break;
+      default:
+        Logger.error(LOG_TAG, "Got non-array visits in history record " + this.guid);
+        reader.skipValue();
+        this.visits = new JSONArray();
+      }
+      return true;
+    }
+    return false;
+  }
+
   /**
    * We consider two history records to be congruent if they represent the
    * same history record regardless of visits. Titles are allowed to differ,
@@ -4,7 +4,12 @@
 
 package org.mozilla.gecko.sync.repositories.domain;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 
 /**
@@ -22,4 +27,14 @@ public class HistoryRecordFactory extends RecordFactory {
     return r;
   }
 
+  @Override
+  public Record createRecord(CryptoRecord envelope, ByteBuffer cleartext)
+      throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+    HistoryRecord r = new HistoryRecord();
+    if (r.initFromCleartext(envelope, cleartext)) {
+      return r;
+    }
+    return super.createRecord(envelope, cleartext);
+  }
+
 }
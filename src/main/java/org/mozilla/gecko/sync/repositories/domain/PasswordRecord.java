@@ -6,6 +6,8 @@ package org.mozilla.gecko.sync.repositories.domain;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONReader;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
 
@@ -97,6 +99,39 @@ public class PasswordRecord extends Record {
     this.passwordField = payload.getString(PAYLOAD_PASSWORD_FIELD);
   }
 
+  @Override
+  protected void resetPayloadFields() {
+    this.hostname = null;
+    this.formSubmitURL = null;
+    this.httpRealm = null;
+    this.encryptedUsername = null;
+    this.encryptedPassword = null;
+    this.usernameField = null;
+    this.passwordField = null;
+  }
+
+  @Override
+  protected boolean readPayloadField(String name, JSONReader reader) throws RecordParseException {
+    if (PAYLOAD_HOSTNAME.equals(name)) {
+      this.hostname = reader.nextString();
+    } else if (PAYLOAD_FORM_SUBMIT_URL.equals(name)) {
+      this.formSubmitURL = reader.nextString();
+    } else if (PAYLOAD_HTTP_REALM.equals(name)) {
+      this.httpRealm = reader.nextString();
+    } else if (PAYLOAD_USERNAME.equals(name)) {
+      this.encryptedUsername = reader.nextString();
+    } else if (PAYLOAD_PASSWORD.equals(name)) {
+      this.encryptedPassword = reader.nextString();
+    } else if (PAYLOAD_USERNAME_FIELD.equals(name)) {
+      this.usernameField = reader.nextString();
+    } else if (PAYLOAD_PASSWORD_FIELD.equals(name)) {
+      this.passwordField = reader.nextString();
+    } else {
+      return false;
+    }
+    return true;
+  }
+
   @Override
   public void populatePayload(ExtendedJSONObject payload) {
     putPayload(payload, PAYLOAD_HOSTNAME, this.hostname);
@@ -108,6 +143,17 @@ public class PasswordRecord extends Record {
     putPayload(payload, PAYLOAD_PASSWORD_FIELD, this.passwordField);
   }
 
+  @Override
+  protected void writePayloadFields(JSONWriter writer) {
+    writeField(writer, PAYLOAD_HOSTNAME, this.hostname);
+    writeField(writer, PAYLOAD_FORM_SUBMIT_URL, this.formSubmitURL);
+    writeField(writer, PAYLOAD_HTTP_REALM, this.httpRealm);
+    writeField(writer, PAYLOAD_USERNAME, this.encryptedUsername);
+    writeField(writer, PAYLOAD_PASSWORD, this.encryptedPassword);
+    writeField(writer, PAYLOAD_USERNAME_FIELD, this.usernameField);
+    writeField(writer, PAYLOAD_PASSWORD_FIELD, this.passwordField);
+  }
+
   @Override
   public boolean congruentWith(Object o) {
     if (o == null || !(o instanceof PasswordRecord)) {
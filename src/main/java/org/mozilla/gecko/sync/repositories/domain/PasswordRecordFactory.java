@@ -4,7 +4,12 @@
 
 package org.mozilla.gecko.sync.repositories.domain;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -16,4 +21,14 @@ public class PasswordRecordFactory extends RecordFactory {
     r.initFromEnvelope((CryptoRecord) record);
     return r;
   }
+
+  @Override
+  public Record createRecord(CryptoRecord envelope, ByteBuffer cleartext)
+      throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+    PasswordRecord r = new PasswordRecord();
+    if (r.initFromCleartext(envelope, cleartext)) {
+      return r;
+    }
+    return super.createRecord(envelope, cleartext);
+  }
 }
@@ -5,9 +5,13 @@
 package org.mozilla.gecko.sync.repositories.domain;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Map.Entry;
 
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONReader;
+import org.mozilla.gecko.sync.JSONWriter;
 
 /**
  * Record is the abstract base class for all entries that Sync processes:
@@ -225,6 +229,68 @@ public abstract class Record {
 
   }
 
+  /**
+   * Initialize this record from a fetched envelope and its decrypted
+   * cleartext, decoding fields straight from the bytes with
+   * {@link #readPayloadField(String, JSONReader)} rather than by way of an
+   * <code>ExtendedJSONObject</code>. Fields this record doesn't know are
+   * skipped.
+   * <p>
+   * Payloads with a "deleted" member are left to
+   * {@link #initFromEnvelope(CryptoRecord)}, which treats them specially.
+   *
+   * @return false if the payload must be decoded by
+   *         <code>initFromEnvelope</code> instead, in which case this record
+   *         should be discarded.
+   * @throws RecordParseException if the cleartext is not a JSON object.
+   */
+  public boolean initFromCleartext(CryptoRecord envelope, ByteBuffer cleartext) throws RecordParseException {
+    this.guid          = envelope.guid;
+    this.collection    = envelope.collection;
+    this.lastModified  = envelope.lastModified;
+    resetPayloadFields();
+
+    final JSONReader reader = new JSONReader(cleartext.array(),
+                                             cleartext.arrayOffset() + cleartext.position(),
+                                             cleartext.remaining());
+    String payloadGUID = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if ("id".equals(name)) {
+        payloadGUID = reader.nextString();
+      } else if ("deleted".equals(name)) {
+        return false;
+      } else if (!readPayloadField(name, reader)) {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    reader.endDocument();
+
+    checkGUIDs(payloadGUID);
+    return true;
+  }
+
+  /**
+   * Set payload fields to the values {@link #initFromPayload(ExtendedJSONObject)}
+   * would give them were they missing from the payload.
+   */
+  protected void resetPayloadFields() {
+  }
+
+  /**
+   * Decode a single payload member, for
+   * {@link #initFromCleartext(CryptoRecord, ByteBuffer)}.
+   *
+   * @return false if this record doesn't know the member, which is then
+   *         skipped.
+   */
+  @SuppressWarnings("static-method")
+  protected boolean readPayloadField(String name, JSONReader reader) throws RecordParseException {
+    return false;
+  }
+
   public CryptoRecord getEnvelope() {
     CryptoRecord rec = new CryptoRecord(this);
     ExtendedJSONObject payload = new ExtendedJSONObject();
@@ -239,6 +305,39 @@ public abstract class Record {
     return rec;
   }
 
+  /**
+   * Write the cleartext payload of this record, exactly as
+   * {@link #getEnvelope()} would produce it, without building a
+   * <code>JSONObject</code>.
+   */
+  public void writePayload(JSONWriter writer) {
+    writer.beginObject();
+    writer.name("id").value(this.guid);
+    if (this.deleted) {
+      writer.name("deleted").value(true);
+    } else {
+      writePayloadFields(writer);
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Write the fields of a non-deleted record, other than "id".
+   * <p>
+   * Subclasses should override this to write their fields directly. The
+   * default goes by way of {@link #populatePayload(ExtendedJSONObject)}.
+   */
+  protected void writePayloadFields(JSONWriter writer) {
+    ExtendedJSONObject payload = new ExtendedJSONObject();
+    populatePayload(payload);
+    for (Entry<String, Object> entry : payload.entrySet()) {
+      if ("id".equals(entry.getKey())) {
+        continue;
+      }
+      writer.name(entry.getKey()).value(entry.getValue());
+    }
+  }
+
   @SuppressWarnings("static-method")
   public String toJSONString() {
     throw new RuntimeException("Cannot JSONify non-CryptoRecord Records.");
@@ -283,8 +382,29 @@ public abstract class Record {
     payload.put(key, value);
   }
 
+  /**
+   * Counterpart of {@link #putPayload(ExtendedJSONObject, String, String)}
+   * for {@link #writePayloadFields(JSONWriter)}.
+   */
+  protected static void writeField(JSONWriter writer, String key, String value) {
+    writeField(writer, key, value, false);
+  }
+
+  protected static void writeField(JSONWriter writer, String key, String value, boolean excludeEmpty) {
+    if (value == null) {
+      return;
+    }
+    if (excludeEmpty && value.equals("")) {
+      return;
+    }
+    writer.name(key).value(value);
+  }
+
   protected void checkGUIDs(ExtendedJSONObject payload) {
-    String payloadGUID = (String) payload.get("id");
+    checkGUIDs((String) payload.get("id"));
+  }
+
+  protected void checkGUIDs(String payloadGUID) {
     if (this.guid == null ||
         payloadGUID == null) {
       String detailMessage = "Inconsistency: either envelope or payload GUID missing.";
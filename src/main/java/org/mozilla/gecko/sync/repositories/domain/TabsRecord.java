@@ -12,6 +12,7 @@ import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.db.Tab;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.Utils;
 
@@ -90,6 +91,21 @@ public class TabsRecord extends Record {
     payload.put("tabs", tabsToJSON(this.tabs));
   }
 
+  @Override
+  protected void writePayloadFields(JSONWriter writer) {
+    writeField(writer, "clientName", this.clientName);
+    writer.name("tabs").beginArray();
+    for (Tab tab : this.tabs) {
+      writer.beginObject();
+      writer.name("title").value(tab.title);
+      writer.name("icon").value(tab.icon);
+      writer.name("urlHistory").value((Object) tab.history);
+      writer.name("lastUsed").value(tab.lastUsed / 1000);
+      writer.endObject();
+    }
+    writer.endArray();
+  }
+
   @Override
   public Record copyWithIDs(String guid, long androidID) {
     TabsRecord out = new TabsRecord(guid, this.collection, this.lastModified, this.deleted);
@@ -101,7 +101,6 @@ public class AuthenticateAccountStage implements AuthenticatorStage {
       public void addHeaders(HttpRequestBase request, DefaultHttpClient client) {
         // Make reference to request, to abort if necessary.
         httpRequest = request;
-        client.log.enableDebug(true);
         request.setHeader(new BasicHeader("User-Agent", SyncConstants.SYNC_USER_AGENT));
         // Host header is not set for some reason, so do it explicitly.
         try {
@@ -22,6 +22,7 @@ public class AndroidBrowserBookmarksServerSyncStage extends ServerSyncStage {
   // and all this hard-coding can go away.
   private static final String BOOKMARKS_SORT          = "index";
   private static final long   BOOKMARKS_REQUEST_LIMIT = 5000;         // Sanity limit.
+  private static final int    BOOKMARKS_PIPELINE_CAPACITY = 100;
 
   @Override
   protected String getCollection() {
@@ -49,6 +50,7 @@ public class AndroidBrowserBookmarksServerSyncStage extends ServerSyncStage {
                                                  collection,
                                                  session.config.storageURL(),
                                                  session.getAuthHeaderProvider(),
+                                                 session.config.infoConfiguration,
                                                  BOOKMARKS_REQUEST_LIMIT,
                                                  BOOKMARKS_SORT,
                                                  countsFetcher);
@@ -59,6 +61,11 @@ public class AndroidBrowserBookmarksServerSyncStage extends ServerSyncStage {
     return new AndroidBrowserBookmarksRepository();
   }
 
+  @Override
+  protected int getPipelineCapacity() {
+    return BOOKMARKS_PIPELINE_CAPACITY;
+  }
+
   @Override
   protected RecordFactory getRecordFactory() {
     return new BookmarkRecordFactory();
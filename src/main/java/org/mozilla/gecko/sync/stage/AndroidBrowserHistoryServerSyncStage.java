@@ -8,6 +8,7 @@ import java.net.URISyntaxException;
 
 import org.mozilla.gecko.sync.MetaGlobalException;
 import org.mozilla.gecko.sync.repositories.ConstrainedServer11Repository;
+import org.mozilla.gecko.sync.repositories.PagedFetchHighWaterMark;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryRepository;
@@ -20,7 +21,11 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   // Eventually this kind of sync stage will be data-driven,
   // and all this hard-coding can go away.
   private static final String HISTORY_SORT          = "index";
-  private static final long   HISTORY_REQUEST_LIMIT = 250;
+  private static final long   HISTORY_PAGE_SIZE     = 250;
+  private static final int    HISTORY_PIPELINE_CAPACITY = 100;
+  private static final int    HISTORY_MAX_CRYPTO_WORKERS = 4;
+  private static final int    HISTORY_UPLOAD_WINDOW = 4;
+  private static final int    HISTORY_STORE_LOOKUP_WINDOW = 100;
 
   @Override
   protected String getCollection() {
@@ -39,18 +44,44 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
 
   @Override
   protected Repository getLocalRepository() {
-    return new AndroidBrowserHistoryRepository();
+    AndroidBrowserHistoryRepository repository = new AndroidBrowserHistoryRepository();
+    // History records are independent of one another, so the index can be
+    // caught up while we download.
+    repository.prepareRecordIndexInBackground = true;
+    repository.storeLookupWindow = HISTORY_STORE_LOOKUP_WINDOW;
+    return repository;
   }
 
   @Override
   protected Repository getRemoteRepository() throws URISyntaxException {
     String collection = getCollection();
-    return new ConstrainedServer11Repository(
+    ConstrainedServer11Repository repository = new ConstrainedServer11Repository(
                                              collection,
                                              session.config.storageURL(),
                                              session.getAuthHeaderProvider(),
-                                             HISTORY_REQUEST_LIMIT,
+                                             session.config.infoConfiguration,
+                                             HISTORY_PAGE_SIZE,
                                              HISTORY_SORT);
+    // Download everything a page at a time, picking up where an interrupted
+    // sync left off.
+    repository.paged = true;
+    repository.highWaterMark = new PagedFetchHighWaterMark(session.config.getBranch(bundlePrefix()));
+    return repository;
+  }
+
+  @Override
+  protected int getPipelineCapacity() {
+    return HISTORY_PIPELINE_CAPACITY;
+  }
+
+  @Override
+  protected int getCryptoWorkerCount() {
+    // History downloads are large; spread decryption across spare cores.
+    final int cores = Runtime.getRuntime().availableProcessors();
+    if (cores < 2) {
+      return 0;
+    }
+    return Math.min(cores, HISTORY_MAX_CRYPTO_WORKERS);
   }
 
   @Override
@@ -65,4 +96,10 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
     }
     return super.isEnabled();
   }
+
+  @Override
+  protected int getUploadWindow() {
+    // History uploads can be large; don't pay a round trip per POST.
+    return HISTORY_UPLOAD_WINDOW;
+  }
 }
@@ -27,6 +27,9 @@ import ch.boye.httpclientandroidlib.client.ClientProtocolException;
 public class EnsureClusterURLStage extends AbstractNonRepositorySyncStage {
   private static final String LOG_TAG = EnsureClusterURLStage.class.getSimpleName();
 
+  // Connections to open to the storage node while the next stages start up.
+  protected static final int PREWARM_CONNECTIONS = 2;
+
   public interface ClusterURLFetchDelegate {
     /**
      * 200 - Success.
@@ -179,12 +182,31 @@ public class EnsureClusterURLStage extends AbstractNonRepositorySyncStage {
     resource.get();
   }
 
+  /**
+   * Open connections to the storage node in the background, so that the
+   * stages that follow don't each pay for TCP and TLS handshakes.
+   */
+  protected void prewarmConnections(final URI clusterURL) {
+    if (clusterURL == null) {
+      return;
+    }
+    ThreadPool.run(new Runnable() {
+      @Override
+      public void run() {
+        BaseResource.prewarm(clusterURL, PREWARM_CONNECTIONS,
+            BaseResourceDelegate.connectionTimeoutInMillis,
+            BaseResourceDelegate.socketTimeoutInMillis);
+      }
+    });
+  }
+
   public void execute() throws NoSuchStageException {
     final URI oldClusterURL = session.config.getClusterURL();
     final boolean wantNodeAssignment = callback.wantNodeAssignment();
 
     if (!wantNodeAssignment && oldClusterURL != null) {
       Logger.info(LOG_TAG, "Cluster URL is already set and not stale. Continuing with sync.");
+      prewarmConnections(oldClusterURL);
       session.advance();
       return;
     }
@@ -205,6 +227,7 @@ public class EnsureClusterURLStage extends AbstractNonRepositorySyncStage {
 
         callback.informNodeAssigned(session, oldClusterURL, url); // No matter what, we're getting a new node/weave clusterURL.
         session.config.setClusterURL(url);
+        prewarmConnections(url);
 
         ThreadPool.run(new Runnable() {
           @Override
@@ -233,6 +256,7 @@ public class EnsureClusterURLStage extends AbstractNonRepositorySyncStage {
           if (serverURL != null) {
             Logger.info(LOG_TAG, "Using serverURL <" + serverURL.toASCIIString() + "> as clusterURL.");
             session.config.setClusterURL(serverURL);
+            prewarmConnections(serverURL);
             session.advance();
             return;
           }
@@ -0,0 +1,57 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.stage;
+
+import java.net.URISyntaxException;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.delegates.JSONRecordFetchDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+
+/**
+ * Fetch the server's upload limits from <code>info/configuration</code>.
+ * <p>
+ * Older servers don't have this endpoint; for them we leave
+ * <code>infoConfiguration</code> unset and upload without batching.
+ */
+public class FetchInfoConfigurationStage extends AbstractNonRepositorySyncStage {
+  private static final String LOG_TAG = "FetchInfoConfigStage";
+
+  public class StageInfoConfigurationDelegate implements JSONRecordFetchDelegate {
+
+    @Override
+    public void handleSuccess(ExtendedJSONObject result) {
+      session.config.infoConfiguration = new InfoConfiguration(result);
+      session.advance();
+    }
+
+    @Override
+    public void handleFailure(SyncStorageResponse response) {
+      if (response.getStatusCode() == 404) {
+        Logger.info(LOG_TAG, "Server has no info/configuration; not batching uploads.");
+        session.config.infoConfiguration = null;
+        session.advance();
+        return;
+      }
+      session.handleHTTPError(response, "Failure fetching info/configuration.");
+    }
+
+    @Override
+    public void handleError(Exception e) {
+      session.abort(e, "Failure fetching info/configuration.");
+    }
+  }
+
+  @Override
+  public void execute() throws NoSuchStageException {
+    try {
+      session.fetchInfoConfiguration(new StageInfoConfigurationDelegate());
+    } catch (URISyntaxException e) {
+      session.abort(e, "Invalid URI.");
+    }
+  }
+}
@@ -4,15 +4,20 @@
 
 package org.mozilla.gecko.sync.stage;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 
+import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.repositories.ConstrainedServer11Repository;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.android.FormHistoryRepositorySession;
 import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
 import org.mozilla.gecko.sync.repositories.domain.VersionConstants;
 
 public class FormHistoryServerSyncStage extends ServerSyncStage {
@@ -44,6 +49,7 @@ public class FormHistoryServerSyncStage extends ServerSyncStage {
                                              collection,
                                              session.config.storageURL(),
                                              session.getAuthHeaderProvider(),
+                                             session.config.infoConfiguration,
                                              FORM_HISTORY_REQUEST_LIMIT,
                                              FORM_HISTORY_SORT);
   }
@@ -61,6 +67,16 @@ public class FormHistoryServerSyncStage extends ServerSyncStage {
       r.initFromEnvelope((CryptoRecord) record);
       return r;
     }
+
+    @Override
+    public Record createRecord(CryptoRecord envelope, ByteBuffer cleartext)
+        throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+      FormHistoryRecord r = new FormHistoryRecord();
+      if (r.initFromCleartext(envelope, cleartext)) {
+        return r;
+      }
+      return super.createRecord(envelope, cleartext);
+    }
   }
 
   @Override
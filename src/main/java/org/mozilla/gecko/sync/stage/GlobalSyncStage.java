@@ -19,6 +19,7 @@ public interface GlobalSyncStage {
     checkPreconditions,         // Preparation of the basics. TODO: clear status
     ensureClusterURL,           // Setting up where we talk to.
     fetchInfoCollections,       // Take a look at timestamps.
+    fetchInfoConfiguration,     // Find out the server's upload limits.
     fetchMetaGlobal,
     ensureKeysStage,
     /*
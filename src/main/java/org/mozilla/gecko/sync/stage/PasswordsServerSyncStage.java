@@ -11,6 +11,10 @@ import org.mozilla.gecko.sync.repositories.domain.PasswordRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.VersionConstants;
 
 public class PasswordsServerSyncStage extends ServerSyncStage {
+  // Passwords are fetched without a limit, so a first sync of a large
+  // collection is one long download.
+  private static final int PASSWORDS_FETCH_SLICES = 4;
+
   @Override
   protected String getCollection() {
     return "passwords";
@@ -35,4 +39,9 @@ public class PasswordsServerSyncStage extends ServerSyncStage {
   protected RecordFactory getRecordFactory() {
     return new PasswordRecordFactory();
   }
+
+  @Override
+  protected int getFetchSlices() {
+    return PASSWORDS_FETCH_SLICES;
+  }
 }
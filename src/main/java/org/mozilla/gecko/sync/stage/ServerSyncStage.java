@@ -14,6 +14,7 @@ import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.EngineSettings;
 import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.JSONRecordFetcher;
 import org.mozilla.gecko.sync.MetaGlobalException;
 import org.mozilla.gecko.sync.NoCollectionKeysSetException;
 import org.mozilla.gecko.sync.NonObjectJSONException;
@@ -29,6 +30,7 @@ import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.PagedFetchHighWaterMark;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -148,7 +150,8 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     String collection = getCollection();
     return new Server11Repository(collection,
                                   session.config.storageURL(),
-                                  session.getAuthHeaderProvider());
+                                  session.getAuthHeaderProvider(),
+                                  session.config.infoConfiguration);
   }
 
   /**
@@ -160,8 +163,20 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
   protected Repository wrappedServerRepo() throws NoCollectionKeysSetException, URISyntaxException {
     String collection = this.getCollection();
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
-    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
+    Repository remote = getRemoteRepository();
+    if (remote instanceof Server11Repository) {
+      ((Server11Repository) remote).uploadWindow = getUploadWindow();
+      ((Server11Repository) remote).infoCollections = session.config.infoCollections;
+      ((Server11Repository) remote).compressUploads = shouldCompressUploads();
+      final int fetchSlices = getFetchSlices();
+      if (fetchSlices > 1) {
+        ((Server11Repository) remote).fetchSlices = fetchSlices;
+        ((Server11Repository) remote).countsFetcher = new JSONRecordFetcher(session.config.infoCollectionCountsURL(), session.getAuthHeaderProvider());
+      }
+    }
+    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
+    cryptoRepo.cryptoWorkers = getCryptoWorkerCount();
     return cryptoRepo;
   }
 
@@ -177,12 +192,65 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     synchronizerConfiguration.persist(session.config.getBranch(bundlePrefix()));
   }
 
+  /**
+   * Override this to flow records through a staged pipeline, so that fetching,
+   * decrypting and storing run concurrently with bounded memory use.
+   *
+   * @return the capacity of each inter-stage queue, or 0 to not pipeline.
+   */
+  protected int getPipelineCapacity() {
+    return 0;
+  }
+
+  /**
+   * Override this to encrypt and decrypt records on a pool of worker threads.
+   *
+   * @return the number of crypto worker threads, or 0 to do crypto inline.
+   */
+  protected int getCryptoWorkerCount() {
+    return 0;
+  }
+
+  /**
+   * Override this to allow more than one upload POST in flight at once.
+   *
+   * @return the number of concurrent POSTs; 1 to upload serially.
+   */
+  protected int getUploadWindow() {
+    return 1;
+  }
+
+  /**
+   * Override this to download large collections as several slices over
+   * parallel connections. Only applies to first syncs without a fetch limit,
+   * and only to collections big enough to split; sizing the slices costs a
+   * counts request and a probe per slice. Records still arrive in the
+   * collection's sort order, so collections sorted by anything other than
+   * modified time are fetched with one request.
+   *
+   * @return the maximum number of slices; 1 to fetch with one request.
+   */
+  protected int getFetchSlices() {
+    return 1;
+  }
+
+  /**
+   * Override this to gzip upload POSTs. Sessions fall back to uncompressed
+   * POSTs if the server rejects them.
+   *
+   * @return true to compress uploads.
+   */
+  protected boolean shouldCompressUploads() {
+    return false;
+  }
+
   public Synchronizer getConfiguredSynchronizer(GlobalSession session) throws NoCollectionKeysSetException, URISyntaxException, NonObjectJSONException, IOException, ParseException {
     Repository remote = wrappedServerRepo();
 
     Synchronizer synchronizer = new ServerLocalSynchronizer();
     synchronizer.repositoryA = remote;
     synchronizer.repositoryB = this.getLocalRepository();
+    synchronizer.pipelineCapacity = getPipelineCapacity();
     synchronizer.load(getConfig());
 
     return synchronizer;
@@ -217,6 +285,8 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     config.localBundle.setTimestamp(0L);
     config.remoteBundle.setTimestamp(0L);
     persistConfig(config);
+    // Any partial paged download was against the old timestamps.
+    new PagedFetchHighWaterMark(session.config.getBranch(bundlePrefix())).clear();
     Logger.info(LOG_TAG, "Reset timestamps for " + this);
   }
 
@@ -0,0 +1,109 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.synchronizer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one stage of a pipelined <code>RecordsChannel</code>.
+ * <p>
+ * Each stage hands its output to a bounded queue; the queue depth reported
+ * here is that of the stage's output, and the blocked time is how long the
+ * stage spent waiting for room in it. A stage that is often blocked is
+ * waiting on the stage after it.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class PipelineStageStats {
+  public final String name;
+
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+  private volatile long startNanos = -1;
+  private volatile long endNanos = -1;
+
+  public PipelineStageStats(String name) {
+    this.name = name;
+  }
+
+  protected void started() {
+    startNanos = System.nanoTime();
+  }
+
+  protected void finished() {
+    endNanos = System.nanoTime();
+  }
+
+  protected void processed() {
+    processed.incrementAndGet();
+  }
+
+  protected void blockedFor(long nanos) {
+    blockedNanos.addAndGet(nanos);
+  }
+
+  protected void setQueueDepth(int depth) {
+    queueDepth.set(depth);
+    int max;
+    do {
+      max = maxQueueDepth.get();
+    } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+  }
+
+  /**
+   * @return the number of records this stage has handed on.
+   */
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+  /**
+   * @return records per second since the stage started, or 0 if it has not.
+   */
+  public double getRecordsPerSecond() {
+    final long start = startNanos;
+    if (start < 0) {
+      return 0;
+    }
+    final long end = (endNanos < 0) ? System.nanoTime() : endNanos;
+    if (end <= start) {
+      return 0;
+    }
+    return processed.get() * 1000000000.0 / (end - start);
+  }
+
+  /**
+   * @return the number of records waiting in this stage's output queue.
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * @return the largest output queue depth observed.
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * @return the time this stage spent waiting for room in its output queue.
+   */
+  public long getBlockedMillis() {
+    return blockedNanos.get() / 1000000;
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + getProcessedCount() + " records, " +
+           Math.round(getRecordsPerSecond()) + " records/sec, " +
+           "queue depth " + getQueueDepth() + " (max " + getMaxQueueDepth() + "), " +
+           "blocked " + getBlockedMillis() + "ms.";
+  }
+}
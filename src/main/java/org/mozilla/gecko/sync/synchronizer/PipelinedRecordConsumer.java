@@ -0,0 +1,298 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.synchronizer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.repositories.RecordTransformer;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Consume records from a <code>RecordsChannel</code> in three stages, each
+ * connected to the next by a bounded queue:
+ *
+ * <ul>
+ * <li>fetch: the source's fetch thread, calling {@link #enqueue(Record, RecordTransformer)};</li>
+ * <li>transform: a consumer thread that applies any pending transform, such
+ *   as decryption;</li>
+ * <li>store: a consumer thread that invokes <code>store</code> on the sink.</li>
+ * </ul>
+ *
+ * Each stage blocks when the next falls behind, so the fetch thread -- and
+ * thus the network -- is throttled by storage. The store stage itself is
+ * throttled by allowing at most {@link #MAX_SINK_WINDOWS} windows of
+ * <code>capacity</code> records to be queued in the sink at once.
+ * <p>
+ * Records are stored in fetch order.
+ */
+class PipelinedRecordConsumer extends RecordConsumer {
+  private static final String LOG_TAG = "PRecordConsumer";
+
+  private static final long POLL_INTERVAL_MSEC = 1000;
+  protected static final int MAX_SINK_WINDOWS = 2;
+
+  protected static class PendingRecord {
+    public final Record record;
+    public final RecordTransformer transformer;
+
+    public PendingRecord(Record record, RecordTransformer transformer) {
+      this.record = record;
+      this.transformer = transformer;
+    }
+  }
+
+  // Marks the end of the fetched records.
+  private static final PendingRecord END = new PendingRecord(null, null);
+
+  protected final RecordsChannel channel;
+  protected final int capacity;
+
+  protected final BlockingQueue<PendingRecord> transformQueue;
+  protected final BlockingQueue<PendingRecord> storeQueue;
+  protected final Semaphore sinkWindows = new Semaphore(MAX_SINK_WINDOWS);
+
+  public final PipelineStageStats fetchStats     = new PipelineStageStats("fetch");
+  public final PipelineStageStats transformStats = new PipelineStageStats("transform");
+  public final PipelineStageStats storeStats     = new PipelineStageStats("store");
+
+  protected volatile boolean halted = false;
+  private final AtomicBoolean done = new AtomicBoolean(false);
+  private final AtomicLong storeCallbacks = new AtomicLong();
+
+  // Only touched by the store stage.
+  private boolean holdingWindow = false;
+
+  public PipelinedRecordConsumer(RecordsChannel channel, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Pipeline capacity must be positive.");
+    }
+    this.channel = channel;
+    this.delegate = channel;
+    this.capacity = capacity;
+    this.transformQueue = new ArrayBlockingQueue<PendingRecord>(capacity);
+    this.storeQueue = new ArrayBlockingQueue<PendingRecord>(capacity);
+    fetchStats.started();
+  }
+
+  /**
+   * Called on the fetch thread. Blocks while the transform stage is full.
+   *
+   * @param record fetched record.
+   * @param transformer to apply in the transform stage, or null.
+   */
+  public void enqueue(Record record, RecordTransformer transformer) {
+    if (put(transformQueue, new PendingRecord(record, transformer), fetchStats)) {
+      fetchStats.processed();
+    }
+  }
+
+  @Override
+  public void doNotify() {
+    // Nothing to do: the stage threads block on their queues.
+  }
+
+  @Override
+  public void queueFilled() {
+    Logger.debug(LOG_TAG, "Queue filled.");
+    put(transformQueue, END, fetchStats);
+    fetchStats.finished();
+  }
+
+  @Override
+  public void halt() {
+    Logger.debug(LOG_TAG, "Halting.");
+    halted = true;
+    transformQueue.clear();
+    storeQueue.clear();
+  }
+
+  @Override
+  public void stored() {
+    storeCallbacks.incrementAndGet();
+  }
+
+  @Override
+  public void run() {
+    ThreadPool.run(new Runnable() {
+      @Override
+      public void run() {
+        runTransformStage();
+      }
+    });
+    runStoreStage();
+  }
+
+  protected void runTransformStage() {
+    transformStats.started();
+    try {
+      while (true) {
+        final PendingRecord pending = take(transformQueue, fetchStats);
+        if (pending == null) {
+          return;
+        }
+        if (pending == END) {
+          put(storeQueue, END, transformStats);
+          return;
+        }
+
+        Record record = pending.record;
+        if (pending.transformer != null) {
+          try {
+            record = pending.transformer.transform(record);
+          } catch (Exception e) {
+            // This will halt us.
+            channel.onFetchFailed(e, pending.record);
+            return;
+          }
+          channel.numFetched.incrementAndGet();
+        }
+        if (!put(storeQueue, new PendingRecord(record, null), transformStats)) {
+          return;
+        }
+        transformStats.processed();
+      }
+    } finally {
+      transformStats.finished();
+    }
+  }
+
+  protected void runStoreStage() {
+    storeStats.started();
+    int inWindow = 0;
+    while (true) {
+      final PendingRecord pending = take(storeQueue, transformStats);
+      if (pending == null) {
+        Logger.debug(LOG_TAG, "Told to stop immediately. Notifying consumerIsDone.");
+        consumerIsDone(true);
+        return;
+      }
+      if (pending == END) {
+        break;
+      }
+
+      if (inWindow == 0) {
+        openWindow();
+      }
+      Logger.trace(LOG_TAG, "Storing record with guid " + pending.record.guid + ".");
+      try {
+        channel.store(pending.record);
+      } catch (Exception e) {
+        // TODO: Bug 709371: track records that failed to apply.
+        Logger.error(LOG_TAG, "Caught error in store.", e);
+      }
+      storeStats.processed();
+      if (++inWindow == capacity) {
+        closeWindow();
+        inWindow = 0;
+      }
+    }
+
+    Logger.debug(LOG_TAG, "Done with records and no more to come. Notifying consumerIsDone.");
+    Logger.debug(LOG_TAG, fetchStats.toString());
+    Logger.debug(LOG_TAG, transformStats.toString());
+    Logger.debug(LOG_TAG, storeStats.toString());
+    consumerIsDone(false);
+  }
+
+  /**
+   * Wait until the sink has room for another window of stores.
+   */
+  private void openWindow() {
+    final long start = System.nanoTime();
+    try {
+      while (!halted && channel.sink.isActive()) {
+        if (sinkWindows.tryAcquire(POLL_INTERVAL_MSEC, TimeUnit.MILLISECONDS)) {
+          holdingWindow = true;
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    storeStats.blockedFor(System.nanoTime() - start);
+    updateSinkDepth();
+  }
+
+  /**
+   * Release the current window once the sink has processed its stores.
+   */
+  private void closeWindow() {
+    if (!holdingWindow) {
+      return;
+    }
+    holdingWindow = false;
+    try {
+      channel.sink.runAfterQueuedStores(new Runnable() {
+        @Override
+        public void run() {
+          sinkWindows.release();
+          updateSinkDepth();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Logger.warn(LOG_TAG, "Sink is no longer storing; not throttling.");
+      sinkWindows.release();
+    }
+  }
+
+  private void updateSinkDepth() {
+    storeStats.setQueueDepth((MAX_SINK_WINDOWS - sinkWindows.availablePermits()) * capacity);
+  }
+
+  /**
+   * @return true if the item was queued; false if we were halted first.
+   */
+  private boolean put(BlockingQueue<PendingRecord> queue, PendingRecord item, PipelineStageStats stats) {
+    final long start = System.nanoTime();
+    try {
+      while (!halted) {
+        if (queue.offer(item, POLL_INTERVAL_MSEC, TimeUnit.MILLISECONDS)) {
+          stats.setQueueDepth(queue.size());
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      stats.blockedFor(System.nanoTime() - start);
+    }
+    return false;
+  }
+
+  /**
+   * @return the next item, or null if we were halted first.
+   */
+  private PendingRecord take(BlockingQueue<PendingRecord> queue, PipelineStageStats producerStats) {
+    try {
+      while (!halted) {
+        final PendingRecord pending = queue.poll(POLL_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+        if (pending != null) {
+          producerStats.setQueueDepth(queue.size());
+          return pending;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  private void consumerIsDone(boolean forced) {
+    if (!done.compareAndSet(false, true)) {
+      return;
+    }
+    Logger.debug(LOG_TAG, "Consumer is done. Processed " + storeStats.getProcessedCount() + " records; " +
+                          storeCallbacks.get() + " store callbacks received.");
+    channel.consumerIsDone(forced);
+  }
+}
@@ -4,20 +4,25 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
+import java.util.LinkedList;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.RecordTransformer;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCheckpointingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionTransformingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 /**
@@ -57,11 +62,24 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  * RecordsChannel exists to enforce this ordering of operations.
  *
+ * By default, fetched records are pushed into an unbounded queue and stored
+ * by a single consumer thread. If a pipeline capacity is set with
+ * {@link #setPipelineCapacity(int)}, records instead flow through separate
+ * fetch, transform (e.g., decrypt) and store stages connected by bounded
+ * queues; see {@link PipelinedRecordConsumer}. In that mode the fetch thread
+ * blocks when storage falls behind, and each stage reports its throughput and
+ * queue depth through {@link #getPipelineStats()}.
+ *
+ * Sources that fetch in pages can ask to be told when everything they have
+ * fetched so far has been stored; see
+ * {@link RepositorySessionCheckpointingFetchDelegate}.
+ *
  * @author rnewman
  *
  */
 public class RecordsChannel implements
-  RepositorySessionFetchRecordsDelegate,
+  RepositorySessionTransformingFetchDelegate,
+  RepositorySessionCheckpointingFetchDelegate,
   RepositorySessionStoreDelegate,
   RecordsConsumerDelegate,
   RepositorySessionBeginDelegate {
@@ -78,6 +96,23 @@ public class RecordsChannel implements
   protected final AtomicInteger numStored = new AtomicInteger();
   protected final AtomicInteger numStoreFailed = new AtomicInteger();
 
+  // Records handed to us by the source, and records handed on to the sink.
+  protected final AtomicInteger numReceived = new AtomicInteger();
+  private int numPassedToSink = 0;
+
+  private static class PendingCheckpoint {
+    public final int received;
+    public final Runnable checkpoint;
+
+    public PendingCheckpoint(int received, Runnable checkpoint) {
+      this.received = received;
+      this.checkpoint = checkpoint;
+    }
+  }
+
+  // Guarded by itself, as is numPassedToSink.
+  private final LinkedList<PendingCheckpoint> checkpoints = new LinkedList<PendingCheckpoint>();
+
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
     this.source    = source;
     this.sink      = sink;
@@ -95,6 +130,8 @@ public class RecordsChannel implements
    * Then we notify our delegate of completion.
    */
   private RecordConsumer consumer;
+  private PipelinedRecordConsumer pipeline;
+  private int pipelineCapacity = 0;
   private boolean waitingForQueueDone = false;
   private ConcurrentLinkedQueue<Record> toProcess = new ConcurrentLinkedQueue<Record>();
 
@@ -143,6 +180,33 @@ public class RecordsChannel implements
     return numStoreFailed.get();
   }
 
+  /**
+   * Set the capacity of each inter-stage queue when flowing records as a
+   * pipeline. Must be called before {@link #flow()}.
+   *
+   * @param capacity queue capacity, or 0 to disable pipelining.
+   */
+  public void setPipelineCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Pipeline capacity cannot be negative.");
+    }
+    this.pipelineCapacity = capacity;
+  }
+
+  /**
+   * Get counters for each stage of the current pipelined flow.
+   *
+   * @return fetch, transform and store stage counters, in that order, or null
+   *         if this channel is not flowing as a pipeline.
+   */
+  public PipelineStageStats[] getPipelineStats() {
+    final PipelinedRecordConsumer pipeline = this.pipeline;
+    if (pipeline == null) {
+      return null;
+    }
+    return new PipelineStageStats[] { pipeline.fetchStats, pipeline.transformStats, pipeline.storeStats };
+  }
+
   /**
    * Start records flowing through the channel.
    */
@@ -160,8 +224,19 @@ public class RecordsChannel implements
     numFetchFailed.set(0);
     numStored.set(0);
     numStoreFailed.set(0);
+    numReceived.set(0);
+    synchronized (checkpoints) {
+      numPassedToSink = 0;
+      checkpoints.clear();
+    }
     // Start a consumer thread.
-    this.consumer = new ConcurrentRecordConsumer(this);
+    if (pipelineCapacity > 0) {
+      this.pipeline = new PipelinedRecordConsumer(this, pipelineCapacity);
+      this.consumer = this.pipeline;
+    } else {
+      this.pipeline = null;
+      this.consumer = new ConcurrentRecordConsumer(this);
+    }
     ThreadPool.run(this.consumer);
     waitingForQueueDone = true;
     source.fetchSince(timestamp, this);
@@ -185,23 +260,81 @@ public class RecordsChannel implements
       Logger.error(LOG_TAG, "Got NoStoreDelegateException in RecordsChannel.store(). This should not occur. Aborting.", e);
       delegate.onFlowStoreFailed(this, e, record.guid);
     }
+    synchronized (checkpoints) {
+      numPassedToSink++;
+      commitReachedCheckpoints();
+    }
+  }
+
+  /**
+   * Commit, in order, each checkpoint whose records have all been handed to
+   * the sink. Call while holding the <code>checkpoints</code> lock.
+   */
+  private void commitReachedCheckpoints() {
+    while (!checkpoints.isEmpty() && checkpoints.getFirst().received <= numPassedToSink) {
+      final Runnable checkpoint = checkpoints.removeFirst().checkpoint;
+      try {
+        sink.runAfterCommittedStores(checkpoint);
+      } catch (RejectedExecutionException e) {
+        Logger.warn(LOG_TAG, "Sink is no longer storing; dropping fetch checkpoint.");
+      }
+    }
   }
 
   @Override
   public void onFetchFailed(Exception ex, Record record) {
     Logger.warn(LOG_TAG, "onFetchFailed. Calling for immediate stop.", ex);
     numFetchFailed.incrementAndGet();
-    this.consumer.halt();
+    // Tell our delegate before halting: halting can complete the flow.
     delegate.onFlowFetchFailed(this, ex);
+    this.consumer.halt();
   }
 
   @Override
   public void onFetchedRecord(Record record) {
+    numReceived.incrementAndGet();
     numFetched.incrementAndGet();
+    if (pipeline != null) {
+      // Blocks if storage is behind.
+      pipeline.enqueue(record, null);
+      return;
+    }
     this.toProcess.add(record);
     this.consumer.doNotify();
   }
 
+  @Override
+  public boolean acceptsUntransformedRecords() {
+    return pipeline != null;
+  }
+
+  @Override
+  public void onFetchedRecord(Record record, RecordTransformer transformer) {
+    if (pipeline == null) {
+      // Shouldn't happen, but don't lose the record.
+      Record transformed;
+      try {
+        transformed = transformer.transform(record);
+      } catch (Exception e) {
+        onFetchFailed(e, record);
+        return;
+      }
+      onFetchedRecord(transformed);
+      return;
+    }
+    // The transform stage counts the record as fetched once it is transformed.
+    numReceived.incrementAndGet();
+    pipeline.enqueue(record, transformer);
+  }
+
+  @Override
+  public void onFetchCheckpoint(Runnable checkpoint) {
+    synchronized (checkpoints) {
+      checkpoints.addLast(new PendingCheckpoint(numReceived.get(), checkpoint));
+      commitReachedCheckpoints();
+    }
+  }
+
   @Override
   public void onFetchCompleted(final long fetchEnd) {
     Logger.trace(LOG_TAG, "onFetchCompleted. Stopping consumer once stores are done.");
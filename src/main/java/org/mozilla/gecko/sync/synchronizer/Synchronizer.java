@@ -70,6 +70,12 @@ public class Synchronizer implements SynchronizerSessionDelegate {
   public RepositorySessionBundle bundleA;
   public RepositorySessionBundle bundleB;
 
+  /**
+   * If positive, records flow between repositories through a staged pipeline
+   * with queues of this capacity. See {@link RecordsChannel#setPipelineCapacity(int)}.
+   */
+  public int pipelineCapacity = 0;
+
   /**
    * Fetch a synchronizer session appropriate for this <code>Synchronizer</code>
    */
@@ -164,6 +164,7 @@ implements RecordsChannelDelegate,
     // This is the *second* record channel to flow.
     // I, SynchronizerSession, am the delegate for the *second* flow.
     channelBToA = new RecordsChannel(this.sessionB, this.sessionA, this);
+    channelBToA.setPipelineCapacity(synchronizer.pipelineCapacity);
 
     // This is the delegate for the *first* flow.
     RecordsChannelDelegate channelAToBDelegate = new RecordsChannelDelegate() {
@@ -196,6 +197,7 @@ implements RecordsChannelDelegate,
 
     // This is the *first* channel to flow.
     channelAToB = new RecordsChannel(this.sessionA, this.sessionB, channelAToBDelegate);
+    channelAToB.setPipelineCapacity(synchronizer.pipelineCapacity);
 
     Logger.trace(LOG_TAG, "Starting A to B flow. Channel is " + channelAToB);
     try {
@@ -18,6 +18,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.AssertionFailedError;
 
@@ -423,6 +424,145 @@ public class TestGlobalSession {
     assertEquals(expected, session.config.metaGlobal.getEnabledEngineNames());
   }
 
+  /**
+   * An engine stage that finishes asynchronously, like a real synchronizer,
+   * recording how many engine stages were running at once.
+   */
+  protected static class ConcurrentMockStage extends MockServerSyncStage {
+    protected final String name;
+    protected final AtomicInteger running;
+    protected final AtomicInteger maxRunning;
+    protected final boolean shouldAbort;
+    protected final boolean recordUpdates;
+
+    public ConcurrentMockStage(String name, AtomicInteger running, AtomicInteger maxRunning, boolean shouldAbort, boolean recordUpdates) {
+      this.name = name;
+      this.running = running;
+      this.maxRunning = maxRunning;
+      this.shouldAbort = shouldAbort;
+      this.recordUpdates = recordUpdates;
+    }
+
+    @Override
+    public void execute() {
+      final int now = running.incrementAndGet();
+      synchronized (maxRunning) {
+        maxRunning.set(Math.max(now, maxRunning.get()));
+      }
+      if (shouldAbort) {
+        running.decrementAndGet();
+        session.abort(null, "Stage intentionally failed.");
+        return;
+      }
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            // Carry on.
+          }
+          running.decrementAndGet();
+          if (recordUpdates) {
+            session.recordForMetaGlobalUpdate(name, new EngineSettings(Utils.generateGuid(), 1));
+          }
+          session.advance();
+        }
+      }).start();
+    }
+  }
+
+  protected GlobalSession concurrentSession(MockGlobalSessionCallback callback, final int parallelism,
+                                            AtomicInteger running, AtomicInteger maxRunning, Stage abortingStage) throws Exception {
+    MockGlobalSession session = new MockGlobalSession(TEST_USERNAME, TEST_PASSWORD,
+        new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY), callback) {
+      @Override
+      protected int getEngineStageParallelism() {
+        return parallelism;
+      }
+    };
+    for (Stage stage = GlobalSession.nextStage(Stage.syncClientsEngine); stage != Stage.uploadMetaGlobal; stage = GlobalSession.nextStage(stage)) {
+      // Our mock session has no meta/global to update on abort.
+      final boolean recordUpdates = abortingStage == null;
+      session.withStage(stage, new ConcurrentMockStage(stage.getRepositoryName(), running, maxRunning, stage == abortingStage, recordUpdates));
+    }
+    return session;
+  }
+
+  protected void startAndWait(final GlobalSession session) {
+    getTestWaiter().performWait(WaitHelper.onThreadRunnable(new Runnable() {
+      public void run() {
+        try {
+          session.start();
+        } catch (Exception e) {
+          final AssertionFailedError error = new AssertionFailedError();
+          error.initCause(e);
+          getTestWaiter().performNotify(error);
+        }
+      }
+    }));
+  }
+
+  @Test
+  public void testEngineStagesRunConcurrently() throws Exception {
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    final AtomicInteger running = new AtomicInteger(0);
+    final AtomicInteger maxRunning = new AtomicInteger(0);
+    final GlobalSession session = concurrentSession(callback, 2, running, maxRunning, null);
+
+    startAndWait(session);
+
+    assertTrue(callback.calledSuccess);
+    assertFalse(callback.calledError);
+    assertEquals(2, maxRunning.get());
+    assertEquals(0, running.get());
+    // Every engine's meta/global update was recorded.
+    assertEquals(5, session.enginesToUpdate.size());
+  }
+
+  @Test
+  public void testEngineStagesRunSerially() throws Exception {
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    final AtomicInteger running = new AtomicInteger(0);
+    final AtomicInteger maxRunning = new AtomicInteger(0);
+    final GlobalSession session = concurrentSession(callback, 1, running, maxRunning, null);
+
+    startAndWait(session);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, maxRunning.get());
+  }
+
+  @Test
+  public void testConcurrentEngineStageAborts() throws Exception {
+    final AtomicInteger errors = new AtomicInteger(0);
+    final AtomicInteger running = new AtomicInteger(0);
+    final AtomicInteger runningAtError = new AtomicInteger(-1);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL) {
+      @Override
+      public void handleError(GlobalSession globalSession, Exception ex) {
+        errors.incrementAndGet();
+        runningAtError.set(running.get());
+        super.handleError(globalSession, ex);
+      }
+    };
+    final AtomicInteger maxRunning = new AtomicInteger(0);
+    final GlobalSession session = concurrentSession(callback, 3, running, maxRunning, Stage.syncBookmarks);
+
+    startAndWait(session);
+
+    // We only abort once the stages still running have finished.
+    assertFalse(callback.calledSuccess);
+    assertTrue(callback.calledError);
+    assertEquals(0, runningAtError.get());
+
+    // Nothing else is reported once we've aborted.
+    Thread.sleep(300);
+    assertFalse(callback.calledSuccess);
+    assertEquals(1, errors.get());
+    assertEquals(0, running.get());
+  }
+
   public void testStageAdvance() {
     assertEquals(GlobalSession.nextStage(Stage.idle), Stage.checkPreconditions);
     assertEquals(GlobalSession.nextStage(Stage.completed), Stage.idle);
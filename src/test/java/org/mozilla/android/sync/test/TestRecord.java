@@ -9,6 +9,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.json.simple.JSONArray;
@@ -18,10 +19,17 @@ import org.junit.Test;
 import org.mozilla.gecko.background.db.Tab;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
+import org.mozilla.gecko.sync.repositories.domain.ClientRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
 import org.mozilla.gecko.sync.repositories.domain.TabsRecord;
@@ -313,6 +321,153 @@ public class TestRecord {
     assertEquals(record.ttl, cryptoRecord.ttl);
   }
 
+  protected static void assertWritesEnvelope(Record record) throws Exception {
+    final ExtendedJSONObject expected = record.getEnvelope().payload;
+    final JSONWriter writer = new JSONWriter();
+    record.writePayload(writer);
+    assertEquals(expected.object, ExtendedJSONObject.parseUTF8AsJSONObject(writer.toByteArray()).object);
+
+    // And the whole envelope, payload embedded, as uploaded.
+    final CryptoRecord envelope = record.getEnvelope();
+    final ExtendedJSONObject written = ExtendedJSONObject.parseUTF8AsJSONObject(envelope.toJSONBytes());
+    final ExtendedJSONObject json = new ExtendedJSONObject(envelope.toJSONString());
+    assertEquals(json.keySet(), written.keySet());
+    assertEquals(json.get("id"), written.get("id"));
+    assertEquals(json.get("ttl"), written.get("ttl"));
+    assertEquals(expected.object, new ExtendedJSONObject(written.getString("payload")).object);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testWritePayloadMatchesEnvelope() throws Exception {
+    final HistoryRecord history = new HistoryRecord("historyGuid");
+    history.title = "Title with \"quotes\", \u00e9 and \ud83d\ude00";
+    history.histURI = "http://example.com/a/b?c=d";
+    history.visits = new JSONArray();
+    final JSONObject visit = new JSONObject();
+    visit.put("date", 1234567890123456L);
+    visit.put("type", 1L);
+    history.visits.add(visit);
+    assertWritesEnvelope(history);
+    history.visits = null;
+    assertWritesEnvelope(history);
+
+    final ClientRecord client = new ClientRecord("clientGuid");
+    assertWritesEnvelope(client);
+    client.commands = new JSONArray();
+    client.commands.add("wipeAll");
+    assertWritesEnvelope(client);
+
+    final TabsRecord tabs = new TabsRecord("tabsGuid");
+    tabs.clientName = "client";
+    tabs.tabs = new ArrayList<Tab>();
+    final JSONArray tabHistory = new JSONArray();
+    tabHistory.add("http://example.com/");
+    tabs.tabs.add(new Tab("tab", null, tabHistory, 1234567));
+    assertWritesEnvelope(tabs);
+
+    final PasswordRecord password = new PasswordRecord("passwordGuid");
+    password.hostname = "https://example.com";
+    password.encryptedUsername = "user";
+    password.encryptedPassword = "pass";
+    assertWritesEnvelope(password);
+
+    final FormHistoryRecord form = new FormHistoryRecord("formGuid");
+    form.fieldName = "name";
+    form.fieldValue = "value";
+    assertWritesEnvelope(form);
+
+    final BookmarkRecord bookmark = new BookmarkRecord("bookmarkGuid", "bookmarks");
+    bookmark.type = "bookmark";
+    bookmark.title = "Bookmark";
+    bookmark.parentID = "toolbar";
+    bookmark.keyword = "kw";
+    bookmark.bookmarkURI = "http://example.com/";
+    bookmark.tags = new JSONArray();
+    bookmark.tags.add("tag");
+    assertWritesEnvelope(bookmark);
+
+    bookmark.type = "query";
+    bookmark.bookmarkURI = "places:uri=place%3Atransition%3D7%26sort%3D4&queryId=q&folderName=";
+    assertWritesEnvelope(bookmark);
+
+    bookmark.type = "folder";
+    bookmark.children = new JSONArray();
+    bookmark.children.add("childGuid");
+    assertWritesEnvelope(bookmark);
+
+    bookmark.type = "livemark";
+    bookmark.bookmarkURI = "places:siteUri=http%3A%2F%2Fexample.com%2F&feedUri=http%3A%2F%2Fexample.com%2Ffeed";
+    assertWritesEnvelope(bookmark);
+
+    bookmark.type = "separator";
+    bookmark.bookmarkURI = "places:pos=3";
+    assertWritesEnvelope(bookmark);
+
+    final BookmarkRecord deleted = new BookmarkRecord("deletedGuid", "bookmarks", 0, true);
+    assertWritesEnvelope(deleted);
+  }
+
+  protected static Record decodeCleartext(RecordFactory factory, String cleartext) throws Exception {
+    final CryptoRecord envelope = new CryptoRecord();
+    envelope.guid = "abcdefghijkl";
+    envelope.collection = "things";
+    envelope.lastModified = 1234;
+    // Decode from the middle of a larger buffer, as decryption leaves it.
+    final byte[] bytes = ("xx" + cleartext + "yy").getBytes("UTF-8");
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 4).slice();
+    final Record decoded = factory.createRecord(envelope, buffer);
+
+    final CryptoRecord parsed = new CryptoRecord(new ExtendedJSONObject(cleartext));
+    parsed.guid = envelope.guid;
+    parsed.collection = envelope.collection;
+    parsed.lastModified = envelope.lastModified;
+    final Record expected = factory.createRecord(parsed);
+    assertEquals(expected, decoded);
+    assertEquals(expected.getEnvelope().payload, decoded.getEnvelope().payload);
+    return decoded;
+  }
+
+  @Test
+  public void testInitFromCleartextMatchesEnvelope() throws Exception {
+    final HistoryRecord history = (HistoryRecord) decodeCleartext(new HistoryRecordFactory(),
+        "{\"id\":\"abcdefghijkl\",\"histUri\":\"http:\\/\\/example.com\\/\",\"title\":\"T\\u00e9\"," +
+        "\"unknown\":{\"a\":[1,2]},\"visits\":[{\"date\":1370000000000000,\"type\":1},{\"date\":1370000000000001,\"type\":2}]}");
+    assertEquals("http://example.com/", history.histURI);
+    assertEquals("T\u00e9", history.title);
+    assertEquals(2, history.visits.size());
+
+    decodeCleartext(new HistoryRecordFactory(), "{\"id\":\"abcdefghijkl\",\"visits\":\"nope\"}");
+    decodeCleartext(new HistoryRecordFactory(), "{\"id\":\"abcdefghijkl\",\"visits\":null}");
+
+    final ClientRecord client = (ClientRecord) decodeCleartext(new ClientRecordFactory(),
+        "{\"id\":\"abcdefghijkl\",\"name\":\"Phone\",\"type\":\"mobile\",\"commands\":[{\"command\":\"wipeAll\",\"args\":[]}]}");
+    assertEquals("Phone", client.name);
+    assertEquals(1, client.commands.size());
+    // Missing fields are cleared, as they would be from a parsed payload.
+    assertEquals(null, ((ClientRecord) decodeCleartext(new ClientRecordFactory(), "{\"id\":\"abcdefghijkl\"}")).name);
+
+    final PasswordRecord password = (PasswordRecord) decodeCleartext(new PasswordRecordFactory(),
+        "{\"id\":\"abcdefghijkl\",\"hostname\":\"https://example.com\",\"username\":\"u\",\"password\":\"p\",\"httpRealm\":null}");
+    assertEquals("u", password.encryptedUsername);
+
+    // Deleted records are decoded by way of the payload.
+    final Record deleted = decodeCleartext(new HistoryRecordFactory(), "{\"id\":\"abcdefghijkl\",\"deleted\":true}");
+    assertTrue(deleted.deleted);
+  }
+
+  @Test
+  public void testInitFromCleartextChecksGUIDs() throws Exception {
+    final CryptoRecord envelope = new CryptoRecord();
+    envelope.guid = "abcdefghijkl";
+    try {
+      new HistoryRecord().initFromCleartext(envelope, ByteBuffer.wrap("{\"id\":\"other\"}".getBytes("UTF-8")));
+      fail("Expected exception.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+
   @Test
   public void testStringModified() throws Exception {
     // modified member is a string, expected a floating point number with 2
@@ -5,6 +5,7 @@ package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -22,6 +23,7 @@ import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.synchronizer.PipelineStageStats;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
 
@@ -40,6 +42,10 @@ public class TestRecordsChannel {
   protected AtomicBoolean flowBeginFailed;
   protected AtomicBoolean flowFinishFailed;
 
+  // Zero means the default, unpipelined flow.
+  protected int pipelineCapacity = 0;
+  protected RecordsChannel channel;
+
   public void doFlow(final Repository remote, final Repository local) throws Exception {
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
@@ -118,6 +124,8 @@ public class TestRecordsChannel {
     };
 
     final RecordsChannel rc = new RecordsChannel(source,  sink, rcDelegate);
+    rc.setPipelineCapacity(pipelineCapacity);
+    channel = rc;
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
       public void run() {
@@ -223,4 +231,53 @@ public class TestRecordsChannel {
     assertEquals(6, numFlowStoreFailed.get()); // One (big) batch fails.
     assertEquals(0, sink.wbos.size()); // No batches succeed.
   }
+
+  @Test
+  public void testPipelinedSuccess() throws Exception {
+    pipelineCapacity = 2; // Smaller than the number of records, so stages block.
+    WBORepository source = full();
+    WBORepository sink = empty();
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(source.wbos, sink.wbos);
+
+    PipelineStageStats[] stats = channel.getPipelineStats();
+    assertEquals(3, stats.length);
+    for (PipelineStageStats stage : stats) {
+      assertEquals(outbounds.length, stage.getProcessedCount());
+      assertTrue(stage.getMaxQueueDepth() <= pipelineCapacity * 2);
+    }
+  }
+
+  @Test
+  public void testPipelinedFetchFail() throws Exception {
+    pipelineCapacity = 2;
+    WBORepository source = failingFetch();
+    WBORepository sink = empty();
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertTrue(numFlowFetchFailed.get() > 0);
+    assertEquals(0, numFlowStoreFailed.get());
+    assertTrue(sink.wbos.size() < 6);
+  }
+
+  @Test
+  public void testPipelinedStoreBatchesFail() throws Exception {
+    pipelineCapacity = 2;
+    WBORepository source = full();
+    WBORepository sink = new SynchronizerHelpers.BatchFailStoreWBORepository(3);
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(3, numFlowStoreFailed.get()); // One batch fails.
+    assertEquals(3, sink.wbos.size()); // One batch succeeds.
+  }
+
+  @Test
+  public void testUnpipelinedHasNoStats() throws Exception {
+    doFlow(full(), empty());
+    assertNull(channel.getPipelineStats());
+  }
 }
@@ -4,37 +4,64 @@
 package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.mozilla.android.sync.test.SynchronizerHelpers.TrackingWBORepository;
 import org.mozilla.android.sync.test.helpers.BaseTestStorageRequestDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionBeginDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.android.sync.test.helpers.MockWBOServer;
+import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.background.testhelpers.MockRecord;
+import org.mozilla.gecko.background.testhelpers.MockSharedPreferences;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.JSONRecordFetcher;
+import org.mozilla.gecko.sync.Server11BatchFailedException;
+import org.mozilla.gecko.sync.Server11RecordTooLargeException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
+import org.mozilla.gecko.sync.net.HawkAuthHeaderProvider;
+import org.mozilla.gecko.sync.net.HttpCompression;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.repositories.ConstrainedServer11Repository;
 import org.mozilla.gecko.sync.repositories.FetchFailedException;
+import org.mozilla.gecko.sync.repositories.PagedFetchHighWaterMark;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.Server11Repository;
 import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
 import org.mozilla.gecko.sync.repositories.StoreFailedException;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCheckpointingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -153,7 +180,7 @@ public class TestServer11RepositorySession {
     final String COLLECTION = "test";
 
     final TrackingWBORepository local = getLocal(100);
-    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider);
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider, null);
     KeyBundle collectionKey = new KeyBundle(TEST_USERNAME, SYNC_KEY);
     Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = new BookmarkRecordFactory();
@@ -226,7 +253,7 @@ public class TestServer11RepositorySession {
     String collection = "bookmarks";
     final SafeConstrainedServer11Repository remote = new SafeConstrainedServer11Repository(collection,
         getCollectionURL(collection),
-        getAuthHeaderProvider(), 5000, "sortindex", countsFetcher);
+        getAuthHeaderProvider(), null, 5000, "sortindex", countsFetcher);
 
     data.startHTTPServer(server);
     final AtomicBoolean out = new AtomicBoolean(false);
@@ -263,4 +290,646 @@ public class TestServer11RepositorySession {
       data.stopHTTPServer();
     }
   }
+
+  /**
+   * Collect store callbacks, and notify the test waiter when storing is done.
+   */
+  public static class TrackingStoreDelegate implements RepositorySessionStoreDelegate {
+    public final List<String> succeeded = Collections.synchronizedList(new ArrayList<String>());
+    public final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+    public final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+
+    @Override
+    public void onRecordStoreFailed(Exception ex, String recordGuid) {
+      failed.add(recordGuid);
+      exceptions.add(ex);
+    }
+
+    @Override
+    public void onRecordStoreSucceeded(String guid) {
+      succeeded.add(guid);
+    }
+
+    @Override
+    public void onStoreCompleted(long storeEnd) {
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  protected static InfoConfiguration limits(long maxPostRecords, long maxTotalRecords) {
+    ExtendedJSONObject o = new ExtendedJSONObject();
+    o.put(InfoConfiguration.MAX_POST_RECORDS, maxPostRecords);
+    o.put(InfoConfiguration.MAX_TOTAL_RECORDS, maxTotalRecords);
+    return new InfoConfiguration(o);
+  }
+
+  /**
+   * Store <code>records</code> through a fresh session against
+   * <code>server</code>, and return the store callbacks.
+   */
+  protected TrackingStoreDelegate doStore(MockWBOServer server, InfoConfiguration limits, final Record[] records) throws Exception {
+    return doStore(server, limits, 1, records);
+  }
+
+  protected TrackingStoreDelegate doStore(MockWBOServer server, InfoConfiguration limits, int uploadWindow, final Record[] records) throws Exception {
+    final Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, limits);
+    remote.uploadWindow = uploadWindow;
+    return doStoreTo(server, remote, records);
+  }
+
+  protected TrackingStoreDelegate doStoreTo(MockWBOServer server, Server11Repository remote, final Record[] records) throws Exception {
+    final Server11RepositorySession session = new Server11RepositorySession(remote);
+    final TrackingStoreDelegate storeDelegate = new TrackingStoreDelegate();
+
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.begin(new ExpectSuccessRepositorySessionBeginDelegate(WaitHelper.getTestWaiter()));
+          } catch (Exception e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+      WaitHelper.getTestWaiter().performWait(SHORT_TIMEOUT, new Runnable() {
+        @Override
+        public void run() {
+          session.setStoreDelegate(storeDelegate);
+          try {
+            for (Record record : records) {
+              session.store(record);
+            }
+          } catch (Exception e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+            return;
+          }
+          session.storeDone();
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+    return storeDelegate;
+  }
+
+  protected static CryptoRecord makeRecord(String guid, String title) {
+    ExtendedJSONObject payload = new ExtendedJSONObject();
+    payload.put("id", guid);
+    payload.put("title", title);
+    CryptoRecord record = new CryptoRecord(payload);
+    record.guid = guid;
+    return record;
+  }
+
+  protected static Record[] makeRecords(int count) {
+    Record[] records = new Record[count];
+    for (int i = 0; i < count; i++) {
+      records[i] = makeRecord("batchRecord" + i, "Title " + i);
+    }
+    return records;
+  }
+
+  @Test
+  public void testBatchedUploadCommitsOnce() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    TrackingStoreDelegate delegate = doStore(server, limits(10, 1000), makeRecords(25));
+
+    assertEquals(25, delegate.succeeded.size());
+    assertEquals(0, delegate.failed.size());
+    assertEquals(3, server.posts.get());
+    assertEquals(3, server.batchPosts.get());
+    assertEquals(1, server.commits.get());
+    assertEquals(25, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testBatchedUploadCommitsWithLastPost() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    TrackingStoreDelegate delegate = doStore(server, limits(10, 1000), makeRecords(20));
+
+    // The second full POST also commits; no empty POST to commit.
+    assertEquals(20, delegate.succeeded.size());
+    assertEquals(2, server.posts.get());
+    assertEquals(1, server.commits.get());
+    assertEquals(20, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testBatchedUploadOfNothing() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    TrackingStoreDelegate delegate = doStore(server, limits(10, 1000), makeRecords(0));
+
+    assertEquals(0, delegate.succeeded.size());
+    assertEquals(0, server.posts.get());
+  }
+
+  @Test
+  public void testBatchTotalLimitCommitsEarly() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    TrackingStoreDelegate delegate = doStore(server, limits(4, 10), makeRecords(25));
+
+    assertEquals(25, delegate.succeeded.size());
+    assertEquals(3, server.commits.get());
+    assertEquals(25, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testServerWithoutBatchSupport() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.supportsBatches = false;
+    TrackingStoreDelegate delegate = doStore(server, limits(10, 1000), makeRecords(25));
+
+    assertEquals(25, delegate.succeeded.size());
+    assertEquals(0, delegate.failed.size());
+    assertEquals(3, server.posts.get());
+    assertEquals(0, server.commits.get());
+    assertEquals(25, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testNoConfigurationDoesNotBatch() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    TrackingStoreDelegate delegate = doStore(server, null, makeRecords(60));
+
+    // Default limit of 50 records per POST.
+    assertEquals(60, delegate.succeeded.size());
+    assertEquals(2, server.posts.get());
+    assertEquals(0, server.batchPosts.get());
+  }
+
+  @Test
+  public void testBatchFailureFailsAcceptedRecords() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.failPost = 3;
+    TrackingStoreDelegate delegate = doStore(server, limits(10, 1000), makeRecords(25));
+
+    // Nothing was committed, so nothing succeeded.
+    assertEquals(0, delegate.succeeded.size());
+    assertEquals(25, delegate.failed.size());
+    assertEquals(0, server.getCollection("test").size());
+    assertTrue(delegate.exceptions.get(delegate.exceptions.size() - 1) instanceof Server11BatchFailedException);
+  }
+
+  @Test
+  public void testOversizedRecordIsNotSent() throws Exception {
+    ExtendedJSONObject o = new ExtendedJSONObject();
+    o.put(InfoConfiguration.MAX_RECORD_PAYLOAD_BYTES, 300L);
+    InfoConfiguration limits = new InfoConfiguration(o);
+
+    Record[] records = makeRecords(3);
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      title.append('x');
+    }
+    records[1] = makeRecord(records[1].guid, title.toString());
+
+    MockWBOServer server = new MockWBOServer();
+    TrackingStoreDelegate delegate = doStore(server, limits, records);
+
+    assertEquals(2, delegate.succeeded.size());
+    assertEquals(1, delegate.failed.size());
+    assertEquals(records[1].guid, delegate.failed.get(0));
+    assertTrue(delegate.exceptions.get(0) instanceof Server11RecordTooLargeException);
+    assertEquals(2, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testConcurrentUploads() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.postDelay = 200;
+    TrackingStoreDelegate delegate = doStore(server, null, 4, makeRecords(200));
+
+    assertEquals(200, delegate.succeeded.size());
+    assertEquals(0, delegate.failed.size());
+    assertEquals(4, server.posts.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertEquals(200, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testConcurrentBatchedUploads() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.postDelay = 200;
+    TrackingStoreDelegate delegate = doStore(server, limits(10, 1000), 4, makeRecords(55));
+
+    // The first POST and the commit go alone; the rest overlap.
+    assertEquals(55, delegate.succeeded.size());
+    assertEquals(6, server.posts.get());
+    assertEquals(1, server.commits.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertEquals(55, server.getCollection("test").size());
+  }
+
+  @Test
+  public void testConcurrentUploadFailure() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.postDelay = 100;
+    server.failPost = 2;
+    TrackingStoreDelegate delegate = doStore(server, null, 3, makeRecords(250));
+
+    // POSTs already in flight when the failure is handled may still succeed;
+    // we report exactly what the server stored.
+    assertEquals(250, delegate.succeeded.size() + delegate.failed.size());
+    assertTrue(delegate.failed.size() >= 50);
+    assertEquals(delegate.succeeded.size(), server.getCollection("test").size());
+    for (String guid : delegate.succeeded) {
+      assertTrue(server.getCollection("test").containsKey(guid));
+    }
+  }
+
+  @Test
+  public void testDataAvailable() throws Exception {
+    Server11Repository repository = new Server11Repository("bookmarks", LOCAL_BASE_URL + "storage/", authHeaderProvider, null);
+    Server11RepositorySession session = new Server11RepositorySession(repository);
+    session.unbundle(new RepositorySessionBundle(2000));
+
+    // Without info/collections, assume there's something to fetch.
+    assertTrue(session.dataAvailable());
+
+    ExtendedJSONObject timestamps = new ExtendedJSONObject();
+    timestamps.put("bookmarks", 1.5);
+    repository.infoCollections = new InfoCollections(timestamps);
+    assertFalse(session.dataAvailable());
+
+    timestamps.put("bookmarks", 2.5);
+    repository.infoCollections = new InfoCollections(timestamps);
+    assertTrue(session.dataAvailable());
+
+    // First syncs always proceed.
+    session.unbundle(null);
+    assertTrue(session.dataAvailable());
+  }
+
+  @Test
+  public void testDataAvailableThroughCrypto() throws Exception {
+    final Server11Repository repository = new Server11Repository("bookmarks", LOCAL_BASE_URL + "storage/", authHeaderProvider, null);
+    ExtendedJSONObject timestamps = new ExtendedJSONObject();
+    timestamps.put("bookmarks", 1.5);
+    repository.infoCollections = new InfoCollections(timestamps);
+
+    Crypto5MiddlewareRepository crypto = new Crypto5MiddlewareRepository(repository, KeyBundle.withRandomKeys());
+    final RepositorySession[] created = new RepositorySession[1];
+    crypto.createSession(new RepositorySessionCreationDelegate() {
+      @Override
+      public void onSessionCreated(RepositorySession session) {
+        created[0] = session;
+      }
+
+      @Override
+      public void onSessionCreateFailed(Exception ex) {
+        throw new RuntimeException(ex);
+      }
+
+      @Override
+      public RepositorySessionCreationDelegate deferredCreationDelegate() {
+        return this;
+      }
+    }, null);
+
+    // The inner session needs the bundle to compare against the server.
+    created[0].unbundle(new RepositorySessionBundle(2000));
+    assertFalse(created[0].dataAvailable());
+    created[0].unbundle(new RepositorySessionBundle(1000));
+    assertTrue(created[0].dataAvailable());
+  }
+
+  /**
+   * Collect fetched records, running checkpoints as soon as they arrive.
+   */
+  public static class TrackingFetchDelegate implements RepositorySessionCheckpointingFetchDelegate {
+    public final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+    public volatile int checkpoints = 0;
+    public volatile long fetchEnd = -1;
+    public volatile Exception failure = null;
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      fetched.add(record.guid);
+    }
+
+    @Override
+    public void onFetchCheckpoint(Runnable checkpoint) {
+      checkpoints++;
+      checkpoint.run();
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      failure = ex;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      this.fetchEnd = fetchEnd;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  /**
+   * Put <code>count</code> records on <code>server</code>, three to each
+   * modified time, so that pages split records with the same timestamp.
+   */
+  protected static void putTimestampedRecords(MockWBOServer server, int count) {
+    putTimestampedRecords(server, count, 3);
+  }
+
+  protected static void putTimestampedRecords(MockWBOServer server, int count, int perTimestamp) {
+    for (int i = 0; i < count; i++) {
+      final String guid = "pagedRecord" + (i < 10 ? "0" : "") + i;
+      ExtendedJSONObject wbo = new ExtendedJSONObject();
+      wbo.put("id", guid);
+      wbo.put("payload", makeRecord(guid, "Title " + i).payload.toJSONString());
+      wbo.put("modified", 100 + (i / perTimestamp) * 0.25);
+      server.getCollection("test").put(guid, wbo.toJSONString());
+    }
+  }
+
+  protected TrackingFetchDelegate doPagedFetch(MockWBOServer server, PagedFetchHighWaterMark highWaterMark) throws Exception {
+    final ConstrainedServer11Repository remote = new ConstrainedServer11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null, 5, null);
+    remote.paged = true;
+    remote.highWaterMark = highWaterMark;
+    return doFetch(server, remote);
+  }
+
+  protected TrackingFetchDelegate doFetch(MockWBOServer server, Server11Repository remote) throws Exception {
+    return doFetch(server, remote, 0);
+  }
+
+  protected TrackingFetchDelegate doFetch(MockWBOServer server, Server11Repository remote, final long since) throws Exception {
+    final Server11RepositorySession session = new Server11RepositorySession(remote);
+    final TrackingFetchDelegate fetchDelegate = new TrackingFetchDelegate();
+
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.begin(new ExpectSuccessRepositorySessionBeginDelegate(WaitHelper.getTestWaiter()));
+          } catch (Exception e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+      WaitHelper.getTestWaiter().performWait(SHORT_TIMEOUT, new Runnable() {
+        @Override
+        public void run() {
+          session.fetchSince(since, fetchDelegate);
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+    return fetchDelegate;
+  }
+
+  @Test
+  public void testPagedFetch() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    putTimestampedRecords(server, 23);
+    PagedFetchHighWaterMark highWaterMark = new PagedFetchHighWaterMark(new MockSharedPreferences());
+    TrackingFetchDelegate delegate = doPagedFetch(server, highWaterMark);
+
+    assertNull(delegate.failure);
+    assertTrue(delegate.fetchEnd > 0);
+    assertEquals(5, server.gets.get());
+    assertEquals(23, delegate.fetched.size());
+    assertEquals(23, new HashSet<String>(delegate.fetched).size());
+    // One checkpoint per full page, and one to clear the high-water mark.
+    assertEquals(5, delegate.checkpoints);
+    assertNull(highWaterMark.get(0));
+  }
+
+  @Test
+  public void testPagedFetchResumes() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    putTimestampedRecords(server, 23);
+    server.failGet = 3;
+    PagedFetchHighWaterMark highWaterMark = new PagedFetchHighWaterMark(new MockSharedPreferences());
+    TrackingFetchDelegate first = doPagedFetch(server, highWaterMark);
+
+    assertNotNull(first.failure);
+    assertEquals(10, first.fetched.size());
+    assertNotNull(highWaterMark.get(0));
+    assertNull(highWaterMark.get(1));
+
+    server.gets.set(0);
+    server.failGet = -1;
+    TrackingFetchDelegate second = doPagedFetch(server, highWaterMark);
+
+    assertNull(second.failure);
+    assertEquals(3, server.gets.get());
+    // The record at the saved boundary is fetched again.
+    assertEquals(14, second.fetched.size());
+    HashSet<String> all = new HashSet<String>(first.fetched);
+    all.addAll(second.fetched);
+    assertEquals(23, all.size());
+    assertNull(highWaterMark.get(0));
+  }
+
+  @Test
+  public void testPagedFetchUnstableTies() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.unstableTies = true;
+    putTimestampedRecords(server, 23);
+    TrackingFetchDelegate delegate = doPagedFetch(server, new PagedFetchHighWaterMark(new MockSharedPreferences()));
+
+    assertNull(delegate.failure);
+    assertEquals(23, delegate.fetched.size());
+    assertEquals(23, new HashSet<String>(delegate.fetched).size());
+  }
+
+  @Test
+  public void testPagedFetchTieLargerThanPage() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.unstableTies = true;
+    putTimestampedRecords(server, 12, 12);
+    TrackingFetchDelegate delegate = doPagedFetch(server, new PagedFetchHighWaterMark(new MockSharedPreferences()));
+
+    assertNull(delegate.failure);
+    assertEquals(3, server.gets.get());
+    assertEquals(12, delegate.fetched.size());
+    assertEquals(12, new HashSet<String>(delegate.fetched).size());
+  }
+
+  @Test
+  public void testSlicedFetch() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.getDelay = 200;
+    putTimestampedRecords(server, 1000);
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null);
+    remote.fetchSlices = 4;
+    remote.countsFetcher = new JSONRecordFetcher(LOCAL_INFO_BASE_URL + "collection_counts", authHeaderProvider);
+    TrackingFetchDelegate delegate = doFetch(server, remote);
+
+    assertNull(delegate.failure);
+    assertTrue(delegate.fetchEnd > 0);
+    // Three boundary probes, then four slices.
+    assertEquals(7, server.gets.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertEquals(1000, delegate.fetched.size());
+    assertEquals(1000, new HashSet<String>(delegate.fetched).size());
+  }
+
+  @Test
+  public void testSlicedFetchDeliversInOrder() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    putTimestampedRecords(server, 1000);
+    ConstrainedServer11Repository single = new ConstrainedServer11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null, -1, "oldest");
+    TrackingFetchDelegate expected = doFetch(server, single);
+    assertNull(expected.failure);
+    assertEquals(1000, expected.fetched.size());
+
+    // Hold back every slice but the newest, so slices finish out of order.
+    server.gets.set(0);
+    server.boundedGetDelay = 300;
+    ConstrainedServer11Repository sliced = new ConstrainedServer11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null, -1, "oldest");
+    sliced.fetchSlices = 4;
+    sliced.countsFetcher = new JSONRecordFetcher(LOCAL_INFO_BASE_URL + "collection_counts", authHeaderProvider);
+    TrackingFetchDelegate delegate = doFetch(server, sliced);
+
+    assertNull(delegate.failure);
+    assertEquals(7, server.gets.get());
+    assertEquals(expected.fetched, delegate.fetched);
+  }
+
+  @Test
+  public void testSlicedFetchFallsBackForUnsliceableSort() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    putTimestampedRecords(server, 1000);
+    ConstrainedServer11Repository remote = new ConstrainedServer11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null, -1, "index");
+    remote.fetchSlices = 4;
+    remote.countsFetcher = new JSONRecordFetcher(LOCAL_INFO_BASE_URL + "collection_counts", authHeaderProvider);
+    TrackingFetchDelegate delegate = doFetch(server, remote);
+
+    assertNull(delegate.failure);
+    assertEquals(1, server.gets.get());
+    assertEquals(1000, delegate.fetched.size());
+  }
+
+  @Test
+  public void testSlicedFetchFallsBackForSmallCollections() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    putTimestampedRecords(server, 23);
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null);
+    remote.fetchSlices = 4;
+    remote.countsFetcher = new JSONRecordFetcher(LOCAL_INFO_BASE_URL + "collection_counts", authHeaderProvider);
+    TrackingFetchDelegate delegate = doFetch(server, remote);
+
+    assertNull(delegate.failure);
+    assertEquals(1, server.gets.get());
+    assertEquals(23, delegate.fetched.size());
+  }
+
+  @Test
+  public void testSlicedFetchOnlyForFirstSync() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    putTimestampedRecords(server, 1000);
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null);
+    remote.fetchSlices = 4;
+    remote.countsFetcher = new JSONRecordFetcher(LOCAL_INFO_BASE_URL + "collection_counts", authHeaderProvider);
+    TrackingFetchDelegate delegate = doFetch(server, remote, 50000);
+
+    assertNull(delegate.failure);
+    assertEquals(1, server.gets.get());
+    assertEquals(1000, delegate.fetched.size());
+  }
+
+  @Test
+  public void testCompressedFetch() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.gzipResponses = true;
+    putTimestampedRecords(server, 100);
+    HttpCompression.resetCounters();
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null);
+    TrackingFetchDelegate delegate = doFetch(server, remote);
+
+    assertNull(delegate.failure);
+    assertEquals(100, delegate.fetched.size());
+    assertTrue(HttpCompression.getResponseBytesReceived() > 0);
+    assertTrue(HttpCompression.getResponseBytesDecoded() > HttpCompression.getResponseBytesReceived());
+  }
+
+  @Test
+  public void testCompressedUpload() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.acceptsGzip = true;
+    HttpCompression.resetCounters();
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null);
+    remote.compressUploads = true;
+    TrackingStoreDelegate delegate = doStoreTo(server, remote, makeRecords(60));
+
+    assertEquals(60, delegate.succeeded.size());
+    assertEquals(2, server.compressedPosts.get());
+    assertEquals(60, server.getCollection("test").size());
+    assertTrue(remote.compressUploads);
+    assertTrue(HttpCompression.getRequestBytesEncoded() > HttpCompression.getRequestBytesSent());
+  }
+
+  @Test
+  public void testRejectedCompressedUploadFallsBack() throws Exception {
+    MockWBOServer server = new MockWBOServer();
+    server.acceptsGzip = false;
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", authHeaderProvider, null);
+    remote.compressUploads = true;
+    TrackingStoreDelegate delegate = doStoreTo(server, remote, makeRecords(60));
+
+    // The first POST is retried uncompressed; the second isn't compressed.
+    assertEquals(60, delegate.succeeded.size());
+    assertEquals(0, delegate.failed.size());
+    assertEquals(1, server.compressedPosts.get());
+    assertEquals(3, server.posts.get());
+    assertFalse(remote.compressUploads);
+    assertEquals(60, server.getCollection("test").size());
+  }
+
+  /**
+   * Check each POST's Hawk payload hash against the body the server receives.
+   */
+  protected static class PayloadHashCheckingServer extends MockWBOServer {
+    public final AtomicInteger checked = new AtomicInteger(0);
+    public final AtomicInteger mismatched = new AtomicInteger(0);
+
+    @Override
+    protected synchronized void handlePost(String collection, Request request, Response response) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(("hawk.1.payload\napplication/json\n" + request.getContent() + "\n").getBytes("UTF-8"));
+        String expected = "hash=\"" + Base64.encodeBase64String(digest.digest()) + "\"";
+        if (!request.getValue("Authorization").contains(expected)) {
+          mismatched.incrementAndGet();
+        }
+        checked.incrementAndGet();
+      } catch (Exception e) {
+        mismatched.incrementAndGet();
+      }
+      super.handlePost(collection, request, response);
+    }
+  }
+
+  @Test
+  public void testUploadPayloadHashes() throws Exception {
+    PayloadHashCheckingServer server = new PayloadHashCheckingServer();
+    HawkAuthHeaderProvider hawk = new HawkAuthHeaderProvider("id", "key".getBytes("UTF-8"), true);
+    Server11Repository remote = new Server11Repository("test", LOCAL_BASE_URL + "storage", hawk, limits(10, 1000));
+    TrackingStoreDelegate delegate = doStoreTo(server, remote, makeRecords(25));
+
+    // Three POSTs, the last committing the batch.
+    assertEquals(25, delegate.succeeded.size());
+    assertEquals(3, server.checked.get());
+    assertEquals(0, server.mismatched.get());
+  }
 }
@@ -1,13 +1,40 @@
 package org.mozilla.android.sync.test.helpers;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.Utils;
 import org.simpleframework.http.Path;
+import org.simpleframework.http.Query;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 
 /**
  * A trivial server that collects and returns WBOs.
+ * <p>
+ * Supports <code>info/configuration</code> and batched uploads: POSTs with
+ * <code>batch=true</code> or <code>batch=ID</code> are held until a POST with
+ * <code>commit=true</code>, then applied together.
+ * <p>
+ * GETs of a collection honor <code>newer</code>, <code>older</code>, <code>sort=oldest</code>,
+ * <code>limit</code> and <code>offset</code>, using each record's
+ * <code>modified</code> field.
+ * <p>
+ * Can gzip collection GETs, and accept or reject gzipped POSTs.
  *
  * @author rnewman
  *
@@ -15,14 +42,289 @@ import org.simpleframework.http.Response;
 public class MockWBOServer extends MockServer {
   public HashMap<String, HashMap<String, String> > collections;
 
+  /**
+   * Returned from <code>info/configuration</code>, or <code>null</code> to
+   * respond 404, like a server that doesn't advertise limits.
+   */
+  public ExtendedJSONObject configuration = null;
+
+  /**
+   * If <code>false</code>, ignore <code>batch</code> parameters and apply
+   * every POST immediately.
+   */
+  public boolean supportsBatches = true;
+
+  /**
+   * If <code>true</code>, gzip collection GETs that accept it.
+   */
+  public boolean gzipResponses = false;
+
+  /**
+   * If <code>false</code>, fail to parse gzipped POSTs, like a server that
+   * ignores Content-Encoding.
+   */
+  public boolean acceptsGzip = false;
+
+  public final AtomicInteger posts = new AtomicInteger(0);
+  public final AtomicInteger compressedPosts = new AtomicInteger(0);
+  public final AtomicInteger batchPosts = new AtomicInteger(0);
+  public final AtomicInteger commits = new AtomicInteger(0);
+  public final AtomicInteger gets = new AtomicInteger(0);
+
+  /**
+   * If positive, fail the <i>n</i>th collection GET with a 500.
+   */
+  public int failGet = -1;
+
+  /**
+   * If positive, fail the <i>n</i>th POST with a 500.
+   */
+  public int failPost = -1;
+
+  /**
+   * Milliseconds to wait before handling each POST, so that concurrent
+   * uploads overlap.
+   */
+  public long postDelay = 0;
+
+  /**
+   * If <code>true</code>, order records with the same modified time
+   * differently on alternate collection GETs, as a real server might.
+   */
+  public boolean unstableTies = false;
+
+  /**
+   * Milliseconds to wait before handling each collection GET.
+   */
+  public long getDelay = 0;
+
+  /**
+   * Further milliseconds to wait before handling each collection GET with an
+   * <code>older</code> bound, so that the newest slice of a sliced fetch
+   * arrives first.
+   */
+  public long boundedGetDelay = 0;
+
+  public final AtomicInteger inFlight = new AtomicInteger(0);
+  public final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+  protected final Map<String, ArrayList<JSONObject>> batches = new HashMap<String, ArrayList<JSONObject>>();
+  protected int nextBatchID = 1;
+
   public MockWBOServer() {
     collections = new HashMap<String, HashMap<String, String> >();
   }
 
+  public synchronized HashMap<String, String> getCollection(String collection) {
+    HashMap<String, String> wbos = collections.get(collection);
+    if (wbos == null) {
+      wbos = new HashMap<String, String>();
+      collections.put(collection, wbos);
+    }
+    return wbos;
+  }
+
   @Override
   public void handle(Request request, Response response) {
     Path path = request.getPath();
-    path.getPath(0);
-    // TODO
+    String[] segments = path.getSegments();
+    String last = segments[segments.length - 1];
+    String parent = (segments.length > 1) ? segments[segments.length - 2] : null;
+
+    if ("GET".equals(request.getMethod()) && "info".equals(parent) && "configuration".equals(last)) {
+      if (configuration == null) {
+        this.handle(request, response, 404, "0");
+      } else {
+        this.handle(request, response, 200, configuration.toJSONString());
+      }
+      return;
+    }
+
+    if ("GET".equals(request.getMethod()) && "info".equals(parent) && "collection_counts".equals(last)) {
+      ExtendedJSONObject counts = new ExtendedJSONObject();
+      synchronized (this) {
+        for (String collection : collections.keySet()) {
+          counts.put(collection, collections.get(collection).size());
+        }
+      }
+      this.handle(request, response, 200, counts.toJSONString());
+      return;
+    }
+
+    if ("GET".equals(request.getMethod()) && "storage".equals(parent)) {
+      int current = inFlight.incrementAndGet();
+      try {
+        int max = maxInFlight.get();
+        while (current > max && !maxInFlight.compareAndSet(max, current)) {
+          max = maxInFlight.get();
+        }
+        if (getDelay > 0) {
+          Thread.sleep(getDelay);
+        }
+        if (boundedGetDelay > 0 && request.getQuery().containsKey("older")) {
+          Thread.sleep(boundedGetDelay);
+        }
+        handleGet(last, request, response);
+      } catch (InterruptedException e) {
+        this.handle(request, response, 503, "\"interrupted\"");
+      } finally {
+        inFlight.decrementAndGet();
+      }
+      return;
+    }
+
+    if ("POST".equals(request.getMethod()) && "storage".equals(parent)) {
+      int current = inFlight.incrementAndGet();
+      try {
+        int max = maxInFlight.get();
+        while (current > max && !maxInFlight.compareAndSet(max, current)) {
+          max = maxInFlight.get();
+        }
+        if (postDelay > 0) {
+          Thread.sleep(postDelay);
+        }
+        handlePost(last, request, response);
+      } catch (InterruptedException e) {
+        this.handle(request, response, 503, "\"interrupted\"");
+      } finally {
+        inFlight.decrementAndGet();
+      }
+      return;
+    }
+
+    this.handle(request, response, 404, "0");
+  }
+
+  protected synchronized void handleGet(String collection, Request request, Response response) {
+    final int get = gets.incrementAndGet();
+    if (get == failGet) {
+      this.handle(request, response, 500, "\"server error\"");
+      return;
+    }
+
+    Query query = request.getQuery();
+    final long newer = query.containsKey("newer") ? Utils.decimalSecondsToMilliseconds(query.get("newer")) : -1;
+    final int limit = query.containsKey("limit") ? query.getInteger("limit") : -1;
+    final long older = query.containsKey("older") ? Utils.decimalSecondsToMilliseconds(query.get("older")) : -1;
+    final int offset = query.containsKey("offset") ? query.getInteger("offset") : 0;
+
+    ArrayList<ExtendedJSONObject> matching = new ArrayList<ExtendedJSONObject>();
+    try {
+      for (String wbo : getCollection(collection).values()) {
+        ExtendedJSONObject record = ExtendedJSONObject.parseJSONObject(wbo);
+        if (modified(record) > newer && (older < 0 || modified(record) < older)) {
+          matching.add(record);
+        }
+      }
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Couldn't parse stored record.", e);
+      this.handle(request, response, 500, "\"bad record\"");
+      return;
+    }
+    final boolean oldest = "oldest".equals(query.get("sort"));
+    final boolean reverseTies = unstableTies && (get % 2 == 0);
+    Collections.sort(matching, new Comparator<ExtendedJSONObject>() {
+      @Override
+      public int compare(ExtendedJSONObject a, ExtendedJSONObject b) {
+        if (oldest && modified(a) != modified(b)) {
+          return modified(a) < modified(b) ? -1 : 1;
+        }
+        final int byID = a.getString("id").compareTo(b.getString("id"));
+        return reverseTies ? -byID : byID;
+      }
+    });
+
+    try {
+      PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+      final String acceptEncoding = request.getValue("Accept-Encoding");
+      if (gzipResponses && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        response.set("Content-Encoding", "gzip");
+        bodyStream = new PrintStream(new GZIPOutputStream(bodyStream));
+      }
+      final int end = (limit > 0) ? Math.min(matching.size(), offset + limit) : matching.size();
+      for (int i = offset; i < end; i++) {
+        bodyStream.println(matching.get(i).toJSONString());
+      }
+      bodyStream.close();
+    } catch (IOException e) {
+      Logger.error(LOG_TAG, "Couldn't write GET response.", e);
+    }
+  }
+
+  protected static long modified(ExtendedJSONObject record) {
+    Long modified = record.getTimestamp("modified");
+    return (modified == null) ? 0 : modified.longValue();
+  }
+
+  @SuppressWarnings("unchecked")
+  protected synchronized void handlePost(String collection, Request request, Response response) {
+    int post = posts.incrementAndGet();
+    if (post == failPost) {
+      this.handle(request, response, 500, "\"server error\"");
+      return;
+    }
+
+    JSONArray incoming;
+    try {
+      if ("gzip".equals(request.getValue("Content-Encoding"))) {
+        compressedPosts.incrementAndGet();
+      }
+      if (acceptsGzip && "gzip".equals(request.getValue("Content-Encoding"))) {
+        incoming = (JSONArray) new JSONParser().parse(new InputStreamReader(new GZIPInputStream(request.getInputStream()), "UTF-8"));
+      } else {
+        incoming = (JSONArray) new JSONParser().parse(request.getContent());
+      }
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Couldn't parse POST body.", e);
+      this.handle(request, response, 400, "6");
+      return;
+    }
+    ArrayList<JSONObject> records = new ArrayList<JSONObject>();
+    JSONArray success = new JSONArray();
+    for (Object o : incoming) {
+      records.add((JSONObject) o);
+      success.add(((JSONObject) o).get("id"));
+    }
+
+    Query query = request.getQuery();
+    String batch = supportsBatches ? query.get("batch") : null;
+    boolean commit = "true".equals(query.get("commit"));
+
+    if (batch != null) {
+      batchPosts.incrementAndGet();
+      if ("true".equals(batch)) {
+        batch = Integer.toString(nextBatchID++);
+        batches.put(batch, new ArrayList<JSONObject>());
+      }
+      ArrayList<JSONObject> pending = batches.get(batch);
+      if (pending == null) {
+        this.handle(request, response, 400, "\"no such batch\"");
+        return;
+      }
+      pending.addAll(records);
+      if (!commit) {
+        ExtendedJSONObject body = new ExtendedJSONObject();
+        body.put("batch", batch);
+        body.put("success", success);
+        body.put("failed", new JSONObject());
+        this.handle(request, response, 202, body.toJSONString());
+        return;
+      }
+      commits.incrementAndGet();
+      batches.remove(batch);
+      records = pending;
+    }
+
+    HashMap<String, String> wbos = getCollection(collection);
+    for (JSONObject record : records) {
+      wbos.put((String) record.get("id"), record.toJSONString());
+    }
+
+    long now = System.currentTimeMillis();
+    ExtendedJSONObject body = new ExtendedJSONObject();
+    body.put("modified", Utils.millisecondsToDecimalSeconds(now));
+    body.put("success", success);
+    body.put("failed", new JSONObject());
+    this.handle(request, response, 200, body.toJSONString());
   }
 }
@@ -10,11 +10,13 @@ import static org.junit.Assert.assertTrue;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.common.log.writers.AsyncLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LevelFilteringLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LogWriter;
 import org.mozilla.gecko.background.common.log.writers.PrintLogWriter;
@@ -174,4 +176,110 @@ public class TestLogWriters {
       Logger.stopLoggingTo(logWriter);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testLazyFormatting() {
+    final AtomicInteger formatted = new AtomicInteger();
+    Object arg = new Object() {
+      @Override
+      public String toString() {
+        formatted.incrementAndGet();
+        return "ARG";
+      }
+    };
+
+    StringLogWriter lw = new StringLogWriter();
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.INFO, lw));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.INFO));
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.DEBUG));
+
+    Logger.debugf(TEST_LOG_TAG_1, "debug %s", arg);
+    Logger.tracef(TEST_LOG_TAG_1, "trace %s", arg);
+    assertEquals(0, formatted.get());
+
+    Logger.infof(TEST_LOG_TAG_1, "info %s %d", arg, 5);
+    Logger.warnf(TEST_LOG_TAG_1, "bad %d format", arg);
+    assertEquals(2, formatted.get());
+
+    String s = lw.toString();
+    assertTrue(s.contains(TEST_LOG_TAG_1 + PrintLogWriter.INFO + "info ARG 5"));
+    assertTrue(s.contains(TEST_LOG_TAG_1 + PrintLogWriter.WARN + "bad %d format [ARG]"));
+    assertFalse(s.contains("debug"));
+  }
+
+  @Test
+  public void testAsyncLogWriter() throws InterruptedException {
+    final StringLogWriter stringLogWriter = new StringLogWriter();
+    final AsyncLogWriter async = new AsyncLogWriter(stringLogWriter, 64);
+    Logger.startLoggingTo(async);
+
+    final int threads = 4;
+    final int messages = 10;
+    final CountDownLatch latch = new CountDownLatch(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      final int threadNumber = thread;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < messages; i++) {
+              Logger.info("T" + threadNumber, "message " + i);
+            }
+          } finally {
+            latch.countDown();
+          }
+        }
+      }).start();
+    }
+    latch.await();
+    async.flush();
+
+    List<String> lines = Arrays.asList(stringLogWriter.toString().split("\n"));
+    assertEquals(threads * messages, lines.size());
+    for (int thread = 0; thread < threads; thread++) {
+      // Each thread's messages arrive in order.
+      int previous = -1;
+      for (int i = 0; i < messages; i++) {
+        int index = lines.indexOf("T" + thread + PrintLogWriter.INFO + "message " + i);
+        assertTrue(index > previous);
+        previous = index;
+      }
+    }
+
+    // Closing writes anything still buffered.
+    Logger.error(TEST_LOG_TAG_1, TEST_MESSAGE_1);
+    Logger.stopLoggingTo(async);
+    assertTrue(stringLogWriter.toString().contains(TEST_MESSAGE_1));
+    assertEquals(0, async.getDroppedCount());
+  }
+
+  @Test
+  public void testAsyncLogWriterDropsWhenFull() throws InterruptedException {
+    final CountDownLatch release = new CountDownLatch(1);
+    final StringLogWriter stringLogWriter = new StringLogWriter() {
+      @Override
+      public void info(String tag, String message, Throwable error) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // Ignore.
+        }
+        super.info(tag, message, error);
+      }
+    };
+    final AsyncLogWriter async = new AsyncLogWriter(stringLogWriter, 4);
+
+    // The drainer blocks on the first message; four more fill the buffer.
+    for (int i = 0; i < 10; i++) {
+      async.info(TEST_LOG_TAG_1, "message " + i, null);
+    }
+    assertTrue(async.getDroppedCount() > 0);
+    release.countDown();
+    async.close();
+
+    String s = stringLogWriter.toString();
+    assertTrue(s.contains("message 0"));
+    assertTrue(s.contains("Dropped "));
+    assertFalse(s.contains("message 9"));
+  }
+}
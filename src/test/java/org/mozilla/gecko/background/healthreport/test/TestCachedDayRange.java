@@ -0,0 +1,59 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.healthreport.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mozilla.gecko.background.healthreport.CachedDayRange;
+
+public class TestCachedDayRange {
+  @Test
+  public void testContains() {
+    CachedDayRange range = new CachedDayRange(10, 20, 0);
+    assertFalse(range.isEmpty());
+    assertFalse(range.contains(9));
+    assertTrue(range.contains(10));
+    assertTrue(range.contains(19));
+    assertFalse(range.contains(20));
+
+    CachedDayRange empty = CachedDayRange.empty(0);
+    assertTrue(empty.isEmpty());
+    assertFalse(empty.contains(0));
+    assertEquals(empty, new CachedDayRange(5, 5, 1));
+  }
+
+  @Test
+  public void testExtendEmpty() {
+    CachedDayRange empty = CachedDayRange.empty(3);
+    CachedDayRange extended = empty.extendedTo(10, 15);
+    assertEquals(new CachedDayRange(10, 15, 0), extended);
+    assertEquals(3, extended.epoch);
+
+    // Nothing before today was walked.
+    assertSame(empty, empty.extendedTo(15, 15));
+    assertSame(empty, empty.extendedTo(16, 15));
+  }
+
+  @Test
+  public void testExtend() {
+    CachedDayRange range = new CachedDayRange(10, 20, 0);
+
+    // Walked [20, 25).
+    assertEquals(new CachedDayRange(10, 25, 0), range.extendedTo(12, 25));
+    assertEquals(new CachedDayRange(10, 25, 0), range.extendedTo(20, 25));
+
+    // Walked [5, 10) and [20, 25).
+    assertEquals(new CachedDayRange(5, 25, 0), range.extendedTo(5, 25));
+
+    // Walked [22, 25); [20, 22) wasn't walked, so the old range is dropped.
+    assertEquals(new CachedDayRange(22, 25, 0), range.extendedTo(22, 25));
+
+    // Today is inside the range: don't shrink it.
+    assertEquals(new CachedDayRange(10, 20, 0), range.extendedTo(12, 18));
+  }
+}
@@ -0,0 +1,144 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.healthreport.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.gecko.background.healthreport.HealthReportEventBuffer;
+import org.mozilla.gecko.background.healthreport.HealthReportEventBuffer.Batch;
+import org.mozilla.gecko.background.healthreport.HealthReportEventBuffer.EventWriter;
+
+public class TestHealthReportEventBuffer {
+  public static class RecordingEventWriter implements EventWriter {
+    public final List<String> writes = new ArrayList<String>();
+    public int rejectField = -1;
+
+    protected void write(String kind, int env, int day, int field, Object value, String table) {
+      if (field == rejectField) {
+        throw new IllegalStateException("Event did not reference existing an environment or field.");
+      }
+      writes.add(kind + " " + env + "/" + day + "/" + field + " " + value + (table == null ? "" : " " + table));
+    }
+
+    @Override
+    public void writeDailyCount(int env, int day, int field, int by) {
+      write("count", env, day, field, by, null);
+    }
+
+    @Override
+    public void writeDailyLast(int env, int day, int field, Object value, String table) {
+      write("last", env, day, field, value, table);
+    }
+
+    @Override
+    public void writeDailyDiscrete(int env, int day, int field, Object value, String table) {
+      write("discrete", env, day, field, value, table);
+    }
+  }
+
+  @Test
+  public void testCoalescing() {
+    HealthReportEventBuffer buffer = new HealthReportEventBuffer();
+    assertTrue(buffer.isEmpty());
+
+    assertEquals(1, buffer.incrementDailyCount(1, 100, 5, 1));
+    assertEquals(1, buffer.incrementDailyCount(1, 100, 5, 2));
+    assertEquals(2, buffer.incrementDailyCount(1, 101, 5, 1));
+    assertEquals(3, buffer.incrementDailyCount(2, 100, 5, 1));
+    assertEquals(4, buffer.recordDailyLast(1, 100, 6, "a", "events_textual"));
+    assertEquals(5, buffer.recordDailyLast(1, 100, 7, 3, "events_integer"));
+    assertEquals(5, buffer.recordDailyLast(1, 100, 6, "b", "events_textual"));
+    assertEquals(6, buffer.recordDailyDiscrete(1, 100, 8, "x", "events_textual"));
+    assertEquals(7, buffer.recordDailyDiscrete(1, 100, 8, "x", "events_textual"));
+
+    Batch batch = buffer.drain();
+    assertTrue(buffer.isEmpty());
+    assertEquals(7, batch.size());
+    assertEquals(9, batch.getRecordedCount());
+
+    RecordingEventWriter writer = new RecordingEventWriter();
+    assertEquals(7, batch.writeTo(writer));
+    assertEquals(Arrays.asList("count 1/100/5 3",
+                               "count 1/101/5 1",
+                               "count 2/100/5 1",
+                               "last 1/100/7 3 events_integer",
+                               "last 1/100/6 b events_textual",
+                               "discrete 1/100/8 x events_textual",
+                               "discrete 1/100/8 x events_textual"),
+                 writer.writes);
+  }
+
+  @Test
+  public void testRejectedEventsAreSkipped() {
+    HealthReportEventBuffer buffer = new HealthReportEventBuffer();
+    buffer.incrementDailyCount(1, 100, 5, 1);
+    buffer.recordDailyLast(1, 100, 9, "gone", "events_textual");
+    buffer.recordDailyDiscrete(1, 100, 9, "gone", "events_textual");
+    buffer.recordDailyDiscrete(1, 100, 8, "kept", "events_textual");
+
+    RecordingEventWriter writer = new RecordingEventWriter();
+    writer.rejectField = 9;
+    assertEquals(2, buffer.drain().writeTo(writer));
+    assertEquals(Arrays.asList("count 1/100/5 1", "discrete 1/100/8 kept events_textual"), writer.writes);
+  }
+
+  @Test
+  public void testRestore() {
+    HealthReportEventBuffer buffer = new HealthReportEventBuffer();
+    buffer.incrementDailyCount(1, 100, 5, 1);
+    buffer.recordDailyLast(1, 100, 6, "a", "events_textual");
+    buffer.recordDailyLast(1, 100, 7, 1, "events_integer");
+    buffer.recordDailyDiscrete(1, 100, 8, "x", "events_textual");
+    Batch failed = buffer.drain();
+
+    // Recorded while the failed batch was being written.
+    buffer.incrementDailyCount(1, 100, 5, 2);
+    buffer.recordDailyLast(1, 100, 6, "b", "events_textual");
+    buffer.recordDailyDiscrete(1, 100, 8, "y", "events_textual");
+
+    buffer.restore(failed);
+    Batch batch = buffer.drain();
+    assertEquals(7, batch.getRecordedCount());
+
+    RecordingEventWriter writer = new RecordingEventWriter();
+    assertEquals(5, batch.writeTo(writer));
+    assertEquals(Arrays.asList("count 1/100/5 3",
+                               "last 1/100/7 1 events_integer",
+                               "last 1/100/6 b events_textual",
+                               "discrete 1/100/8 x events_textual",
+                               "discrete 1/100/8 y events_textual"),
+                 writer.writes);
+  }
+
+  @Test
+  public void testClear() {
+    HealthReportEventBuffer buffer = new HealthReportEventBuffer();
+    buffer.incrementDailyCount(1, 100, 5, 1);
+    buffer.recordDailyDiscrete(1, 100, 8, "x", "events_textual");
+    buffer.clear();
+    assertTrue(buffer.isEmpty());
+    Batch batch = buffer.drain();
+    assertEquals(0, batch.size());
+    assertEquals(0, batch.getRecordedCount());
+    assertEquals(Integer.MAX_VALUE, batch.getEarliestDay());
+  }
+
+  @Test
+  public void testEarliestDay() {
+    HealthReportEventBuffer buffer = new HealthReportEventBuffer();
+    buffer.incrementDailyCount(1, 101, 5, 1);
+    buffer.recordDailyLast(1, 102, 6, "a", "events_textual");
+    assertEquals(101, buffer.drain().getEarliestDay());
+
+    buffer.incrementDailyCount(1, 101, 5, 1);
+    buffer.recordDailyDiscrete(1, 99, 8, "x", "events_textual");
+    assertEquals(99, buffer.drain().getEarliestDay());
+  }
+}
@@ -54,6 +54,30 @@ public class TestDeflation {
     assertEqualArrays(direct, entity);
   }
 
+  @SuppressWarnings("static-method")
+  @Test
+  /**
+   * Deflating in pieces through DeflatedBodyStream gives the same bytes as
+   * deflating all at once.
+   */
+  public void testDeflatedBodyStream() throws Exception {
+    final byte[] input = (TEST_BODY_D + TEST_BODY_B + TEST_BODY_D).getBytes("UTF-8");
+    final DeflateHelper.DeflatedBodyStream stream = new DeflateHelper.DeflatedBodyStream();
+    try {
+      for (int i = 0; i < input.length; i += 7) {
+        stream.write(input, i, Math.min(7, input.length - i));
+      }
+      final HttpEntity entity = stream.toEntity();
+      Assert.assertTrue(entity.isRepeatable());
+      final byte[] direct = deflateTrimmed(input);
+      Assert.assertEquals(direct.length, entity.getContentLength());
+      assertEqualArrays(direct, EntityTestHelper.bytesFromEntity(entity));
+      assertEqualArrays(direct, EntityTestHelper.bytesFromEntity(entity));
+    } finally {
+      stream.close();
+    }
+  }
+
   public static int reinflateBytes(byte[] input, byte[] output, int inLength) throws DataFormatException {
     final Inflater inflater = new Inflater();
     inflater.setInput(input, 0, inLength);
@@ -0,0 +1,174 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mozilla.apache.commons.codec.binary.Base32;
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.apache.commons.codec.binary.BaseNCodec.EncodedChunkConsumer;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+
+public class TestBase64Streaming {
+  protected static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  protected static byte[] encodeInPieces(byte[] data, int scratchSize) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Base64.encodeBase64(data, 0, data.length, new byte[scratchSize], new EncodedChunkConsumer() {
+      @Override
+      public void consume(byte[] chunk, int offset, int length) {
+        out.write(chunk, offset, length);
+      }
+    });
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testDecodeIntoArray() {
+    Random random = new Random(1);
+    for (int length = 0; length < 100; length++) {
+      byte[] data = randomBytes(random, length);
+      byte[] encoded = Base64.encodeBase64(data);
+
+      // Surround the encoded data with junk, to check we honor the region.
+      byte[] padded = new byte[encoded.length + 10];
+      Arrays.fill(padded, (byte) '!');
+      System.arraycopy(encoded, 0, padded, 5, encoded.length);
+
+      byte[] output = new byte[3 + Base64.getMaxDecodedBase64Length(encoded.length)];
+      int written = Base64.decodeBase64(padded, 5, encoded.length, output, 3);
+      assertEquals(length, written);
+      assertArrayEquals(data, Arrays.copyOfRange(output, 3, 3 + written));
+    }
+  }
+
+  @Test
+  public void testDecodeIntoSmallArray() {
+    byte[] data = "Hello, world!".getBytes();
+    byte[] encoded = Base64.encodeBase64(data);
+
+    // Exactly big enough: the decoder may need to grow, but must copy back.
+    byte[] output = new byte[data.length];
+    assertEquals(data.length, Base64.decodeBase64(encoded, 0, encoded.length, output, 0));
+    assertArrayEquals(data, output);
+
+    try {
+      Base64.decodeBase64(encoded, 0, encoded.length, new byte[data.length - 1], 0);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testDecodeIntoByteBuffer() {
+    byte[] data = randomBytes(new Random(2), 50);
+    byte[] encoded = Base64.encodeBase64(data);
+
+    ByteBuffer heap = ByteBuffer.allocate(100);
+    heap.position(7);
+    assertEquals(data.length, new Base64().decode(encoded, 0, encoded.length, heap));
+    assertEquals(7 + data.length, heap.position());
+    assertArrayEquals(data, Arrays.copyOfRange(heap.array(), 7, 7 + data.length));
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(100);
+    assertEquals(data.length, new Base64().decode(encoded, 0, encoded.length, direct));
+    direct.flip();
+    byte[] out = new byte[direct.remaining()];
+    direct.get(out);
+    assertArrayEquals(data, out);
+  }
+
+  @Test
+  public void testDecodeRespectsByteBufferLimit() {
+    byte[] data = randomBytes(new Random(3), 50);
+    byte[] encoded = Base64.encodeBase64(data);
+
+    // Room for the data, but not for the longest possible decoding.
+    ByteBuffer heap = ByteBuffer.allocate(100);
+    Arrays.fill(heap.array(), (byte) 0x55);
+    heap.position(10).limit(10 + data.length);
+    assertEquals(data.length, new Base64().decode(encoded, 0, encoded.length, heap));
+    assertEquals(10 + data.length, heap.position());
+    assertArrayEquals(data, Arrays.copyOfRange(heap.array(), 10, 10 + data.length));
+    for (int i = 10 + data.length; i < 100; i++) {
+      assertEquals((byte) 0x55, heap.array()[i]);
+    }
+
+    // Too small: nothing past the limit is written, and the position is unchanged.
+    heap.clear();
+    Arrays.fill(heap.array(), (byte) 0x55);
+    heap.position(10).limit(10 + data.length - 1);
+    try {
+      new Base64().decode(encoded, 0, encoded.length, heap);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertEquals(10, heap.position());
+    for (int i = 0; i < 100; i++) {
+      assertEquals((byte) 0x55, heap.array()[i]);
+    }
+  }
+
+  @Test
+  public void testBase32DecodeIntoArray() {
+    byte[] expected = "foobar".getBytes();
+    byte[] encoded = "MZXW6YTBOI======".getBytes();
+    Base32 codec = new Base32();
+    byte[] output = new byte[codec.getMaxDecodedLength(encoded.length)];
+    int written = codec.decode(encoded, 0, encoded.length, output, 0);
+    assertArrayEquals(expected, Arrays.copyOf(output, written));
+  }
+
+  @Test
+  public void testEncodeInPieces() {
+    Random random = new Random(3);
+    for (int length = 0; length < 200; length += 7) {
+      byte[] data = randomBytes(random, length);
+      byte[] expected = Base64.encodeBase64(data);
+      assertArrayEquals(expected, encodeInPieces(data, 12));
+      assertArrayEquals(expected, encodeInPieces(data, 13));
+      assertArrayEquals(expected, encodeInPieces(data, 1024));
+      // Too small for even one block: still correct, just not allocation-free.
+      assertArrayEquals(expected, encodeInPieces(data, 2));
+    }
+  }
+
+  @Test
+  public void testDecryptBase64() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] plaintext = "{\"id\":\"abcdefghijkl\",\"title\":\"Some title\"}".getBytes("UTF-8");
+    CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, kb);
+    byte[] base64 = Base64.encodeBase64(encrypted.getMessage());
+
+    ByteBuffer decrypted = CryptoInfo.decryptBase64(base64, 0, base64.length, encrypted.getIV(), encrypted.getHMAC(), kb);
+    byte[] out = new byte[decrypted.remaining()];
+    decrypted.get(out);
+    assertArrayEquals(plaintext, out);
+
+    // Flip a bit of the encoded ciphertext.
+    base64[0] = (byte) ((base64[0] == 'A') ? 'B' : 'A');
+    try {
+      CryptoInfo.decryptBase64(base64, 0, base64.length, encrypted.getIV(), encrypted.getHMAC(), kb);
+      fail("Expected HMACVerificationException.");
+    } catch (HMACVerificationException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+
+public class TestCryptoContext {
+
+  @Test
+  public void testContextIsCachedPerBundle() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    CryptoContext context = kb.getCryptoContext();
+    assertSame(context, kb.getCryptoContext());
+    assertSame(context.getCipher(), context.getCipher());
+    assertSame(context.getHMACHasher(), context.getHMACHasher());
+  }
+
+  @Test
+  public void testContextIsThreadConfined() throws Exception {
+    final CryptoContext context = KeyBundle.withRandomKeys().getCryptoContext();
+    final AtomicReference<Cipher> otherCipher = new AtomicReference<Cipher>();
+    final AtomicReference<Mac> otherMac = new AtomicReference<Mac>();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          otherCipher.set(context.getCipher());
+          otherMac.set(context.getHMACHasher());
+        } catch (Exception e) {
+          // Leave references unset.
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+
+    assertNotNull(otherCipher.get());
+    assertNotNull(otherMac.get());
+    assertNotSame(context.getCipher(), otherCipher.get());
+    assertNotSame(context.getHMACHasher(), otherMac.get());
+  }
+
+  @Test
+  public void testChangingKeysDiscardsContext() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] plaintext = "plaintext".getBytes("UTF-8");
+    CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, kb);
+
+    CryptoContext context = kb.getCryptoContext();
+    kb.setHMACKey(KeyBundle.withRandomKeys().getHMACKey());
+    assertNotSame(context, kb.getCryptoContext());
+
+    try {
+      CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), kb);
+      fail("Expected HMAC verification to fail with the new key.");
+    } catch (HMACVerificationException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testRepeatedUseGivesSameResults() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    for (int i = 0; i < 10; i++) {
+      byte[] plaintext = ("plaintext " + i).getBytes("UTF-8");
+      CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, kb);
+      CryptoInfo decrypted = CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), kb);
+      assertArrayEquals(plaintext, decrypted.getMessage());
+    }
+  }
+}
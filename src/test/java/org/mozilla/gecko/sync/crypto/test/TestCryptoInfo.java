@@ -11,11 +11,17 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.junit.Test;
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 
 public class TestCryptoInfo {
@@ -138,4 +144,47 @@ public class TestCryptoInfo {
     assertArrayEquals(Base64.decodeBase64(base64CipherText), encrypted.getMessage());
     assertArrayEquals(Utils.hex2Byte(base16Hmac), encrypted.getHMAC());
   }
-}
\ No newline at end of file
+
+  /**
+   * Records encrypted through a bundle's cached context should match what a
+   * fresh <code>Cipher</code> and <code>Mac</code> produce for the same keys.
+   */
+  @Test
+  public void testCachedContextMatchesFreshCipher() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    for (int i = 0; i < 5; i++) {
+      byte[] plaintext = ("plaintext " + i).getBytes("UTF-8");
+      CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, kb);
+
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kb.getEncryptionKey(), "AES"), new IvParameterSpec(encrypted.getIV()));
+      byte[] expectedMessage = cipher.doFinal(plaintext);
+      assertArrayEquals(expectedMessage, encrypted.getMessage());
+
+      Mac hasher = HKDF.makeHMACHasher(kb.getHMACKey());
+      assertArrayEquals(hasher.doFinal(Base64.encodeBase64(expectedMessage)), encrypted.getHMAC());
+
+      CryptoInfo decrypted = CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), kb);
+      assertArrayEquals(plaintext, decrypted.getMessage());
+    }
+  }
+
+  /**
+   * A bundle that has been used many times should decrypt exactly as a
+   * bundle built fresh from the same keys.
+   */
+  @Test
+  public void testReusedBundleMatchesFreshBundle() throws Exception {
+    KeyBundle reused = KeyBundle.withRandomKeys();
+    for (int i = 0; i < 5; i++) {
+      byte[] plaintext = ("plaintext " + i).getBytes("UTF-8");
+      CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, reused);
+      KeyBundle fresh = new KeyBundle(reused.getEncryptionKey(), reused.getHMACKey());
+
+      byte[] viaReused = CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), reused).getMessage();
+      byte[] viaFresh = CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), fresh).getMessage();
+      assertArrayEquals(plaintext, viaReused);
+      assertArrayEquals(viaFresh, viaReused);
+    }
+  }
+}
@@ -10,6 +10,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import junit.framework.AssertionFailedError;
 
@@ -35,6 +38,7 @@ import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
@@ -287,4 +291,127 @@ public class TestCrypto5MiddlewareRepositorySession {
     assertTrue(record1.title.equals(decryptedRecord1.title) || record1.title.equals(decryptedRecord2.title));
     assertTrue(record2.title.equals(decryptedRecord1.title) || record2.title.equals(decryptedRecord2.title));
   }
+
+  /**
+   * Records fetched records and failures in the order they arrive.
+   */
+  protected static class OrderTrackingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      events.add("fail:" + record.guid);
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      events.add(record.guid);
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  protected String[] putEncryptedRecords(int count) throws UnsupportedEncodingException, CryptoException {
+    String[] guids = new String[count];
+    for (int i = 0; i < count; i++) {
+      BookmarkRecord record = new BookmarkRecord("guid" + (1000 + i) + "abcd", "coll", System.currentTimeMillis(), false);
+      record.title = "title " + i;
+      CryptoRecord encrypted = record.getEnvelope();
+      encrypted.keyBundle = keyBundle;
+      encrypted = encrypted.encrypt();
+      wboRepo.wbos.put(record.guid, encrypted);
+      guids[i] = record.guid;
+    }
+    return guids;
+  }
+
+  protected void finishSession() {
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+  }
+
+  @Test
+  /**
+   * Verify that parallel decryption delivers records, and failures, in fetch order.
+   */
+  public void testParallelFetchDecryptsInOrder() throws Exception {
+    cmwRepo.cryptoWorkers = 3;
+    final String[] guids = putEncryptedRecords(50);
+
+    // Break the HMAC of one record.
+    CryptoRecord broken = (CryptoRecord) wboRepo.wbos.get(guids[20]);
+    broken.payload.put("hmac", "00" + ((String) broken.payload.get("hmac")).substring(2));
+
+    final OrderTrackingFetchDelegate fetchDelegate = new OrderTrackingFetchDelegate();
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.fetch(guids, fetchDelegate);
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    });
+    finishSession();
+
+    assertEquals(guids.length, fetchDelegate.events.size());
+    for (int i = 0; i < guids.length; i++) {
+      String expected = (i == 20) ? "fail:" + guids[i] : guids[i];
+      assertEquals(expected, fetchDelegate.events.get(i));
+    }
+  }
+
+  @Test
+  /**
+   * Verify that parallel encryption stores every record.
+   */
+  public void testParallelStoreEncrypts() throws Exception {
+    cmwRepo.cryptoWorkers = 3;
+    final int count = 50;
+
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        try {
+          try {
+            cmwSession.setStoreDelegate(new ExpectSuccessRepositorySessionStoreDelegate(getTestWaiter()));
+            for (int i = 0; i < count; i++) {
+              BookmarkRecord record = new BookmarkRecord("guid" + (1000 + i) + "abcd", "coll", System.currentTimeMillis(), false);
+              record.title = "title " + i;
+              cmwSession.store(record);
+            }
+          } catch (NoStoreDelegateException e) {
+            getTestWaiter().performNotify(new AssertionFailedError("Should not happen."));
+          }
+          cmwSession.storeDone();
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    });
+
+    assertEquals(count, wboRepo.wbos.size());
+    for (int i = 0; i < count; i++) {
+      CryptoRecord stored = (CryptoRecord) wboRepo.wbos.get("guid" + (1000 + i) + "abcd");
+      stored.decrypt();
+      BookmarkRecord decrypted = new BookmarkRecord();
+      decrypted.initFromEnvelope(stored);
+      assertEquals("title " + i, decrypted.title);
+    }
+  }
 }
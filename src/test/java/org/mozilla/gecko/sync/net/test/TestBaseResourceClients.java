@@ -0,0 +1,136 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.BaseResourceDelegate;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.ClientProtocolException;
+import ch.boye.httpclientandroidlib.client.CookieStore;
+import ch.boye.httpclientandroidlib.client.methods.HttpGet;
+import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
+import ch.boye.httpclientandroidlib.client.protocol.ClientContext;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
+import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
+import ch.boye.httpclientandroidlib.protocol.HttpContext;
+
+public class TestBaseResourceClients {
+  protected static final URI TEST_URI = URI.create("https://example.com/1.1/user/storage/history");
+
+  public static class ClientResource extends BaseResource {
+    public ClientResource() {
+      super(TEST_URI);
+    }
+
+    public static DefaultHttpClient client(int connectionTimeout, int socketTimeout) throws Exception {
+      return getClient(connectionTimeout, socketTimeout);
+    }
+  }
+
+  /**
+   * Prepares a request and its client without sending anything.
+   */
+  public static class SetupResource extends BaseResource {
+    public SetupResource() {
+      super(TEST_URI);
+      this.delegate = new BaseResourceDelegate(this) {
+        @Override
+        public void handleHttpResponse(HttpResponse response) {
+        }
+
+        @Override
+        public void handleHttpProtocolException(ClientProtocolException e) {
+        }
+
+        @Override
+        public void handleHttpIOException(IOException e) {
+        }
+
+        @Override
+        public void handleTransportException(GeneralSecurityException e) {
+        }
+      };
+    }
+
+    public void setUp() throws Exception {
+      this.request = new HttpGet(this.uri);
+      this.prepareClient();
+    }
+
+    public HttpRequestBase getRequest() {
+      return this.request;
+    }
+
+    public HttpContext getContext() {
+      return this.context;
+    }
+  }
+
+  @After
+  public void tearDown() {
+    BaseResource.shutdownConnectionManager();
+  }
+
+  @Test
+  public void testClientsAreSharedByTimeouts() throws Exception {
+    DefaultHttpClient client = ClientResource.client(1000, 2000);
+    assertSame(client, ClientResource.client(1000, 2000));
+    assertNotSame(client, ClientResource.client(2000, 1000));
+    assertNotSame(client, ClientResource.client(1000, 3000));
+
+    assertEquals(1000, HttpConnectionParams.getConnectionTimeout(client.getParams()));
+    assertEquals(2000, HttpConnectionParams.getSoTimeout(client.getParams()));
+  }
+
+  @Test
+  public void testShutdownDiscardsClients() throws Exception {
+    DefaultHttpClient client = ClientResource.client(1000, 2000);
+    BaseResource.shutdownConnectionManager();
+    DefaultHttpClient fresh = ClientResource.client(1000, 2000);
+    assertNotSame(client, fresh);
+    assertSame(BaseResource.getConnectionManager(), fresh.getConnectionManager());
+  }
+
+  @Test
+  public void testPreparingRequestLeavesClientAlone() throws Exception {
+    SetupResource resource = new SetupResource();
+    resource.charset = "utf-16";
+    resource.setUp();
+    assertEquals("utf-16", HttpProtocolParams.getContentCharset(resource.getRequest().getParams()));
+
+    DefaultHttpClient client = ClientResource.client(resource.delegate.connectionTimeout(), resource.delegate.socketTimeout());
+    assertFalse("utf-16".equals(HttpProtocolParams.getContentCharset(client.getParams())));
+  }
+
+  @Test
+  public void testRequestsDontShareCookies() throws Exception {
+    SetupResource first = new SetupResource();
+    SetupResource second = new SetupResource();
+    first.setUp();
+    second.setUp();
+
+    CookieStore firstStore = (CookieStore) first.getContext().getAttribute(ClientContext.COOKIE_STORE);
+    CookieStore secondStore = (CookieStore) second.getContext().getAttribute(ClientContext.COOKIE_STORE);
+    assertNotNull(firstStore);
+    assertNotNull(secondStore);
+    assertNotSame(firstStore, secondStore);
+
+    DefaultHttpClient client = ClientResource.client(first.delegate.connectionTimeout(), first.delegate.socketTimeout());
+    assertNotSame(client.getCookieStore(), firstStore);
+  }
+}
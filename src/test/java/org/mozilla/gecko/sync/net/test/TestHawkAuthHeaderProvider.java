@@ -6,19 +6,24 @@ package org.mozilla.gecko.sync.net.test;
 import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import org.junit.Test;
+import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.net.HawkAuthHeaderProvider;
+import org.mozilla.gecko.sync.net.PayloadHashedEntity;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.client.methods.HttpGet;
 import ch.boye.httpclientandroidlib.client.methods.HttpPost;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
+import ch.boye.httpclientandroidlib.entity.AbstractHttpEntity;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.message.BasicHeader;
@@ -135,4 +140,71 @@ public class TestHawkAuthHeaderProvider {
     assertEquals("text/html", LeakyHawkAuthHeaderProvider.getBaseContentType(new BasicHeader("Content-Type", "text/html; charset=UTF-8")));
     assertEquals("text/html", LeakyHawkAuthHeaderProvider.getBaseContentType(new BasicHeader("Content-Type", "text/html ;charset=UTF-8")));
   }
+
+  @Test
+  public void testPayloadHasher() throws Exception {
+    HawkAuthHeaderProvider.PayloadHasher hasher = new HawkAuthHeaderProvider.PayloadHasher("text/plain");
+    hasher.update("Thank you ".getBytes("UTF-8"));
+    hasher.update("for flying Hawk".getBytes("UTF-8"));
+    assertEquals("Yi9LfIIFRtBEPt74PVmbTF/xVAwPn7ub15ePICfgnuY=", Base64.encodeBase64String(hasher.finish()));
+
+    // Finishing starts the next payload.
+    hasher.update("Thank you for flying Hawk".getBytes("UTF-8"));
+    assertEquals("Yi9LfIIFRtBEPt74PVmbTF/xVAwPn7ub15ePICfgnuY=", Base64.encodeBase64String(hasher.finish()));
+  }
+
+  /**
+   * An entity with a known hash, and a body that mustn't be read.
+   */
+  protected static class HashedEntity extends AbstractHttpEntity implements PayloadHashedEntity {
+    protected final byte[] hash;
+
+    public HashedEntity(byte[] hash) {
+      this.hash = hash;
+      setContentType("text/plain");
+    }
+
+    @Override
+    public byte[] getPayloadHash() {
+      return hash;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+
+    @Override
+    public long getContentLength() {
+      return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      throw new IllegalStateException("Hashed entity should not be read.");
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      throw new IllegalStateException("Hashed entity should not be written.");
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
+
+  @Test
+  public void testPrecomputedPayloadHash() throws Exception {
+    HawkAuthHeaderProvider.PayloadHasher hasher = new HawkAuthHeaderProvider.PayloadHasher("text/plain");
+    hasher.update("Thank you for flying Hawk".getBytes("UTF-8"));
+
+    LeakyHawkAuthHeaderProvider provider = new LeakyHawkAuthHeaderProvider("dh37fgj492je", "werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn".getBytes("UTF-8"));
+    HttpPost req = new HttpPost(new URI("http://example.com:8000/resource/1?b=1&a=2"));
+    req.setEntity(new HashedEntity(hasher.finish()));
+    Header header = provider.getAuthHeader(req, null, null, 1353832234L, "j4h3g2", "some-app-ext-data", true);
+    String expected = "Hawk id=\"dh37fgj492je\", ts=\"1353832234\", nonce=\"j4h3g2\", hash=\"Yi9LfIIFRtBEPt74PVmbTF/xVAwPn7ub15ePICfgnuY=\", ext=\"some-app-ext-data\", mac=\"aSe1DERmZuRl3pI36/9BdZmnErTw3sNzOOAUlfeKjVw=\"";
+    assertEquals(expected, header.getValue());
+  }
 }
@@ -0,0 +1,56 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.TLSSocketFactory;
+
+import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
+
+public class TestTLSSocketFactory {
+  @After
+  public void tearDown() {
+    TLSSocketFactory.setSessionCacheLimits(TLSSocketFactory.DEFAULT_SESSION_CACHE_SIZE,
+                                           TLSSocketFactory.DEFAULT_SESSION_LIFETIME_SECONDS);
+    BaseResource.shutdownConnectionManager();
+  }
+
+  @Test
+  public void testContextOutlivesConnectionManager() throws Exception {
+    SSLContext context = TLSSocketFactory.getSharedContext();
+    Scheme https = BaseResource.getConnectionManager().getSchemeRegistry().getScheme("https");
+
+    BaseResource.shutdownConnectionManager();
+    Scheme fresh = BaseResource.getConnectionManager().getSchemeRegistry().getScheme("https");
+
+    // A new socket factory, but the same context and so the same sessions.
+    assertSame(context, TLSSocketFactory.getSharedContext());
+    assertNotSame(https, fresh);
+  }
+
+  @Test
+  public void testSessionCacheLimits() throws Exception {
+    SSLSessionContext sessions = TLSSocketFactory.getSharedContext().getClientSessionContext();
+    assertEquals(TLSSocketFactory.DEFAULT_SESSION_CACHE_SIZE, sessions.getSessionCacheSize());
+    assertEquals(TLSSocketFactory.DEFAULT_SESSION_LIFETIME_SECONDS, sessions.getSessionTimeout());
+
+    TLSSocketFactory.setSessionCacheLimits(5, 60);
+    assertEquals(5, sessions.getSessionCacheSize());
+    assertEquals(60, sessions.getSessionTimeout());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testNegativeLimitsAreRejected() {
+    TLSSocketFactory.setSessionCacheLimits(-1, 60);
+  }
+}
@@ -0,0 +1,181 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.json.simple.JSONArray;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.WBOStreamDecoder;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+public class TestWBOStreamDecoder {
+  // A raw JSON blob from a real Sync account; see TestCryptoRecord.
+  public static final String ENTIRE_RECORD = "{\"sortindex\": 131, \"payload\": \"{\\\"ciphertext\\\":\\\"YJB4dr0vZEIWPirfU2FCJvfzeSLiOP5QWasol2R6ILUxdHsJWuUuvTZVhxYQfTVNou6hVV67jfAvi5Cs+bqhhQsv7icZTiZhPTiTdVGt+uuMotxauVA5OryNGVEZgCCTvT3upzhDFdDbJzVd9O3/gU/b7r/CmAHykX8bTlthlbWeZ8oz6gwHJB5tPRU15nM/m/qW1vyKIw5pw/ZwtAy630AieRehGIGDk+33PWqsfyuT4EUFY9/Ly+8JlnqzxfiBCunIfuXGdLuqTjJOxgrK8mI4wccRFEdFEnmHvh5x7fjl1ID52qumFNQl8zkB75C8XK25alXqwvRR6/AQSP+BgQ==\\\",\\\"IV\\\":\\\"v/0BFgicqYQsd70T39rraA==\\\",\\\"hmac\\\":\\\"59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac\\\"}\", \"id\": \"0-P9fabp9vJD\", \"modified\": 1326254123.65}";
+  public static final String B64_ENCRYPTION_KEY = "0A7mU5SZ/tu7ZqwXW1og4qHVHN+zgEi4Xwfwjw+vEJw=";
+  public static final String B64_HMAC_KEY       = "11GN34O9QWXkjR06g8t0gWE1sGgQeWL0qxxWwl8Dmxs=";
+
+  protected static InputStream stream(String body) throws Exception {
+    return new ByteArrayInputStream(body.getBytes("UTF-8"));
+  }
+
+  protected static void assertSameEnvelope(CryptoRecord expected, CryptoRecord actual) throws Exception {
+    assertEquals(expected.guid, actual.guid);
+    assertEquals(expected.collection, actual.collection);
+    assertEquals(expected.lastModified, actual.lastModified);
+    assertEquals(expected.sortIndex, actual.sortIndex);
+    assertEquals(expected.ttl, actual.ttl);
+    // The raw payload is not re-encoded, so compare parsed payloads.
+    String rawPayload = (String) actual.toJSONObject().get("payload");
+    assertEquals(expected.payload, ExtendedJSONObject.parseJSONObject(rawPayload));
+  }
+
+  @Test
+  public void testEntireRecord() throws Exception {
+    WBOStreamDecoder decoder = new WBOStreamDecoder(stream(ENTIRE_RECORD + "\n"));
+    CryptoRecord record = decoder.nextRecord();
+    assertNull(decoder.nextRecord());
+
+    assertEquals("0-P9fabp9vJD", record.guid);
+    assertEquals(1326254123650L, record.lastModified);
+    assertEquals(131, record.sortIndex);
+    assertNull(record.payload);
+    assertSameEnvelope(CryptoRecord.fromJSONRecord(ENTIRE_RECORD), record);
+
+    record.keyBundle = KeyBundle.fromBase64EncodedKeys(B64_ENCRYPTION_KEY, B64_HMAC_KEY);
+    record.decrypt();
+
+    assertEquals("0-P9fabp9vJD", record.guid);
+    assertEquals("Customize Firefox", record.payload.get("title"));
+    assertEquals("0-P9fabp9vJD",      record.payload.get("id"));
+    assertTrue(record.payload.get("tags") instanceof JSONArray);
+  }
+
+  @Test
+  public void testMatchesJSONParser() throws Exception {
+    String[] lines = new String[] {
+        "{\"id\":\"abcdefghijkl\",\"collection\":\"history\",\"modified\":1326254123,\"payload\":\"{}\"}",
+        "{\"id\":\"escaped\\\"\\\\\",\"payload\":\"{\\\"x\\\":\\\"\\\\u00e9\\\\n\\\"}\",\"ttl\":500}",
+        "{\"id\":\"\\u00e9\\ud83d\\ude00ü\",\"payload\":\"{\\\"a\\\":[1,2,{\\\"b\\\":null}]}\",\"modified\":1326254123.01}",
+        "  { \"unknown\" : {\"nested\": [true, false, null, -1.5e3, \"}\"]}, \"payload\" : \"{}\" , \"sortindex\" : -7 }  ",
+    };
+    StringBuilder body = new StringBuilder();
+    for (String line : lines) {
+      body.append(line).append("\n");
+    }
+
+    // Use a tiny buffer so that lines span reads.
+    WBOStreamDecoder decoder = new WBOStreamDecoder(stream(body.toString()), 7);
+    for (String line : lines) {
+      assertSameEnvelope(CryptoRecord.fromJSONRecord(line), decoder.nextRecord());
+    }
+    assertNull(decoder.nextRecord());
+  }
+
+  @Test
+  public void testDecryptsLikeLineByLine() throws Exception {
+    KeyBundle keyBundle = KeyBundle.withRandomKeys();
+    String[] lines = new String[20];
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < lines.length; i++) {
+      ExtendedJSONObject payload = new ExtendedJSONObject();
+      payload.put("id", "guid" + i);
+      payload.put("histUri", "http://example.com/" + i + "/some/longer/path?query=string");
+      payload.put("title", "Page title number " + i);
+      CryptoRecord record = new CryptoRecord(payload);
+      record.guid = "guid" + i;
+      record.keyBundle = keyBundle;
+      record.encrypt();
+      ExtendedJSONObject envelope = new ExtendedJSONObject(record.toJSONObject());
+      envelope.put("modified", 1326254123.65 + i);
+      envelope.put("sortindex", i);
+      lines[i] = envelope.toJSONString();
+      body.append(lines[i]).append("\n");
+    }
+
+    WBOStreamDecoder decoder = new WBOStreamDecoder(stream(body.toString()), 64);
+    for (String line : lines) {
+      CryptoRecord expected = CryptoRecord.fromJSONRecord(line);
+      expected.keyBundle = keyBundle;
+      expected.decrypt();
+
+      CryptoRecord actual = decoder.nextRecord();
+      actual.keyBundle = keyBundle;
+      actual.decrypt();
+
+      assertEquals(expected.guid, actual.guid);
+      assertEquals(expected.lastModified, actual.lastModified);
+      assertEquals(expected.sortIndex, actual.sortIndex);
+      assertEquals(expected.payload, actual.payload);
+    }
+    assertNull(decoder.nextRecord());
+  }
+
+  @Test
+  public void testLineEndings() throws Exception {
+    String line = "{\"id\":\"abcdefghijkl\",\"payload\":\"{}\"}";
+    WBOStreamDecoder decoder = new WBOStreamDecoder(stream(line + "\r\n\n" + line));
+    assertEquals("abcdefghijkl", decoder.nextRecord().guid);
+    assertEquals("abcdefghijkl", decoder.nextRecord().guid);
+    assertNull(decoder.nextRecord());
+  }
+
+  @Test
+  public void testMalformedRecordIsSkippable() throws Exception {
+    String body = "{\"id\":\"first\",\"payload\":\"{}\"}\n" +
+                  "{\"id\":\"bad\",\"payload\":\n" +
+                  "{\"id\":\"nopayload\"}\n" +
+                  "{\"id\":\"badtime\",\"payload\":\"{}\",\"modified\":\"now\"}\n" +
+                  "{\"id\":\"last\",\"payload\":\"{}\"}\n";
+    WBOStreamDecoder decoder = new WBOStreamDecoder(stream(body));
+    assertEquals("first", decoder.nextRecord().guid);
+    for (int i = 0; i < 3; i++) {
+      try {
+        decoder.nextRecord();
+        fail("Expected RecordParseException.");
+      } catch (RecordParseException e) {
+        // Expected.
+      }
+    }
+    assertEquals("last", decoder.nextRecord().guid);
+    assertNull(decoder.nextRecord());
+  }
+
+  @Test
+  public void testCopyKeepsRawPayload() throws Exception {
+    CryptoRecord record = WBOStreamDecoder.decodeRecord(ENTIRE_RECORD.getBytes("UTF-8"));
+    CryptoRecord copy = (CryptoRecord) record.copyWithIDs("abcdefghijkl", 5);
+    copy.keyBundle = KeyBundle.fromBase64EncodedKeys(B64_ENCRYPTION_KEY, B64_HMAC_KEY);
+    copy.decrypt();
+    assertEquals("Customize Firefox", copy.payload.get("title"));
+    assertNull(record.payload);
+  }
+
+  @Test
+  public void testCiphertextIsNotCopied() throws Exception {
+    byte[] payload = "{\"ciphertext\":\"abc+def=\",\"IV\":\"aXY=\",\"hmac\":\"00\"}".getBytes("UTF-8");
+    WBOStreamDecoder.EncryptedPayload decoded = WBOStreamDecoder.decodeEncryptedPayload(payload);
+    assertSame(payload, decoded.ciphertext);
+    assertEquals("abc+def=", new String(decoded.ciphertext, decoded.ciphertextOffset, decoded.ciphertextLength, "UTF-8"));
+  }
+
+  @Test
+  public void testEscapedCiphertextIsCopied() throws Exception {
+    byte[] payload = "{\"ciphertext\":\"abc\\/def=\",\"IV\":\"aXY=\",\"hmac\":\"00\"}".getBytes("UTF-8");
+    WBOStreamDecoder.EncryptedPayload decoded = WBOStreamDecoder.decodeEncryptedPayload(payload);
+    assertNotSame(payload, decoded.ciphertext);
+    assertEquals("abc/def=", new String(decoded.ciphertext, decoded.ciphertextOffset, decoded.ciphertextLength, "UTF-8"));
+  }
+}
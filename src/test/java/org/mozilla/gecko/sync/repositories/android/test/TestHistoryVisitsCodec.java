@@ -0,0 +1,103 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.android.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.HistoryVisitsCodec;
+import org.mozilla.gecko.sync.repositories.android.HistoryVisitsCodec.Visits;
+
+public class TestHistoryVisitsCodec {
+  @SuppressWarnings("unchecked")
+  protected static JSONObject visit(Object date, Object type) {
+    JSONObject visit = new JSONObject();
+    visit.put("date", date);
+    visit.put("type", type);
+    return visit;
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static JSONArray visits(long... datesAndTypes) {
+    JSONArray visits = new JSONArray();
+    for (int i = 0; i < datesAndTypes.length; i += 2) {
+      visits.add(visit(datesAndTypes[i], datesAndTypes[i + 1]));
+    }
+    return visits;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    // Out of order dates exercise negative deltas.
+    JSONArray visits = visits(1370000000000000L, 1, 1370000000500000L, 2, 1360000000000000L, 5, 1370000000500000L, 1);
+    byte[] blob = HistoryVisitsCodec.encode(visits, 0);
+    assertEquals(HistoryVisitsCodec.FORMAT_DELTA_VARINT, blob[0]);
+    assertTrue(blob.length < visits.toJSONString().length() / 4);
+
+    Visits decoded = HistoryVisitsCodec.decode(blob);
+    assertEquals(visits, decoded.visits);
+    assertEquals(4, decoded.count);
+
+    decoded = HistoryVisitsCodec.decode(HistoryVisitsCodec.encode(null, 0));
+    assertEquals(0, decoded.visits.size());
+    assertEquals(0, decoded.count);
+  }
+
+  @Test
+  public void testKeepsMostRecentVisits() {
+    JSONArray visits = visits(5, 1, 1, 1, 9, 2, 3, 1, 9, 3, 7, 1, 9, 4);
+    Visits decoded = HistoryVisitsCodec.decode(HistoryVisitsCodec.encode(visits, 3));
+    assertEquals(visits(9, 2, 9, 3, 9, 4), decoded.visits);
+    assertEquals(7, decoded.count);
+
+    decoded = HistoryVisitsCodec.decode(HistoryVisitsCodec.encode(visits, 5));
+    assertEquals(visits(5, 1, 9, 2, 9, 3, 7, 1, 9, 4), decoded.visits);
+    assertEquals(7, decoded.count);
+
+    decoded = HistoryVisitsCodec.decode(HistoryVisitsCodec.encode(visits, 2));
+    assertEquals(visits(9, 2, 9, 3), decoded.visits);
+    assertEquals(7, decoded.count);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testUnusualVisitsFallBackToJSON() throws Exception {
+    JSONArray visits = visits(1, 1);
+    visits.add(visit(2.5, 1L));
+    byte[] blob = HistoryVisitsCodec.encode(visits, 1);
+    assertEquals(visits.toJSONString(), new String(blob, "UTF-8"));
+
+    Visits decoded = HistoryVisitsCodec.decode(blob);
+    assertEquals(visits, decoded.visits);
+    assertEquals(2, decoded.count);
+  }
+
+  @Test
+  public void testDecodesStoredJSON() throws Exception {
+    Visits decoded = HistoryVisitsCodec.decode("[{\"date\":1370000000000000,\"type\":1}]".getBytes("UTF-8"));
+    assertEquals(visits(1370000000000000L, 1), decoded.visits);
+    assertEquals(1, decoded.count);
+  }
+
+  @Test
+  public void testCorruptBlobsDecodeEmpty() throws Exception {
+    byte[] blob = HistoryVisitsCodec.encode(visits(1370000000000000L, 1, 1370000000500000L, 2), 0);
+    byte[][] corrupt = new byte[][] {
+      Arrays.copyOf(blob, blob.length - 2),
+      new byte[] { HistoryVisitsCodec.FORMAT_DELTA_VARINT, 1, 5 },
+      new byte[] { HistoryVisitsCodec.FORMAT_DELTA_VARINT, (byte) 0x80 },
+      "[{\"date\":".getBytes("UTF-8"),
+    };
+    for (byte[] bytes : corrupt) {
+      Visits decoded = HistoryVisitsCodec.decode(bytes);
+      assertEquals(0, decoded.visits.size());
+      assertEquals(0, decoded.count);
+    }
+  }
+}
@@ -79,7 +79,7 @@ public class TestSafeConstrainedServer11Repository {
 
       final int TEST_LIMIT = 1000;
       final SafeConstrainedServer11Repository repo = new SafeConstrainedServer11Repository(
-          collection, getCollectionURL(collection), null, TEST_LIMIT, sort, countFetcher);
+          collection, getCollectionURL(collection), null, null, TEST_LIMIT, sort, countFetcher);
 
       final AtomicBoolean shouldSkipLots = new AtomicBoolean(false);
       final AtomicBoolean shouldSkipFew = new AtomicBoolean(true);
@@ -0,0 +1,50 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+
+public class TestInfoConfiguration {
+  public static final String TEST_CONFIGURATION_JSON =
+      "{\"max_request_bytes\": 2101248, "      +
+      " \"max_post_records\": 100, "           +
+      " \"max_post_bytes\": 2097152, "         +
+      " \"max_total_records\": 10000, "        +
+      " \"max_total_bytes\": 209715200, "      +
+      " \"max_record_payload_bytes\": 2097152" +
+      "}";
+
+  @Test
+  public void testParse() throws Exception {
+    InfoConfiguration config = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(TEST_CONFIGURATION_JSON));
+    assertEquals(2101248L, config.maxRequestBytes);
+    assertEquals(100L, config.maxPostRecords);
+    assertEquals(2097152L, config.maxPostBytes);
+    assertEquals(10000L, config.maxTotalRecords);
+    assertEquals(209715200L, config.maxTotalBytes);
+    assertEquals(2097152L, config.maxRecordPayloadBytes);
+    assertEquals(2097152L, config.getMaxPostBytes());
+  }
+
+  @Test
+  public void testDefaults() throws Exception {
+    InfoConfiguration config = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": 10, \"max_post_bytes\": -1, \"max_total_records\": \"lots\"}"));
+    assertEquals(10L, config.maxPostRecords);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_BYTES, config.maxPostBytes);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_TOTAL_RECORDS, config.maxTotalRecords);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_REQUEST_BYTES, config.maxRequestBytes);
+  }
+
+  @Test
+  public void testRequestLimitCapsPostLimit() throws Exception {
+    InfoConfiguration config = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_request_bytes\": 1000, \"max_post_bytes\": 5000}"));
+    assertEquals(1000L, config.getMaxPostBytes());
+  }
+}
@@ -0,0 +1,83 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONReader;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+public class TestJSONReader {
+  protected static JSONReader reader(String json) throws Exception {
+    return new JSONReader(json.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testTypedMembers() throws Exception {
+    JSONReader reader = reader(" { \"s\" : \"a\\\"\\u00e9\\ud83d\\ude00\", \"n\": -12, \"f\": 2.9," +
+                               " \"b\": true, \"z\": null, \"skip\": {\"x\": [1, {\"y\": \"]\"}]} } ");
+    reader.beginObject();
+    assertTrue(reader.hasNext());
+    assertEquals("s", reader.nextName());
+    assertEquals("a\"é😀", reader.nextString());
+    assertTrue(reader.hasNext());
+    assertEquals("n", reader.nextName());
+    assertEquals(-12L, reader.nextLong());
+    assertTrue(reader.hasNext());
+    assertEquals("f", reader.nextName());
+    assertEquals(2L, reader.nextLong());
+    assertTrue(reader.hasNext());
+    assertEquals("b", reader.nextName());
+    assertTrue(reader.nextBoolean());
+    assertTrue(reader.hasNext());
+    assertEquals("z", reader.nextName());
+    assertEquals(JSONReader.Token.NULL, reader.peek());
+    assertNull(reader.nextString());
+    assertTrue(reader.hasNext());
+    assertEquals("skip", reader.nextName());
+    reader.skipValue();
+    assertFalse(reader.hasNext());
+    reader.endObject();
+    reader.endDocument();
+  }
+
+  @Test
+  public void testNextValueMatchesJSONSimple() throws Exception {
+    String json = "{\"visits\":[{\"date\":1370000000000000,\"type\":1},{\"date\":1.5,\"type\":2}]," +
+                  "\"nested\":{\"a\":[],\"b\":{},\"c\":false,\"d\":null,\"e\":\"\\/\"}}";
+    Object value = reader(json).nextValue();
+    assertEquals(new ExtendedJSONObject(json).object, value);
+  }
+
+  @Test
+  public void testMalformedInput() throws Exception {
+    String[] inputs = new String[] {
+      "{\"a\":1 \"b\":2}",
+      "{\"a\":\"unterminated}",
+      "{\"a\":1",
+      "{\"a\":1} trailing",
+    };
+    for (String input : inputs) {
+      try {
+        JSONReader reader = reader(input);
+        reader.beginObject();
+        while (reader.hasNext()) {
+          reader.nextName();
+          reader.skipValue();
+        }
+        reader.endObject();
+        reader.endDocument();
+        fail("Expected exception for " + input);
+      } catch (RecordParseException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
+
+public class TestJSONWriter {
+  protected static String written(JSONWriter writer) throws Exception {
+    return new String(writer.toByteArray(), "UTF-8");
+  }
+
+  @Test
+  public void testStructure() throws Exception {
+    JSONWriter writer = new JSONWriter(16);
+    writer.beginObject();
+    writer.name("a").value(1L);
+    writer.name("b").beginArray().value(true).value(false).nullValue().value(-42L).endArray();
+    writer.name("c").beginObject().endObject();
+    writer.name("d").value(Long.MIN_VALUE);
+    writer.endObject();
+    assertEquals("{\"a\":1,\"b\":[true,false,null,-42],\"c\":{},\"d\":" + Long.MIN_VALUE + "}", written(writer));
+  }
+
+  @Test
+  public void testStringEscaping() throws Exception {
+    JSONWriter writer = new JSONWriter();
+    String s = "q\"b\\n\nt\tc\u0001 é € 😀 /";
+    writer.value(s);
+    byte[] bytes = writer.toByteArray();
+    assertEquals("\"q\\\"b\\\\n\\nt\\tc\\u0001 é € 😀 /\"", new String(bytes, "UTF-8"));
+
+    // Round-trips through json-simple.
+    ExtendedJSONObject parsed = ExtendedJSONObject.parseUTF8AsJSONObject(("{\"s\":" + new String(bytes, "UTF-8") + "}").getBytes("UTF-8"));
+    assertEquals(s, parsed.getString("s"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testGenericValuesMatchJSONSimple() throws Exception {
+    JSONArray array = new JSONArray();
+    array.add("x");
+    array.add(5L);
+    array.add(2.5);
+    array.add(null);
+    JSONObject object = new JSONObject();
+    object.put("array", array);
+    object.put("flag", Boolean.TRUE);
+    object.put("nested", new ExtendedJSONObject("{\"k\":\"v\"}"));
+
+    JSONWriter writer = new JSONWriter();
+    writer.value((Object) object);
+    assertEquals(new ExtendedJSONObject(object.toJSONString()).object,
+                 ExtendedJSONObject.parseUTF8AsJSONObject(writer.toByteArray()).object);
+  }
+
+  @Test
+  public void testEmbeddedDocument() throws Exception {
+    JSONWriter inner = new JSONWriter();
+    inner.beginObject().name("k").value("a \"quoted\\\" value").endObject();
+
+    JSONWriter outer = new JSONWriter();
+    outer.beginObject().name("payload").value(inner).name("id").value("abc").endObject();
+
+    ExtendedJSONObject parsed = ExtendedJSONObject.parseUTF8AsJSONObject(outer.toByteArray());
+    assertEquals(written(inner), parsed.getString("payload"));
+    assertEquals("abc", parsed.getString("id"));
+  }
+
+  @Test
+  public void testResetAndThreadWriter() throws Exception {
+    JSONWriter writer = JSONWriter.forThread();
+    writer.beginArray().value("one").endArray();
+    assertSame(writer, JSONWriter.forThread());
+    assertEquals(0, writer.size());
+
+    writer.beginArray().value("two").endArray();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    assertArrayEquals(writer.toByteArray(), out.toByteArray());
+    assertEquals("[\"two\"]", written(writer));
+  }
+
+  @Test
+  public void testDrainTo() throws Exception {
+    JSONWriter writer = new JSONWriter(16);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.beginObject().name("a").value(1L);
+    writer.drainTo(out);
+    assertEquals(0, writer.size());
+    writer.name("b").beginArray().value("x");
+    writer.drainTo(out);
+    writer.value("y").endArray().endObject();
+    writer.drainTo(out);
+    assertEquals("{\"a\":1,\"b\":[\"x\",\"y\"]}", new String(out.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testOrgJSONValues() throws Exception {
+    org.json.JSONObject object = new org.json.JSONObject();
+    object.put("k", new org.json.JSONArray("[1,\"two\"]"));
+    object.put("n", org.json.JSONObject.NULL);
+
+    JSONWriter writer = new JSONWriter();
+    writer.beginObject().name("o").value((Object) object).name("n").value(org.json.JSONObject.NULL).endObject();
+    org.json.JSONObject parsed = new org.json.JSONObject(written(writer));
+    assertEquals(object.toString(), parsed.getJSONObject("o").toString());
+    assertTrue(parsed.isNull("n"));
+  }
+
+  @Test
+  public void testJSONValue() throws Exception {
+    JSONWriter writer = new JSONWriter();
+    writer.beginObject().name("a").jsonValue("{\"x\":[1,2]}").name("b").value(3).endObject();
+    assertEquals("{\"a\":{\"x\":[1,2]},\"b\":3}", written(writer));
+  }
+}
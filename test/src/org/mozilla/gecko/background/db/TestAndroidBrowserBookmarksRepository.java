@@ -23,6 +23,7 @@ import org.mozilla.gecko.sync.repositories.android.AndroidBrowserBookmarksReposi
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserRepository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserRepositoryDataAccessor;
 import org.mozilla.gecko.sync.repositories.android.BrowserContractHelpers;
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
@@ -355,6 +356,64 @@ public class TestAndroidBrowserBookmarksRepository extends AndroidBrowserReposit
     dispose(session);
   }
 
+  /*
+   * Renaming a folder changes its children's record strings without touching
+   * their modified times. An incoming copy of a child that carries the new
+   * folder name must still be matched to the local child in a later session.
+   */
+  public void testStoreIdenticalAfterParentRenamed() {
+    final RecordStringIndex index = new RecordStringIndex(getApplicationContext(), "bookmarks");
+    try {
+      index.clear();
+    } finally {
+      index.close();
+    }
+
+    final BookmarkRecord folder = BookmarkHelpers.createFolder1();
+    folder.children = new JSONArray();
+    final BookmarkRecord child = BookmarkHelpers.createBookmark1();
+
+    final RepositorySession first = createAndBeginSession();
+    performWait(storeRunnable(first, folder));
+    performWait(storeRunnable(first, child));
+    performWait(finishRunnable(first, new ExpectFinishDelegate()));
+
+    final String renamed = "Renamed " + folder.title;
+    final ContentValues cv = new ContentValues();
+    cv.put(BrowserContract.Bookmarks.TITLE, renamed);
+    final AndroidBrowserRepositoryDataAccessor dataAccessor = getDataAccessor();
+    try {
+      dataAccessor.updateByGuid(folder.guid, cv);
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+
+    final BookmarkRecord incoming = BookmarkHelpers.createBookmark1();
+    incoming.guid = Utils.generateGuid();
+    incoming.parentName = renamed;
+    incoming.lastModified = System.currentTimeMillis() + 10000;
+
+    final RepositorySession second = createAndBeginSession();
+    performWait(storeRunnable(second, incoming));
+    performWait(finishRunnable(second, new ExpectFinishDelegate()));
+
+    int matching = 0;
+    final Cursor cur = getAllBookmarks();
+    try {
+      if (cur.moveToFirst()) {
+        while (!cur.isAfterLast()) {
+          if (child.bookmarkURI.equals(RepoUtils.getStringFromCursor(cur, BrowserContract.Bookmarks.URL))) {
+            matching++;
+          }
+          cur.moveToNext();
+        }
+      }
+    } finally {
+      cur.close();
+    }
+    assertEquals(1, matching);
+  }
+
   @Override
   public void testRemoteNewerTimeStamp() {
     BookmarkRecord local = BookmarkHelpers.createBookmarkInMobileFolder1();
@@ -6,8 +6,10 @@ package org.mozilla.gecko.background.db;
 import java.util.ArrayList;
 
 import org.json.simple.JSONObject;
+import org.mozilla.gecko.background.sync.helpers.ExpectBeginDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFinishDelegate;
+import org.mozilla.gecko.background.sync.helpers.ExpectStoreCompletedDelegate;
 import org.mozilla.gecko.background.sync.helpers.HistoryHelpers;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Utils;
@@ -22,11 +24,14 @@ import org.mozilla.gecko.sync.repositories.android.AndroidBrowserRepository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserRepositoryDataAccessor;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserRepositorySession;
 import org.mozilla.gecko.sync.repositories.android.BrowserContractHelpers;
+import org.mozilla.gecko.sync.repositories.android.ContentWriteBatch.WriteCallback;
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -194,6 +199,336 @@ public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositor
     public boolean sameRecordString(HistoryRecord r1, HistoryRecord r2) {
       return buildRecordString(r1).equals(buildRecordString(r2));
     }
+
+    public RecordStringIndex getIndex() {
+      return recordIndex;
+    }
+
+    public String getIndexedGuid(HistoryRecord record) throws Exception {
+      return getGuidForString(buildRecordString(record));
+    }
+
+    public Record findExisting(HistoryRecord record) throws Exception {
+      return findExistingRecord(record);
+    }
+
+    public RecordStringIndex getIndexWithoutPreparing() {
+      recordIndexPrepared = true;
+      return recordIndex;
+    }
+
+    public boolean isPreparingIndex() {
+      return recordIndexPreparation != null;
+    }
+  }
+
+  protected static void clearRecordIndex(Context context) {
+    final RecordStringIndex index = new RecordStringIndex(context, "history");
+    try {
+      index.clear();
+    } finally {
+      index.close();
+    }
+  }
+
+  protected HelperHistorySession createAndBeginHelperSession(boolean prepareInBackground) {
+    return createAndBeginHelperSession(prepareInBackground, 1);
+  }
+
+  protected HelperHistorySession createAndBeginHelperSession(boolean prepareInBackground, int storeLookupWindow) {
+    final AndroidBrowserHistoryRepository repo = new AndroidBrowserHistoryRepository();
+    repo.prepareRecordIndexInBackground = prepareInBackground;
+    repo.storeLookupWindow = storeLookupWindow;
+    final HelperHistorySession session = new HelperHistorySession(repo, getApplicationContext());
+    performWait(beginRunnable(session, new ExpectBeginDelegate()));
+    return session;
+  }
+
+  protected static HistoryRecord newerCopy(HistoryRecord record, String title) {
+    final HistoryRecord copy = (HistoryRecord) record.copyWithIDs(record.guid, record.androidID);
+    copy.title = title;
+    copy.lastModified = System.currentTimeMillis() + 10000;
+    return copy;
+  }
+
+  protected String fetchTitle(String guid) throws NullCursorException {
+    final AndroidBrowserRepositoryDataAccessor dataAccessor = getDataAccessor();
+    try {
+      final Cursor cur = dataAccessor.fetch(new String[] { guid });
+      try {
+        assertEquals(1, cur.getCount());
+        assertTrue(cur.moveToFirst());
+        return RepoUtils.getStringFromCursor(cur, BrowserContract.History.TITLE);
+      } finally {
+        cur.close();
+      }
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+  }
+
+  protected static class RecordingWriteCallback implements WriteCallback {
+    public int succeeded = 0;
+    public Exception failed = null;
+
+    @Override
+    public void onWriteSucceeded(ContentProviderResult result) {
+      succeeded += 1;
+    }
+
+    @Override
+    public void onWriteFailed(Exception e) {
+      failed = e;
+    }
+  }
+
+  /**
+   * Batched updates, and their visits, are applied together when flushed.
+   */
+  @SuppressWarnings("unchecked")
+  public void testBatchedWritesFlush() throws Exception {
+    final HistoryRecord record = HistoryHelpers.createHistory1();
+    final AndroidBrowserHistoryDataAccessor dataAccessor = (AndroidBrowserHistoryDataAccessor) getDataAccessor();
+    try {
+      dataAccessor.insert(record);
+      dataAccessor.batchWrites(100);
+
+      final HistoryRecord updated = newerCopy(record, "Updated");
+      final JSONObject visit = new JSONObject();
+      visit.put("date", System.currentTimeMillis() * 1000);
+      visit.put("type", 1L);
+      updated.visits.add(visit);
+      dataAccessor.update(record.guid, updated);
+
+      final RecordingWriteCallback callback = new RecordingWriteCallback();
+      dataAccessor.whenWritesApplied(callback);
+      assertEquals(0, callback.succeeded);
+      assertEquals(record.title, fetchTitle(record.guid));
+
+      dataAccessor.flushWrites();
+      assertEquals(1, callback.succeeded);
+      assertNull(callback.failed);
+      assertEquals("Updated", fetchTitle(record.guid));
+      assertEquals(updated.visits.size(), dataAccessor.getHistoryDataExtender().visitsForGUID(record.guid).size());
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+  }
+
+  /**
+   * Discarding batched writes applies none of them, and reports each as
+   * failed.
+   */
+  public void testBatchedWritesDiscard() throws Exception {
+    final HistoryRecord record = HistoryHelpers.createHistory1();
+    final AndroidBrowserHistoryDataAccessor dataAccessor = (AndroidBrowserHistoryDataAccessor) getDataAccessor();
+    try {
+      dataAccessor.insert(record);
+      final int visits = dataAccessor.getHistoryDataExtender().visitsForGUID(record.guid).size();
+      dataAccessor.batchWrites(100);
+
+      final HistoryRecord updated = newerCopy(record, "Updated");
+      updated.visits.clear();
+      dataAccessor.update(record.guid, updated);
+      final RecordingWriteCallback callback = new RecordingWriteCallback();
+      dataAccessor.whenWritesApplied(callback);
+
+      final Exception reason = new InactiveSessionException(null);
+      dataAccessor.discardWrites(reason);
+      assertEquals(0, callback.succeeded);
+      assertSame(reason, callback.failed);
+
+      // Nothing is left to apply.
+      dataAccessor.flushWrites();
+      assertEquals(record.title, fetchTitle(record.guid));
+      assertEquals(visits, dataAccessor.getHistoryDataExtender().visitsForGUID(record.guid).size());
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+  }
+
+  /**
+   * Looking up incoming GUIDs several at a time reconciles against local
+   * records exactly as looking them up one by one does.
+   */
+  public void testStoreLookupWindow() throws NullCursorException {
+    final HistoryRecord local0 = HistoryHelpers.createHistory1();
+    final HistoryRecord local1 = HistoryHelpers.createHistory2();
+    final HistoryRecord local2 = HistoryHelpers.createHistory3();
+    final AndroidBrowserRepositoryDataAccessor dataAccessor = getDataAccessor();
+    try {
+      dataAccessor.insert(local0);
+      dataAccessor.insert(local1);
+      dataAccessor.insert(local2);
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+
+    final Record[] incoming = new Record[] {
+      newerCopy(local0, "Remote 0"),
+      HistoryHelpers.createHistory4(),
+      newerCopy(local2, "Remote 2"),
+      HistoryHelpers.createHistory5(),
+    };
+
+    final HelperHistorySession session = createAndBeginHelperSession(false, 3);
+    try {
+      performWait(storeManyRunnable(session, incoming));
+    } finally {
+      session.abort();
+    }
+
+    assertEquals("Remote 0", fetchTitle(local0.guid));
+    assertEquals(local1.title, fetchTitle(local1.guid));
+    assertEquals("Remote 2", fetchTitle(local2.guid));
+    assertEquals(((HistoryRecord) incoming[1]).title, fetchTitle(incoming[1].guid));
+    assertEquals(((HistoryRecord) incoming[3]).title, fetchTitle(incoming[3].guid));
+  }
+
+  /**
+   * A local record changed twice in the same window is looked up again for
+   * the second change, rather than reconciled against a stale lookup.
+   */
+  public void testStoreLookupWindowRepeatedGUID() throws NullCursorException {
+    final HistoryRecord local = HistoryHelpers.createHistory1();
+    final AndroidBrowserRepositoryDataAccessor dataAccessor = getDataAccessor();
+    try {
+      dataAccessor.insert(local);
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+
+    final HistoryRecord first = newerCopy(local, "First");
+    final HistoryRecord other = HistoryHelpers.createHistory2();
+    final HistoryRecord second = newerCopy(local, "Second");
+    second.lastModified = first.lastModified + 1;
+
+    final HelperHistorySession session = createAndBeginHelperSession(false, 10);
+    try {
+      performWait(storeManyRunnable(session, new Record[] { first, other, second }, new ExpectStoreCompletedDelegate()));
+    } finally {
+      session.abort();
+    }
+
+    // fetchTitle asserts there is exactly one row.
+    assertEquals("Second", fetchTitle(local.guid));
+    assertEquals(other.title, fetchTitle(other.guid));
+  }
+
+  /**
+   * Records inserted outside of Sync are indexed the first time the session
+   * needs the index.
+   */
+  public void testRecordIndexPrepare() throws Exception {
+    clearRecordIndex(getApplicationContext());
+    final HistoryRecord record0 = HistoryHelpers.createHistory1();
+    final HistoryRecord record1 = HistoryHelpers.createHistory2();
+    final AndroidBrowserRepositoryDataAccessor dataAccessor = getDataAccessor();
+    try {
+      dataAccessor.insert(record0);
+      dataAccessor.insert(record1);
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+
+    final HelperHistorySession session = createAndBeginHelperSession(false);
+    try {
+      assertEquals(record0.guid, session.getIndexedGuid(record0));
+      assertEquals(record1.guid, session.getIndexedGuid(record1));
+      assertTrue(session.getIndex().getIndexedUntil() > 0);
+    } finally {
+      session.abort();
+    }
+  }
+
+  /**
+   * An index entry for a record that has since changed or gone is dropped
+   * rather than returned.
+   */
+  public void testRecordIndexStaleEntry() throws Exception {
+    clearRecordIndex(getApplicationContext());
+    final HistoryRecord record0 = HistoryHelpers.createHistory1();
+    final HistoryRecord incoming = HistoryHelpers.createHistory1();
+    incoming.guid = Utils.generateGuid();
+
+    final HelperHistorySession session = createAndBeginHelperSession(false);
+    try {
+      final RecordStringIndex index = session.getIndexWithoutPreparing();
+      index.put(incoming.histURI, record0.guid);
+      assertEquals(record0.guid, session.getIndexedGuid(incoming));
+
+      // record0 isn't stored locally, so the entry is stale.
+      assertNull(session.findExisting(incoming));
+      assertNull(session.getIndexedGuid(incoming));
+    } finally {
+      session.abort();
+    }
+  }
+
+  /**
+   * Closing the session while the index is being rebuilt in the background
+   * waits for the rebuild to stop, rather than closing the index underneath
+   * it.
+   */
+  public void testRecordIndexCloseDuringPreparation() throws Exception {
+    final long now = System.currentTimeMillis();
+    final ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>();
+    for (int i = 0; i < 500; i++) {
+      final HistoryRecord record = new HistoryRecord(Utils.generateGuid(), "history", now, false);
+      record.histURI = "http://example.com/" + i;
+      record.title = "Page " + i;
+      record.fennecDateVisited = now;
+      record.fennecVisitCount = 1;
+      records.add(record);
+    }
+    final AndroidBrowserHistoryDataAccessor dataAccessor = (AndroidBrowserHistoryDataAccessor) getDataAccessor();
+    try {
+      dataAccessor.bulkInsert(records);
+    } finally {
+      closeDataAccessor(dataAccessor);
+    }
+
+    for (int i = 0; i < 3; i++) {
+      clearRecordIndex(getApplicationContext());
+
+      final HelperHistorySession aborted = createAndBeginHelperSession(true);
+      aborted.setStoreDelegate(new ExpectStoreCompletedDelegate());
+      aborted.abort();
+      assertTrue(aborted.getIndex().isClosed());
+
+      final HelperHistorySession finished = createAndBeginHelperSession(true);
+      finished.setStoreDelegate(new ExpectStoreCompletedDelegate());
+      performWait(finishRunnable(finished, new ExpectFinishDelegate()));
+      assertTrue(finished.getIndex().isClosed());
+    }
+
+    // An abandoned rebuild commits nothing, so the index is either complete
+    // or still needs rebuilding.
+    final RecordStringIndex index = new RecordStringIndex(getApplicationContext(), "history");
+    try {
+      if (index.getIndexedUntil() >= 0) {
+        assertNotNull(index.lookup(records.get(0).histURI));
+      }
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * Beginning a session does no index work, so a sync that is skipped
+   * because nothing changed never starts catching up the index.
+   */
+  public void testRecordIndexPreparedOnlyWhenStoring() throws Exception {
+    final HelperHistorySession session = createAndBeginHelperSession(true);
+    assertFalse(session.isPreparingIndex());
+    session.abort();
+    assertTrue(session.getIndex().isClosed());
+
+    final HelperHistorySession storing = createAndBeginHelperSession(true);
+    storing.setStoreDelegate(new ExpectStoreCompletedDelegate());
+    assertTrue(storing.isPreparingIndex());
+    performWait(finishRunnable(storing, new ExpectFinishDelegate()));
+    assertFalse(storing.isPreparingIndex());
   }
 
   /**
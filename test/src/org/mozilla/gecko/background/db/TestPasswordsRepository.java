@@ -10,6 +10,7 @@ import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchSinceDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectGuidsSinceDelegate;
+import org.mozilla.gecko.background.sync.helpers.ExpectStoreCompletedDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectStoredDelegate;
 import org.mozilla.gecko.background.sync.helpers.PasswordHelpers;
 import org.mozilla.gecko.background.sync.helpers.SessionTestHelper;
@@ -265,6 +266,39 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
     dispose(session);
   }
 
+  /*
+   * Store two records that are identical except for guid before their writes
+   * are applied. Expect the second to reconcile against the first, rather
+   * than insert a duplicate.
+   */
+  public void testStoreIdenticalExceptGuidInOneBatch() throws RemoteException {
+    RepositorySession session = createAndBeginSession();
+    PasswordRecord record1 = PasswordHelpers.createPassword1();
+    PasswordRecord record2 = PasswordHelpers.createPassword1();
+    record2.guid = Utils.generateGuid();
+    record2.lastModified = record1.lastModified + 1000;
+
+    performWait(storeManyRunnable(session, new Record[] { record1, record2 }));
+    assertEquals(1, countRawPasswords());
+    dispose(session);
+  }
+
+  /*
+   * Store the same record twice before its writes are applied. Expect one
+   * row, with the second record's password.
+   */
+  public void testStoreSameGuidTwiceInOneBatch() throws RemoteException {
+    RepositorySession session = createAndBeginSession();
+    PasswordRecord record1 = PasswordHelpers.createPassword1();
+    PasswordRecord record2 = PasswordHelpers.createPassword1();
+    record2.guid = record1.guid;
+    updatePassword(NEW_PASSWORD1, record2, record1.lastModified + 1000);
+
+    performWait(storeManyRunnable(session, new Record[] { record1, record2 }));
+    assertEquals(1, countRawPasswords());
+    dispose(session);
+  }
+
   public void testRawFetch() throws RemoteException {
     RepositorySession session = createAndBeginSession();
     Record[] expected = new Record[] { PasswordHelpers.createPassword1(),
@@ -291,6 +325,20 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
   }
 
   // Helper methods.
+  private int countRawPasswords() throws RemoteException {
+    ContentProviderClient client = getApplicationContext().getContentResolver().acquireContentProviderClient(BrowserContract.PASSWORDS_AUTHORITY_URI);
+    try {
+      Cursor cursor = client.query(BrowserContractHelpers.PASSWORDS_CONTENT_URI, null, null, null, null);
+      try {
+        return cursor.getCount();
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      client.release();
+    }
+  }
+
   private RepositorySession createAndBeginSession() {
     return SessionTestHelper.createAndBeginSession(
         getApplicationContext(),
@@ -356,6 +404,23 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
     };
   }
 
+  private static Runnable storeManyRunnable(final RepositorySession session, final Record[] records) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(new ExpectStoreCompletedDelegate());
+        try {
+          for (Record record : records) {
+            session.store(record);
+          }
+          session.storeDone();
+        } catch (NoStoreDelegateException e) {
+          fail("NoStoreDelegateException should not occur.");
+        }
+      }
+    };
+  }
+
   private static Runnable fetchAllRunnable(final RepositorySession session, final Record[] records) {
     return new Runnable() {
       @Override
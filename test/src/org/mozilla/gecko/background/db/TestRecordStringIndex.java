@@ -0,0 +1,121 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.db;
+
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
+
+import android.test.AndroidTestCase;
+
+public class TestRecordStringIndex extends AndroidTestCase {
+  protected RecordStringIndex bookmarks;
+  protected RecordStringIndex history;
+
+  public void setUp() {
+    bookmarks = new RecordStringIndex(mContext, "bookmarks");
+    history = new RecordStringIndex(mContext, "history");
+    bookmarks.clear();
+    history.clear();
+  }
+
+  public void tearDown() {
+    bookmarks.close();
+    history.close();
+  }
+
+  public void testLookup() throws NullCursorException {
+    assertNull(history.lookup("http://example.com/"));
+
+    history.put("http://example.com/", "guid1");
+    history.put("http://example.org/", "guid2");
+    assertEquals("guid1", history.lookup("http://example.com/"));
+    assertEquals("guid2", history.lookup("http://example.org/"));
+    assertNull(history.lookup("http://example.net/"));
+
+    // A GUID is indexed under only its latest record string.
+    history.put("http://example.net/", "guid1");
+    assertNull(history.lookup("http://example.com/"));
+    assertEquals("guid1", history.lookup("http://example.net/"));
+
+    history.removeGuid("guid1");
+    assertNull(history.lookup("http://example.net/"));
+    assertEquals("guid2", history.lookup("http://example.org/"));
+  }
+
+  public void testStaleEntries() throws NullCursorException {
+    history.put("http://example.com/", "guid1");
+    history.put("http://example.com/", "guid2");
+    assertEquals("guid2", history.lookup("http://example.com/"));
+
+    // Only remove an entry that still refers to the stale GUID.
+    history.remove("http://example.com/", "guid1");
+    assertEquals("guid2", history.lookup("http://example.com/"));
+    history.remove("http://example.com/", "guid2");
+    assertNull(history.lookup("http://example.com/"));
+  }
+
+  public void testIndexedUntil() throws NullCursorException {
+    assertEquals(-1, history.getIndexedUntil());
+    history.setIndexedUntil(12345);
+    assertEquals(12345, history.getIndexedUntil());
+    assertEquals(-1, bookmarks.getIndexedUntil());
+
+    history.clear();
+    assertEquals(-1, history.getIndexedUntil());
+  }
+
+  public void testBatch() throws NullCursorException {
+    history.beginBatch();
+    try {
+      history.put("http://example.com/", "guid1");
+      history.setIndexedUntil(100);
+    } finally {
+      history.endBatch();
+    }
+    // Not marked successful, so rolled back.
+    assertNull(history.lookup("http://example.com/"));
+    assertEquals(-1, history.getIndexedUntil());
+
+    history.beginBatch();
+    try {
+      history.put("http://example.com/", "guid1");
+      history.setIndexedUntil(100);
+      history.setBatchSuccessful();
+    } finally {
+      history.endBatch();
+    }
+    assertEquals("guid1", history.lookup("http://example.com/"));
+    assertEquals(100, history.getIndexedUntil());
+  }
+
+  public void testCollectionsAreSeparate() throws NullCursorException {
+    assertFalse(RecordStringIndex.getDatabaseName("bookmarks").equals(RecordStringIndex.getDatabaseName("history")));
+
+    // A batch open on one collection doesn't block writes to the other.
+    history.beginBatch();
+    try {
+      history.put("same", "historyGUID");
+      bookmarks.put("same", "bookmarkGUID");
+      bookmarks.flush();
+      history.setBatchSuccessful();
+    } finally {
+      history.endBatch();
+    }
+    assertEquals("historyGUID", history.lookup("same"));
+    assertEquals("bookmarkGUID", bookmarks.lookup("same"));
+  }
+
+  public void testCloseFlushes() throws NullCursorException {
+    history.put("http://example.com/", "guid1");
+    history.close();
+    assertTrue(history.isClosed());
+
+    final RecordStringIndex reopened = new RecordStringIndex(mContext, "history");
+    try {
+      assertEquals("guid1", reopened.lookup("http://example.com/"));
+    } finally {
+      reopened.close();
+    }
+  }
+}
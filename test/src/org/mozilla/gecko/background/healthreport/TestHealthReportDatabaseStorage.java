@@ -19,6 +19,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.SparseArray;
 
 public class TestHealthReportDatabaseStorage extends FakeProfileTestCase {
   private String[] TABLE_NAMES = {
@@ -595,6 +596,79 @@ public class TestHealthReportDatabaseStorage extends FakeProfileTestCase {
     assertEquals(5, DBHelpers.getRowCount(db, "events"));
   }
 
+  private static int getCountAndClose(final Cursor c) {
+    try {
+      return c.getCount();
+    } finally {
+      c.close();
+    }
+  }
+
+  public void testRenderedDayCache() throws Exception {
+    final PrepopulatedMockHealthReportDatabaseStorage storage =
+        new PrepopulatedMockHealthReportDatabaseStorage(context, fakeProfileDirectory);
+    final int today = storage.getToday();
+    final int sevenDaysAgo = storage.getGivenDaysAgo(7);
+
+    final CachedDayRange empty = storage.getCachedDayRange();
+    assertTrue(empty.isEmpty());
+    assertEquals(14, getCountAndClose(storage.getUncachedRawEvents(empty, sevenDaysAgo)));
+
+    final SparseArray<String> sections = new SparseArray<String>();
+    sections.put(storage.env, "{}");
+    for (int day = sevenDaysAgo; day < today; day++) {
+      assertTrue(storage.cacheDaySections(empty, day, sections));
+    }
+    assertTrue(storage.setCachedDayRange(empty, new CachedDayRange(sevenDaysAgo, today, empty.epoch)));
+
+    CachedDayRange cached = storage.getCachedDayRange();
+    assertEquals(new CachedDayRange(sevenDaysAgo, today, 0), cached);
+    assertEquals(7, getCountAndClose(storage.getCachedDaySections(cached, sevenDaysAgo)));
+    assertEquals(3, getCountAndClose(storage.getCachedDaySections(cached, storage.getGivenDaysAgo(3))));
+    // Only today's events are left to walk.
+    assertEquals(5, getCountAndClose(storage.getUncachedRawEvents(cached, sevenDaysAgo)));
+
+    // Writing to a past day drops that day and every later day.
+    final int fieldID = storage.getField(storage.measurementNames[0], storage.measurementVers[0],
+                                         storage.fieldSpecContainers[0].counter.name).getID();
+    storage.incrementDailyCount(storage.env, storage.getGivenDaysAgo(3), fieldID, 1);
+    final CachedDayRange stale = cached;
+    cached = storage.getCachedDayRange();
+    assertEquals(new CachedDayRange(sevenDaysAgo, storage.getGivenDaysAgo(3), 0), cached);
+    assertEquals(4, getCountAndClose(storage.getCachedDaySections(cached, sevenDaysAgo)));
+    assertEquals(10, getCountAndClose(storage.getUncachedRawEvents(cached, sevenDaysAgo)));
+
+    // Sections rendered before the write are refused.
+    assertFalse(storage.cacheDaySections(stale, storage.getGivenDaysAgo(3), sections));
+    assertFalse(storage.setCachedDayRange(stale, new CachedDayRange(sevenDaysAgo, today, 0)));
+
+    // Deleting events drops their days.
+    storage.deleteEventsBefore(Integer.toString(storage.getGivenDaysAgo(4)));
+    assertEquals(1, getCountAndClose(storage.getCachedDaySections(storage.getCachedDayRange(), sevenDaysAgo)));
+
+    storage.deleteEnvironments();
+    assertEquals(0, DBHelpers.getRowCount(storage.getDB(), "rendered_days"));
+  }
+
+  public void testRenderedEnvironmentCache() throws Exception {
+    final PrepopulatedMockHealthReportDatabaseStorage storage =
+        new PrepopulatedMockHealthReportDatabaseStorage(context, fakeProfileDirectory);
+    final SparseArray<String> diffs = new SparseArray<String>();
+    diffs.put(storage.env, "{\"hash\":\"a\"}");
+
+    storage.cacheEnvironmentDiffs("current1", diffs);
+    assertEquals("{\"hash\":\"a\"}", storage.getCachedEnvironmentDiffs("current1").get(storage.env));
+    assertEquals(0, storage.getCachedEnvironmentDiffs("current2").size());
+
+    // A new current environment replaces the old differences.
+    storage.cacheEnvironmentDiffs("current2", diffs);
+    assertEquals(0, storage.getCachedEnvironmentDiffs("current1").size());
+    assertEquals(1, storage.getCachedEnvironmentDiffs("current2").size());
+
+    storage.deleteEnvironments();
+    assertEquals(0, storage.getCachedEnvironmentDiffs("current2").size());
+  }
+
   public void testVacuum() throws Exception {
     final PrepopulatedMockHealthReportDatabaseStorage storage =
         new PrepopulatedMockHealthReportDatabaseStorage(context, fakeProfileDirectory);
@@ -3,7 +3,9 @@
 
 package org.mozilla.gecko.background.healthreport;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -411,6 +413,97 @@ public class TestHealthReportGenerator extends FakeProfileTestCase {
     assertEquals("bar", discreteJSON.getJSONObject(2).getString("foo"));
   }
 
+  /**
+   * A generator with a fixed clock that can be told not to use the section
+   * cache, so that its documents are always rendered from raw events.
+   */
+  private static class FixedTimeGenerator extends HealthReportGenerator {
+    private final long now;
+    private final boolean useCache;
+
+    public FixedTimeGenerator(HealthReportStorage storage, long now, boolean useCache) {
+      super(storage);
+      this.now = now;
+      this.useCache = useCache;
+    }
+
+    @Override
+    protected long now() {
+      return now;
+    }
+
+    @Override
+    protected HealthReportSectionCache getSectionCache() {
+      return useCache ? super.getSectionCache() : null;
+    }
+
+    public String write(Environment current) throws JSONException, IOException {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(writeDocument(0, HealthReportConstants.EARLIEST_LAST_PING, current, out));
+      return out.toString("UTF-8");
+    }
+  }
+
+  public void testCachedDaysMatchRenderedDays() throws Exception {
+    MockHealthReportDatabaseStorage storage = new MockHealthReportDatabaseStorage(context, fakeProfileDirectory);
+
+    storage.beginInitialization();
+    final MockDatabaseEnvironment environment = storage.getEnvironment();
+    int env = environment.mockInit("23").register();
+    storage.ensureMeasurementInitialized("org.mozilla.testm6", 1, new MeasurementFields() {
+      @Override
+      public Iterable<FieldSpec> getFields() {
+        ArrayList<FieldSpec> out = new ArrayList<FieldSpec>();
+        out.add(new FieldSpec("counter", Field.TYPE_INTEGER_COUNTER));
+        out.add(new FieldSpec("last_str", Field.TYPE_STRING_LAST));
+        out.add(new FieldSpec("discrete_int", Field.TYPE_INTEGER_DISCRETE));
+        return out;
+      }
+    });
+    storage.finishInitialization();
+
+    final int counter = storage.getField("org.mozilla.testm6", 1, "counter").getID();
+    final int lastStr = storage.getField("org.mozilla.testm6", 1, "last_str").getID();
+    final int discreteInt = storage.getField("org.mozilla.testm6", 1, "discrete_int").getID();
+
+    final long now = System.currentTimeMillis();
+    final int today = storage.getDay(now);
+    for (int day = today - 5; day <= today; day++) {
+      storage.incrementDailyCount(env, day, counter, day - today + 10);
+      storage.recordDailyLast(env, day, lastStr, "day " + day);
+      storage.recordDailyDiscrete(env, day, discreteInt, day);
+    }
+
+    final FixedTimeGenerator uncached = new FixedTimeGenerator(storage, now, false);
+    final FixedTimeGenerator cached = new FixedTimeGenerator(storage, now, true);
+
+    // Cold: nothing is cached yet, so every day is rendered and past days
+    // are cached.
+    final String expected = uncached.write(environment);
+    assertTrue(storage.getCachedDayRange().isEmpty());
+    assertEquals(expected, cached.write(environment));
+    final CachedDayRange range = storage.getCachedDayRange();
+    assertTrue(range.contains(today - 5));
+    assertTrue(range.contains(today - 1));
+    assertFalse(range.contains(today));
+
+    // Warm: past days come from the cache.
+    assertEquals(expected, cached.write(environment));
+
+    // A write to a past day drops that day and later ones from the cache.
+    storage.incrementDailyCount(env, today - 3, counter, 100);
+    storage.recordDailyDiscrete(env, today - 3, discreteInt, 100);
+    final CachedDayRange trimmed = storage.getCachedDayRange();
+    assertTrue(trimmed.contains(today - 4));
+    assertFalse(trimmed.contains(today - 3));
+
+    final String updated = uncached.write(environment);
+    assertFalse(expected.equals(updated));
+    assertEquals(updated, cached.write(environment));
+    assertTrue(storage.getCachedDayRange().contains(today - 3));
+    assertEquals(updated, cached.write(environment));
+  }
+
   @Override
   protected String getCacheSuffix() {
     return File.separator + "health-" + System.currentTimeMillis() + ".profile";